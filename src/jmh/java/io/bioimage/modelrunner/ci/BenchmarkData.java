@@ -0,0 +1,198 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Synthetic tensors used by the benchmarks
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class BenchmarkData {
+	
+	/**
+	 * Shape of a single channel 512x512 image, in the order of the npy files
+	 */
+	public static final String SMALL = "1,1,512,512";
+	/**
+	 * Shape of a three channel 1024x1024 image, in the order of the npy files
+	 */
+	public static final String LARGE = "1,3,1024,1024";
+	
+	/**
+	 * Parse a shape written as comma separated sizes
+	 * @param shape
+	 * 	the shape, for example "1,1,512,512"
+	 * @return the size of each of the axes
+	 */
+	public static long[] shape(String shape) {
+		String[] sizes = shape.split(",");
+		long[] dims = new long[sizes.length];
+		for (int i = 0; i < sizes.length; i ++)
+			dims[i] = Long.parseLong(sizes[i].trim());
+		return dims;
+	}
+	
+	/**
+	 * Create an image filled with random values of the range of its data type
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param dataType
+	 * 	numpy name of the data type: float32, float64, uint8, int16 or int32
+	 * @param shape
+	 * 	size of each of the axes
+	 * @param seed
+	 * 	seed of the random values, so all the runs use the same data
+	 * @return the image
+	 */
+	@SuppressWarnings("unchecked")
+	public static < T extends RealType< T > & NativeType< T > > Img<T> create(String dataType, long[] shape, long seed) {
+		Img<?> img;
+		switch (dataType) {
+		case "float32":
+			img = ArrayImgs.floats(shape);
+			break;
+		case "float64":
+			img = ArrayImgs.doubles(shape);
+			break;
+		case "uint8":
+			img = ArrayImgs.unsignedBytes(shape);
+			break;
+		case "int16":
+			img = ArrayImgs.shorts(shape);
+			break;
+		case "int32":
+			img = ArrayImgs.ints(shape);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported data type: " + dataType);
+		}
+		Img<T> typed = (Img<T>) img;
+		Random random = new Random(seed);
+		boolean integer = !dataType.startsWith("float");
+		for (T px : typed) {
+			if (integer)
+				px.setReal(random.nextInt(Math.min(255, (int) px.getMaxValue())));
+			else
+				px.setReal(random.nextGaussian());
+		}
+		return typed;
+	}
+	
+	/**
+	 * Copy an image adding a small perturbation to each element, to be used as the
+	 * expected output of a model
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param dataType
+	 * 	numpy name of the data type of the image
+	 * @param img
+	 * 	the image
+	 * @param seed
+	 * 	seed of the random perturbation
+	 * @return the perturbed copy
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Img<T> perturb(String dataType, Img<T> img, long seed) {
+		Img<T> copy = img.copy();
+		if (!dataType.startsWith("float"))
+			return copy;
+		Random random = new Random(seed);
+		for (T px : copy)
+			px.setReal(px.getRealDouble() + random.nextGaussian() * 1e-6);
+		return copy;
+	}
+	
+	/**
+	 * Write an image as a C-ordered npy file
+	 * @param file
+	 * 	the file to create
+	 * @param dataType
+	 * 	numpy name of the data type of the image
+	 * @param img
+	 * 	the image, with its axes in the order of the npy shape
+	 * @throws IOException if there is any error writing the file
+	 */
+	public static void writeNpy(Path file, String dataType, RandomAccessibleInterval<? extends RealType<?>> img) throws IOException {
+		String descr;
+		int itemSize;
+		switch (dataType) {
+		case "float32": descr = "<f4"; itemSize = 4; break;
+		case "float64": descr = "<f8"; itemSize = 8; break;
+		case "uint8": descr = "|u1"; itemSize = 1; break;
+		case "int16": descr = "<i2"; itemSize = 2; break;
+		case "int32": descr = "<i4"; itemSize = 4; break;
+		default: throw new IllegalArgumentException("Unsupported data type: " + dataType);
+		}
+		StringBuilder shape = new StringBuilder();
+		for (int i = 0; i < img.numDimensions(); i ++)
+			shape.append(img.dimension(i)).append(", ");
+		StringBuilder header = new StringBuilder("{'descr': '" + descr + "', 'fortran_order': False, 'shape': (" 
+				+ shape.toString().trim() + "), }");
+		// Magic string, version and header length take 10 bytes, the header ends with a new line
+		while ((10 + header.length() + 1) % 64 != 0)
+			header.append(' ');
+		header.append('\n');
+		
+		ByteBuffer buffer = ByteBuffer.allocate(10 + header.length()).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII)).put((byte) 1).put((byte) 0);
+		buffer.putShort((short) header.length()).put(header.toString().getBytes(StandardCharsets.US_ASCII));
+		buffer.flip();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, 
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			channel.write(buffer);
+			ByteBuffer data = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+			// npy files are C-ordered, the last axis is the one that changes fastest
+			for (RealType<?> px : Views.flatIterable(MappedNpy.reverseAxes(img))) {
+				if (data.remaining() < itemSize) {
+					data.flip();
+					channel.write(data);
+					data.clear();
+				}
+				switch (itemSize) {
+				case 1: data.put((byte) px.getRealDouble()); break;
+				case 2: data.putShort((short) px.getRealDouble()); break;
+				case 8: data.putDouble(px.getRealDouble()); break;
+				default:
+					if (dataType.equals("int32"))
+						data.putInt((int) px.getRealDouble());
+					else
+						data.putFloat(px.getRealFloat());
+				}
+			}
+			data.flip();
+			channel.write(data);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.bioimage.modelrunner.numpy.DecodeNumpy;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Benchmarks of reading the test tensors of the models from npy files.
+ * Every benchmark reads all the elements of the tensor, because memory-mapped
+ * files are only read when the elements are accessed.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NpyDecodingBenchmark {
+	
+	@Param({"float32", "float64", "uint8", "int16"})
+	public String dataType;
+	
+	@Param({BenchmarkData.SMALL, BenchmarkData.LARGE})
+	public String shape;
+	
+	private Path dir;
+	
+	private Path npy;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("jmh-npy");
+		npy = dir.resolve("tensor.npy");
+		BenchmarkData.writeNpy(npy, dataType, BenchmarkData.create(dataType, BenchmarkData.shape(shape), 1));
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		ModelCache.deleteRecursively(dir);
+	}
+	
+	private static double sum(RandomAccessibleInterval<? extends RealType<?>> rai) {
+		double sum = 0;
+		for (RealType<?> px : Views.flatIterable(rai))
+			sum += px.getRealDouble();
+		return sum;
+	}
+	
+	/**
+	 * Decoding the whole file into memory with JDLL
+	 * @return the sum of the elements
+	 * @throws IOException if there is any error reading the file
+	 */
+	@Benchmark
+	public double decodeNumpy() throws IOException {
+		return sum(DecodeNumpy.retrieveImgLib2FromNpy(npy.toString()));
+	}
+	
+	/**
+	 * Memory-mapping the file
+	 * @return the sum of the elements
+	 * @throws IOException if there is any error reading the file
+	 */
+	@Benchmark
+	public double mappedNpy() throws IOException {
+		return sum(MappedNpy.open(npy).getImg());
+	}
+	
+	/**
+	 * Memory-mapping the file in copy-on-write mode, as done for the test inputs
+	 * @return the sum of the elements
+	 * @throws IOException if there is any error reading the file
+	 */
+	@Benchmark
+	public double mappedNpyCopyOnWrite() throws IOException {
+		return sum(MappedNpy.open(npy, true, MappedNpy.DEFAULT_CHUNK_BYTES).getImg());
+	}
+}
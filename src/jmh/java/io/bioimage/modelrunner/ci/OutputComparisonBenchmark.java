@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Benchmarks of the comparison between the outputs of a model and the expected test outputs
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputComparisonBenchmark {
+	
+	@Param({"float32", "float64", "uint8", "int16"})
+	public String dataType;
+	
+	@Param({BenchmarkData.SMALL, BenchmarkData.LARGE})
+	public String shape;
+	
+	private Img<?> output;
+	
+	private Img<?> expected;
+	
+	private Img<DoubleType> difference;
+	
+	private Path dir;
+	
+	private MappedNpy expectedNpy;
+	
+	private OutputComparator comparator;
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		long[] dims = BenchmarkData.shape(shape);
+		output = BenchmarkData.create(dataType, dims, 1);
+		expected = BenchmarkData.perturb(dataType, (Img) output, 2);
+		difference = subtract((Img) output, (Img) expected);
+		dir = Files.createTempDirectory("jmh-comparison");
+		Path npy = dir.resolve("expected.npy");
+		BenchmarkData.writeNpy(npy, dataType, (Img) expected);
+		expectedNpy = MappedNpy.open(npy);
+		comparator = new OutputComparator(1e-4);
+	}
+	
+	private static < T extends RealType< T > & NativeType< T > > Img<DoubleType> subtract(Img<T> a, Img<T> b) {
+		Img<DoubleType> result = ArrayImgs.doubles(Intervals.dimensionsAsLongArray(a));
+		Cursor<T> ca = a.cursor();
+		Cursor<T> cb = b.cursor();
+		for (DoubleType px : result)
+			px.set(ca.next().getRealDouble() - cb.next().getRealDouble());
+		return result;
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		ModelCache.deleteRecursively(dir);
+	}
+	
+	/**
+	 * Maximum of the difference image, as the CI computed it before the single-pass comparison
+	 * @return the max difference
+	 */
+	@Benchmark
+	public double computeMaxDiff() {
+		return maxDifference(difference);
+	}
+	
+	/**
+	 * The comparison of the CI before the single-pass comparison: the absolute value of the 
+	 * minimum of the difference between the expected output and the output
+	 */
+	private static < T extends RealType< T > & NativeType< T > > double maxDifference(final Img< T > input) {
+		Cursor<T> iterator = input.cursor();
+		T type = iterator.next();
+		T min = type.copy();
+		T max = type.copy();
+		while ( iterator.hasNext() )
+		{
+			type = iterator.next();
+			if ( type.compareTo( min ) < 0 )
+				min.set( type );
+			if ( type.compareTo( max ) > 0 )
+				max.set( type );
+		}
+		return Math.max(-min.getRealDouble(), min.getRealDouble());
+	}
+	
+	/**
+	 * Comparison of two images in memory
+	 * @return the comparison result
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Benchmark
+	public ComparisonResult compareInMemory() {
+		return comparator.compare((Img) output, (Img) expected);
+	}
+	
+	/**
+	 * Comparison of an image with a memory-mapped npy file, as done for the test outputs
+	 * @return the comparison result
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Benchmark
+	public ComparisonResult compareWithNpy() {
+		return comparator.compare((Img) output, expectedNpy);
+	}
+}
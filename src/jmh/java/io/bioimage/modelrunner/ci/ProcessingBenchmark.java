@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.bioimage.modelrunner.tensor.Tensor;
+
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Benchmarks of the pre- and post-processing transformations.
+ * The arguments of the transformations are chosen so applying them repeatedly
+ * on the same tensor keeps its values in the same range.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessingBenchmark {
+	
+	/**
+	 * Names of the transformations as they appear in the rdf.yaml files
+	 */
+	private static final String[] NAMES = {"scale_linear", "clip", "sigmoid", "binarize",
+			"zero_mean_unit_variance", "scale_range", "scale_mean_variance", "min_distance"};
+	
+	/**
+	 * Arguments used for each of the benchmarked transformations
+	 * @param name
+	 * 	name of the transformation
+	 * @return the arguments
+	 */
+	static Map<String, Object> kwargs(String name) {
+		Map<String, Object> kwargs = new HashMap<String, Object>();
+		switch (name) {
+		case "scale_linear":
+			kwargs.put("gain", -1.0);
+			kwargs.put("offset", 0.0);
+			break;
+		case "clip":
+			kwargs.put("min", -1.0);
+			kwargs.put("max", 1.0);
+			break;
+		case "binarize":
+			kwargs.put("threshold", 0.5);
+			break;
+		case "zero_mean_unit_variance":
+			kwargs.put("mode", "per_sample");
+			kwargs.put("axes", "xyc");
+			break;
+		case "scale_range":
+			kwargs.put("mode", "per_sample");
+			kwargs.put("axes", "xyc");
+			kwargs.put("min_percentile", 1.0);
+			kwargs.put("max_percentile", 99.8);
+			break;
+		default:
+			break;
+		}
+		return kwargs;
+	}
+	
+	/**
+	 * A float tensor and one transformation to apply to it
+	 */
+	@State(Scope.Benchmark)
+	public static class Transformation {
+		
+		@Param({"scale_linear", "clip", "sigmoid", "binarize", "zero_mean_unit_variance", "scale_range"})
+		public String name;
+		
+		@Param({BenchmarkData.SMALL, BenchmarkData.LARGE})
+		public String shape;
+		
+		Map<String, Object> kwargs;
+		
+		Tensor<FloatType> tensor;
+		
+		@Setup(Level.Trial)
+		public void setup() {
+			kwargs = kwargs(name);
+			tensor = Tensor.build("input0", "bcyx", BenchmarkData.<FloatType>create("float32", BenchmarkData.shape(shape), 1));
+		}
+	}
+	
+	/**
+	 * A float tensor and the chain scale_linear, clip and sigmoid
+	 */
+	@State(Scope.Benchmark)
+	public static class Chain {
+		
+		@Param({BenchmarkData.SMALL, BenchmarkData.LARGE})
+		public String shape;
+		
+		Tensor<FloatType> tensor;
+		
+		ProcessingChain fused;
+		
+		JavaProcessing[] sequential;
+		
+		@Setup(Level.Trial)
+		public void setup() throws ClassNotFoundException {
+			tensor = Tensor.build("input0", "bcyx", BenchmarkData.<FloatType>create("float32", BenchmarkData.shape(shape), 1));
+			String[] names = {"scale_linear", "clip", "sigmoid"};
+			fused = new ProcessingChain();
+			sequential = new JavaProcessing[names.length];
+			for (int i = 0; i < names.length; i ++) {
+				fused.add(names[i], kwargs(names[i]));
+				sequential[i] = JavaProcessing.definePreprocessing(names[i], kwargs(names[i]));
+			}
+		}
+	}
+	
+	/**
+	 * Conversion of the transformation and argument names of the rdf.yaml into Java names
+	 * @param bh
+	 * 	consumes the results
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void snakeCaseToCamelCaseFirstCap(Blackhole bh) {
+		for (String name : NAMES)
+			bh.consume(JavaProcessing.snakeCaseToCamelCaseFirstCap(name));
+	}
+	
+	/**
+	 * Definition of a transformation of the rdf.yaml, without running it
+	 * @param state
+	 * 	the transformation
+	 * @return the transformation object
+	 * @throws ClassNotFoundException if the transformation is not in the classpath
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public JavaProcessing definePreprocessing(Transformation state) throws ClassNotFoundException {
+		return JavaProcessing.definePreprocessing(state.name, state.kwargs);
+	}
+	
+	/**
+	 * Definition and execution of a transformation with {@link JavaProcessing}
+	 * @param state
+	 * 	the transformation and the tensor
+	 * @return the transformed tensor
+	 * @throws ClassNotFoundException if the transformation is not in the classpath
+	 */
+	@Benchmark
+	public Tensor<?> defineAndExecute(Transformation state) throws ClassNotFoundException {
+		return JavaProcessing.definePreprocessing(state.name, state.kwargs).execute(state.tensor.getName(), state.tensor);
+	}
+	
+	/**
+	 * Chain of pointwise transformations run as a single pass over the tensor
+	 * @param state
+	 * 	the chain and the tensor
+	 * @return the transformed tensor
+	 */
+	@Benchmark
+	public Tensor<?> fusedChain(Chain state) {
+		return state.fused.execute(state.tensor);
+	}
+	
+	/**
+	 * Chain of pointwise transformations run one after the other with {@link JavaProcessing}
+	 * @param state
+	 * 	the chain and the tensor
+	 * @return the transformed tensor
+	 */
+	@Benchmark
+	public Tensor<?> sequentialChain(Chain state) {
+		Tensor<?> tensor = state.tensor;
+		for (JavaProcessing step : state.sequential)
+			tensor = step.execute(state.tensor.getName(), tensor);
+		return tensor;
+	}
+}
@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of writing the test summaries of a model as YAML
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SummaryWriterBenchmark {
+	
+	/**
+	 * Number of summaries in the file, one model has a few, 
+	 * the whole collection has thousands
+	 */
+	@Param({"4", "2000"})
+	public int summaries;
+	
+	private Path dir;
+	
+	private String file;
+	
+	private List<Object> content;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("jmh-summaries");
+		file = dir.resolve("test_summary_0.5.5.yaml").toString();
+		content = new ArrayList<Object>();
+		for (int i = 0; i < summaries; i ++) {
+			Map<String, String> summary = new LinkedHashMap<String, String>();
+			summary.put("name", "reproduce test outputs from test inputs");
+			summary.put("status", i % 10 == 0 ? "failed" : "passed");
+			summary.put("error", i % 10 == 0 ? "output number 0 produces a very different result" : null);
+			summary.put("source_name", "model-" + i);
+			summary.put("traceback", null);
+			summary.put("JDLL_VERSION", "0.5.5");
+			summary.put("max_abs_error", Double.toString(i * 1e-7));
+			summary.put("compared_elements", "262144");
+			content.add(summary);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		ModelCache.deleteRecursively(dir);
+	}
+	
+	/**
+	 * Write the summaries file
+	 * @throws IOException if there is any error writing the file
+	 */
+	@Benchmark
+	public void writeSummaries() throws IOException {
+		ContinuousIntegration.writeSummaries(file, content);
+	}
+}
@@ -0,0 +1,558 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import io.bioimage.modelrunner.bioimageio.description.ModelDescriptor;
+import io.bioimage.modelrunner.bioimageio.description.ShapeSpec;
+import io.bioimage.modelrunner.bioimageio.description.TensorSpec;
+import io.bioimage.modelrunner.bioimageio.description.exceptions.ModelSpecsException;
+
+/**
+ * Decides which tests can run at the same time so that they do not run out of memory. Before a
+ * test starts, its peak heap, direct buffer and native memory are estimated, and the test is only
+ * admitted by the {@link TestScheduler} when the estimates fit in what is left of the budgets 
+ * by the tests running. Tests that do not fit wait, while smaller tests behind them are started
+ * around them.
+ * 
+ * The estimates are computed from the contents of the rdf.yaml while the tests are prepared, with
+ * {@link #estimate(List, Map)}, without creating the descriptor of the model. They are refined by
+ * {@link #downloaded(TestJob, Path)} when the model of a test is downloaded, with the descriptor
+ * that the test uses next. They are stored in the {@link TestJob}, so admitting a test only 
+ * compares numbers and does no I/O.
+ * 
+ * The estimate uses:
+ * - the size of the test inputs, from their .npy files once the model is downloaded, or from the
+ * minimum shape of the input tensors of the rdf.yaml before,
+ * - the size of the outputs, from the scale of each output relative to its reference input, or its
+ * fixed shape,
+ * - the size of the weights file once the model is downloaded,
+ * - the heap and direct memory measured in the previous run of the same test, if any, which 
+ * replaces the estimate when it is bigger.
+ * The direct buffers that the {@link BufferPool} can keep are subtracted from the direct budget.
+ * The tensors are counted as 32 bit values, the type they are processed in.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class AdmissionController implements TestScheduler.Admission<TestJob> {
+	
+	/**
+	 * Position of each memory type in the estimates and budgets
+	 */
+	private static final int HEAP = 0;
+	private static final int DIRECT = 1;
+	private static final int NATIVE = 2;
+	private static final String[] NAMES = {"heap", "direct", "native"};
+	/**
+	 * Bytes in a MB
+	 */
+	private static final double MB = 1024 * 1024;
+	/**
+	 * Bytes of each element of the tensors while they are processed
+	 */
+	private static final long ELEMENT_BYTES = 4;
+	/**
+	 * Size of the header of a .npy file, excluded from the size of the tensor
+	 */
+	private static final long NPY_HEADER_BYTES = 128;
+	/**
+	 * Copies of the tensors in the heap: the decoded or processed input and output, and the
+	 * result of the processing
+	 */
+	private static final long HEAP_COPIES = 2;
+	/**
+	 * Memory of the engine for the intermediate activations, relative to the size of the tensors
+	 */
+	private static final long ACTIVATION_FACTOR = 4;
+	/**
+	 * Copies of the weights in native memory: the file read and the tensors of the engine
+	 */
+	private static final long WEIGHT_COPIES = 2;
+	/**
+	 * Margin over the memory measured in the previous run
+	 */
+	private static final double HISTORY_MARGIN = 1.25;
+	/**
+	 * Fraction of the memory available that is used as budget when it is not set
+	 */
+	private static final double DEFAULT_BUDGET_FRACTION = 0.8;
+	
+	/**
+	 * Heap, direct and native memory in bytes that the tests running can use
+	 */
+	private final long[] budgets;
+	/**
+	 * Memory reserved by the tests running
+	 */
+	private final long[] inUse = new long[3];
+	/**
+	 * Largest memory reserved at the same time
+	 */
+	private final long[] maxInUse = new long[3];
+	/**
+	 * Memory reserved by each test running
+	 */
+	private final Map<TestJob, long[]> admitted = new HashMap<TestJob, long[]>();
+	/**
+	 * Tests that could not start when they were considered
+	 */
+	private final Set<TestJob> delayed = new HashSet<TestJob>();
+	/**
+	 * Tests whose estimate does not fit in the budgets, they run alone
+	 */
+	private final Set<TestJob> oversized = new HashSet<TestJob>();
+	/**
+	 * Number of tests admitted
+	 */
+	private int started = 0;
+	
+	/**
+	 * Create the controller with the budgets of the options, derived from the JVM and the
+	 * physical memory for the ones not set
+	 * @param options
+	 * 	the options of the run
+	 */
+	public AdmissionController(RunOptions options) {
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		long maxDirect = maxDirectMemory(maxHeap);
+		long physical = physicalMemory();
+		this.budgets = new long[3];
+		budgets[HEAP] = budget(options.getHeapBudgetMB(), maxHeap);
+		budgets[DIRECT] = budget(options.getDirectBudgetMB(), maxDirect);
+		budgets[NATIVE] = budget(options.getNativeBudgetMB(), physical <= 0 ? Long.MAX_VALUE : Math.max(0, physical - maxHeap - maxDirect));
+		// The buffers kept by the BufferPool between the tests are not in the estimate of any test
+		long pooled = (long) (options.getBufferPoolMB() * MB);
+		if (budgets[DIRECT] != Long.MAX_VALUE)
+			budgets[DIRECT] = Math.max(0, budgets[DIRECT] - pooled);
+		System.out.println("Memory budgets of the concurrent tests: heap " + mb(budgets[HEAP]) + " MB, direct " 
+				+ mb(budgets[DIRECT]) + " MB, native " + mb(budgets[NATIVE]) + " MB");
+	}
+	
+	@Override
+	public synchronized boolean tryAdmit(TestJob job, boolean alone) {
+		long[] estimate = job.getMemoryEstimate();
+		// A test that was not estimated is only limited by the tests already admitted
+		if (estimate == null)
+			estimate = new long[3];
+		boolean fits = true;
+		boolean oversize = false;
+		for (int i = 0; i < budgets.length; i ++) {
+			fits &= inUse[i] + estimate[i] <= budgets[i];
+			oversize |= estimate[i] > budgets[i];
+		}
+		if (oversize && oversized.add(job))
+			System.out.println("The estimated memory of " + job + " (" + describe(estimate) + ") exceeds the budgets, it will run alone");
+		if (!fits && !alone) {
+			delayed.add(job);
+			return false;
+		}
+		admitted.put(job, estimate);
+		started ++;
+		for (int i = 0; i < budgets.length; i ++) {
+			inUse[i] += estimate[i];
+			maxInUse[i] = Math.max(maxInUse[i], inUse[i]);
+		}
+		return true;
+	}
+	
+	@Override
+	public synchronized void release(TestJob job) {
+		long[] estimate = admitted.remove(job);
+		if (estimate == null)
+			return;
+		for (int i = 0; i < budgets.length; i ++)
+			inUse[i] -= estimate[i];
+	}
+	
+	/**
+	 * Estimate the peak memory of the tests of a model from the contents of its rdf.yaml, before
+	 * they are scheduled and before the contents are released
+	 * @param jobs
+	 * 	the tests of the model
+	 * @param rdf
+	 * 	contents of the rdf.yaml of the model
+	 */
+	public void estimate(List<TestJob> jobs, Map<String, Object> rdf) {
+		long tensorBytes = rdf == null ? 0 : tensorElements(rdf) * ELEMENT_BYTES;
+		for (TestJob job : jobs)
+			job.setMemoryEstimate(estimate(job, tensorBytes, 0));
+	}
+	
+	/**
+	 * Estimate again the peak memory of a test once its model is downloaded, from the size of
+	 * its test inputs and weights. Meant to be the listener of the {@link ModelDownloader}
+	 * @param job
+	 * 	the test
+	 * @param folder
+	 * 	the folder that contains the model
+	 */
+	public void downloaded(TestJob job, Path folder) {
+		job.setMemoryEstimate(estimate(job, folder));
+	}
+	
+	/**
+	 * Estimate the peak memory of a test from the descriptor of its model
+	 * @param job
+	 * 	the test
+	 * @param folder
+	 * 	the folder that contains the model, null if it is not downloaded
+	 * @return the heap, direct buffer and native memory in bytes
+	 */
+	static long[] estimate(TestJob job, Path folder) {
+		ModelDescriptor rd = null;
+		try {
+			rd = job.getModel().getDescriptor(job.getModel().getMetrics());
+		} catch (ModelSpecsException ex) {
+		}
+		long tensorBytes = 0;
+		long weightBytes = 0;
+		if (rd != null) {
+			Map<String, Long> inputElements = new HashMap<String, Long>();
+			for (int i = 0; i < rd.getInputTensors().size(); i ++) {
+				TensorSpec spec = rd.getInputTensors().get(i);
+				long elements = -1;
+				if (folder != null && i < rd.getTestInputs().size())
+					elements = (fileSize(folder.resolve(fileName(rd.getTestInputs().get(i).getString()))) - NPY_HEADER_BYTES) 
+						/ dataTypeBytes(spec.getDataType());
+				if (elements <= 0)
+					elements = elements(spec.getShape().getTileMinimumSize());
+				inputElements.put(spec.getName(), elements);
+				tensorBytes += elements * ELEMENT_BYTES;
+			}
+			for (TensorSpec spec : rd.getOutputTensors())
+				tensorBytes += outputElements(spec.getShape(), inputElements) * ELEMENT_BYTES;
+			if (folder != null)
+				weightBytes = Math.max(0, fileSize(folder.resolve(job.getWeightFormat().getSourceFileName())));
+		}
+		return estimate(job, tensorBytes, weightBytes);
+	}
+	
+	/**
+	 * Peak memory of a test from the bytes of its tensors and weights, raised to the memory
+	 * measured in its previous run
+	 */
+	private static long[] estimate(TestJob job, long tensorBytes, long weightBytes) {
+		long[] estimate = new long[3];
+		estimate[HEAP] = HEAP_COPIES * tensorBytes;
+		estimate[DIRECT] = tensorBytes;
+		estimate[NATIVE] = WEIGHT_COPIES * weightBytes + ACTIVATION_FACTOR * tensorBytes;
+		long[] measured = measured(job.getModel().getCache().getPrevious(job.getWeightFormat().getFramework()));
+		estimate[HEAP] = Math.max(estimate[HEAP], (long) (measured[HEAP] * HISTORY_MARGIN));
+		estimate[DIRECT] = Math.max(estimate[DIRECT], (long) (measured[DIRECT] * HISTORY_MARGIN));
+		return estimate;
+	}
+	
+	/**
+	 * 
+	 * @return the budgets, the largest memory reserved at the same time and the number of tests
+	 * 	admitted, delayed and run alone because they exceeded the budgets, in MB
+	 */
+	public synchronized Map<String, Object> report() {
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < budgets.length; i ++) {
+			report.put(NAMES[i] + "_budget_mb", mb(budgets[i]));
+			report.put(NAMES[i] + "_max_reserved_mb", mb(maxInUse[i]));
+		}
+		report.put("admitted", started);
+		report.put("delayed", delayed.size());
+		report.put("oversized", oversized.size());
+		return report;
+	}
+	
+	/**
+	 * Number of elements of the inputs and outputs of a model from the contents of its rdf.yaml. 
+	 * Inputs take their fixed or minimum shape and outputs their fixed shape or the shape of their
+	 * reference input scaled. Both the 'shape' of the tensors of the rdf.yaml 0.4 and the 'axes'
+	 * of the 0.5 are read, dimensions that cannot be read count as 1
+	 * @param rdf
+	 * 	contents of the rdf.yaml
+	 * @return the number of elements
+	 */
+	static long tensorElements(Map<String, Object> rdf) {
+		Map<String, Map<String, Long>> inputs = new HashMap<String, Map<String, Long>>();
+		Map<String, Map<String, Double>> scales = new HashMap<String, Map<String, Double>>();
+		long elements = 0;
+		for (Map<String, Object> tensor : tensors(rdf.get("inputs"))) {
+			Map<String, Long> sizes = inputSizes(tensor);
+			inputs.put(tensorName(tensor), sizes);
+			scales.put(tensorName(tensor), axisScales(tensor));
+			elements += product(sizes.values());
+		}
+		for (Map<String, Object> tensor : tensors(rdf.get("outputs")))
+			elements += product(outputSizes(tensor, inputs, scales));
+		return elements;
+	}
+	
+	/**
+	 * Size of each dimension of an input, by position in 0.4 and by axis id in 0.5
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Long> inputSizes(Map<String, Object> tensor) {
+		Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+		Object shape = tensor.get("shape");
+		if (shape instanceof Map)
+			shape = ((Map<String, Object>) shape).get("min");
+		if (shape instanceof List) {
+			List<Object> dims = (List<Object>) shape;
+			for (int i = 0; i < dims.size(); i ++)
+				sizes.put(String.valueOf(i), size(dims.get(i)));
+			return sizes;
+		}
+		List<Map<String, Object>> axes = tensors(tensor.get("axes"));
+		for (int i = 0; i < axes.size(); i ++) {
+			Object size = axes.get(i).get("size");
+			if (size instanceof Map)
+				size = ((Map<String, Object>) size).get("min");
+			else if (size == null && axes.get(i).get("channel_names") instanceof List)
+				size = ((List<Object>) axes.get(i).get("channel_names")).size();
+			sizes.put(axisId(axes.get(i), i), size(size));
+		}
+		return sizes;
+	}
+	
+	/**
+	 * Physical scale of each axis of an input of the rdf.yaml 0.5, by axis id
+	 */
+	private static Map<String, Double> axisScales(Map<String, Object> tensor) {
+		Map<String, Double> scales = new HashMap<String, Double>();
+		List<Map<String, Object>> axes = tensors(tensor.get("axes"));
+		for (int i = 0; i < axes.size(); i ++)
+			scales.put(axisId(axes.get(i), i), number(axes.get(i).get("scale"), 1));
+		return scales;
+	}
+	
+	/**
+	 * Size of each dimension of an output, fixed or scaled from its reference input. In 0.5 the
+	 * size of a referenced axis is the size of the reference times its scale divided by the scale
+	 * of the axis
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Double> outputSizes(Map<String, Object> tensor, Map<String, Map<String, Long>> inputs, 
+			Map<String, Map<String, Double>> scales) {
+		List<Double> sizes = new ArrayList<Double>();
+		Object shape = tensor.get("shape");
+		if (shape instanceof List) {
+			for (Object dim : (List<Object>) shape)
+				sizes.add((double) size(dim));
+			return sizes;
+		} else if (shape instanceof Map) {
+			Map<String, Object> relative = (Map<String, Object>) shape;
+			Map<String, Long> reference = inputs.get(String.valueOf(relative.get("reference_tensor")));
+			List<Object> scale = relative.get("scale") instanceof List ? (List<Object>) relative.get("scale") : null;
+			if (reference == null || scale == null)
+				return sizes;
+			for (int i = 0; i < scale.size(); i ++) {
+				Long dim = reference.get(String.valueOf(i));
+				sizes.add((dim == null ? 1 : dim) * number(scale.get(i), 1));
+			}
+			return sizes;
+		}
+		for (Map<String, Object> axis : tensors(tensor.get("axes"))) {
+			Object size = axis.get("size");
+			double dim = 1;
+			if (size instanceof Map) {
+				String tensorId = String.valueOf(((Map<String, Object>) size).get("tensor_id"));
+				String axisId = String.valueOf(((Map<String, Object>) size).get("axis_id"));
+				Long referenceDim = inputs.containsKey(tensorId) ? inputs.get(tensorId).get(axisId) : null;
+				Double referenceScale = scales.containsKey(tensorId) ? scales.get(tensorId).get(axisId) : null;
+				if (referenceDim != null)
+					dim = referenceDim * (referenceScale == null ? 1 : referenceScale) / number(axis.get("scale"), 1);
+			} else if (size == null && axis.get("channel_names") instanceof List) {
+				dim = ((List<Object>) axis.get("channel_names")).size();
+			} else {
+				dim = size(size);
+			}
+			sizes.add(dim);
+		}
+		return sizes;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static List<Map<String, Object>> tensors(Object list) {
+		List<Map<String, Object>> tensors = new ArrayList<Map<String, Object>>();
+		if (!(list instanceof List))
+			return tensors;
+		for (Object tensor : (List<Object>) list) {
+			if (tensor instanceof Map)
+				tensors.add((Map<String, Object>) tensor);
+		}
+		return tensors;
+	}
+	
+	private static String tensorName(Map<String, Object> tensor) {
+		return String.valueOf(tensor.get("name") != null ? tensor.get("name") : tensor.get("id"));
+	}
+	
+	/**
+	 * Id of an axis of the rdf.yaml 0.5, its type for the batch and channel axes that have no id
+	 */
+	private static String axisId(Map<String, Object> axis, int position) {
+		Object id = axis.get("id") != null ? axis.get("id") : axis.get("type");
+		return id == null ? String.valueOf(position) : String.valueOf(id);
+	}
+	
+	private static long size(Object dim) {
+		return Math.max(1, (long) number(dim, 1));
+	}
+	
+	private static double number(Object value, double orElse) {
+		return value instanceof Number ? ((Number) value).doubleValue() : orElse;
+	}
+	
+	private static long product(Collection<? extends Number> sizes) {
+		if (sizes.isEmpty())
+			return 0;
+		double product = 1;
+		for (Number size : sizes)
+			product *= size.doubleValue();
+		return (long) Math.ceil(product);
+	}
+	
+	/**
+	 * Number of elements of an output: the elements of its reference input scaled, or its fixed shape
+	 */
+	private static long outputElements(ShapeSpec shape, Map<String, Long> inputElements) {
+		Long reference = shape.getReferenceInput() == null ? null : inputElements.get(shape.getReferenceInput());
+		if (reference == null || shape.getScale() == null)
+			return elements(shape.getTileMinimumSize());
+		double elements = reference;
+		for (float scale : shape.getScale())
+			elements *= scale;
+		return (long) Math.ceil(elements);
+	}
+	
+	private static long elements(int[] shape) {
+		if (shape == null)
+			return 0;
+		long elements = 1;
+		for (int dim : shape)
+			elements *= Math.max(1, dim);
+		return elements;
+	}
+	
+	/**
+	 * Heap and direct memory used by the previous run of a test, the sum of the increases of
+	 * every stage. Stages where the memory decreased do not count
+	 */
+	@SuppressWarnings("unchecked")
+	private static long[] measured(List<Object> summaries) {
+		long[] measured = new long[3];
+		for (Object summary : summaries) {
+			if (!(summary instanceof Map))
+				continue;
+			for (Map.Entry<String, Object> field : ((Map<String, Object>) summary).entrySet()) {
+				int type = field.getKey().endsWith("_heap_delta_mb") ? HEAP : field.getKey().endsWith("_direct_delta_mb") ? DIRECT : -1;
+				if (type == -1 || field.getValue() == null)
+					continue;
+				try {
+					measured[type] += (long) (Math.max(0, Double.parseDouble(field.getValue().toString())) * MB);
+				} catch (NumberFormatException ex) {
+				}
+			}
+		}
+		return measured;
+	}
+	
+	/**
+	 * Bytes of each element of a data type of the rdf.yaml, such as float32 or uint8
+	 */
+	private static long dataTypeBytes(String dataType) {
+		if (dataType == null)
+			return ELEMENT_BYTES;
+		String bits = dataType.replaceAll("[^0-9]", "");
+		if (bits.isEmpty())
+			return 1;
+		return Math.max(1, Integer.parseInt(bits) / 8);
+	}
+	
+	private static String fileName(String source) {
+		String name = source.replace("\\", "/");
+		return name.substring(name.lastIndexOf("/") + 1);
+	}
+	
+	private static long fileSize(Path file) {
+		try {
+			return Files.size(file);
+		} catch (Exception ex) {
+			return -1;
+		}
+	}
+	
+	private static long budget(double optionMB, long available) {
+		if (optionMB > 0)
+			return (long) (optionMB * MB);
+		if (available == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+		return (long) (available * DEFAULT_BUDGET_FRACTION);
+	}
+	
+	/**
+	 * Maximum direct buffer memory, set with -XX:MaxDirectMemorySize or the maximum heap by default
+	 */
+	private static long maxDirectMemory(long maxHeap) {
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (!arg.startsWith("-XX:MaxDirectMemorySize="))
+				continue;
+			String value = arg.substring(arg.indexOf("=") + 1).toLowerCase(Locale.ROOT);
+			long unit = value.endsWith("k") ? 1024 : value.endsWith("m") ? 1024 * 1024 : value.endsWith("g") ? 1024 * 1024 * 1024 : 1;
+			try {
+				return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+			} catch (NumberFormatException ex) {
+			}
+		}
+		return maxHeap;
+	}
+	
+	/**
+	 * Physical memory of the machine, -1 if it cannot be read
+	 */
+	private static long physicalMemory() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+		return -1;
+	}
+	
+	private static String describe(long[] estimate) {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < estimate.length; i ++)
+			str.append(i == 0 ? "" : ", ").append(NAMES[i]).append(" ").append(mb(estimate[i])).append(" MB");
+		return str.toString();
+	}
+	
+	private static String mb(long bytes) {
+		if (bytes == Long.MAX_VALUE)
+			return "unlimited";
+		return String.format(Locale.ROOT, "%.1f", bytes / MB);
+	}
+}
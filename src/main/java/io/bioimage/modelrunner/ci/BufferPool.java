@@ -0,0 +1,397 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.nio.ByteBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.DoubleBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.IntBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.LongBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ShortBufferAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+/**
+ * Pool of direct buffers for the images that a test creates and discards: the results of the 
+ * pre- and post-processing, the tiles of a {@link TiledInference} and the stitched outputs. 
+ * The buffers live outside the heap, so the tests of a run do not keep the garbage collector
+ * busy with images used for a single model, and are reused by the next models.
+ * 
+ * The buffers are grouped in size classes, powers of two, and an image takes a buffer of the 
+ * smallest class that fits it. The images are ImgLib2 images with a single cell backed by the
+ * buffer, the same kind of image as the test tensors of {@link MappedNpy}. The images are 
+ * acquired inside a {@link Lease}, opened by each test in its thread, and every buffer leased
+ * returns to the pool when the lease is closed, unless it was released before. The pool never
+ * holds more than its cap: free buffers of other classes are dropped to make room, and if there
+ * is still no room the image is allocated in the heap as before. Without a lease open the images
+ * are always allocated in the heap.
+ * 
+ * The buffers are not cleared when they are reused, the images are meant to be completely
+ * overwritten.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class BufferPool {
+	
+	/**
+	 * Smallest size class in bytes, smaller images are allocated in the heap
+	 */
+	private static final long MIN_CLASS_BYTES = 64 * 1024;
+	/**
+	 * Largest size class in bytes, the biggest direct buffer that can be allocated
+	 */
+	private static final long MAX_CLASS_BYTES = 1L << 30;
+	/**
+	 * Bytes in a MB
+	 */
+	private static final double MB = 1024 * 1024;
+	/**
+	 * Lease open in each thread
+	 */
+	private static final ThreadLocal<Lease> CURRENT = new ThreadLocal<Lease>();
+	
+	/**
+	 * Maximum bytes of all the buffers of the pool, free and leased
+	 */
+	private final long capBytes;
+	/**
+	 * Free buffers of each size class, by size in bytes
+	 */
+	private final TreeMap<Long, ArrayDeque<ByteBuffer>> free = new TreeMap<Long, ArrayDeque<ByteBuffer>>();
+	/**
+	 * Bytes of all the buffers of the pool, free and leased
+	 */
+	private long allocatedBytes = 0;
+	/**
+	 * Bytes of the buffers leased
+	 */
+	private long leasedBytes = 0;
+	/**
+	 * Largest number of bytes leased at the same time
+	 */
+	private long maxLeasedBytes = 0;
+	/**
+	 * Images requested while a lease was open
+	 */
+	private long requests = 0;
+	/**
+	 * Requests served with a free buffer
+	 */
+	private long hits = 0;
+	/**
+	 * Requests served with a new buffer
+	 */
+	private long misses = 0;
+	/**
+	 * Requests allocated in the heap, because the image type is not supported, the image is 
+	 * too small or too big, or the pool was full
+	 */
+	private long unpooled = 0;
+	/**
+	 * Free buffers dropped to make room for buffers of other classes
+	 */
+	private long evictions = 0;
+	
+	/**
+	 * Images acquired by a test, whose buffers return to the pool when it is closed. A lease
+	 * is bound to the thread that opened it
+	 */
+	public class Lease implements AutoCloseable {
+		
+		/**
+		 * Buffer of each image leased
+		 */
+		private final Map<RandomAccessibleInterval<?>, ByteBuffer> images = new IdentityHashMap<RandomAccessibleInterval<?>, ByteBuffer>();
+		/**
+		 * Lease that was open in the thread before this one
+		 */
+		private final Lease outer;
+		
+		private Lease() {
+			this.outer = CURRENT.get();
+			CURRENT.set(this);
+		}
+		
+		private BufferPool pool() {
+			return BufferPool.this;
+		}
+		
+		@Override
+		public void close() {
+			for (ByteBuffer buffer : images.values())
+				giveBack(buffer);
+			images.clear();
+			if (CURRENT.get() == this)
+				CURRENT.set(outer);
+		}
+	}
+	
+	/**
+	 * Create a pool
+	 * @param capBytes
+	 * 	maximum bytes of all the buffers of the pool
+	 */
+	public BufferPool(long capBytes) {
+		this.capBytes = capBytes;
+	}
+	
+	/**
+	 * Open a lease in the current thread, the images allocated with {@link #allocate(NativeType, long[])}
+	 * by this thread are taken from the pool until it is closed
+	 * @return the lease
+	 */
+	public Lease lease() {
+		return new Lease();
+	}
+	
+	/**
+	 * Allocate an image, taking its memory from the pool of the lease open in the current 
+	 * thread, or in the heap if there is none
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param type
+	 * 	the data type
+	 * @param dims
+	 * 	dimensions of the image
+	 * @return the image, its values are undefined
+	 */
+	public static < T extends NativeType< T > > Img<T> allocate(T type, long[] dims) {
+		Lease lease = CURRENT.get();
+		Img<T> img = lease == null ? null : pooled(lease, type, dims);
+		if (img == null)
+			img = Util.getArrayOrCellImgFactory(new FinalInterval(dims), type).create(dims);
+		return img;
+	}
+	
+	/**
+	 * Return the buffer of an image to the pool before the lease is closed, so it can be reused
+	 * by the same test. The image should not be used afterwards. Images that are not from the
+	 * lease open in the current thread are ignored
+	 * @param img
+	 * 	the image
+	 */
+	public static void release(RandomAccessibleInterval<?> img) {
+		Lease lease = CURRENT.get();
+		if (lease == null)
+			return;
+		ByteBuffer buffer = lease.images.remove(img);
+		if (buffer != null)
+			lease.pool().giveBack(buffer);
+	}
+	
+	/**
+	 * Get the buffer of a float image of the pool, to read or write it without cursors
+	 * @param img
+	 * 	the image
+	 * @return the buffer, with as many elements as the image, or null if the image is not a 
+	 * 	float image of the lease open in the current thread
+	 */
+	public static FloatBuffer floatBuffer(RandomAccessibleInterval<?> img) {
+		Lease lease = CURRENT.get();
+		if (lease == null || !(Util.getTypeFromInterval(img) instanceof FloatType))
+			return null;
+		ByteBuffer buffer = lease.images.get(img);
+		if (buffer == null)
+			return null;
+		return view(buffer, numElements(img) * 4).asFloatBuffer();
+	}
+	
+	/**
+	 * 
+	 * @return the cap, the bytes allocated, leased and free, the largest number of bytes leased 
+	 * 	at the same time and the requests, hits, misses, unpooled requests and evictions
+	 */
+	public synchronized Map<String, Object> report() {
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("cap_mb", mb(capBytes));
+		report.put("allocated_mb", mb(allocatedBytes));
+		report.put("leased_mb", mb(leasedBytes));
+		report.put("max_leased_mb", mb(maxLeasedBytes));
+		report.put("requests", requests);
+		report.put("hits", hits);
+		report.put("misses", misses);
+		report.put("unpooled", unpooled);
+		report.put("evictions", evictions);
+		report.put("hit_rate", String.format(Locale.ROOT, "%.3f", requests == 0 ? 0 : hits / (double) requests));
+		return report;
+	}
+	
+	/**
+	 * Take an image from the pool
+	 * @return the image, null if it cannot be pooled
+	 */
+	private static < T extends NativeType< T > > Img<T> pooled(Lease lease, T type, long[] dims) {
+		Function<ByteBuffer, DataAccess> access = access(type);
+		long elements = 1;
+		for (long dim : dims)
+			elements *= dim;
+		long bytes = elements * elementBytes(type);
+		BufferPool pool = lease.pool();
+		if (access == null || bytes < MIN_CLASS_BYTES || bytes > MAX_CLASS_BYTES) {
+			synchronized (pool) {
+				pool.requests ++;
+				pool.unpooled ++;
+			}
+			return null;
+		}
+		ByteBuffer buffer = pool.take(bytes);
+		if (buffer == null)
+			return null;
+		int[] cellDims = new int[dims.length];
+		for (int i = 0; i < dims.length; i ++)
+			cellDims[i] = (int) dims[i];
+		Cell<DataAccess> cell = new Cell<DataAccess>(cellDims, new long[dims.length], access.apply(view(buffer, bytes)));
+		Img<T> img = new LazyCellImg<T, DataAccess>(new CellGrid(dims, cellDims), type, index -> cell);
+		lease.images.put(img, buffer);
+		return img;
+	}
+	
+	/**
+	 * Take a free buffer that fits the bytes, or allocate one if there is room
+	 * @return the buffer, null if the pool is full
+	 */
+	private synchronized ByteBuffer take(long bytes) {
+		requests ++;
+		long size = MIN_CLASS_BYTES;
+		while (size < bytes)
+			size *= 2;
+		ArrayDeque<ByteBuffer> buffers = free.get(size);
+		ByteBuffer buffer = null;
+		if (buffers != null && !buffers.isEmpty()) {
+			buffer = buffers.pop();
+			hits ++;
+		} else {
+			// The leased buffers cannot be dropped, so there is no room even without free buffers
+			if (leasedBytes + size > capBytes) {
+				unpooled ++;
+				return null;
+			}
+			// Drop free buffers of other classes, from the biggest, until there is room
+			while (allocatedBytes + size > capBytes && dropLargestFree())
+				evictions ++;
+			if (allocatedBytes + size > capBytes) {
+				unpooled ++;
+				return null;
+			}
+			buffer = ByteBuffer.allocateDirect((int) size);
+			allocatedBytes += size;
+			misses ++;
+		}
+		leasedBytes += buffer.capacity();
+		maxLeasedBytes = Math.max(maxLeasedBytes, leasedBytes);
+		return buffer;
+	}
+	
+	private synchronized void giveBack(ByteBuffer buffer) {
+		leasedBytes -= buffer.capacity();
+		free.computeIfAbsent((long) buffer.capacity(), k -> new ArrayDeque<ByteBuffer>()).push(buffer);
+	}
+	
+	private boolean dropLargestFree() {
+		for (Long size : free.descendingKeySet()) {
+			ArrayDeque<ByteBuffer> buffers = free.get(size);
+			if (buffers.isEmpty())
+				continue;
+			buffers.pop();
+			allocatedBytes -= size;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * View of the first bytes of a buffer in the native byte order
+	 */
+	private static ByteBuffer view(ByteBuffer buffer, long bytes) {
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.limit((int) bytes);
+		return view.slice().order(ByteOrder.nativeOrder());
+	}
+	
+	private static long numElements(RandomAccessibleInterval<?> img) {
+		long elements = 1;
+		for (int d = 0; d < img.numDimensions(); d ++)
+			elements *= img.dimension(d);
+		return elements;
+	}
+	
+	/**
+	 * Access to the values of an image of the given type backed by a buffer, null if the type is not supported
+	 */
+	private static Function<ByteBuffer, DataAccess> access(NativeType<?> type) {
+		if (type instanceof FloatType)
+			return b -> new FloatBufferAccess(b.asFloatBuffer(), true);
+		else if (type instanceof DoubleType)
+			return b -> new DoubleBufferAccess(b.asDoubleBuffer(), true);
+		else if (type instanceof ByteType || type instanceof UnsignedByteType)
+			return b -> new ByteBufferAccess(b, true);
+		else if (type instanceof ShortType || type instanceof UnsignedShortType)
+			return b -> new ShortBufferAccess(b.asShortBuffer(), true);
+		else if (type instanceof IntType || type instanceof UnsignedIntType)
+			return b -> new IntBufferAccess(b.asIntBuffer(), true);
+		else if (type instanceof LongType || type instanceof UnsignedLongType)
+			return b -> new LongBufferAccess(b.asLongBuffer(), true);
+		return null;
+	}
+	
+	private static long elementBytes(NativeType<?> type) {
+		if (type instanceof DoubleType || type instanceof LongType || type instanceof UnsignedLongType)
+			return 8;
+		else if (type instanceof ByteType || type instanceof UnsignedByteType)
+			return 1;
+		else if (type instanceof ShortType || type instanceof UnsignedShortType)
+			return 2;
+		return 4;
+	}
+	
+	private static String mb(long bytes) {
+		return String.format(Locale.ROOT, "%.1f", bytes / MB);
+	}
+}
@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.Map;
+
+/**
+ * Statistics of the differences between the output produced by a model and the 
+ * expected output of the model
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ComparisonResult {
+	/**
+	 * Number of elements compared
+	 */
+	long count = 0;
+	/**
+	 * Maximum absolute difference found
+	 */
+	double maxAbs = 0;
+	/**
+	 * Maximum relative difference found, only for non-zero expected values
+	 */
+	double maxRel = 0;
+	/**
+	 * Sum of the absolute differences, used for the mean
+	 */
+	double sumAbs = 0;
+	/**
+	 * Maximum difference measured in units in the last place of the expected value
+	 */
+	double maxUlp = 0;
+	/**
+	 * Whether all the elements were compared or the comparison stopped once 
+	 * the tolerance was exceeded
+	 */
+	boolean complete = true;
+	
+	/**
+	 * Accumulate the difference between one produced value and its expected value
+	 * @param output
+	 * 	the value produced
+	 * @param expected
+	 * 	the value expected
+	 * @param ulp
+	 * 	size of the unit in the last place of the expected value
+	 * @return the absolute difference
+	 */
+	final double accumulate(double output, double expected, double ulp) {
+		// Equal infinities match, their difference would be NaN
+		double diff = output == expected ? 0 : Math.abs(output - expected);
+		// Two NaNs match, a NaN and a number or opposite infinities do not
+		if (diff != diff) 
+			diff = (output != output && expected != expected) ? 0 : Double.POSITIVE_INFINITY;
+		count ++;
+		sumAbs += diff;
+		if (diff > maxAbs)
+			maxAbs = diff;
+		if (expected != 0 && diff / Math.abs(expected) > maxRel)
+			maxRel = diff / Math.abs(expected);
+		if (diff / ulp > maxUlp)
+			maxUlp = diff / ulp;
+		return diff;
+	}
+	
+	/**
+	 * 
+	 * @return number of elements compared
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	/**
+	 * 
+	 * @return maximum absolute difference between the output and the expected output
+	 */
+	public double getMaxAbsoluteError() {
+		return maxAbs;
+	}
+	
+	/**
+	 * 
+	 * @return maximum relative difference, computed for the elements whose expected value is not zero
+	 */
+	public double getMaxRelativeError() {
+		return maxRel;
+	}
+	
+	/**
+	 * 
+	 * @return mean absolute difference of the elements compared
+	 */
+	public double getMeanAbsoluteError() {
+		return count == 0 ? 0 : sumAbs / count;
+	}
+	
+	/**
+	 * 
+	 * @return maximum difference in units in the last place of the expected values
+	 */
+	public double getMaxUlpError() {
+		return maxUlp;
+	}
+	
+	/**
+	 * 
+	 * @return false if the comparison stopped before comparing every element because
+	 * 	the tolerance was exceeded, true otherwise
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	/**
+	 * Merge the statistics of another comparison into this one
+	 * @param other
+	 * 	the other comparison
+	 */
+	public void merge(ComparisonResult other) {
+		count += other.count;
+		sumAbs += other.sumAbs;
+		maxAbs = Math.max(maxAbs, other.maxAbs);
+		maxRel = Math.max(maxRel, other.maxRel);
+		maxUlp = Math.max(maxUlp, other.maxUlp);
+		complete = complete && other.complete;
+	}
+	
+	/**
+	 * Add the statistics to the summary of a test
+	 * @param summary
+	 * 	the summary of the test
+	 */
+	public void addToSummary(Map<String, String> summary) {
+		summary.put("max_abs_error", String.valueOf(getMaxAbsoluteError()));
+		summary.put("max_rel_error", String.valueOf(getMaxRelativeError()));
+		summary.put("mean_abs_error", String.valueOf(getMeanAbsoluteError()));
+		summary.put("max_ulp_error", String.valueOf(getMaxUlpError()));
+		summary.put("compared_elements", String.valueOf(getCount()));
+	}
+}
@@ -24,10 +24,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -35,91 +33,374 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeoutException;
 import java.util.jar.Manifest;
-import java.util.stream.Collectors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import io.bioimage.modelrunner.bioimageio.BioimageioRepo;
 import io.bioimage.modelrunner.bioimageio.description.ModelDescriptor;
 import io.bioimage.modelrunner.bioimageio.description.TransformSpec;
 import io.bioimage.modelrunner.bioimageio.description.exceptions.ModelSpecsException;
 import io.bioimage.modelrunner.bioimageio.description.weights.ModelWeight;
 import io.bioimage.modelrunner.bioimageio.description.weights.WeightFormat;
-import io.bioimage.modelrunner.engine.EngineInfo;
-import io.bioimage.modelrunner.engine.installation.EngineInstall;
 import io.bioimage.modelrunner.model.Model;
 import io.bioimage.modelrunner.numpy.DecodeNumpy;
 import io.bioimage.modelrunner.tensor.Tensor;
 import io.bioimage.modelrunner.utils.Constants;
 import io.bioimage.modelrunner.utils.YAMLUtils;
-import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
 
 /**
  * 
  */
 public class ContinuousIntegration {
 
-	private static Map<String, String> downloadedModelsCorrectly = new HashMap<String, String>();
-	private static Map<String, String> downloadedModelsIncorrectly = new HashMap<String, String>();
-	
 	public static void main(String[] args) throws IOException {
 		
-		//String pendingMatrix = args[1];
+		RunOptions options = RunOptions.parse(args);
+		String pendingMatrix = options.getPositionalArguments().size() > 0 ? options.getPositionalArguments().get(0) : null;
         
         Path currentDir = Paths.get(ContinuousIntegration.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getParent();
         Path rdfDir = currentDir.resolve("../bioimageio-gh-pages/rdfs").normalize();
 
         // Create a matcher for the pattern 'rdf.yaml'
-        runTests(rdfDir, "**", "**", Paths.get("test_summaries"), null);
+        for (String[] resource : parsePendingMatrix(pendingMatrix))
+        	runTests(rdfDir, resource[0], resource[1], Paths.get("test_summaries"), null, options);
     }
+	
+	/**
+	 * Get the resource and version ids to be tested from the json encoded GitHub matrix of
+	 * pending validations, for example: {"include": [{"resource_id": "**", "version_id": "**"}]}
+	 * @param pendingMatrix
+	 * 	the json encoded matrix, if null or empty every resource is tested
+	 * @return list of pairs of resource id and version id
+	 */
+	public static List<String[]> parsePendingMatrix(String pendingMatrix) {
+		List<String[]> resources = new ArrayList<String[]>();
+		if (pendingMatrix != null) {
+			Matcher entries = Pattern.compile("\\{([^{}]*)\\}").matcher(pendingMatrix);
+			while (entries.find()) {
+				Matcher resourceID = Pattern.compile("\"resource_id\"\\s*:\\s*\"([^\"]*)\"").matcher(entries.group(1));
+				Matcher versionID = Pattern.compile("\"version_id\"\\s*:\\s*\"([^\"]*)\"").matcher(entries.group(1));
+				if (resourceID.find())
+					resources.add(new String[] {resourceID.group(1), versionID.find() ? versionID.group(1) : "**"});
+			}
+		}
+		if (resources.size() == 0)
+			resources.add(new String[] {"**", "**"});
+		return resources;
+	}
 
 	
 	public static void runTests(Path rdfDir, String resourceID, String versionID, Path summariesDir, String postfix) throws IOException {
+		runTests(rdfDir, resourceID, versionID, summariesDir, postfix, RunOptions.defaults());
+	}
+	
+	public static void runTests(Path rdfDir, String resourceID, String versionID, Path summariesDir, String postfix, 
+			RunOptions options) throws IOException {
 		LinkedHashMap<String, String> summaryDefaults = new LinkedHashMap<String, String>();
-		postfix = getJDLLVersion();
-		summaryDefaults.put("JDLL_VERSION", postfix);
+		final String jdllVersion = getJDLLVersion();
+		summaryDefaults.put("JDLL_VERSION", jdllVersion);
 		
-		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + resourceID + File.separator + versionID + File.separator + Constants.RDF_FNAME);
-
-        List<Path> rdfFiles = Files.walk(rdfDir).filter(matcher::matches).collect(Collectors.toList());
-        EngineInstall installer = EngineInstall.createInstaller();
-		installer.basicEngineInstallation();
+		if (options.getShardIndex() >= options.getShardCount())
+			throw new IllegalArgumentException("The shard index (" + options.getShardIndex() 
+					+ ") should be smaller than the number of shards (" + options.getShardCount() + ").");
+		RdfScanner scanner = new RdfScanner(rdfDir, resourceID, versionID);
+        List<Path> rdfFiles = scanner.scan();
+        int totalFiles = rdfFiles.size();
+        ShardPlanner planner = new ShardPlanner(rdfDir, summariesDir, jdllVersion);
+        String reportSuffix = "";
+        if (options.getShardCount() > 1) {
+        	rdfFiles = planner.plan(rdfFiles, options.getShardCount()).get(options.getShardIndex());
+        	reportSuffix = "_shard" + options.getShardIndex();
+        	System.out.println("Testing " + rdfFiles.size() + " of " + totalFiles + " rdf.yaml files in shard " 
+        			+ options.getShardIndex() + " of " + options.getShardCount());
+        }
+        SummaryWriter summaries = new SummaryWriter(summariesDir, SummaryWriter.INDEX_PREFIX + jdllVersion + reportSuffix + ".yaml");
+        RunJournal journal = RunJournal.open(summariesDir, jdllVersion + reportSuffix, options.isRestart());
+        ResultsStore store = options.getResultsStore() == null ? null : ResultsStore.open(Paths.get(options.getResultsStore()));
+        summaries.setResultsStore(store, jdllVersion);
+        Map<String, Object> installReport;
+        try {
+        	installReport = DownloadEngines.install(DownloadEngines.ENGINES_DIR, options);
+        } catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while installing the engines", ex);
+        }
 		
-		for (Path rdfPath : rdfFiles) {
-			String testName = "Reproduce ouptuts with JDLL " + postfix;
-			String error = null;
-			String status = null;
-			String traceback = null;
-			
-			Map<String, Object> rdf = new LinkedHashMap<String, Object>();
+		RunMetrics metrics = new RunMetrics();
+		List<RdfDescriptor> rdfs = scanner.read(rdfFiles);
+		List<TestJob> jobs = new ArrayList<TestJob>();
+		AdmissionController admission = options.getParallelism() == 1 ? null : new AdmissionController(options);
+		for (int i = 0; i < rdfs.size(); i ++) {
 			try {
-				rdf = YAMLUtils.load(rdfPath.toAbsolutePath().toString());
+				List<TestJob> prepared = prepareRdf(i, rdfs.get(i), summariesDir, jdllVersion, summaryDefaults, options, metrics, summaries, journal);
+				// The memory of the tests is estimated while the contents of the rdf.yaml are loaded
+				if (admission != null)
+					admission.estimate(prepared, rdfs.get(i).getContents());
+				jobs.addAll(prepared);
 			} catch (Exception ex) {
-				error = "Unable to load " + Constants.RDF_FNAME + ": " + ex.toString();
-				status = "failed";
-				traceback = stackTrace(ex);
 				ex.printStackTrace();
+				writeUnexpectedFailure(i, rdfs.get(i), summariesDir, jdllVersion, summaryDefaults, ex, summaries);
+			} finally {
+				rdfs.get(i).releaseContents();
 			}
-
-			Object rdID = rdf.get("id");
-			Object type = rdf.get("type");
-			Object weightFormats = rdf.get("weights");
-			if (rdID == null || !(rdID instanceof String)) {
-				System.out.println("Invalid RDF. Missing/Invalid 'id' in rdf: " + rdfPath.toString());
-			} else if (type == null || !(type instanceof String) || !((String) type).equals("model")) {
-				status = "skipped";
-				error = "not a model RDF";
-			} else if (weightFormats == null || !(weightFormats instanceof Map)) {
-				status = "failed";
-				error = "Missing weights dictionary for " + rdID;
-				traceback = weightFormats.toString();
+		}
+		
+		EngineGroups engines = new EngineGroups();
+		jobs = engines.group(jobs);
+		ModelSource source = options.getModelMirror() == null ? ModelSource.bioimageio() : ModelSource.mirror(options.getModelMirror());
+		ModelCache modelCache = new ModelCache(Paths.get(options.getModelCache()), (long) (options.getModelCacheGB() * 1024 * 1024 * 1024));
+		ModelDownloader downloader = new ModelDownloader(source, modelCache, options.getPrefetch());
+		downloader.setQueue(jobs);
+		WorkerPool workers = options.getWorkers() == 0 ? null : new WorkerPool(options.getWorkers(), options.getWorkerJvmArgs());
+		Watchdog watchdog = new Watchdog((long) (options.getModelTimeout() * 1000), (long) (options.getStageTimeout() * 1000), workers);
+		TransformKernels.setPercentiles(options.getPercentileBins() == 0 ? Percentiles.exact() 
+				: Percentiles.approximate(options.getPercentileBins()));
+		BufferPool buffers = options.getBufferPoolMB() == 0 ? null : new BufferPool((long) (options.getBufferPoolMB() * 1024 * 1024));
+		RunContext context = new RunContext(options, engines, downloader, metrics, workers, summaries, watchdog, buffers, journal);
+		Map<String, Object> storeReport = null;
+		TestScheduler<TestJob> scheduler = new TestScheduler<TestJob>(options.getParallelism());
+		if (admission != null)
+			downloader.setListener(admission::downloaded);
+		scheduler.setAdmission(admission);
+		try {
+			scheduler.run(jobs, (i, job) -> {
+				downloader.started(i);
+				runJob(job, summariesDir, jdllVersion, summaryDefaults, context);
+			});
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the tests to finish", ex);
+		} finally {
+			downloader.shutdown();
+			if (workers != null)
+				workers.shutdown();
+			journal.close();
+			try {
+				summaries.close();
+			} finally {
+				if (store != null) {
+					try {
+						storeReport = store.report();
+					} finally {
+						store.close();
+					}
+				}
+			}
+		}
+		Map<String, Object> engineReport = engines.report();
+		engineReport.put("install", installReport);
+		if (workers != null)
+			engineReport.put("workers", workers.report());
+		if (buffers != null)
+			engineReport.put("buffer_pool", buffers.report());
+		if (admission != null) {
+			Map<String, Object> admissionReport = admission.report();
+			admissionReport.put("backfilled", scheduler.getBackfilled());
+			engineReport.put("admission", admissionReport);
+		}
+		engineReport.put("journal", journal.report());
+		if (storeReport != null)
+			engineReport.put("results_store", storeReport);
+		System.out.println("Engine startup: " + engineReport);
+		if (jobs.size() > 0) {
+			Files.createDirectories(summariesDir);
+			YAMLUtils.writeYamlFile(summariesDir.toAbsolutePath() + File.separator + "engine_startup_" + jdllVersion + reportSuffix + ".yaml", engineReport);
+			metrics.writeJson(summariesDir.resolve("metrics_" + jdllVersion + reportSuffix + ".json"), jdllVersion);
+			metrics.writePrometheus(summariesDir.resolve("metrics_" + jdllVersion + reportSuffix + ".prom"), jdllVersion);
+		}
+		if (options.getShardCount() > 1)
+			writeShardManifest(rdfDir, rdfFiles, totalFiles, summariesDir, jdllVersion, options, planner, summaries);
+		// Every summary is written, the next run starts from scratch
+		journal.delete();
+	}
+	
+	/**
+	 * Add the rdf.yaml files tested by this shard, and the summary written for each of them,
+	 * to the manifest of the shard, and copy the output of the shard if requested
+	 * @param rdfDir
+	 * 	directory that contains all the rdf.yaml files
+	 * @param rdfFiles
+	 * 	the rdf.yaml files tested by this shard
+	 * @param totalFiles
+	 * 	number of rdf.yaml files among all the shards
+	 * @param summariesDir
+	 * 	directory where the summaries are written
+	 * @param jdllVersion
+	 * 	version of JDLL tested
+	 * @param options
+	 * 	options of the run, with the shard index and count
+	 * @param planner
+	 * 	planner that split the files among the shards
+	 * @param writer
+	 * 	writer that wrote the summaries of the shard
+	 * @throws IOException if there is any error writing the manifest
+	 */
+	private static void writeShardManifest(Path rdfDir, List<Path> rdfFiles, int totalFiles, Path summariesDir, 
+			String jdllVersion, RunOptions options, ShardPlanner planner, SummaryWriter writer) throws IOException {
+		Map<Integer, String> summaries = new HashMap<Integer, String>();
+		Path root = summariesDir.toAbsolutePath().normalize();
+		for (Entry<String, Integer> entry : writer.getWriters().entrySet())
+			summaries.put(entry.getValue(), portable(root.relativize(Paths.get(entry.getKey()).normalize())));
+		ShardManifest manifest = ShardManifest.get(summariesDir, jdllVersion, options.getShardIndex(), options.getShardCount());
+		manifest.addTotal(totalFiles);
+		Path rdfRoot = rdfDir.toAbsolutePath().normalize();
+		for (int i = 0; i < rdfFiles.size(); i ++) {
+			String rdf = portable(rdfRoot.relativize(rdfFiles.get(i).toAbsolutePath().normalize()));
+			manifest.addModel(rdf, summaries.get(i), planner.getEstimate(rdfFiles.get(i)));
+		}
+		manifest.write();
+		if (options.getShardOutput() != null)
+			manifest.export(Paths.get(options.getShardOutput()));
+	}
+	
+	/**
+	 * 
+	 * @param relative
+	 * 	a relative path
+	 * @return the path with '/' as separator, the same in every OS
+	 */
+	private static String portable(Path relative) {
+		return relative.toString().replace(File.separatorChar, '/');
+	}
+	
+	/**
+	 * Run the test of one weight format of a model and, if it was the last weight format 
+	 * missing, write the summary of the model
+	 * @param job
+	 * 	the test
+	 * @param summariesDir
+	 * 	directory where the summaries are written
+	 * @param postfix
+	 * 	postfix of the summary file, the JDLL version
+	 * @param summaryDefaults
+	 * 	fields added to every summary
+	 * @param context
+	 * 	objects shared by all the tests of the run
+	 * @throws IOException if there is any error writing the summary
+	 */
+	private static void runJob(TestJob job, Path summariesDir, String postfix, 
+			Map<String, String> summaryDefaults, RunContext context) throws IOException {
+		List<Object> summariesWeightFormat = new ArrayList<Object>();
+		context.getJournal().started(job);
+		try {
+			summariesWeightFormat = context.getWatchdog().run(job, () -> testResource(job, 4, "model", context));
+			if (job.getTimeout() != null)
+				markTimeout(summariesWeightFormat, job.getTimeout());
+			job.getModel().getCache().put(job.getWeightFormat().getFramework(), job.getCacheKey(), summariesWeightFormat);
+		} catch (Exception | Error ex) {
+			ex.printStackTrace();
+			if (ex instanceof TimeoutException)
+				context.getEngines().abandoned(job);
+			Map<String, String> summaryWeightFormat = new LinkedHashMap<String, String>();
+			summaryWeightFormat.put("name", "Reproduce ouptuts with JDLL " + postfix);
+			summaryWeightFormat.put("status", job.getTimeout() == null ? "failed" : Watchdog.TIMEOUT);
+			summaryWeightFormat.put("error", job.getTimeout() == null ? "unable to perform tests" : job.getTimeout());
+			summaryWeightFormat.put("traceback", stackTrace(ex));
+			summaryWeightFormat.put("source_name", job.getRdfPath().toAbsolutePath().toString());
+			summaryWeightFormat.putAll(summaryDefaults);
+			if (ex instanceof TimeoutException) {
+				job.getModel().getMetrics().addToSummary(summaryWeightFormat);
+				job.getMetrics().addToSummary(summaryWeightFormat);
 			}
-			ModelWeight weights = null;
+			summariesWeightFormat.add(summaryWeightFormat);
+		} finally {
+			job.getModel().setEngine(job.getWeightFormat().getFramework(), job.getEngineKey());
+			if (context.getEngines().finished(job) && context.getWorkers() != null)
+				context.getWorkers().close(job.getEngineKey());
+			context.getDownloader().finished(job);
+			context.getMetrics().record(job.getEngineKey(), job.getMetrics());
+		}
+		// A test stopped by an interruption of the run is not finished, it is run again when the run is resumed
+		if (!Thread.currentThread().isInterrupted())
+			context.getJournal().finished(job.getModel().getId(), job.getWeightFormat().getFramework(), job.getCacheKey(), 
+					job.getEngineKey(), summariesWeightFormat);
+		if (job.getModel().complete(job.getWeightFormat().getFramework(), summariesWeightFormat))
+			writeModelSummaries(job.getModel(), summariesDir, postfix, context.getSummaries());
+	}
+	
+	/**
+	 * Mark the test that was running when a deadline was exceeded, the last one of the 
+	 * summaries, with the {@link Watchdog#TIMEOUT} status. The error of the test, if any,
+	 * is kept in the traceback
+	 * @param summaries
+	 * 	summaries of the tests of a weight format
+	 * @param reason
+	 * 	the deadline exceeded
+	 */
+	private static void markTimeout(List<Object> summaries, String reason) {
+		if (summaries.size() == 0)
+			return;
+		Map<String, String> last = (Map<String, String>) summaries.get(summaries.size() - 1);
+		if (last.get("error") != null)
+			last.put("traceback", last.get("error") + System.lineSeparator() + (last.get("traceback") == null ? "" : last.get("traceback")));
+		last.put("status", Watchdog.TIMEOUT);
+		last.put("error", reason);
+	}
+	
+	/**
+	 * Create the test of every supported weight format of the model of a rdf.yaml file.
+	 * If the rdf.yaml is not a valid model or, in incremental mode, the results of every weight 
+	 * format can be reused, the summary is written directly
+	 * @param index
+	 * 	position of the rdf.yaml file among all the files tested
+	 * @param rdfFile
+	 * 	the rdf.yaml file, already read
+	 * @param summariesDir
+	 * 	directory where the summaries are written
+	 * @param postfix
+	 * 	postfix of the summary file, the JDLL version
+	 * @param summaryDefaults
+	 * 	fields added to every summary
+	 * @param options
+	 * 	options of the run
+	 * @param metrics
+	 * 	time and memory used by the stages of all the tests
+	 * @param writer
+	 * 	writer of the summaries
+	 * @param journal
+	 * 	journal of the tests of the run, with the results of the tests finished before the run was interrupted
+	 * @return the tests of the weight formats that need to be run
+	 * @throws IOException if there is any error writing the journal
+	 */
+	private static List<TestJob> prepareRdf(int index, RdfDescriptor rdfFile, Path summariesDir, String postfix, 
+			Map<String, String> summaryDefaults, RunOptions options, RunMetrics metrics, SummaryWriter writer, 
+			RunJournal journal) throws IOException {
+		String testName = "Reproduce ouptuts with JDLL " + postfix;
+		String error = null;
+		String status = null;
+		String traceback = null;
+		
+		Path rdfPath = rdfFile.getPath();
+		StageMetrics rdfMetrics = rdfFile.getMetrics();
+		if (rdfFile.getError() != null) {
+			error = "Unable to load " + Constants.RDF_FNAME + ": " + rdfFile.getError().toString();
+			status = "failed";
+			traceback = stackTrace(rdfFile.getError());
+			rdfFile.getError().printStackTrace();
+		}
+		metrics.record(null, rdfMetrics);
+
+		// Only the header is read for the rdf.yaml files that are not models
+		Map<String, Object> rdf = rdfFile.getContents();
+		Object rdID = rdfFile.getId();
+		Object type = rdfFile.getType();
+		Object weightFormats = rdf == null ? null : rdf.get("weights");
+		if (rdID == null || !(rdID instanceof String)) {
+			System.out.println("Invalid RDF. Missing/Invalid 'id' in rdf: " + rdfPath.toString());
+		} else if (type == null || !(type instanceof String) || !((String) type).equals("model")) {
+			status = "skipped";
+			error = "not a model RDF";
+		} else if (weightFormats == null || !(weightFormats instanceof Map)) {
+			status = "failed";
+			error = "Missing weights dictionary for " + rdID;
+			traceback = String.valueOf(weightFormats);
+		}
+		ModelWeight weights = null;
+		if (status == null) {
 			try {
 				weights = ModelWeight.build((Map<String, Object>) weightFormats);
 			} catch (Exception ex) {
@@ -127,85 +408,201 @@ public class ContinuousIntegration {
 				error = "Missing/Invalid weight formats for " + rdID;
 				traceback = stackTrace(ex);
 			}
+		}
+		
+		if (weights != null && weights.gettAllSupportedWeightObjects().size() == 0) {
+			status = "failed";
+			error = "Missing/Invalid weight formats. No supported weigths found for " + rdID;
+		}
+		
+		if (status != null) {
+			List<Object> summary = new ArrayList<Object>();
+			Map<String, String> summaryMap = new LinkedHashMap<String, String>();
+			summaryMap.put("name", testName);
+			summaryMap.put("status", status);
+			summaryMap.put("error", error);
+			summaryMap.put("source_name", rdfPath.toAbsolutePath().toString());
+			summaryMap.put("traceback", traceback);
+			summaryMap.putAll(summaryDefaults);
+			summary.add(summaryMap);
 			
-			if (weights != null && weights.gettAllSupportedWeightObjects().size() == 0) {
-				status = "failed";
-				error = "Missing/Invalid weight formats. No supported weigths found for " + rdID;
+			writer.writeSummaries(index, rdID.toString(), summaryPath(summariesDir, rdID, postfix), summary, new LinkedHashMap<String, String>());
+			return new ArrayList<TestJob>();
+		}
+		
+		SummaryCache cache = SummaryCache.load(summariesDir.toAbsolutePath().resolve(rdID.toString()), postfix);
+		List<String> frameworks = new ArrayList<String>();
+		for (WeightFormat ww : weights.gettAllSupportedWeightObjects())
+			frameworks.add(ww.getFramework());
+		ModelTestResults results = new ModelTestResults(index, rdfFile, rdID.toString(), frameworks, cache, rdfMetrics);
+		
+		List<TestJob> jobs = new ArrayList<TestJob>();
+		for (WeightFormat ww : weights.gettAllSupportedWeightObjects()) {
+			String key = SummaryCache.computeKey(rdfFile.getBytes(), rdf, ww.getFramework(), postfix);
+			List<Object> journaled = resumeFromJournal(journal, rdfPath, rdID.toString(), ww.getFramework(), key, 
+					postfix, summaryDefaults);
+			if (journaled != null) {
+				cache.put(ww.getFramework(), key, journaled);
+				results.setEngine(ww.getFramework(), journal.getEngine(rdID.toString(), ww.getFramework(), key));
+				if (results.complete(ww.getFramework(), journaled))
+					writeModelSummaries(results, summariesDir, postfix, writer);
+				continue;
 			}
-			
-			if (status != null) {
-				List<Object> summary = new ArrayList<Object>();
-				Map<String, String> summaryMap = new LinkedHashMap<String, String>();
-				summaryMap.put("name", testName);
-				summaryMap.put("status", status);
-				summaryMap.put("error", error);
-				summaryMap.put("source_name", rdfPath.toAbsolutePath().toString());
-				summaryMap.put("traceback", traceback);
-				summaryMap.putAll(summaryDefaults);
-				summary.add(summaryMap);
-				
-				writeSummaries(summariesDir.toAbsolutePath() + File.separator + rdID + File.separator + "test_summary_" + postfix + ".yaml", summary);
+			// The previous results are not reused when benchmarking, the latencies are measured again
+			List<Object> previous = options.isIncremental() && options.getBenchmarkIterations() == 0 ? cache.get(ww.getFramework(), key) : null;
+			if (previous == null) {
+				jobs.add(new TestJob(results, ww, key, StageMetrics.totalMillis(cache.getPrevious(ww.getFramework()))));
 				continue;
 			}
-			
-			Map<String, Object> summariesPerWeightFormat = new LinkedHashMap<String, Object>();
-						
-			for (WeightFormat ww : weights.gettAllSupportedWeightObjects()) {
-				List<Object> summariesWeightFormat = new ArrayList<Object>();
-				Map<String, String> summaryWeightFormat = new LinkedHashMap<String, String>();
-				try {
-					summariesWeightFormat = testResource(rdfPath.toAbsolutePath().toString(), ww, 4, "model");
-				} catch (Exception ex) {
-					ex.printStackTrace();
-					summaryWeightFormat.put("name", testName);
-					summaryWeightFormat.put("status", "failed");
-					summaryWeightFormat.put("error", "unable to perform tests");
-					summaryWeightFormat.put("traceback", stackTrace(ex));
-					summaryWeightFormat.put("source_name", rdfPath.toAbsolutePath().toString());
-					summaryWeightFormat.putAll(summaryDefaults);
-					summariesWeightFormat.add(summaryWeightFormat);
+			System.out.println("Reusing the previous results of " + rdID + " (" + ww.getFramework() + ")");
+			cache.put(ww.getFramework(), key, previous);
+			results.setEngine(ww.getFramework(), null);
+			if (results.complete(ww.getFramework(), previous))
+				writeModelSummaries(results, summariesDir, postfix, writer);
+		}
+		return jobs;
+	}
+	
+	/**
+	 * Get the results of a test that finished before the run was interrupted. A test that was 
+	 * started {@link RunJournal#MAX_ATTEMPTS} times without finishing is marked as failed, 
+	 * because it probably crashed the process
+	 * @param journal
+	 * 	journal of the tests of the run
+	 * @param rdfPath
+	 * 	path to the rdf.yaml of the model
+	 * @param rdID
+	 * 	id of the model
+	 * @param weightFormat
+	 * 	framework of the weight format
+	 * @param key
+	 * 	key of the test
+	 * @param postfix
+	 * 	postfix of the summary file, the JDLL version
+	 * @param summaryDefaults
+	 * 	fields added to every summary
+	 * @return the summaries of the test or null if it has to be run
+	 * @throws IOException if there is any error writing the journal
+	 */
+	private static List<Object> resumeFromJournal(RunJournal journal, Path rdfPath, String rdID, String weightFormat, 
+			String key, String postfix, Map<String, String> summaryDefaults) throws IOException {
+		List<Object> journaled = journal.getSummaries(rdID, weightFormat, key);
+		int attempts = journal.getAttempts(rdID, weightFormat, key);
+		if (journaled != null || attempts < RunJournal.MAX_ATTEMPTS)
+			return journaled;
+		System.out.println("Not testing " + rdID + " (" + weightFormat + ") again, the run stopped " 
+				+ attempts + " times while testing it");
+		Map<String, String> summaryWeightFormat = new LinkedHashMap<String, String>();
+		summaryWeightFormat.put("name", "Reproduce ouptuts with JDLL " + postfix);
+		summaryWeightFormat.put("status", "failed");
+		summaryWeightFormat.put("error", "the run stopped " + attempts + " times while testing this weight format");
+		summaryWeightFormat.put("source_name", rdfPath.toAbsolutePath().toString());
+		summaryWeightFormat.putAll(summaryDefaults);
+		List<Object> summaries = new ArrayList<Object>();
+		summaries.add(summaryWeightFormat);
+		journal.abandoned();
+		journal.finished(rdID, weightFormat, key, null, summaries);
+		return summaries;
+	}
+	
+	/**
+	 * Merge the results of every weight format of a model and write its summary
+	 * @param results
+	 * 	the results of the tests of the model
+	 * @param summariesDir
+	 * 	directory where the summaries are written
+	 * @param postfix
+	 * 	postfix of the summary file, the JDLL version
+	 * @param writer
+	 * 	writer of the summaries
+	 */
+	private static void writeModelSummaries(ModelTestResults results, Path summariesDir, String postfix, SummaryWriter writer) {
+		String status = null;
+		Map<String, Object> summariesPerWeightFormat = results.getSummariesPerWeightFormat();
+		
+		List<Object> passedReproducedSummaries = new ArrayList<Object>();
+		List<Object> failedReproducedSummaries = new ArrayList<Object>();
+		List<Object> otherSummaries = new ArrayList<Object>();
+		List<String> seenTests = new ArrayList<String>();
+		
+		for (Entry<String, Object> entry : summariesPerWeightFormat.entrySet()) {
+			String wf = entry.getKey();
+			List<Map<String, String>> s = (List<Map<String, String>>) entry.getValue();
+			for (Map<String, String> ss : s) {
+				boolean isOther = !ss.get("name").equals("reproduce test outputs from test inputs");
+				if (isOther && seenTests.contains(ss.toString())) {
+					continue;
 				}
-				summariesPerWeightFormat.put(ww.getFramework(), summariesWeightFormat);
-			}
-
-			List<Object> passedReproducedSummaries = new ArrayList<Object>();
-			List<Object> failedReproducedSummaries = new ArrayList<Object>();
-			List<Object> otherSummaries = new ArrayList<Object>();
-			List<String> seenTests = new ArrayList<String>();
-			
-			for (Entry<String, Object> entry : summariesPerWeightFormat.entrySet()) {
-				String wf = entry.getKey();
-				List<Map<String, String>> s = (List<Map<String, String>>) entry.getValue();
-				for (Map<String, String> ss : s) {
-					boolean isOther = !ss.get("name").equals("reproduce test outputs from test inputs");
-					if (isOther && seenTests.contains(ss.toString())) {
-						continue;
-					}
-					ss.put("name", ss.get("name") + " (" + wf + ")");
-					if (isOther) {
-						seenTests.add(ss.toString());
+				ss.put("name", ss.get("name") + " (" + wf + ")");
+				if (isOther) {
+					seenTests.add(ss.toString());
 	                    otherSummaries.add(ss);
 	                    continue;
-					}
-					if (status != null && status.equals("passed")) passedReproducedSummaries.add(ss);
-					else failedReproducedSummaries.add(ss);
 				}
+				if (status != null && status.equals("passed")) passedReproducedSummaries.add(ss);
+				else failedReproducedSummaries.add(ss);
 			}
-			
-			List<Object> chosenSummaries = new ArrayList<Object>();
-			chosenSummaries.addAll(passedReproducedSummaries);
-			chosenSummaries.addAll(failedReproducedSummaries);
-			chosenSummaries.addAll(otherSummaries);
-			
-			writeSummaries(summariesDir.toAbsolutePath() + File.separator + rdID + File.separator + "test_summary_" + postfix + ".yaml", chosenSummaries);
 		}
+		
+		List<Object> chosenSummaries = new ArrayList<Object>();
+		chosenSummaries.addAll(passedReproducedSummaries);
+		chosenSummaries.addAll(failedReproducedSummaries);
+		chosenSummaries.addAll(otherSummaries);
+		
+		writer.writeSummaries(results.getIndex(), results.getId(), summaryPath(summariesDir, results.getId(), postfix), 
+				chosenSummaries, results.getEngines());
+		results.getCache().save(writer);
 	}
 	
-	private static void writeSummaries(String summariesPath, List<Object> summaries) throws IOException {
+	/**
+	 * 
+	 * @param summariesDir
+	 * 	directory where the summaries are written
+	 * @param rdID
+	 * 	id of the model
+	 * @param postfix
+	 * 	postfix of the summary file, the JDLL version
+	 * @return path to the summaries file of the model
+	 */
+	private static Path summaryPath(Path summariesDir, Object rdID, String postfix) {
+		return Paths.get(summariesDir.toAbsolutePath() + File.separator + rdID + File.separator + "test_summary_" + postfix + ".yaml");
+	}
+	
+	/**
+	 * Write a failed summary for a rdf.yaml whose test stopped because of an unexpected error,
+	 * so the error is not lost and does not affect the rest of the models
+	 */
+	private static void writeUnexpectedFailure(int index, RdfDescriptor rdfFile, Path summariesDir, String postfix, 
+			Map<String, String> summaryDefaults, Throwable ex, SummaryWriter writer) {
+		Path rdfPath = rdfFile.getPath();
+		Object rdID = rdfFile.getId();
+		if (rdID == null || !(rdID instanceof String))
+			return;
+		List<Object> summary = new ArrayList<Object>();
+		Map<String, String> summaryMap = new LinkedHashMap<String, String>();
+		summaryMap.put("name", "Reproduce ouptuts with JDLL " + postfix);
+		summaryMap.put("status", "failed");
+		summaryMap.put("error", "unable to perform tests");
+		summaryMap.put("source_name", rdfPath.toAbsolutePath().toString());
+		summaryMap.put("traceback", stackTrace(ex));
+		summaryMap.putAll(summaryDefaults);
+		summary.add(summaryMap);
+		writer.writeSummaries(index, rdID.toString(), summaryPath(summariesDir, rdID, postfix), summary, new LinkedHashMap<String, String>());
+	}
+	
+	/**
+	 * Write a summaries file synchronously, the same way the {@link SummaryWriter} does
+	 * @param summariesPath
+	 * 	path to the summaries file
+	 * @param summaries
+	 * 	the summaries
+	 * @throws IOException if there is any error writing the file
+	 */
+	static void writeSummaries(String summariesPath, List<Object> summaries) throws IOException {
 		Path path = Paths.get(summariesPath).getParent();
 		if (path != null && !Files.exists(path))
             Files.createDirectories(path);
-		YAMLUtils.writeYamlFile(summariesPath, summaries);
+		SummaryWriter.emit(Paths.get(summariesPath), summaries);
 	}
 	
 	/**
@@ -225,12 +622,14 @@ public class ContinuousIntegration {
         return version;
     }
 	
-	private static List<Object> testResource(String rdf, WeightFormat weightFormat, int decimal, String expectedType) {
+	private static List<Object> testResource(TestJob job, int decimal, String expectedType, RunContext context) {
+		String rdf = job.getRdfPath().toAbsolutePath().toString();
 		String error = null;
 		String traceback = null;
 		ModelDescriptor rd = null;
+		StageMetrics metrics = job.getMetrics();
 		try {
-			rd = ModelDescriptor.readFromLocalFile(rdf, false);
+			rd = job.getModel().getDescriptor(metrics);
 		} catch (ModelSpecsException e) {
 			error = "unable to read rdf.yaml file";
 			traceback = stackTrace(e);
@@ -250,9 +649,16 @@ public class ContinuousIntegration {
 		if (rd != null) 
 			tests.add(testExpectedResourceType(rd, expectedType));
 		if (rd != null && rd.getType().equals("model")) {
-			tests.add(testModelDownload(rd));
-			tests.add(testModelInference(rd, weightFormat, decimal));
+			tests.add(testModelDownload(rd, job, context));
+			// The images created by the test return to the pool once it finishes
+			try (BufferPool.Lease lease = context.getBuffers() == null ? null : context.getBuffers().lease()) {
+				tests.add(testModelInference(rd, job, decimal, context));
+			}
 		}
+		// The time and memory of every stage go to the last test run, the inference test if it was reached
+		Map<String, String> last = (Map<String, String>) tests.get(tests.size() - 1);
+		job.getModel().getMetrics().addToSummary(last);
+		metrics.addToSummary(last);
 		return tests;
 	}
 	
@@ -268,14 +674,12 @@ public class ContinuousIntegration {
 		return typeTest;
 	}
 	
-	private static Map<String, String> testModelDownload(ModelDescriptor rd) {
+	private static Map<String, String> testModelDownload(ModelDescriptor rd, TestJob job, RunContext context) {
 		String error = null;
-		if (downloadedModelsCorrectly.keySet().contains(rd.getName())) {
-			rd.addModelPath(Paths.get(downloadedModelsCorrectly.get(rd.getName())));
-		} else if (downloadedModelsIncorrectly.keySet().contains(rd.getName())) {
-			error = downloadedModelsIncorrectly.get(rd.getName());
-		} else {
-			error = downloadModel(rd);
+		try (StageMetrics.Stage stage = job.getMetrics().start(StageMetrics.DOWNLOAD)) {
+			rd.addModelPath(context.getDownloader().get(job));
+		} catch (Exception ex) {
+			error = stackTrace(ex);
 		}
 		Map<String, String> downloadTest = new LinkedHashMap<String, String>();
 		downloadTest.put("name", "JDLL is able to download model");
@@ -287,22 +691,11 @@ public class ContinuousIntegration {
 		return downloadTest;
 	}
 	
-	private static String downloadModel(ModelDescriptor rd) {
-		String error = null;
-		try {
-			BioimageioRepo br = BioimageioRepo.connect();
-			String folder = br.downloadByName(rd.getName(), "models");
-			rd.addModelPath(Paths.get(folder));
-			downloadedModelsCorrectly.put(rd.getName(), folder);
-		} catch (Exception ex) {
-			error = stackTrace(ex);
-			downloadedModelsIncorrectly.put(rd.getName(), error);
-		}
-		return error;
-	}
-	
 	private static < T extends RealType< T > & NativeType< T > >
-	Map<String, String> testModelInference(ModelDescriptor rd, WeightFormat ww, int decimal) {
+	Map<String, String> testModelInference(ModelDescriptor rd, TestJob job, int decimal, RunContext context) {
+		WeightFormat ww = job.getWeightFormat();
+		EngineGroups engines = context.getEngines();
+		StageMetrics metrics = job.getMetrics();
 		System.out.println(rd.getName());
 		System.out.println(ww.getFramework());
 		Map<String, String> inferTest = new LinkedHashMap<String, String>();
@@ -330,22 +723,24 @@ public class ContinuousIntegration {
 		List<Tensor<?>> outs = new ArrayList<Tensor<?>>();
 		for (int i = 0; i < rd.getInputTensors().size(); i ++) {
 			RandomAccessibleInterval<T> rai;
-			try {
-				rai = DecodeNumpy.retrieveImgLib2FromNpy(rd.getTestInputs().get(i).getLocalPath().toAbsolutePath().toString());
+			try (StageMetrics.Stage stage = metrics.start(StageMetrics.DECODE)) {
+				rai = openNpy(rd.getTestInputs().get(i).getLocalPath().toAbsolutePath());
 			} catch (Exception e) {
 				return failInferenceTest(rd.getName(), "unable to open test input: " + rd.getTestInputs().get(i).getString(), stackTrace(e));
 			}
 			Tensor<T> inputTensor = Tensor.build(rd.getInputTensors().get(i).getName(), rd.getInputTensors().get(i).getAxesOrder(), rai);
-			if (rd.getInputTensors().get(i).getPreprocessing().size() > 0) {
-				TransformSpec transform = rd.getInputTensors().get(i).getPreprocessing().get(0);
-				JavaProcessing preproc;
-				try {
-					preproc = JavaProcessing.definePreprocessing(transform.getName(), transform.getKwargs());
-				} catch (Exception e) {
-					e.printStackTrace();
-					return failInferenceTest(rd.getName(), "pre-processing transformation not supported by JDLL: " + transform.getName(), stackTrace(e));
+			try (StageMetrics.Stage stage = metrics.start(StageMetrics.PREPROCESS)) {
+				ProcessingChain preproc = new ProcessingChain();
+				for (TransformSpec transform : rd.getInputTensors().get(i).getPreprocessing()) {
+					try {
+						preproc.add(transform.getName(), transform.getKwargs());
+					} catch (Exception e) {
+						e.printStackTrace();
+						return failInferenceTest(rd.getName(), "pre-processing transformation not supported by JDLL: " + transform.getName(), stackTrace(e));
+					}
 				}
-				inputTensor = preproc.execute(rd.getInputTensors().get(i), inputTensor);
+				if (!preproc.isEmpty())
+					inputTensor = preproc.execute(inputTensor);
 			}
 			inps.add(inputTensor);
 		}
@@ -353,57 +748,238 @@ public class ContinuousIntegration {
 			Tensor<T> outputTensor = Tensor.buildEmptyTensor(rd.getOutputTensors().get(i).getName(), rd.getOutputTensors().get(i).getAxesOrder());
 			outs.add(outputTensor);
 		}
-		EngineInfo engineInfo;
 		try {
-			engineInfo = EngineInfo.defineCompatibleDLEngineWithRdfYamlWeights(ww);
+			job.getEngineInfo();
 		} catch (Exception e) {
 			e.printStackTrace();
 			return failInferenceTest(rd.getName(), "selected weights not supported by JDLL: " + ww.getFramework(), stackTrace(e));
 		}
+		TiledInference tiling = null;
+		if (context.getOptions().getTileMB() > 0)
+			tiling = TiledInference.plan(rd, inps, (long) (context.getOptions().getTileMB() * 1024 * 1024));
+		InferenceBenchmark benchmark = InferenceBenchmark.create(context.getOptions());
+		if (context.getWorkers() != null)
+			return addBenchmark(runInWorker(rd, job, inps, outs, decimal, context, tiling, benchmark), benchmark, job, inps);
 		Model model;
-		try {
-			model = Model.createDeepLearningModel(rd.getModelPath(), rd.getModelPath() + File.separator + ww.getSourceFileName(), engineInfo);
-			model.loadModel();
+		try (StageMetrics.Stage stage = metrics.start(StageMetrics.LOAD_MODEL)) {
+			model = engines.loadModel(job, rd.getModelPath(), rd.getModelPath() + File.separator + ww.getSourceFileName());
 		} catch (Exception e) {
 			e.printStackTrace();
 			return failInferenceTest(rd.getName(), "unable to instantiate/load model", stackTrace(e));
 		}
 		try {
-			model.runModel(inps, outs);
+			return addBenchmark(runAndCompare(rd, model, inps, outs, decimal, metrics, tiling, benchmark), benchmark, job, inps);
+		} finally {
+			engines.release(job, model);
+		}
+	}
+	
+	/**
+	 * Run the model on the test inputs and compare the outputs with the test outputs
+	 * @param <T>
+	 * 	ImgLib2 data type of the tensors
+	 * @param rd
+	 * 	the model description
+	 * @param model
+	 * 	the loaded model
+	 * @param inps
+	 * 	the input tensors, already pre-processed
+	 * @param outs
+	 * 	the empty output tensors
+	 * @param decimal
+	 * 	number of decimals that need to be equal in the outputs
+	 * @param metrics
+	 * 	time and memory used by each stage of the test
+	 * @param tiling
+	 * 	tiles in which the model is run, null to run it on the whole inputs
+	 * @param benchmark
+	 * 	measures the latency of the model once the test run is done, null to not benchmark
+	 * @return the summary of the test
+	 */
+	private static < T extends RealType< T > & NativeType< T > >
+	Map<String, String> runAndCompare(ModelDescriptor rd, Model model, List<Tensor<?>> inps, List<Tensor<?>> outs, 
+			int decimal, StageMetrics metrics, TiledInference tiling, InferenceBenchmark benchmark) {
+		try (StageMetrics.Stage stage = metrics.start(StageMetrics.RUN_MODEL)) {
+			if (tiling == null) {
+				model.runModel(inps, outs);
+			} else {
+				outs = tiling.run(inps, outs, (tileInps, tileOuts) -> {
+					model.runModel(tileInps, tileOuts);
+					return tileOuts;
+				});
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			return failInferenceTest(rd.getName(), "unable to run model", stackTrace(e));
 		}
-
-		List<Double> maxDif = new ArrayList<Double>();
+		if (benchmark != null) {
+			List<Tensor<?>> benchmarkOuts = InferenceBenchmark.emptyOutputs(outs);
+			benchmark.run(() -> {
+				if (tiling == null) {
+					model.runModel(inps, benchmarkOuts);
+				} else {
+					List<Tensor<?>> stitched = tiling.run(inps, benchmarkOuts, (tileInps, tileOuts) -> {
+						model.runModel(tileInps, tileOuts);
+						return tileOuts;
+					});
+					for (Tensor<?> tt : stitched)
+						BufferPool.release(tt.getData());
+				}
+			}, metrics);
+		}
+		return addTiles(compareOutputs(rd, outs, decimal, metrics), tiling);
+	}
+	
+	/**
+	 * Load and run the model in a worker JVM of its engine and compare the outputs with the 
+	 * test outputs. If the worker crashes, the crash is the failure of the test
+	 * @param rd
+	 * 	the model description
+	 * @param job
+	 * 	the test
+	 * @param inps
+	 * 	the input tensors, already pre-processed
+	 * @param outs
+	 * 	the empty output tensors
+	 * @param decimal
+	 * 	number of decimals that need to be equal in the outputs
+	 * @param context
+	 * 	objects shared by all the tests of the run
+	 * @param tiling
+	 * 	tiles in which the model is run, null to run it on the whole inputs
+	 * @param benchmark
+	 * 	measures the latency of the model in the worker once the test run is done, null to not benchmark
+	 * @return the summary of the test
+	 */
+	private static Map<String, String> runInWorker(ModelDescriptor rd, TestJob job, List<Tensor<?>> inps, List<Tensor<?>> outs, 
+			int decimal, RunContext context, TiledInference tiling, InferenceBenchmark benchmark) {
+		String modelSource = rd.getModelPath() + File.separator + job.getWeightFormat().getSourceFileName();
+		WorkerPool workers = context.getWorkers();
+		try {
+			if (tiling == null)
+				outs = runInWorker(job, rd, modelSource, inps, outs, workers, benchmark);
+			else
+				outs = tiling.run(inps, outs, (tileInps, tileOuts) -> runInWorker(job, rd, modelSource, tileInps, tileOuts, workers, benchmark));
+		} catch (WorkerPool.WorkerException e) {
+			return failInferenceTest(rd.getName(), e.getMessage(), e.getTraceback());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return failInferenceTest(rd.getName(), "unable to exchange the tensors with the worker JVM", stackTrace(e));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return failInferenceTest(rd.getName(), "interrupted while waiting for a worker JVM", stackTrace(e));
+		} catch (Exception e) {
+			e.printStackTrace();
+			return failInferenceTest(rd.getName(), "unable to run model", stackTrace(e));
+		}
+		return addTiles(compareOutputs(rd, outs, decimal, job.getMetrics()), tiling);
+	}
+	
+	/**
+	 * Load and run the model in a worker. The worker reports the time of its stages once it
+	 * finishes, meanwhile they are watched as a single stage so their deadline is enforced
+	 */
+	private static List<Tensor<?>> runInWorker(TestJob job, ModelDescriptor rd, String modelSource, List<Tensor<?>> inps, 
+			List<Tensor<?>> outs, WorkerPool workers, InferenceBenchmark benchmark) throws Exception {
+		try (StageMetrics.Stage stage = job.getMetrics().watch(StageMetrics.LOAD_MODEL + " and " + StageMetrics.RUN_MODEL)) {
+			return workers.run(job, rd.getModelPath(), modelSource, inps, outs, benchmark);
+		}
+	}
+	
+	/**
+	 * Add the latencies measured by the benchmark to the summary of the test
+	 * @param summary
+	 * 	the summary
+	 * @param benchmark
+	 * 	the benchmark, null if the model was not benchmarked
+	 * @param job
+	 * 	the test
+	 * @param inps
+	 * 	the inputs the model was run on
+	 * @return the summary
+	 */
+	private static Map<String, String> addBenchmark(Map<String, String> summary, InferenceBenchmark benchmark, TestJob job, List<Tensor<?>> inps) {
+		if (benchmark != null)
+			benchmark.addToSummary(summary, job.getEngineKey(), inps);
+		return summary;
+	}
+	
+	/**
+	 * Add the number of tiles in which the model was run to the summary of the test
+	 * @param summary
+	 * 	the summary
+	 * @param tiling
+	 * 	the tiles, null if the model was run on the whole inputs
+	 * @return the summary
+	 */
+	private static Map<String, String> addTiles(Map<String, String> summary, TiledInference tiling) {
+		if (tiling != null)
+			summary.put("tiles", "" + tiling.getNumTiles());
+		return summary;
+	}
+	
+	/**
+	 * Post-process the outputs of the model and compare them with the test outputs. An output
+	 * fails if the maximum absolute difference with the test output is bigger than 10^-decimal.
+	 * Before {@link OutputComparator#RULES_VERSION} 2 only the absolute value of the minimum of
+	 * (expected - output) was checked, so some models that passed now fail
+	 * @param <T>
+	 * 	ImgLib2 data type of the tensors
+	 * @param rd
+	 * 	the model description
+	 * @param outs
+	 * 	the output tensors filled by the model
+	 * @param decimal
+	 * 	number of decimals that need to be equal in the outputs
+	 * @param metrics
+	 * 	time and memory used by each stage of the test
+	 * @return the summary of the test
+	 */
+	private static < T extends RealType< T > & NativeType< T > >
+	Map<String, String> compareOutputs(ModelDescriptor rd, List<Tensor<?>> outs, int decimal, StageMetrics metrics) {
+		OutputComparator comparator = new OutputComparator(Math.pow(10, -decimal));
+		ComparisonResult errors = new ComparisonResult();
 		for (int i = 0; i < rd.getOutputTensors().size(); i ++) {
 			Tensor<T> tt = (Tensor<T>) outs.get(i);
-			if (rd.getOutputTensors().get(i).getPostprocessing().size() > 0) {
-				TransformSpec transform = rd.getOutputTensors().get(i).getPostprocessing().get(0);
-				if (transform.getName().equals("python")) continue;
-				JavaProcessing preproc;
-				try {
-					preproc = JavaProcessing.definePreprocessing(transform.getName(), transform.getKwargs());
-				} catch (Exception e) {
-					e.printStackTrace();
-					return failInferenceTest(rd.getName(), "post-processing transformation not supported by JDLL: " + transform.getName(), stackTrace(e));
+			boolean python = false;
+			try (StageMetrics.Stage stage = metrics.start(StageMetrics.POSTPROCESS)) {
+				ProcessingChain postproc = new ProcessingChain();
+				for (TransformSpec transform : rd.getOutputTensors().get(i).getPostprocessing()) {
+					if (transform.getName().equals("python")) {
+						python = true;
+						break;
+					}
+					try {
+						postproc.add(transform.getName(), transform.getKwargs());
+					} catch (Exception e) {
+						e.printStackTrace();
+						return failInferenceTest(rd.getName(), "post-processing transformation not supported by JDLL: " + transform.getName(), stackTrace(e));
+					}
 				}
-				tt = preproc.execute(rd.getInputTensors().get(i), tt);
+				if (!python && !postproc.isEmpty())
+					tt = postproc.execute(tt);
 			}
-			RandomAccessibleInterval<T> rai;
-			try {
-				rai = DecodeNumpy.retrieveImgLib2FromNpy(rd.getTestOutputs().get(i).getLocalPath().toAbsolutePath().toString());
+			if (python) continue;
+			MappedNpy expected;
+			try (StageMetrics.Stage stage = metrics.start(StageMetrics.DECODE)) {
+				expected = MappedNpy.open(rd.getTestOutputs().get(i).getLocalPath().toAbsolutePath());
 			} catch (Exception e) {
 				e.printStackTrace();
 				return failInferenceTest(rd.getName(), "unable to open test output: " + rd.getTestOutputs().get(i).getString(), stackTrace(e));
 			}
-			LoopBuilder.setImages( tt.getData(), rai )
-			.multiThreaded().forEachPixel( ( j, o ) -> o.set( (T) new FloatType(o.getRealFloat() - j.getRealFloat())) );
-			double diff = computeMaxDiff(rai);
-			if (diff > Math.pow(10, -decimal))
-				return failInferenceTest(rd.getName(), "output number " + i + " produces a very different result, "
-						+ "the max difference is bigger than " + Math.pow(10, -decimal), null);
-			maxDif.add(computeMaxDiff(rai));
+			ComparisonResult result;
+			try (StageMetrics.Stage stage = metrics.start(StageMetrics.COMPARE)) {
+				result = comparator.compare(tt.getData(), expected);
+			} catch (IllegalArgumentException e) {
+				return failInferenceTest(rd.getName(), "output number " + i + " does not have the expected shape", stackTrace(e));
+			}
+			errors.merge(result);
+			if (!comparator.isWithinTolerance(result)) {
+				Map<String, String> failed = failInferenceTest(rd.getName(), "output number " + i + " produces a very different result, "
+						+ "the max difference is bigger than " + comparator.getTolerance(), null);
+				errors.addToSummary(failed);
+				return failed;
+			}
 		}
 		
 		
@@ -414,9 +990,28 @@ public class ContinuousIntegration {
 		typeTest.put("source_name", rd.getName());
 		typeTest.put("traceback", null);
 		typeTest.put("JDLL_VERSION", getJDLLVersion());
+		errors.addToSummary(typeTest);
 		return typeTest;
 	}
 	
+	/**
+	 * Open a test tensor mapping the .npy file into memory. The image can be modified by the 
+	 * processing without changing the file. If the file cannot be mapped, it is decoded with JDLL
+	 * @param <T>
+	 * 	ImgLib2 data type of the tensor
+	 * @param npy
+	 * 	path to the .npy file
+	 * @return the image contained in the file
+	 * @throws Exception if the file cannot be read
+	 */
+	private static < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval<T> openNpy(Path npy) throws Exception {
+		try {
+			return MappedNpy.open(npy, true, MappedNpy.DEFAULT_CHUNK_BYTES).getImg();
+		} catch (IOException ex) {
+			return DecodeNumpy.retrieveImgLib2FromNpy(npy.toString());
+		}
+	}
+	
 	private static Map<String, String> failInferenceTest(String sourceName, String error, String tb) {
 		Map<String, String> typeTest = new LinkedHashMap<String, String>();
 		typeTest.put("name", "reproduce test outputs from test inputs");
@@ -429,22 +1024,6 @@ public class ContinuousIntegration {
 	}
 	
 	
-	public static < T extends RealType< T > & NativeType< T > > double computeMaxDiff(final RandomAccessibleInterval< T > input) {
-			Cursor<T> iterator = Views.iterable(input).cursor();
-			T type = iterator.next();
-			T min = type.copy();
-			T max = type.copy();
-			while ( iterator.hasNext() )
-			{
-				type = iterator.next();
-				if ( type.compareTo( min ) < 0 )
-					min.set( type );
-				if ( type.compareTo( max ) > 0 )
-					max.set( type );
-			}
-			return Math.max(-min.getRealDouble(), min.getRealDouble());
-	}
-
 	/** Dumps the given exception, including stack trace, to a string. 
 	 * 
 	 * @param t
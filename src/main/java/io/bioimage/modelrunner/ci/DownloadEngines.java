@@ -21,12 +21,29 @@ package io.bioimage.modelrunner.ci;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import io.bioimage.modelrunner.engine.installation.EngineInstall;
+import io.bioimage.modelrunner.utils.YAMLUtils;
+import io.bioimage.modelrunner.versionmanagement.AvailableEngines;
+import io.bioimage.modelrunner.versionmanagement.DeepLearningVersion;
 import io.bioimage.modelrunner.versionmanagement.InstalledEngines;
 
 /**
- * Class to install the engines that a DIJ or Icy distribution would install
+ * Class to install the engines that a DIJ or Icy distribution would install. Both install 
+ * the basic engines of JDLL, the most recent version of TensorFlow 1, TensorFlow 2, PyTorch and
+ * ONNX available for the operating system among the engines listed by {@link AvailableEngines}.
+ * The files of the engines are downloaded concurrently by the {@link EngineInstaller}, which
+ * resumes partial downloads, verifies checksums and can take the files from a local mirror.
+ * JDLL then checks its basic installation, which only downloads what could be missing, and any
+ * engine it had to download is reported.
+ * 
+ * Usage: DownloadEngines [--engine-mirror DIR] [--engine-downloads N]
  * 
  * @author Carlos Javier GArcia Lopez de Haro
  */
@@ -43,14 +60,115 @@ public class DownloadEngines {
 	 * Directory where the engine will be downloaded, if you want to download it
 	 * into another folder, please change it.
 	 */
-	private static final String ENGINES_DIR = new File(CWD, "engines").getAbsolutePath();
+	static final String ENGINES_DIR = new File(CWD, "engines").getAbsolutePath();
 	
 	public static void main(String[] args) throws IOException, InterruptedException {
-		if (args[0].equals(DEEPIMAGEJ_TAG)) {
-			EngineInstall engineManager = EngineInstall.createInstaller(ENGINES_DIR);
-			engineManager.basicEngineInstallation();
-			//InstalledEngines.buildEnginesFinder(ENGINES_DIR).getDownloadedForOS().stream().map(i -> i.toString())
-			System.out.println(InstalledEngines.buildEnginesFinder(ENGINES_DIR).getDownloadedForOS());
+		RunOptions options = RunOptions.parse(args);
+		if (options.getPositionalArguments().size() > 0) {
+			System.out.println("Usage: DownloadEngines [--" + RunOptions.ENGINE_MIRROR_OPTION + " DIR] [--" 
+					+ RunOptions.ENGINE_DOWNLOADS_OPTION + " N]");
+			System.exit(2);
+		}
+		Map<String, Object> report = install(ENGINES_DIR, options);
+		YAMLUtils.writeYamlFile(new File(ENGINES_DIR, "install_report.yaml").getAbsolutePath(), report);
+		System.out.println(InstalledEngines.buildEnginesFinder(ENGINES_DIR).getDownloadedForOS());
+	}
+	
+	/**
+	 * Install the basic engines of JDLL
+	 * @param enginesDir
+	 * 	directory where the engines are installed
+	 * @param options
+	 * 	options with the mirror and the number of concurrent downloads
+	 * @return for each engine, the time spent installing it and the bytes downloaded, copied 
+	 * 	from the mirror or already installed
+	 * @throws InterruptedException if the thread is interrupted while the engines are installed
+	 */
+	public static Map<String, Object> install(String enginesDir, RunOptions options) throws InterruptedException {
+		List<DeepLearningVersion> engines = basicEngines(AvailableEngines.getForCurrentOS());
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		EngineInstaller installer = new EngineInstaller(Paths.get(enginesDir), options.getEngineDownloads());
+		if (options.getEngineMirror() != null)
+			installer.setMirror(Paths.get(options.getEngineMirror()));
+		long start = System.nanoTime();
+		report.putAll(installer.install(engines));
+		long check = System.nanoTime();
+		// JDLL decides which engines make its basic installation. After the parallel downloads this
+		// call only checks them, unless JDLL expects an engine not chosen by basicEngines, which it
+		// then downloads sequentially and is reported so the choice can be fixed
+		List<String> before = installedFolders(enginesDir);
+		EngineInstall.createInstaller(enginesDir).basicEngineInstallation();
+		List<String> missed = installedFolders(enginesDir);
+		missed.removeAll(before);
+		long end = System.nanoTime();
+		if (missed.size() > 0) {
+			System.out.println("WARNING: JDLL downloaded engines that were not installed in parallel: " + missed);
+			report.put("installed_by_jdll", missed);
+		}
+		
+		for (Map.Entry<String, Object> ee : report.entrySet())
+			System.out.println("Engine " + ee.getKey() + ": " + ee.getValue());
+		Map<String, Object> total = new LinkedHashMap<String, Object>();
+		total.put("engines_seconds", String.format(Locale.ROOT, "%.3f", (check - start) / 1e9));
+		total.put("basic_installation_check_seconds", String.format(Locale.ROOT, "%.3f", (end - check) / 1e9));
+		System.out.println("Engine installation: " + total);
+		report.put("total", total);
+		return report;
+	}
+	
+	/**
+	 * Choose the engines of the basic installation of JDLL among the ones available for
+	 * the operating system: the most recent version of each framework, and of each major version
+	 * of TensorFlow, whose APIs differ
+	 * @param available
+	 * 	the engines available for the operating system
+	 * @return the engines to install
+	 */
+	static List<DeepLearningVersion> basicEngines(List<DeepLearningVersion> available) {
+		Map<String, DeepLearningVersion> chosen = new LinkedHashMap<String, DeepLearningVersion>();
+		for (DeepLearningVersion version : available) {
+			String family = version.getFramework();
+			if (family.equals("tensorflow"))
+				family += " " + version.getVersion().split("\\.")[0];
+			DeepLearningVersion previous = chosen.get(family);
+			int newer = previous == null ? 1 : compareVersions(version.getVersion(), previous.getVersion());
+			// The GPU builds also run on CPU, and are the ones the distributions install when there are both
+			if (newer > 0 || (newer == 0 && version.getGPU() && !previous.getGPU()))
+				chosen.put(family, version);
 		}
-    }
+		return new ArrayList<DeepLearningVersion>(chosen.values());
+	}
+	
+	/**
+	 * Compare two versions number by number
+	 * @return a negative number, zero or a positive number if the first version is older, 
+	 * 	the same or newer than the second
+	 */
+	private static int compareVersions(String v1, String v2) {
+		String[] p1 = v1.split("\\.");
+		String[] p2 = v2.split("\\.");
+		for (int i = 0; i < Math.max(p1.length, p2.length); i ++) {
+			int n1 = i < p1.length ? number(p1[i]) : 0;
+			int n2 = i < p2.length ? number(p2[i]) : 0;
+			if (n1 != n2)
+				return Integer.compare(n1, n2);
+		}
+		return 0;
+	}
+	
+	private static int number(String part) {
+		String digits = part.replaceAll("[^0-9].*", "");
+		return digits.isEmpty() ? 0 : Integer.parseInt(digits);
+	}
+	
+	/**
+	 * 
+	 * @return folders of the engines installed in the directory
+	 */
+	private static List<String> installedFolders(String enginesDir) {
+		List<String> folders = new ArrayList<String>();
+		for (DeepLearningVersion version : InstalledEngines.buildEnginesFinder(enginesDir).getDownloadedForOS())
+			folders.add(version.folderName());
+		return folders;
+	}
 }
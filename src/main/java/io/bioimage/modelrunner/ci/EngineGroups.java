@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import io.bioimage.modelrunner.engine.EngineInfo;
+import io.bioimage.modelrunner.model.Model;
+
+/**
+ * Class that groups the tests by the Deep Learning engine they need and keeps every engine 
+ * warm while its group is tested. The first model loaded with each engine is kept open until 
+ * all the tests of the group have finished, so the classloader and native libraries of the
+ * engine stay loaded and the following models of the group do not pay the engine startup again.
+ * The time spent loading models is recorded to report the startup time saved.
+ * The tests are ordered longest expected first, using the runtimes of the previous runs, so
+ * the slowest models do not start at the end of the run and stretch it.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class EngineGroups {
+	
+	/**
+	 * Key of the group of tests whose engine could not be resolved
+	 */
+	public static final String UNRESOLVED = "unresolved";
+	
+	/**
+	 * Groups by engine key, in the order in which they are tested
+	 */
+	private final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+	
+	/**
+	 * Tests that need the same engine
+	 */
+	private static class Group {
+		/**
+		 * Tests of the group that have not finished
+		 */
+		private int remaining;
+		/**
+		 * Model kept open to keep the engine warm
+		 */
+		private Model anchor;
+		/**
+		 * Time in nanoseconds spent loading the first model of the group
+		 */
+		private long coldLoad = -1;
+		/**
+		 * Time in nanoseconds spent loading each of the rest of models of the group
+		 */
+		private List<Long> warmLoads = new ArrayList<Long>();
+		/**
+		 * Whether a test of the group was abandoned while it might be using the engine
+		 */
+		private boolean abandoned;
+	}
+	
+	/**
+	 * Resolve the engine of every test and sort the tests so all the tests that need the
+	 * same engine are run one after the other. The groups are sorted by their expected runtime
+	 * and the tests inside each group too, longest first, which keeps the slowest tests from
+	 * being the last ones to start. Tests whose runtime is unknown are expected to take as long
+	 * as the median test. Ties keep the order of the input
+	 * @param jobs
+	 * 	the tests
+	 * @return the tests sorted by engine and expected runtime
+	 */
+	public synchronized List<TestJob> group(List<TestJob> jobs) {
+		double unknown = medianRuntime(jobs);
+		Map<String, List<TestJob>> byEngine = new LinkedHashMap<String, List<TestJob>>();
+		Map<String, Double> groupRuntimes = new LinkedHashMap<String, Double>();
+		for (TestJob job : jobs) {
+			resolve(job);
+			byEngine.computeIfAbsent(job.getEngineKey(), k -> new ArrayList<TestJob>()).add(job);
+			groupRuntimes.merge(job.getEngineKey(), expected(job, unknown), Double::sum);
+			groups.computeIfAbsent(job.getEngineKey(), k -> new Group()).remaining ++;
+		}
+		List<String> order = new ArrayList<String>(byEngine.keySet());
+		order.sort(Comparator.comparingDouble((String k) -> groupRuntimes.get(k)).reversed());
+		List<TestJob> sorted = new ArrayList<TestJob>();
+		for (String key : order) {
+			List<TestJob> group = byEngine.get(key);
+			group.sort(Comparator.comparingDouble((TestJob job) -> expected(job, unknown)).reversed());
+			sorted.addAll(group);
+		}
+		return sorted;
+	}
+	
+	private static double expected(TestJob job, double unknown) {
+		return job.getExpectedMillis() > 0 ? job.getExpectedMillis() : unknown;
+	}
+	
+	/**
+	 * 
+	 * @param jobs
+	 * 	the tests
+	 * @return median of the known expected runtimes, 0 if none is known
+	 */
+	private static double medianRuntime(List<TestJob> jobs) {
+		double[] known = jobs.stream().mapToDouble(TestJob::getExpectedMillis).filter(t -> t > 0).toArray();
+		if (known.length == 0)
+			return 0;
+		Arrays.sort(known);
+		return known[known.length / 2];
+	}
+	
+	/**
+	 * Find the engine compatible with the weights of a test
+	 * @param job
+	 * 	the test
+	 */
+	private static void resolve(TestJob job) {
+		try {
+			EngineInfo engineInfo = EngineInfo.defineCompatibleDLEngineWithRdfYamlWeights(job.getWeightFormat());
+			String key = engineInfo == null ? UNRESOLVED : engineInfo.getFramework() + "-" + engineInfo.getVersion();
+			job.setEngine(engineInfo, null, key);
+		} catch (Exception ex) {
+			job.setEngine(null, ex, UNRESOLVED);
+		}
+	}
+	
+	/**
+	 * Create and load the model of a test with its engine, timing how long the load takes
+	 * @param job
+	 * 	the test
+	 * @param modelFolder
+	 * 	folder where the model is
+	 * @param modelSource
+	 * 	path to the weights
+	 * @return the loaded model
+	 * @throws Exception if the model cannot be created or loaded
+	 */
+	public Model loadModel(TestJob job, String modelFolder, String modelSource) throws Exception {
+		long start = System.nanoTime();
+		Model model = Model.createDeepLearningModel(modelFolder, modelSource, job.getEngineInfo());
+		model.loadModel();
+		long time = System.nanoTime() - start;
+		synchronized (this) {
+			Group group = groups.get(job.getEngineKey());
+			if (group == null || job.getEngineKey().equals(UNRESOLVED))
+				return model;
+			if (group.coldLoad < 0) {
+				group.coldLoad = time;
+				group.anchor = model;
+			} else {
+				group.warmLoads.add(time);
+			}
+		}
+		return model;
+	}
+	
+	/**
+	 * Release a model once its test has finished. The model that keeps the engine warm is 
+	 * not closed until the whole group has finished
+	 * @param job
+	 * 	the test
+	 * @param model
+	 * 	the model loaded for the test
+	 */
+	public void release(TestJob job, Model model) {
+		synchronized (this) {
+			Group group = groups.get(job.getEngineKey());
+			if (group != null && group.anchor == model)
+				return;
+		}
+		close(model);
+	}
+	
+	/**
+	 * Notify that a test has finished. Once all the tests of a group have finished, the 
+	 * engine of the group is released
+	 * @param job
+	 * 	the test
+	 * @return true if it was the last test of its group
+	 */
+	public boolean finished(TestJob job) {
+		Model anchor = null;
+		synchronized (this) {
+			Group group = groups.get(job.getEngineKey());
+			if (group == null || -- group.remaining > 0)
+				return false;
+			// Closing the engine under an abandoned test could block as well, it is left to the JVM exit
+			anchor = group.abandoned ? null : group.anchor;
+			group.anchor = null;
+		}
+		if (anchor != null)
+			close(anchor);
+		return true;
+	}
+	
+	/**
+	 * Notify that a test was abandoned because it did not stop after exceeding its deadline,
+	 * so the engine of its group is not closed under it
+	 * @param job
+	 * 	the test
+	 */
+	public synchronized void abandoned(TestJob job) {
+		Group group = groups.get(job.getEngineKey());
+		if (group != null)
+			group.abandoned = true;
+	}
+	
+	private static void close(Model model) {
+		try {
+			model.closeModel();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Create a report of the startup time of each engine and the time saved by keeping the
+	 * engines warm. The time saved is estimated as the difference between the first load of
+	 * each engine and the loads of the following models
+	 * @return map from engine key to its startup statistics
+	 */
+	public synchronized Map<String, Object> report() {
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		long totalSaved = 0;
+		for (Entry<String, Group> ee : groups.entrySet()) {
+			Group group = ee.getValue();
+			if (group.coldLoad < 0)
+				continue;
+			long warm = 0;
+			for (long ww : group.warmLoads)
+				warm += ww;
+			long saved = 0;
+			for (long ww : group.warmLoads)
+				saved += Math.max(0, group.coldLoad - ww);
+			totalSaved += saved;
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("models_loaded", 1 + group.warmLoads.size());
+			stats.put("cold_load_ms", group.coldLoad / 1000000);
+			stats.put("mean_warm_load_ms", group.warmLoads.size() == 0 ? null : warm / group.warmLoads.size() / 1000000);
+			stats.put("estimated_startup_saved_ms", saved / 1000000);
+			report.put(ee.getKey(), stats);
+		}
+		report.put("total_estimated_startup_saved_ms", totalSaved / 1000000);
+		return report;
+	}
+}
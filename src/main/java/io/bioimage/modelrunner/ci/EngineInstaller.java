@@ -0,0 +1,442 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.bioimage.modelrunner.versionmanagement.DeepLearningVersion;
+
+/**
+ * Installs Deep Learning engines downloading all their files concurrently. Every file is 
+ * downloaded to a '.part' file that is resumed with an HTTP range request if the download 
+ * is interrupted, in this run or in a previous one, and it is only moved to the engine folder
+ * once it matches the checksum published next to it ('.sha256' or '.sha1', as Maven 
+ * repositories do). Files can also be taken from a local mirror, a directory with the same
+ * structure as the engines directory, so machines without access to the internet, or CI runs 
+ * that cache the mirror, never download them again. Files already installed and verified by a 
+ * previous run are not downloaded nor read from the mirror. The checksum of every file installed
+ * is recorded with its size and modification time, and the file is only read again to check it
+ * when they change.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class EngineInstaller {
+	
+	/**
+	 * Folder inside the engines directory with the checksum, size and modification time of 
+	 * every file installed
+	 */
+	private static final String STATE_DIR = ".install";
+	/**
+	 * Extension of the files being downloaded
+	 */
+	private static final String PART = ".part";
+	/**
+	 * Checksums looked for next to every file, with the digest they contain
+	 */
+	private static final String[][] CHECKSUMS = {{".sha256", "SHA-256"}, {".sha1", "SHA-1"}};
+	/**
+	 * Times a file is tried to be downloaded before giving up
+	 */
+	private static final int ATTEMPTS = 3;
+	private static final int CONNECT_TIMEOUT_MS = 30000;
+	private static final int READ_TIMEOUT_MS = 120000;
+	
+	/**
+	 * Directory where the engines are installed
+	 */
+	private final Path enginesDir;
+	/**
+	 * Number of files downloaded at the same time
+	 */
+	private final int threads;
+	/**
+	 * Directory with copies of the engine files, null to always download them
+	 */
+	private Path mirror;
+	
+	/**
+	 * Result of installing one file
+	 */
+	private static class FileResult {
+		private String source;
+		private long bytes;
+		private boolean verified;
+		private long start;
+		private long end;
+		private Exception error;
+	}
+	
+	/**
+	 * Create the installer
+	 * @param enginesDir
+	 * 	directory where the engines are installed
+	 * @param threads
+	 * 	number of files downloaded at the same time
+	 */
+	public EngineInstaller(Path enginesDir, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of downloads should be at least 1, but it was " + threads);
+		this.enginesDir = enginesDir;
+		this.threads = threads;
+	}
+	
+	/**
+	 * Take the engine files from a local directory when they are there
+	 * @param mirror
+	 * 	directory with the files of each engine in a folder with the same name as in 
+	 * 	the engines directory, null to always download them
+	 * @return this object
+	 */
+	public EngineInstaller setMirror(Path mirror) {
+		this.mirror = mirror;
+		return this;
+	}
+	
+	/**
+	 * Install the engines. An engine that fails to install does not stop the rest
+	 * @param engines
+	 * 	the engines
+	 * @return for each engine folder, the time spent, the bytes downloaded, copied from the mirror 
+	 * 	or already installed, the files that could not be verified and the errors
+	 * @throws InterruptedException if the thread is interrupted while waiting for the downloads
+	 */
+	public Map<String, Object> install(List<DeepLearningVersion> engines) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "engine-download");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Map<String, List<Future<FileResult>>> futures = new LinkedHashMap<String, List<Future<FileResult>>>();
+		try {
+			for (DeepLearningVersion engine : engines) {
+				List<Future<FileResult>> files = new ArrayList<Future<FileResult>>();
+				for (String url : engine.getJars())
+					files.add(pool.submit(() -> installFile(engine.folderName(), url)));
+				futures.put(engine.folderName(), files);
+			}
+			Map<String, Object> report = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, List<Future<FileResult>>> engine : futures.entrySet())
+				report.put(engine.getKey(), report(engine.getValue()));
+			return report;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Summarise the results of the files of an engine. The time of the engine is the time
+	 * from the start of its first file to the end of its last one
+	 */
+	private static Map<String, Object> report(List<Future<FileResult>> files) throws InterruptedException {
+		long start = Long.MAX_VALUE;
+		long end = Long.MIN_VALUE;
+		Map<String, Long> bytes = new LinkedHashMap<String, Long>();
+		bytes.put("downloaded", 0L);
+		bytes.put("mirror", 0L);
+		bytes.put("installed", 0L);
+		int unverified = 0;
+		List<String> errors = new ArrayList<String>();
+		for (Future<FileResult> future : files) {
+			FileResult result;
+			try {
+				result = future.get();
+			} catch (ExecutionException ex) {
+				errors.add(ex.getCause().toString());
+				continue;
+			}
+			start = Math.min(start, result.start);
+			end = Math.max(end, result.end);
+			if (result.error != null) {
+				errors.add(result.error.toString());
+				continue;
+			}
+			bytes.merge(result.source, result.bytes, Long::sum);
+			unverified += result.verified ? 0 : 1;
+		}
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("status", errors.size() == 0 ? "installed" : "failed");
+		report.put("seconds", String.format(Locale.ROOT, "%.3f", files.size() == 0 ? 0 : (end - start) / 1e9));
+		report.put("files", files.size());
+		for (Map.Entry<String, Long> ee : bytes.entrySet())
+			report.put(ee.getKey() + "_mb", String.format(Locale.ROOT, "%.3f", ee.getValue() / (1024.0 * 1024)));
+		report.put("unverified_files", unverified);
+		if (errors.size() > 0)
+			report.put("errors", errors);
+		return report;
+	}
+	
+	/**
+	 * Install one file of an engine
+	 * @param folder
+	 * 	folder of the engine
+	 * @param url
+	 * 	where the file is downloaded from
+	 * @return the result, with the error if it could not be installed
+	 */
+	private FileResult installFile(String folder, String url) {
+		FileResult result = new FileResult();
+		result.start = System.nanoTime();
+		try {
+			String fileName = url.substring(url.lastIndexOf('/') + 1);
+			Path target = enginesDir.resolve(folder).resolve(fileName);
+			Path state = enginesDir.resolve(STATE_DIR).resolve(folder).resolve(fileName + ".sha256");
+			Files.createDirectories(target.getParent());
+			Files.createDirectories(state.getParent());
+			if (isInstalled(target, state)) {
+				result.source = "installed";
+				result.bytes = Files.size(target);
+				result.verified = true;
+				return result;
+			}
+			Path mirrorFile = mirror == null ? null : mirror.resolve(folder).resolve(fileName);
+			String[] checksum = checksum(url, mirrorFile);
+			Path part = target.resolveSibling(fileName + PART);
+			if (mirrorFile != null && Files.isRegularFile(mirrorFile)) {
+				Files.copy(mirrorFile, part, StandardCopyOption.REPLACE_EXISTING);
+				if (checksum != null && !checksum[1].equalsIgnoreCase(digest(part, checksum[0])))
+					throw new IOException("The checksum of " + mirrorFile + " does not match the one published for " + url);
+				result.source = "mirror";
+			} else {
+				download(url, part, checksum);
+				result.source = "downloaded";
+			}
+			result.bytes = Files.size(part);
+			result.verified = checksum != null;
+			try {
+				Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			writeState(target, state, digest(target, "SHA-256"));
+		} catch (Exception ex) {
+			result.error = ex;
+		} finally {
+			result.end = System.nanoTime();
+		}
+		return result;
+	}
+	
+	/**
+	 * A file is installed if it matches the checksum recorded when it was installed. The file is
+	 * only hashed again if its size or modification time are not the ones recorded
+	 */
+	private static boolean isInstalled(Path target, Path state) throws IOException {
+		if (!Files.isRegularFile(target) || !Files.isRegularFile(state))
+			return false;
+		String[] recorded = new String(Files.readAllBytes(state), StandardCharsets.UTF_8).trim().split("\\s+");
+		if (recorded.length == 3 && recorded[1].equals(String.valueOf(Files.size(target)))
+				&& recorded[2].equals(String.valueOf(Files.getLastModifiedTime(target).toMillis())))
+			return true;
+		if (!recorded[0].equalsIgnoreCase(digest(target, "SHA-256")))
+			return false;
+		writeState(target, state, recorded[0]);
+		return true;
+	}
+	
+	/**
+	 * Record the checksum of a file installed, with its size and modification time
+	 */
+	private static void writeState(Path target, Path state, String checksum) throws IOException {
+		String content = checksum + " " + Files.size(target) + " " + Files.getLastModifiedTime(target).toMillis();
+		Files.write(state, content.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Download a file, resuming the partial download if there is one, and check its checksum.
+	 * A download that fails is resumed up to {@link #ATTEMPTS} times, and one whose checksum
+	 * does not match is started again from the beginning
+	 * @param url
+	 * 	the URL of the file
+	 * @param part
+	 * 	the file where it is downloaded
+	 * @param checksum
+	 * 	the digest algorithm and the expected checksum, null if it is not published
+	 * @throws IOException if the file cannot be downloaded or its checksum does not match
+	 */
+	private static void download(String url, Path part, String[] checksum) throws IOException {
+		IOException last = null;
+		for (int attempt = 0; attempt < ATTEMPTS; attempt ++) {
+			try {
+				fetch(url, part);
+			} catch (FileNotFoundException ex) {
+				throw ex;
+			} catch (IOException ex) {
+				last = ex;
+				continue;
+			}
+			if (checksum == null || checksum[1].equalsIgnoreCase(digest(part, checksum[0])))
+				return;
+			last = new IOException("The checksum of the file downloaded from " + url + " does not match the one published");
+			Files.deleteIfExists(part);
+		}
+		throw last;
+	}
+	
+	/**
+	 * Download the bytes missing from a partial download
+	 */
+	private static void fetch(String url, Path part) throws IOException {
+		long existing = Files.isRegularFile(part) ? Files.size(part) : 0;
+		URLConnection connection = connect(url);
+		if (existing > 0)
+			connection.setRequestProperty("Range", "bytes=" + existing + "-");
+		boolean append = false;
+		if (connection instanceof HttpURLConnection) {
+			int code = ((HttpURLConnection) connection).getResponseCode();
+			if (code == 416 && existing > 0) {
+				// The partial download already has every byte, unless it is longer than the file 
+				// or left by a different version of it, then it is downloaded again
+				if (existing == length(url, (HttpURLConnection) connection))
+					return;
+				Files.delete(part);
+				fetch(url, part);
+				return;
+			}
+			append = code == HttpURLConnection.HTTP_PARTIAL;
+		}
+		StandardOpenOption mode = append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+		try (InputStream is = connection.getInputStream(); 
+				OutputStream os = Files.newOutputStream(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = is.read(buffer)) > 0)
+				os.write(buffer, 0, n);
+		}
+	}
+	
+	/**
+	 * Length of a file, from the range of an answer 416 ('bytes *&#47;N') or from a HEAD request
+	 * @return the length in bytes, -1 if the server does not give it
+	 */
+	private static long length(String url, HttpURLConnection answer) throws IOException {
+		String range = answer.getHeaderField("Content-Range");
+		if (range != null && range.contains("/")) {
+			try {
+				return Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+			} catch (NumberFormatException ex) {
+			}
+		}
+		HttpURLConnection head = (HttpURLConnection) connect(url);
+		head.setRequestMethod("HEAD");
+		try {
+			return head.getContentLengthLong();
+		} finally {
+			head.disconnect();
+		}
+	}
+	
+	/**
+	 * Find the checksum of a file, first next to its copy in the mirror and then next to its URL
+	 * @param url
+	 * 	URL of the file
+	 * @param mirrorFile
+	 * 	copy of the file in the mirror, null if there is no mirror
+	 * @return the digest algorithm and the expected checksum, null if none is published
+	 */
+	private static String[] checksum(String url, Path mirrorFile) {
+		for (String[] kind : CHECKSUMS) {
+			try {
+				String text;
+				if (mirrorFile != null && Files.isRegularFile(mirrorFile.resolveSibling(mirrorFile.getFileName() + kind[0]))) {
+					text = new String(Files.readAllBytes(mirrorFile.resolveSibling(mirrorFile.getFileName() + kind[0])), StandardCharsets.UTF_8);
+				} else {
+					try (InputStream is = connect(url + kind[0]).getInputStream()) {
+						text = new String(readAll(is), StandardCharsets.UTF_8);
+					}
+				}
+				// The checksum files may also contain the name of the file after the checksum
+				String value = text.trim().split("\\s+")[0];
+				if (value.matches("[0-9a-fA-F]+"))
+					return new String[] {kind[1], value};
+			} catch (IOException ex) {
+			}
+		}
+		return null;
+	}
+	
+	private static URLConnection connect(String url) throws IOException {
+		URLConnection connection = new URL(url).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		connection.setReadTimeout(READ_TIMEOUT_MS);
+		return connection;
+	}
+	
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = is.read(buffer)) > 0)
+			bytes.write(buffer, 0, n);
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * 
+	 * @param file
+	 * 	a file
+	 * @param algorithm
+	 * 	the digest algorithm, for example 'SHA-256'
+	 * @return the digest of the file in hexadecimal
+	 * @throws IOException if the file cannot be read
+	 */
+	static String digest(Path file, String algorithm) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream is = Files.newInputStream(file)) {
+			int n;
+			while ((n = is.read(buffer)) > 0)
+				digest.update(buffer, 0, n);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest())
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.bioimage.modelrunner.tensor.Tensor;
+
+/**
+ * Measures the steady-state latency of a model. The test run of a model includes the cost of 
+ * its first call (JIT compilation, graph optimisation, allocator warmup), so once it is done the
+ * model is run some warmup iterations that are not measured, and then the measured iterations
+ * on the same inputs. The latency percentiles and the throughput are added to the summary of
+ * the inference test, so the weight formats of a model can be compared by their speed.
+ * 
+ * A benchmark measures one test. When the model is run by tiles or in a worker JVM, the 
+ * latencies of the tiles are added, and the latency of an iteration is the time spent by the
+ * model in every tile of the input.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class InferenceBenchmark {
+	
+	/**
+	 * Quantiles of the latency reported
+	 */
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+	/**
+	 * Axis that is not counted in the number of pixels of the input
+	 */
+	private static final char CHANNEL_AXIS = 'c';
+	
+	/**
+	 * Number of runs that are not measured
+	 */
+	private final int warmup;
+	/**
+	 * Number of runs measured
+	 */
+	private final int iterations;
+	/**
+	 * Latency in nanoseconds of each measured run, null until something is measured
+	 */
+	private long[] latencies;
+	/**
+	 * Why the benchmark could not be completed, null if it was
+	 */
+	private String error;
+	
+	/**
+	 * Functional interface that runs the model once
+	 */
+	public interface Iteration {
+		/**
+		 * Run the model once
+		 * @throws Exception if the model cannot be run
+		 */
+		void run() throws Exception;
+	}
+	
+	/**
+	 * Create a benchmark
+	 * @param warmup
+	 * 	number of runs that are not measured
+	 * @param iterations
+	 * 	number of runs measured, at least 1
+	 */
+	public InferenceBenchmark(int warmup, int iterations) {
+		if (iterations < 1)
+			throw new IllegalArgumentException("A benchmark needs at least 1 iteration, but it was " + iterations);
+		this.warmup = Math.max(0, warmup);
+		this.iterations = iterations;
+	}
+	
+	/**
+	 * Create the benchmark of a test defined by the options of the run
+	 * @param options
+	 * 	the options of the run
+	 * @return the benchmark, null if the models are not benchmarked
+	 */
+	public static InferenceBenchmark create(RunOptions options) {
+		if (options.getBenchmarkIterations() == 0)
+			return null;
+		return new InferenceBenchmark(options.getBenchmarkWarmup(), options.getBenchmarkIterations());
+	}
+	
+	/**
+	 * 
+	 * @return number of runs that are not measured
+	 */
+	public int getWarmup() {
+		return warmup;
+	}
+	
+	/**
+	 * 
+	 * @return number of runs measured
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+	
+	/**
+	 * Run the warmup and the measured iterations, as the {@link StageMetrics#BENCHMARK} stage so
+	 * its deadline is enforced. If an iteration fails, the error is recorded and the benchmark 
+	 * stops, the test itself is not affected
+	 * @param iteration
+	 * 	runs the model once
+	 * @param metrics
+	 * 	time and memory used by each stage of the test
+	 */
+	public void run(Iteration iteration, StageMetrics metrics) {
+		long[] measured = new long[iterations];
+		try (StageMetrics.Stage stage = metrics.start(StageMetrics.BENCHMARK)) {
+			for (int i = 0; i < warmup + iterations; i ++) {
+				if (Thread.interrupted())
+					throw new InterruptedException("Interrupted after " + i + " benchmark iterations");
+				long start = System.nanoTime();
+				iteration.run();
+				if (i >= warmup)
+					measured[i - warmup] = System.nanoTime() - start;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			fail(ContinuousIntegration.stackTrace(ex));
+			return;
+		} catch (Exception ex) {
+			fail(ContinuousIntegration.stackTrace(ex));
+			return;
+		}
+		add(measured);
+	}
+	
+	/**
+	 * Add latencies measured somewhere else, such as in a worker JVM. The latencies of each 
+	 * iteration are added to the ones already measured for it, the ones of another tile
+	 * @param measured
+	 * 	latency in nanoseconds of each measured run
+	 */
+	public synchronized void add(long[] measured) {
+		if (measured.length != iterations) {
+			fail("Expected " + iterations + " benchmark latencies but got " + measured.length);
+		} else if (latencies == null) {
+			latencies = measured.clone();
+		} else {
+			for (int i = 0; i < iterations; i ++)
+				latencies[i] += measured[i];
+		}
+	}
+	
+	/**
+	 * Record that the benchmark could not be completed, the first error is kept
+	 * @param error
+	 * 	why the benchmark could not be completed
+	 */
+	public synchronized void fail(String error) {
+		if (this.error == null)
+			this.error = error;
+	}
+	
+	/**
+	 * 
+	 * @return why the benchmark could not be completed, null if it was
+	 */
+	public synchronized String getError() {
+		return error == null && latencies == null ? "the model was not run" : error;
+	}
+	
+	/**
+	 * 
+	 * @return latency in nanoseconds of each measured run, null if the benchmark was not 
+	 * 	completed
+	 */
+	public synchronized long[] getLatencies() {
+		return error != null || latencies == null ? null : latencies.clone();
+	}
+	
+	/**
+	 * Add the benchmark to the summary of a test: the iterations, the mean and the percentiles
+	 * of the latency in milliseconds and the throughput in pixels per second. The number of 
+	 * pixels is the number of elements of the first input, without counting its channels
+	 * @param summary
+	 * 	the summary
+	 * @param engine
+	 * 	engine that ran the model
+	 * @param inputs
+	 * 	the inputs the model was run on
+	 */
+	public synchronized void addToSummary(Map<String, String> summary, String engine, List<Tensor<?>> inputs) {
+		summary.put("benchmark_engine", engine);
+		summary.put("benchmark_warmup", "" + warmup);
+		summary.put("benchmark_iterations", "" + iterations);
+		long[] measured = getLatencies();
+		if (measured == null) {
+			summary.put("benchmark_error", getError());
+			return;
+		}
+		double[] sorted = new double[measured.length];
+		double sum = 0;
+		for (int i = 0; i < measured.length; i ++) {
+			sorted[i] = measured[i];
+			sum += measured[i];
+		}
+		Arrays.sort(sorted);
+		double mean = sum / sorted.length;
+		// The fields do not end in _ms, which is reserved for the duration of the stages
+		summary.put("latency_ms_mean", number(mean / 1e6));
+		for (double quantile : QUANTILES)
+			summary.put("latency_ms_p" + Math.round(quantile * 100), number(RunMetrics.percentile(sorted, quantile) / 1e6));
+		if (inputs.size() > 0 && mean > 0)
+			summary.put("throughput_pixels_per_s", number(pixels(inputs.get(0)) / (mean / 1e9)));
+	}
+	
+	/**
+	 * Number of pixels of a tensor, the number of elements without counting the channels
+	 * @param tensor
+	 * 	the tensor
+	 * @return the number of pixels
+	 */
+	static long pixels(Tensor<?> tensor) {
+		String axes = tensor.getAxesOrderString().toLowerCase();
+		long pixels = 1;
+		for (int d = 0; d < tensor.getData().numDimensions(); d ++) {
+			if (d < axes.length() && axes.charAt(d) == CHANNEL_AXIS)
+				continue;
+			pixels *= tensor.getData().dimension(d);
+		}
+		return pixels;
+	}
+	
+	/**
+	 * Create the empty tensors the benchmark iterations write to, so the outputs of the test run
+	 * are not overwritten
+	 * @param outputs
+	 * 	the output tensors of the test
+	 * @return empty tensors with the same names and axes
+	 */
+	static List<Tensor<?>> emptyOutputs(List<Tensor<?>> outputs) {
+		List<Tensor<?>> empty = new ArrayList<Tensor<?>>();
+		for (Tensor<?> tensor : outputs)
+			empty.add(Tensor.buildEmptyTensor(tensor.getName(), tensor.getAxesOrderString()));
+		return empty;
+	}
+	
+	private static String number(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+}
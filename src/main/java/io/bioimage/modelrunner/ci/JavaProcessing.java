@@ -1,12 +1,8 @@
 package io.bioimage.modelrunner.ci;
 
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 
 import io.bioimage.modelrunner.bioimageio.description.TensorSpec;
@@ -43,6 +39,10 @@ public class JavaProcessing {
 	 * Class that contains the pre-processing
 	 */
 	private Class<?> transformationClass;
+	/**
+	 * Reflection plan shared by all the transformations with the same name and arguments
+	 */
+	private TransformationPlan plan;
 	/**
 	 * Arguments used for the Java method
 	 */
@@ -77,11 +77,20 @@ public class JavaProcessing {
 	 * @param args
 	 * 	args of the pre-processing specified in the rdf.yaml
 	 * @throws ClassNotFoundException if the pre-processing transformation is not found in the classpath
+	 * @throws IllegalArgumentException if the transformation class misses the constructor, the method
+	 * 	that runs the transformation or the setter of any argument
 	 */
 	private JavaProcessing(String javaMethod, Map<String, Object> args) throws ClassNotFoundException {
 		this.rdfSpec = javaMethod;
 		this.args = args;
-		checkMethodExists();
+		this.plan = TransformationPlan.lookup(rdfSpec, args.keySet());
+		if (plan == null) {
+			checkMethodExists();
+			this.plan = TransformationPlan.compile(rdfSpec, transformationClass, javaMethodName, args.keySet());
+		}
+		this.transformationClass = plan.getTransformationClass();
+		this.javaClassName = transformationClass.getName();
+		this.javaMethodName = plan.getMethodName();
 	}
 	
 	/**
@@ -92,6 +101,8 @@ public class JavaProcessing {
 	 * 	arguments of the Java method
 	* @return result of runnning Java pre-processing on the tensor
 	 * @throws ClassNotFoundException if the pre-processing transformation is not found
+	 * @throws IllegalArgumentException if the transformation class misses the constructor, the method
+	 * 	that runs the transformation or the setter of any argument
 	 */
 	public static JavaProcessing definePreprocessing(String methodName, Map<String, Object> args) throws ClassNotFoundException {
 		return new JavaProcessing(methodName, args);
@@ -111,8 +122,23 @@ public class JavaProcessing {
 	public Tensor execute(TensorSpec tensorSpec, Tensor input)
 			 throws IllegalArgumentException {
 		this.tensorSpec = tensorSpec;
-		this.tensorName = tensorSpec.getName();
-		this.tensor = input;;
+		return execute(tensorSpec.getName(), input);
+	}
+	
+	/**
+	 * Executes the Java pre-processing transformation specified
+	 *  on the rdf.yaml on a tensor
+	 * @param tensorName
+	 * 	name of the tensor where pre-processing is going to be executed
+	 * @param input
+	 * 	the tensor
+	 * @return the result of pre-processing the tensor
+	 * @throws IllegalArgumentException if the transformation fails
+	 */
+	public Tensor execute(String tensorName, Tensor input)
+			 throws IllegalArgumentException {
+		this.tensorName = tensorName;
+		this.tensor = input;
 		LinkedHashMap<String, Object> resultsMap = executeJavaTransformation();
 		return (Tensor) resultsMap.get(tensor.getName());
 	}
@@ -196,7 +222,7 @@ public class JavaProcessing {
 	 * @throws ClassNotFoundException if the class does not exist in the classpath
 	 */
 	private void findClassInClassPath() throws ClassNotFoundException {
-		Class.forName(this.javaClassName, false, JavaProcessing.class.getClassLoader());
+		this.transformationClass = Class.forName(this.javaClassName, false, JavaProcessing.class.getClassLoader());
 	}
 	
 	/**
@@ -217,104 +243,33 @@ public class JavaProcessing {
 	 */
 	private LinkedHashMap<String, Object> executeJavaTransformation() throws IllegalArgumentException {
 		try {
-			 return runJavaTransformationWithArgs();
-			
-		} catch (ClassNotFoundException e) {
-			throw new IllegalArgumentException("Processing method '" + this.rdfSpec +"' not found"
-					+ " in the BioImage.io Java Core Transformations or in the Java Classpath: "
-					+ "https://github.com/bioimage-io/model-runner-java/tree/nd4j/src/main/java/org/bioimageanalysis/icy/deeplearning/transformations"
-					+ ". " + System.lineSeparator() + e.getCause());
-		} catch (InstantiationException e) {
-			e.printStackTrace();
-			throw new IllegalArgumentException("Processing method '" + this.rdfSpec +"' failed"
-					+ " due to an error instantiating the class that defines the transformation ("
-					+ this.javaClassName + "). Go to the following link to see valid transformations:"
-					+ "https://github.com/bioimage-io/core-bioimage-io-java/tree/master/src/main/java/io/bioimage/specification/transformation"
-					+ ". " + System.lineSeparator() + e.getCause());
-		} catch (IllegalAccessException e) {
-			e.printStackTrace();
-			throw new IllegalArgumentException("Processing method '" + this.rdfSpec +"' failed"
-					+ " throwing an IllegalAccessException."
-					+ " Go to the following link to see valid transformations:"
-					+ "https://github.com/bioimage-io/core-bioimage-io-java/tree/master/src/main/java/io/bioimage/specification/transformation"
-					+ ". " + System.lineSeparator() + e.getCause());
-		} catch (InvocationTargetException e) {
-			e.printStackTrace();
-			throw new IllegalArgumentException("Processing method '" + this.rdfSpec +"' failed"
-					+ " throwing an InvocationTargetException."
-					+ " Go to the following link to see valid transformations:"
-					+ "https://github.com/bioimage-io/core-bioimage-io-java/tree/master/src/main/java/io/bioimage/specification/transformation"
-					+ ". " + System.lineSeparator() + System.lineSeparator() + e.getCause());
-		} catch (NoSuchMethodException e) {
-			e.printStackTrace();
-			throw new IllegalArgumentException("Processing method '" + this.rdfSpec +"' failed"
-					+ " because the method needed to call the transformation (" + this.javaMethodName 
-					+ ") was not found in the transformation class ("
-					+ this.javaClassName + "). Go to the following link to see valid transformations:"
-					+ "https://github.com/bioimage-io/core-bioimage-io-java/tree/master/src/main/java/io/bioimage/specification/transformation"
-					+ ". " + System.lineSeparator() + e.getCause());
-		} catch (SecurityException e) {
+			 return executeMethodWithArgs();
+		} catch (IllegalArgumentException | Error e) {
+			throw e;
+		} catch (Throwable e) {
 			e.printStackTrace();
 			throw new IllegalArgumentException("Processing method '" + this.rdfSpec +"' failed"
-					+ " throwing an SecurityException."
+					+ " throwing an " + e.getClass().getSimpleName() + "."
 					+ " Go to the following link to see valid transformations:"
 					+ "https://github.com/bioimage-io/core-bioimage-io-java/tree/master/src/main/java/io/bioimage/specification/transformation"
-					+ ". " + System.lineSeparator() + e.getCause());
+					+ ". " + System.lineSeparator() + System.lineSeparator() + e);
 		}
 	}
 	
 	/**
-	 * Run the transformation from the Java transformation class
-	 * @throws IllegalAccessException if the method or class cannot be accessed with reflection
-	 * @throws InstantiationException if there is an error instantiating the transformation class
-	 * @throws InvocationTargetException if there is any error invoking the methods
-	 * @throws IllegalArgumentException if any of the arguments provided with reflection is illegal
-	 * @throws SecurityException if there is any security breach
-	 * @throws NoSuchMethodException if the method tried to run does not exist
-	 * @throws ClassNotFoundException if the class referenced for the transformation does not exist
+	 * Run the transformation from the Java transformation class using the compiled plan
+	 * @return map containing the result of the transformation
+	 * @throws IllegalArgumentException if the output of the transformation is not supported
+	 * @throws Throwable any exception thrown by the transformation
 	 */
-	private LinkedHashMap<String, Object> runJavaTransformationWithArgs() throws InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException, ClassNotFoundException {
-		this.transformationClass = getClass().getClassLoader().loadClass(this.javaClassName);
-		Method[] publicMethods = this.transformationClass.getMethods();
-		Method transformationMethod = null;
-		for (Method mm : publicMethods) {
-			if (mm.getName().equals(this.javaMethodName)) {
-				transformationMethod = mm;
-				break;
-			}
-		}
-		if (transformationMethod == null)
-			throw new IllegalArgumentException("The pre-processing transformation class does not contain"
-					+ "the method '" + this.javaMethodName + "' needed to call the transformation.");
-		// Check that the arguments specified in the rdf.yaml are of the corect type
-		return executeMethodWithArgs(transformationMethod);
-	}
-	
-	/**
-	 * 
-	 * @param mm
-	 * @return
-	 * @throws InstantiationException if there is any error instantiating the class
-	 * @throws  if it is illegal to instantiate the class or to call the method
-	 * @throws IllegalArgumentException if any of the arguments for the method is wrong
-	 * @throws InvocationTargetException if the target of the method is incorrectly captured
-	 * @throws SecurityException if there is any security violation
-	 * @throws NoSuchMethodException if the constructor with the needed argument does not exist
-	 */
-	private <T extends Type<T>> LinkedHashMap<String, Object> executeMethodWithArgs(Method mm) throws InstantiationException, 
-																	IllegalAccessException, 
-																	IllegalArgumentException, 
-																	InvocationTargetException, NoSuchMethodException, SecurityException {
-		
-		
+	private <T extends Type<T>> LinkedHashMap<String, Object> executeMethodWithArgs() throws Throwable {
 		LinkedHashMap<String, Object> resultsMap = new LinkedHashMap<String, Object>();
-		Object instance = createInstanceWitArgs();
+		Object instance = plan.instantiate(args);
+		Object returnObject = plan.apply(instance, tensor);
 
-		if (mm.getReturnType().equals(Void.TYPE)) {
-			mm.invoke(instance, tensor);
+		if (plan.returnsVoid()) {
 			resultsMap.put(tensorName, tensor);
 		} else {
-			Object returnObject = mm.invoke(instance, tensor);
 			// Depending on what the output is, do one thing or another
 			if ((returnObject instanceof HashMap) || (returnObject instanceof HashMap)) {
 				// If the output is a HashMap, assume the pre-processing already provides
@@ -337,23 +292,19 @@ public class JavaProcessing {
 	}
 	
 	/**
-	 * 
-	 * @return
-	 * @throws IllegalArgumentException
-	 * @throws IllegalAccessException
-	 * @throws InvocationTargetException
-	 * @throws InstantiationException
-	 * @throws NoSuchMethodException
-	 * @throws SecurityException
+	 * Create an instance of the transformation class with all the arguments set
+	 * @return the instance of the transformation
+	 * @throws IllegalArgumentException if any of the arguments is wrong
+	 * @throws InvocationTargetException if the constructor or any of the setters throws an exception
 	 */
-	public Object createInstanceWitArgs() throws IllegalArgumentException, IllegalAccessException, InvocationTargetException, InstantiationException, NoSuchMethodException, SecurityException {
-		// The instance of the pre-processing transformation should be initialized 
-		// with the corresponding input tensor
-		Object transformationObject = transformationClass.getConstructor().newInstance();
-		for (String arg : this.args.keySet()) {
-			setArg(transformationObject, arg);
+	public Object createInstanceWitArgs() throws IllegalArgumentException, InvocationTargetException {
+		try {
+			return plan.instantiate(args);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new InvocationTargetException(e);
 		}
-		return transformationObject;
 	}
 	
 	/**
@@ -363,13 +314,16 @@ public class JavaProcessing {
 	 * @param argName
 	 * 	name of the argument
 	 * @throws IllegalArgumentException if no method is found for the given argument
-	 * @throws InvocationTargetExceptionif there is any error invoking the method
-	 * @throws IllegalAccessException if it is illegal to access the method
+	 * @throws InvocationTargetException if there is any error invoking the method
 	 */
-	public void setArg(Object instance, String argName) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		String mName = getArgumentSetterName(argName);
-		Method mm = checkArgType(argName, mName);
-		mm.invoke(instance, args.get(argName));	
+	public void setArg(Object instance, String argName) throws IllegalArgumentException, InvocationTargetException {
+		try {
+			plan.set(instance, argName, args.get(argName));
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new InvocationTargetException(e);
+		}
 	}
 	
 	/**
@@ -383,45 +337,11 @@ public class JavaProcessing {
 	 */
 	public String getArgumentSetterName(String argName) throws IllegalArgumentException {
 		String mName = "set" + snakeCaseToCamelCaseFirstCap(argName);
-		// Check that the method exists
-		Method[] methods = transformationClass.getMethods();
-		for (Method mm : methods) {
-			if (mm.getName().equals(mName))
-				return mName;
-		}
+		if (plan.hasSetter(argName))
+			return mName;
 		throw new IllegalArgumentException("Setter for argument '" + argName + "' of the processing "
 				+ "transformation '" + rdfSpec + "' of tensor '" + tensorName
 				+ "' not found in the Java transformation class '" + this.javaClassName + "'. "
 				+ "A method called '" + mName + "' should be present.");
 	}
-	
-	/**
-	 * Method that checks that the type of the arguments provided in the rdf.yaml is correct.
-	 * It also returns the setter method to set the argument
-	 * 
-	 * @param mm
-	 * 	the method that executes the pre-processing transformation
-	 * @return the method used to provide the argument to the instance
-	 * @throws IllegalArgumentException if any of the arguments' type is not correct
-	 */
-	private Method checkArgType(String argName, String mName) throws IllegalArgumentException {
-		Object arg = this.args.get(argName);
-		Method[] methods = this.transformationClass.getMethods();
-		List<Method> possibleMethods = new ArrayList<Method>();
-		for (Method mm : methods) {
-			if (mm.getName().equals(mName)) 
-				possibleMethods.add(mm);
-		}
-		if (possibleMethods.size() == 0)
-			getArgumentSetterName(argName);
-		for (Method mm : possibleMethods) {
-			Parameter[] pps = mm.getParameters();
-			if (pps.length != 1) {
-				continue;
-			}
-			if (pps[0].getType() == Object.class)
-				return mm;
-		}
-		throw new IllegalArgumentException("Setter '" + mName + "' should have only one input parameter with type Object.class.");
-	}
 }
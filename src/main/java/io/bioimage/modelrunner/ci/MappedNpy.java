@@ -0,0 +1,570 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.bioimage.modelrunner.ci.OutputComparator.FlatReader;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.nio.ByteBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.DoubleBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.IntBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.LongBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ShortBufferAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Reader of .npy files that maps the file into memory instead of copying it into the heap.
+ * The data is exposed as an ImgLib2 {@link RandomAccessibleInterval} whose dimensions follow
+ * the shape of the numpy array, the same as {@link io.bioimage.modelrunner.numpy.DecodeNumpy}.
+ * The file is mapped in chunks of whole hyperplanes along the slowest axis, so files bigger 
+ * than 2GB are supported and can be read chunk by chunk in the order in which they are stored.
+ * Images can also be written through a mapping with {@link #write(Path, RandomAccessibleInterval)},
+ * which is how tensors are exchanged with the worker JVMs.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class MappedNpy {
+	
+	/**
+	 * Default maximum size of every mapped chunk
+	 */
+	public static final long DEFAULT_CHUNK_BYTES = 128L * 1024 * 1024;
+	
+	private static final byte[] MAGIC = new byte[] {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+	private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+	private static final Pattern FORTRAN = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+	private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+	
+	private final Path file;
+	/**
+	 * Shape of the array as written in the file
+	 */
+	private final long[] shape;
+	/**
+	 * Whether the first axis is the fastest changing one (Fortran) or the last one (C)
+	 */
+	private final boolean fortranOrder;
+	/**
+	 * Byte order of the data
+	 */
+	private final ByteOrder byteOrder;
+	/**
+	 * Kind of the numpy dtype: 'f', 'i', 'u' or 'b'
+	 */
+	private final char kind;
+	/**
+	 * Bytes per element
+	 */
+	private final int itemSize;
+	/**
+	 * Dimensions of the array with the fastest changing axis first, as ImgLib2 stores them
+	 */
+	private final long[] storageDims;
+	/**
+	 * Grid of chunks, each chunk is a set of whole hyperplanes along the slowest axis
+	 */
+	private final CellGrid grid;
+	/**
+	 * Mapped region of every chunk
+	 */
+	private final ByteBuffer[] chunks;
+	
+	private MappedNpy(Path file, long[] shape, boolean fortranOrder, ByteOrder byteOrder, char kind, int itemSize, 
+			long dataOffset, boolean copyOnWrite, long chunkBytes) throws IOException {
+		this.file = file;
+		this.shape = shape;
+		this.fortranOrder = fortranOrder;
+		this.byteOrder = byteOrder;
+		this.kind = kind;
+		this.itemSize = itemSize;
+		long[] dims = shape.length == 0 ? new long[] {1} : shape.clone();
+		if (!fortranOrder)
+			reverse(dims);
+		this.storageDims = dims;
+		int n = dims.length;
+		long planeSize = 1;
+		for (int i = 0; i < n - 1; i ++)
+			planeSize *= dims[i];
+		if (planeSize * itemSize > Integer.MAX_VALUE)
+			throw new IOException("Unable to map " + file + ", every hyperplane along the slowest axis "
+					+ "should be smaller than 2GB.");
+		long planes = Math.max(1, Math.min(dims[n - 1], Math.min(chunkBytes, Integer.MAX_VALUE) / (planeSize * itemSize)));
+		int[] cellDims = new int[n];
+		for (int i = 0; i < n - 1; i ++)
+			cellDims[i] = (int) dims[i];
+		cellDims[n - 1] = (int) planes;
+		this.grid = new CellGrid(dims, cellDims);
+		int nChunks = (int) grid.gridDimension(n - 1);
+		this.chunks = new ByteBuffer[nChunks];
+		FileChannel channel = null;
+		MapMode mode = MapMode.READ_ONLY;
+		// A private mapping needs a file that can be opened for writing, otherwise the
+		// chunks are copied into the heap so the image can still be modified
+		boolean copy = false;
+		if (copyOnWrite) {
+			try {
+				channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				mode = MapMode.PRIVATE;
+			} catch (AccessDeniedException | UnsupportedOperationException ex) {
+				copy = true;
+			}
+		}
+		if (channel == null)
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long chunkElements = planeSize * planes;
+			long total = planeSize * dims[n - 1];
+			for (int i = 0; i < nChunks; i ++) {
+				long elements = Math.min(chunkElements, total - i * chunkElements);
+				ByteBuffer chunk = channel.map(mode, dataOffset + i * chunkElements * itemSize, elements * itemSize);
+				if (copy) {
+					ByteBuffer heap = ByteBuffer.allocate(chunk.capacity());
+					heap.put(chunk);
+					heap.clear();
+					chunk = heap;
+				}
+				chunks[i] = chunk.order(byteOrder);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Map a .npy file in read-only mode
+	 * @param file
+	 * 	path to the .npy file
+	 * @return the mapped file
+	 * @throws IOException if the file cannot be read, is not a valid .npy file or its data type is not supported
+	 */
+	public static MappedNpy open(Path file) throws IOException {
+		return open(file, false, DEFAULT_CHUNK_BYTES);
+	}
+	
+	/**
+	 * Map a .npy file
+	 * @param file
+	 * 	path to the .npy file
+	 * @param copyOnWrite
+	 * 	if true, the image can be modified. Modified pages are copied in memory and never
+	 * 	written back to the file. If the file cannot be opened for writing, its data is copied
+	 * 	into the heap instead of mapped
+	 * @param chunkBytes
+	 * 	maximum size in bytes of each mapped chunk
+	 * @return the mapped file
+	 * @throws IOException if the file cannot be read, is not a valid .npy file or its data type is not supported
+	 */
+	public static MappedNpy open(Path file, boolean copyOnWrite, long chunkBytes) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer preamble = ByteBuffer.allocate(MAGIC.length + 2).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, preamble, 0);
+			for (int i = 0; i < MAGIC.length; i ++) {
+				if (preamble.get(i) != MAGIC[i])
+					throw new IOException("The file " + file + " is not a valid .npy file.");
+			}
+			int major = preamble.get(MAGIC.length);
+			int lenBytes = major == 1 ? 2 : 4;
+			ByteBuffer len = ByteBuffer.allocate(lenBytes).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, len, preamble.capacity());
+			long headerLen = major == 1 ? (len.getShort(0) & 0xffff) : (len.getInt(0) & 0xffffffffL);
+			ByteBuffer header = ByteBuffer.allocate((int) headerLen);
+			readFully(channel, header, preamble.capacity() + lenBytes);
+			String dict = new String(header.array(), major == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+			long dataOffset = preamble.capacity() + lenBytes + headerLen;
+			
+			String descr = find(DESCR, dict, file);
+			boolean fortran = find(FORTRAN, dict, file).equals("True");
+			long[] shape = Arrays.stream(find(SHAPE, dict, file).split(","))
+					.map(s -> s.trim().replace("L", "")).filter(s -> !s.isEmpty())
+					.mapToLong(Long::parseLong).toArray();
+			ByteOrder order = descr.charAt(0) == '>' ? ByteOrder.BIG_ENDIAN : 
+				(descr.charAt(0) == '<' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.nativeOrder());
+			char kind = descr.charAt(1);
+			int itemSize = Integer.parseInt(descr.substring(2));
+			if (!isSupported(kind, itemSize))
+				throw new IOException("Unsupported numpy data type '" + descr + "' in file " + file);
+			long expected = dataOffset + Arrays.stream(shape).reduce(1, (a, b) -> a * b) * itemSize;
+			if (channel.size() < expected)
+				throw new IOException("The file " + file + " is truncated, expected " + expected 
+						+ " bytes but found " + channel.size());
+			return new MappedNpy(file, shape, fortran, order, kind, itemSize, dataOffset, copyOnWrite, chunkBytes);
+		}
+	}
+	
+	/**
+	 * Write an image to a .npy file through a memory mapping of the file. The array is stored
+	 * in Fortran order with the shape of the image, so images backed by a primitive array are
+	 * copied in bulk in the order in which ImgLib2 stores them. The file can be read back with 
+	 * {@link #open(Path)}, with the same dimensions as the image
+	 * @param file
+	 * 	path to the .npy file, replaced if it exists
+	 * @param img
+	 * 	the image
+	 * @throws IOException if the file cannot be written or the data type of the image is not supported
+	 */
+	public static void write(Path file, RandomAccessibleInterval<? extends RealType<?>> img) throws IOException {
+		Object type = Util.getTypeFromInterval(img);
+		String descr = descr(type);
+		if (descr == null)
+			throw new IOException("Unable to write " + file + ", data type not supported: " + type.getClass().getName());
+		char kind = descr.charAt(1);
+		int itemSize = Integer.parseInt(descr.substring(2));
+		StringBuilder shape = new StringBuilder();
+		long size = 1;
+		for (int i = 0; i < img.numDimensions(); i ++) {
+			shape.append(img.dimension(i)).append(", ");
+			size *= img.dimension(i);
+		}
+		StringBuilder header = new StringBuilder("{'descr': '" + descr + "', 'fortran_order': True, 'shape': (" 
+				+ shape.toString().trim() + "), }");
+		// Magic string, version and header length take 10 bytes, the header ends with a new line
+		while ((MAGIC.length + 4 + header.length() + 1) % 64 != 0)
+			header.append(' ');
+		header.append('\n');
+		long dataOffset = MAGIC.length + 4 + header.length();
+		
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, 
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer preamble = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+			preamble.put(MAGIC).put((byte) 1).put((byte) 0).putShort((short) header.length());
+			preamble.put(header.toString().getBytes(StandardCharsets.US_ASCII)).flip();
+			while (preamble.hasRemaining())
+				channel.write(preamble, preamble.position());
+			Object arr = OutputComparator.primitiveStorage(img);
+			Cursor<? extends RealType<?>> cursor = arr == null ? Views.flatIterable(img).cursor() : null;
+			long chunkElements = DEFAULT_CHUNK_BYTES / itemSize;
+			for (long start = 0; start < size; start += chunkElements) {
+				int len = (int) Math.min(chunkElements, size - start);
+				ByteBuffer buffer = channel.map(MapMode.READ_WRITE, dataOffset + start * itemSize, (long) len * itemSize)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				if (arr != null)
+					putArray(buffer, arr, (int) start, len);
+				else
+					putValues(buffer, cursor, kind, itemSize, len);
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @param type
+	 * 	ImgLib2 data type
+	 * @return the little endian numpy descriptor of the data type, null if it is not supported
+	 */
+	private static String descr(Object type) {
+		if (type instanceof FloatType)
+			return "<f4";
+		else if (type instanceof DoubleType)
+			return "<f8";
+		else if (type instanceof ByteType)
+			return "|i1";
+		else if (type instanceof UnsignedByteType)
+			return "|u1";
+		else if (type instanceof ShortType)
+			return "<i2";
+		else if (type instanceof UnsignedShortType)
+			return "<u2";
+		else if (type instanceof IntType)
+			return "<i4";
+		else if (type instanceof UnsignedIntType)
+			return "<u4";
+		else if (type instanceof LongType)
+			return "<i8";
+		else if (type instanceof UnsignedLongType)
+			return "<u8";
+		return null;
+	}
+	
+	private static void putArray(ByteBuffer buffer, Object arr, int start, int len) {
+		if (arr instanceof float[])
+			buffer.asFloatBuffer().put((float[]) arr, start, len);
+		else if (arr instanceof double[])
+			buffer.asDoubleBuffer().put((double[]) arr, start, len);
+		else if (arr instanceof int[])
+			buffer.asIntBuffer().put((int[]) arr, start, len);
+		else if (arr instanceof short[])
+			buffer.asShortBuffer().put((short[]) arr, start, len);
+		else
+			buffer.put((byte[]) arr, start, len);
+	}
+	
+	private static void putValues(ByteBuffer buffer, Cursor<? extends RealType<?>> cursor, char kind, int itemSize, int len) {
+		for (int i = 0; i < len; i ++) {
+			RealType<?> px = cursor.next();
+			if (kind == 'f' && itemSize == 4) {
+				buffer.putFloat(px.getRealFloat());
+				continue;
+			} else if (kind == 'f') {
+				buffer.putDouble(px.getRealDouble());
+				continue;
+			}
+			long value = ((IntegerType<?>) px).getIntegerLong();
+			if (itemSize == 1)
+				buffer.put((byte) value);
+			else if (itemSize == 2)
+				buffer.putShort((short) value);
+			else if (itemSize == 4)
+				buffer.putInt((int) value);
+			else
+				buffer.putLong(value);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the shape of the numpy array
+	 */
+	public long[] getShape() {
+		return shape.clone();
+	}
+	
+	/**
+	 * 
+	 * @return whether the data is stored in Fortran order (first axis changes fastest)
+	 */
+	public boolean isFortranOrder() {
+		return fortranOrder;
+	}
+	
+	/**
+	 * 
+	 * @return the path to the file
+	 */
+	public Path getFile() {
+		return file;
+	}
+	
+	/**
+	 * 
+	 * @return the data type of the array following the bioimage.io naming, for example float32 or uint8
+	 */
+	public String getDataType() {
+		switch (kind) {
+			case 'f': return "float" + (itemSize * 8);
+			case 'i': return "int" + (itemSize * 8);
+			case 'b': return "bool";
+			default: return "uint" + (itemSize * 8);
+		}
+	}
+	
+	/**
+	 * Get the image backed by the mapped file. The dimensions of the image follow the shape of the
+	 * numpy array.
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @return the image
+	 */
+	@SuppressWarnings("unchecked")
+	public < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval<T> getImg() {
+		RandomAccessibleInterval<T> img;
+		if (kind == 'f' && itemSize == 4)
+			img = (RandomAccessibleInterval<T>) lazyImg(new FloatType(), b -> new FloatBufferAccess(b.asFloatBuffer(), true));
+		else if (kind == 'f')
+			img = (RandomAccessibleInterval<T>) lazyImg(new DoubleType(), b -> new DoubleBufferAccess(b.asDoubleBuffer(), true));
+		else if (kind == 'i' && itemSize == 1)
+			img = (RandomAccessibleInterval<T>) lazyImg(new ByteType(), b -> new ByteBufferAccess(b, true));
+		else if (itemSize == 1)
+			img = (RandomAccessibleInterval<T>) lazyImg(new UnsignedByteType(), b -> new ByteBufferAccess(b, true));
+		else if (kind == 'i' && itemSize == 2)
+			img = (RandomAccessibleInterval<T>) lazyImg(new ShortType(), b -> new ShortBufferAccess(b.asShortBuffer(), true));
+		else if (itemSize == 2)
+			img = (RandomAccessibleInterval<T>) lazyImg(new UnsignedShortType(), b -> new ShortBufferAccess(b.asShortBuffer(), true));
+		else if (kind == 'i' && itemSize == 4)
+			img = (RandomAccessibleInterval<T>) lazyImg(new IntType(), b -> new IntBufferAccess(b.asIntBuffer(), true));
+		else if (itemSize == 4)
+			img = (RandomAccessibleInterval<T>) lazyImg(new UnsignedIntType(), b -> new IntBufferAccess(b.asIntBuffer(), true));
+		else if (kind == 'i')
+			img = (RandomAccessibleInterval<T>) lazyImg(new LongType(), b -> new LongBufferAccess(b.asLongBuffer(), true));
+		else
+			img = (RandomAccessibleInterval<T>) lazyImg(new UnsignedLongType(), b -> new LongBufferAccess(b.asLongBuffer(), true));
+		if (shape.length == 0)
+			return img;
+		return fortranOrder ? img : reverseAxes(img);
+	}
+	
+	private < T extends NativeType< T >, A extends DataAccess > RandomAccessibleInterval<?> lazyImg(T type, Function<ByteBuffer, A> access) {
+		int n = grid.numDimensions();
+		return new LazyCellImg<T, A>(grid, type, index -> {
+			long[] min = new long[n];
+			int[] dims = new int[n];
+			grid.getCellDimensions(index, min, dims);
+			return new Cell<A>(dims, min, access.apply(chunk((int) index)));
+		});
+	}
+	
+	/**
+	 * 
+	 * @return number of chunks in which the file is mapped
+	 */
+	int numChunks() {
+		return chunks.length;
+	}
+	
+	/**
+	 * 
+	 * @param i
+	 * 	index of the chunk
+	 * @return number of elements of the chunk
+	 */
+	int chunkLength(int i) {
+		return chunks[i].capacity() / itemSize;
+	}
+	
+	/**
+	 * Reader of the elements of one chunk in the order in which they are stored in the file
+	 * @param i
+	 * 	index of the chunk
+	 * @return the reader
+	 */
+	FlatReader chunkReader(int i) {
+		ByteBuffer buffer = chunk(i);
+		if (kind == 'f' && itemSize == 4) {
+			FloatBuffer b = buffer.asFloatBuffer();
+			return j -> b.get(j);
+		} else if (kind == 'f') {
+			DoubleBuffer b = buffer.asDoubleBuffer();
+			return j -> b.get(j);
+		} else if (kind == 'i' && itemSize == 1) {
+			return j -> buffer.get(j);
+		} else if (itemSize == 1) {
+			return j -> buffer.get(j) & 0xff;
+		} else if (kind == 'i' && itemSize == 2) {
+			ShortBuffer b = buffer.asShortBuffer();
+			return j -> b.get(j);
+		} else if (itemSize == 2) {
+			ShortBuffer b = buffer.asShortBuffer();
+			return j -> b.get(j) & 0xffff;
+		} else if (kind == 'i' && itemSize == 4) {
+			IntBuffer b = buffer.asIntBuffer();
+			return j -> b.get(j);
+		} else if (itemSize == 4) {
+			IntBuffer b = buffer.asIntBuffer();
+			return j -> b.get(j) & 0xffffffffL;
+		} else if (kind == 'i') {
+			LongBuffer b = buffer.asLongBuffer();
+			return j -> b.get(j);
+		}
+		LongBuffer b = buffer.asLongBuffer();
+		return j -> {
+			long v = b.get(j);
+			return v >= 0 ? v : (v >>> 1) * 2.0 + (v & 1);
+		};
+	}
+	
+	/**
+	 * 
+	 * @return kind of unit in the last place of the data type, as used by {@link OutputComparator}
+	 */
+	int ulpKind() {
+		if (kind == 'f')
+			return itemSize == 4 ? OutputComparator.FLOAT_ULP : OutputComparator.DOUBLE_ULP;
+		return OutputComparator.INTEGER_ULP;
+	}
+	
+	private ByteBuffer chunk(int i) {
+		return chunks[i].duplicate().order(byteOrder);
+	}
+	
+	/**
+	 * Reverse the order of the axes of an image, which converts between the C order used
+	 * by numpy and the order in which ImgLib2 iterates the images
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param rai
+	 * 	the image
+	 * @return a view of the image with the axes in reverse order
+	 */
+	public static < T > RandomAccessibleInterval<T> reverseAxes(RandomAccessibleInterval<T> rai) {
+		int n = rai.numDimensions();
+		for (int i = 0; i < n / 2; i ++)
+			rai = Views.permute(rai, i, n - 1 - i);
+		return rai;
+	}
+	
+	private static boolean isSupported(char kind, int itemSize) {
+		if (kind == 'f')
+			return itemSize == 4 || itemSize == 8;
+		else if (kind == 'i' || kind == 'u')
+			return itemSize == 1 || itemSize == 2 || itemSize == 4 || itemSize == 8;
+		else if (kind == 'b')
+			return itemSize == 1;
+		return false;
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file while reading the .npy header.");
+		}
+	}
+	
+	private static String find(Pattern pattern, String dict, Path file) throws IOException {
+		Matcher m = pattern.matcher(dict);
+		if (!m.find())
+			throw new IOException("Invalid .npy header in file " + file + ": " + dict);
+		return m.group(1);
+	}
+	
+	private static void reverse(long[] arr) {
+		for (int i = 0; i < arr.length / 2; i ++) {
+			long aux = arr[i];
+			arr[i] = arr[arr.length - 1 - i];
+			arr[arr.length - 1 - i] = aux;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import io.bioimage.modelrunner.utils.YAMLUtils;
+
+/**
+ * Combines the summaries produced by the shards of a sharded run (see 
+ * {@link RunOptions#setShardCount(int)}) into a single summaries directory.
+ * Only the files written by each shard are copied, the previous results every shard starts from
+ * are ignored. The merge fails if a shard is missing, if the shards did not agree on how
+ * to split the rdf.yaml files or if two shards wrote different versions of the same file.
+ * Models that did not produce any summary are reported. The indexes written by the shards
+ * (see {@link SummaryWriter}) are combined into a single index of the whole run, merged into
+ * the index already in the output directory, so the models that were not tested keep their entry.
+ * Directories without a shard manifest are copied completely, failing only if they conflict
+ * with a file copied from another directory.
+ * 
+ * Usage: MergeSummaries OUTPUT_DIR SHARD_DIR [SHARD_DIR ...]
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class MergeSummaries {
+	
+	/**
+	 * Directory where the summaries are merged
+	 */
+	private final Path output;
+	/**
+	 * For each file copied, relative to the output, the file it was copied from
+	 */
+	private final Map<Path, Path> copied = new HashMap<Path, Path>();
+	/**
+	 * Problems that make the merge fail
+	 */
+	private final List<String> errors = new ArrayList<String>();
+	/**
+	 * Problems that are reported but do not make the merge fail
+	 */
+	private final List<String> warnings = new ArrayList<String>();
+	
+	/**
+	 * Create the merger
+	 * @param output
+	 * 	directory where the summaries are merged
+	 */
+	public MergeSummaries(Path output) {
+		this.output = output;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: MergeSummaries OUTPUT_DIR SHARD_DIR [SHARD_DIR ...]");
+			System.exit(2);
+		}
+		MergeSummaries merge = new MergeSummaries(Paths.get(args[0]));
+		List<Path> shards = new ArrayList<Path>();
+		for (int i = 1; i < args.length; i ++)
+			shards.add(Paths.get(args[i]));
+		boolean ok = merge.merge(shards);
+		for (String warning : merge.getWarnings())
+			System.out.println("WARNING: " + warning);
+		for (String error : merge.getErrors())
+			System.out.println("ERROR: " + error);
+		if (!ok)
+			System.exit(1);
+	}
+	
+	/**
+	 * Merge the output of several shards
+	 * @param shardDirs
+	 * 	the summaries directory of each shard
+	 * @return true if the merge did not find any error
+	 * @throws IOException if there is any error reading or copying the files
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean merge(List<Path> shardDirs) throws IOException {
+		// Manifests grouped by JDLL version and number of shards, and then by shard index
+		Map<String, Map<Integer, Map<String, Object>>> runs = new TreeMap<String, Map<Integer, Map<String, Object>>>();
+		Map<Map<String, Object>, Path> manifestDirs = new HashMap<Map<String, Object>, Path>();
+		for (Path dir : shardDirs) {
+			List<Path> manifests = manifests(dir);
+			if (manifests.size() == 0) {
+				copyAll(dir);
+				continue;
+			}
+			for (Path file : manifests) {
+				Map<String, Object> manifest = YAMLUtils.load(file.toAbsolutePath().toString());
+				String run = "JDLL " + manifest.get(ShardManifest.JDLL_VERSION) + " with " 
+						+ manifest.get(ShardManifest.SHARD_COUNT) + " shards";
+				int index = ((Number) manifest.get(ShardManifest.SHARD_INDEX)).intValue();
+				Map<Integer, Map<String, Object>> shards = runs.computeIfAbsent(run, k -> new TreeMap<Integer, Map<String, Object>>());
+				if (shards.containsKey(index)) {
+					errors.add("shard " + index + " of " + run + " appears twice, in " + manifestDirs.get(shards.get(index)) + " and " + dir);
+					continue;
+				}
+				shards.put(index, manifest);
+				manifestDirs.put(manifest, dir);
+			}
+		}
+		
+		for (Map.Entry<String, Map<Integer, Map<String, Object>>> run : runs.entrySet()) {
+			Map<Integer, Map<String, Object>> shards = run.getValue();
+			int count = ((Number) shards.values().iterator().next().get(ShardManifest.SHARD_COUNT)).intValue();
+			for (int i = 0; i < count; i ++) {
+				if (!shards.containsKey(i))
+					errors.add("shard " + i + " of " + run.getKey() + " is missing");
+			}
+			Map<String, Integer> owners = new HashMap<String, Integer>();
+			Map<String, Object> index = new TreeMap<String, Object>();
+			String jdllVersion = shards.values().iterator().next().get(ShardManifest.JDLL_VERSION).toString();
+			for (Map.Entry<Integer, Map<String, Object>> shard : shards.entrySet()) {
+				Map<String, Object> manifest = shard.getValue();
+				Path dir = manifestDirs.get(manifest);
+				Object total = manifest.get(ShardManifest.TOTAL_MODELS);
+				Object firstTotal = shards.values().iterator().next().get(ShardManifest.TOTAL_MODELS);
+				if (total == null || !total.equals(firstTotal))
+					errors.add("shard " + shard.getKey() + " of " + run.getKey() + " split " + total 
+							+ " rdf.yaml files but other shards split " + firstTotal);
+				for (Object entry : (List<Object>) manifest.get(ShardManifest.MODELS)) {
+					Map<String, Object> model = (Map<String, Object>) entry;
+					String rdf = (String) model.get(ShardManifest.RDF);
+					Integer owner = owners.put(rdf, shard.getKey());
+					if (owner != null)
+						errors.add(rdf + " was tested by shards " + owner + " and " + shard.getKey() + " of " + run.getKey());
+					Object summary = model.get(ShardManifest.SUMMARY);
+					if (summary == null) {
+						warnings.add(rdf + " did not produce any summary in shard " + shard.getKey() + " of " + run.getKey());
+						continue;
+					}
+					copyModel(dir, Paths.get(summary.toString()), manifest.get(ShardManifest.JDLL_VERSION).toString());
+				}
+				copyReports(dir);
+				mergeIndex(dir, jdllVersion, index);
+			}
+			Object total = shards.values().iterator().next().get(ShardManifest.TOTAL_MODELS);
+			if (errors.size() == 0 && total instanceof Number && ((Number) total).intValue() != owners.size())
+				errors.add(run.getKey() + " tested " + owners.size() + " of " + total + " rdf.yaml files, "
+						+ "the shards did not agree on how to split them");
+			if (index.size() > 0) {
+				// The shards only tested some models, the rest keep their entry of the published index
+				Path indexFile = output.resolve(SummaryWriter.INDEX_PREFIX + jdllVersion + ".yaml");
+				Map<String, Object> merged = SummaryWriter.readIndex(indexFile);
+				merged.putAll(index);
+				Files.createDirectories(output);
+				SummaryWriter.emit(indexFile, merged);
+			}
+		}
+		return errors.size() == 0;
+	}
+	
+	/**
+	 * 
+	 * @return problems that make the merge fail
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+	
+	/**
+	 * 
+	 * @return problems that do not make the merge fail, such as models without summary
+	 */
+	public List<String> getWarnings() {
+		return warnings;
+	}
+	
+	private static List<Path> manifests(Path dir) throws IOException {
+		List<Path> manifests = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, ShardManifest.FILE_PREFIX + "*_of_*.yaml")) {
+			for (Path file : files)
+				manifests.add(file);
+		}
+		return manifests;
+	}
+	
+	/**
+	 * Copy the summary of a model and the cache of results next to it
+	 */
+	private void copyModel(Path dir, Path summary, String jdllVersion) throws IOException {
+		copy(dir, summary);
+		Path cache = summary.resolveSibling(SummaryCache.FILE_PREFIX + jdllVersion + ".yaml");
+		if (Files.isRegularFile(dir.resolve(cache)))
+			copy(dir, cache);
+	}
+	
+	/**
+	 * Copy the run level reports of a shard, the engine startup and the metrics files
+	 */
+	private void copyReports(Path dir) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (Files.isRegularFile(file) && (name.startsWith("engine_startup_") || name.startsWith("metrics_")))
+					copy(dir, file.getFileName());
+			}
+		}
+	}
+	
+	/**
+	 * Add the entries of the index written by a shard to the index of the whole run
+	 * @param dir
+	 * 	summaries directory of the shard
+	 * @param jdllVersion
+	 * 	JDLL version of the run
+	 * @param index
+	 * 	index of the whole run
+	 * @throws IOException if the index of the shard cannot be read
+	 */
+	private void mergeIndex(Path dir, String jdllVersion, Map<String, Object> index) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SummaryWriter.INDEX_PREFIX + jdllVersion + "_shard*.yaml")) {
+			for (Path file : files) {
+				Map<String, Object> shardIndex = YAMLUtils.load(file.toAbsolutePath().toString());
+				if (shardIndex == null)
+					continue;
+				for (Map.Entry<String, Object> entry : shardIndex.entrySet()) {
+					Object previous = index.put(entry.getKey(), entry.getValue());
+					if (previous != null && !previous.equals(entry.getValue()))
+						errors.add("conflict in the index entry of " + entry.getKey() + ", found in " + file + " and another shard");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copy every file of a directory that was not produced by a sharded run
+	 */
+	private void copyAll(Path dir) throws IOException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		for (Path file : files)
+			copy(dir, dir.relativize(file));
+	}
+	
+	/**
+	 * Copy a file into the output unless a different version of it was already copied
+	 * @param dir
+	 * 	directory the file is copied from
+	 * @param relative
+	 * 	path of the file relative to the directory, and to the output
+	 */
+	private void copy(Path dir, Path relative) throws IOException {
+		Path source = dir.resolve(relative);
+		Path key = relative.normalize();
+		Path previous = copied.get(key);
+		if (previous != null) {
+			if (!Arrays.equals(Files.readAllBytes(previous), Files.readAllBytes(source)))
+				errors.add("conflict in " + relative + ": " + previous + " and " + source + " are different");
+			return;
+		}
+		Path target = output.resolve(relative);
+		if (target.getParent() != null)
+			Files.createDirectories(target.getParent());
+		Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+		copied.put(key, source);
+	}
+}
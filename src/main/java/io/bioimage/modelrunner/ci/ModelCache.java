@@ -0,0 +1,300 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import io.bioimage.modelrunner.utils.YAMLUtils;
+
+/**
+ * Persistent, content-addressed cache of downloaded models. Every file is stored once
+ * under its sha256 in the 'blobs' folder and every model has a manifest that maps the
+ * names of its files to their hashes. The model folder used by the tests is created in the 
+ * 'models' folder with hard links to the blobs, so models that share files do not take
+ * extra space. When the blobs exceed the maximum size, the least recently used models 
+ * are removed.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ModelCache {
+	
+	private static final String BLOBS = "blobs";
+	private static final String MANIFESTS = "manifests";
+	private static final String MODELS = "models";
+	private static final String TMP = "tmp";
+	
+	/**
+	 * Root folder of the cache
+	 */
+	private final Path root;
+	/**
+	 * Maximum size in bytes of the blobs
+	 */
+	private final long maxBytes;
+	/**
+	 * Models that are being used and cannot be evicted
+	 */
+	private final Set<String> pinned = new HashSet<String>();
+	
+	/**
+	 * Create a cache in the given folder
+	 * @param root
+	 * 	folder of the cache, created if it does not exist
+	 * @param maxBytes
+	 * 	maximum size in bytes of the files stored, 0 to use half of the space available in
+	 * 	the file system of the folder, counting the files already in the cache
+	 * @throws IOException if the folder cannot be created
+	 */
+	public ModelCache(Path root, long maxBytes) throws IOException {
+		this.root = root.toAbsolutePath();
+		Files.createDirectories(this.root.resolve(BLOBS));
+		if (maxBytes == 0)
+			maxBytes = (Files.getFileStore(this.root).getUsableSpace() + size()) / 2;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(this.root.resolve(MANIFESTS));
+		Files.createDirectories(this.root.resolve(MODELS));
+		// Remove the partial downloads of previous runs that were interrupted
+		deleteRecursively(this.root.resolve(TMP));
+		Files.createDirectories(this.root.resolve(TMP));
+	}
+	
+	/**
+	 * Create a new empty folder where a model can be downloaded before storing it. It is in 
+	 * the same file system as the cache so the files can be moved instead of copied
+	 * @return the new folder
+	 * @throws IOException if the folder cannot be created
+	 */
+	public Path createTempDir() throws IOException {
+		return Files.createTempDirectory(root.resolve(TMP), "download");
+	}
+	
+	/**
+	 * Get the folder of a cached model and mark it as used
+	 * @param key
+	 * 	key of the model
+	 * @return the folder of the model or null if the model is not cached
+	 * @throws IOException if there is any error creating the folder of the model
+	 */
+	public synchronized Path fetch(String key) throws IOException {
+		Map<String, String> files = readManifest(key);
+		if (files == null)
+			return null;
+		for (String hash : files.values()) {
+			if (!Files.isRegularFile(blob(hash)))
+				return null;
+		}
+		FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		Files.setLastModifiedTime(manifest(key), now);
+		pinned.add(key);
+		return materialize(key, files);
+	}
+	
+	/**
+	 * Store a downloaded model in the cache. The files of the folder are moved into the cache
+	 * @param key
+	 * 	key of the model
+	 * @param folder
+	 * 	folder with the downloaded files
+	 * @return the folder of the model in the cache
+	 * @throws IOException if there is any error storing the files
+	 */
+	public Path store(String key, Path folder) throws IOException {
+		Map<String, String> files = new LinkedHashMap<String, String>();
+		List<Path> paths;
+		try (Stream<Path> walk = Files.walk(folder)) {
+			paths = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		// The files are hashed before locking the cache, so the models being prefetched
+		// do not hold back the tests that fetch or release other models
+		for (Path file : paths)
+			files.put(folder.relativize(file).toString().replace('\\', '/'), SummaryCache.sha256(file));
+		synchronized (this) {
+			for (Path file : paths) {
+				Path blob = blob(files.get(folder.relativize(file).toString().replace('\\', '/')));
+				if (!Files.exists(blob)) {
+					Files.createDirectories(blob.getParent());
+					Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+				}
+			}
+			Map<String, Object> manifest = new LinkedHashMap<String, Object>();
+			manifest.put("files", files);
+			YAMLUtils.writeYamlFile(manifest(key).toString(), manifest);
+			pinned.add(key);
+			Path model = materialize(key, files);
+			evict();
+			return model;
+		}
+	}
+	
+	/**
+	 * Mark a model as not used anymore, so it can be evicted
+	 * @param key
+	 * 	key of the model
+	 */
+	public synchronized void release(String key) {
+		pinned.remove(key);
+	}
+	
+	/**
+	 * Remove the least recently used models that are not being used until the size of
+	 * the cache is below the maximum
+	 * @throws IOException if there is any error removing the files
+	 */
+	public synchronized void evict() throws IOException {
+		List<Path> manifests;
+		try (Stream<Path> list = Files.list(root.resolve(MANIFESTS))) {
+			manifests = list.sorted(Comparator.comparing(ModelCache::lastModified)).collect(Collectors.toList());
+		}
+		Map<String, Map<String, String>> models = new LinkedHashMap<String, Map<String, String>>();
+		Map<String, Integer> references = new HashMap<String, Integer>();
+		for (Path mm : manifests) {
+			String key = mm.getFileName().toString().replace(".yaml", "");
+			Map<String, String> files = readManifest(key);
+			if (files == null)
+				continue;
+			models.put(key, files);
+			for (String hash : new HashSet<String>(files.values()))
+				references.merge(hash, 1, Integer::sum);
+		}
+		long size = 0;
+		for (String hash : references.keySet())
+			size += Files.isRegularFile(blob(hash)) ? Files.size(blob(hash)) : 0;
+		for (Map.Entry<String, Map<String, String>> ee : models.entrySet()) {
+			if (size <= maxBytes)
+				break;
+			if (pinned.contains(ee.getKey()))
+				continue;
+			Files.deleteIfExists(manifest(ee.getKey()));
+			deleteRecursively(root.resolve(MODELS).resolve(ee.getKey()));
+			for (String hash : new HashSet<String>(ee.getValue().values())) {
+				if (references.merge(hash, -1, Integer::sum) > 0)
+					continue;
+				if (Files.isRegularFile(blob(hash)))
+					size -= Files.size(blob(hash));
+				Files.deleteIfExists(blob(hash));
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @return size in bytes of the files stored in the cache
+	 * @throws IOException if the blobs cannot be listed
+	 */
+	public synchronized long size() throws IOException {
+		try (Stream<Path> walk = Files.walk(root.resolve(BLOBS))) {
+			long size = 0;
+			for (Path pp : walk.filter(Files::isRegularFile).collect(Collectors.toList()))
+				size += Files.size(pp);
+			return size;
+		}
+	}
+	
+	private Path materialize(String key, Map<String, String> files) throws IOException {
+		Path model = root.resolve(MODELS).resolve(key);
+		for (Map.Entry<String, String> ee : files.entrySet()) {
+			Path target = model.resolve(ee.getKey());
+			if (Files.isRegularFile(target))
+				continue;
+			Files.createDirectories(target.getParent());
+			try {
+				Files.createLink(target, blob(ee.getValue()));
+			} catch (FileAlreadyExistsException ex) {
+			} catch (IOException | UnsupportedOperationException ex) {
+				Files.copy(blob(ee.getValue()), target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		return model;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<String, String> readManifest(String key) {
+		Path manifest = manifest(key);
+		if (!Files.isRegularFile(manifest))
+			return null;
+		try {
+			Object files = YAMLUtils.load(manifest.toString()).get("files");
+			if (!(files instanceof Map))
+				return null;
+			Map<String, String> map = new LinkedHashMap<String, String>();
+			for (Map.Entry<String, Object> ee : ((Map<String, Object>) files).entrySet())
+				map.put(ee.getKey(), ee.getValue().toString());
+			return map;
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+	
+	private Path manifest(String key) {
+		return root.resolve(MANIFESTS).resolve(key + ".yaml");
+	}
+	
+	private Path blob(String hash) {
+		return root.resolve(BLOBS).resolve(hash.substring(0, 2)).resolve(hash);
+	}
+	
+	private static FileTime lastModified(Path path) {
+		try {
+			return Files.getLastModifiedTime(path);
+		} catch (IOException ex) {
+			return FileTime.fromMillis(0);
+		}
+	}
+	
+	/**
+	 * Delete a folder and all its contents
+	 * @param dir
+	 * 	the folder
+	 * @throws IOException if any file cannot be deleted
+	 */
+	static void deleteRecursively(Path dir) throws IOException {
+		if (!Files.exists(dir))
+			return;
+		List<Path> paths;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		}
+		List<IOException> errors = new ArrayList<IOException>();
+		for (Path pp : paths) {
+			try {
+				Files.deleteIfExists(pp);
+			} catch (IOException ex) {
+				errors.add(ex);
+			}
+		}
+		if (errors.size() > 0)
+			throw errors.get(0);
+	}
+}
@@ -0,0 +1,218 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+/**
+ * Class that provides the downloaded models to the tests. Models are looked up in the
+ * persistent {@link ModelCache} and downloaded from the {@link ModelSource} only if they are
+ * not cached. While a model is being tested, the next models in the queue are downloaded in
+ * the background so network and inference overlap. Every model is downloaded at most once 
+ * per run and a failed download is not retried in the same run.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ModelDownloader {
+	
+	/**
+	 * Where the models are downloaded from
+	 */
+	private final ModelSource source;
+	/**
+	 * Persistent cache of models
+	 */
+	private final ModelCache cache;
+	/**
+	 * Number of models downloaded ahead of the one being tested
+	 */
+	private final int prefetch;
+	/**
+	 * Downloads started in this run, by model key, until all the tests of the model finish
+	 */
+	private final Map<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<String, CompletableFuture<Path>>();
+	/**
+	 * Tests that have not finished for each model key
+	 */
+	private final Map<String, Integer> pending = new ConcurrentHashMap<String, Integer>();
+	/**
+	 * Threads used to download models in the background
+	 */
+	private final ExecutorService executor;
+	/**
+	 * Tests in the order in which they are run
+	 */
+	private List<TestJob> queue = new ArrayList<TestJob>();
+	/**
+	 * Called with each test of the queue and the folder of its model once the model is downloaded
+	 */
+	private BiConsumer<TestJob, Path> listener;
+	
+	/**
+	 * Create the downloader
+	 * @param source
+	 * 	where the models are downloaded from
+	 * @param cache
+	 * 	persistent cache of models
+	 * @param prefetch
+	 * 	number of models downloaded ahead of the ones being tested, 0 to disable prefetching
+	 */
+	public ModelDownloader(ModelSource source, ModelCache cache, int prefetch) {
+		this.source = source;
+		this.cache = cache;
+		this.prefetch = prefetch;
+		this.executor = prefetch == 0 ? null : Executors.newFixedThreadPool(prefetch, r -> {
+			Thread thread = new Thread(r, "ci-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Set the tests in the order in which they are going to be run
+	 * @param jobs
+	 * 	the tests
+	 */
+	public void setQueue(List<TestJob> jobs) {
+		this.queue = new ArrayList<TestJob>(jobs);
+		for (TestJob job : jobs)
+			pending.merge(key(job), 1, Integer::sum);
+	}
+	
+	/**
+	 * Notify that the test at the given position of the queue has started, so the models 
+	 * of the next tests are downloaded in the background
+	 * @param index
+	 * 	position of the test in the queue
+	 */
+	public void started(int index) {
+		if (executor == null)
+			return;
+		int submitted = 0;
+		for (int i = index + 1; i < queue.size() && submitted < prefetch; i ++) {
+			TestJob job = queue.get(i);
+			String key = key(job);
+			CompletableFuture<Path> future = new CompletableFuture<Path>();
+			if (downloads.putIfAbsent(key, future) != null)
+				continue;
+			executor.submit(() -> download(key, job.getRdfPath(), future));
+			submitted ++;
+		}
+	}
+	
+	/**
+	 * Get the folder of the model of a test, waiting for its download if needed
+	 * @param job
+	 * 	the test
+	 * @return the folder that contains the model
+	 * @throws Exception if the model could not be downloaded
+	 */
+	public Path get(TestJob job) throws Exception {
+		String key = key(job);
+		CompletableFuture<Path> future = new CompletableFuture<Path>();
+		CompletableFuture<Path> previous = downloads.putIfAbsent(key, future);
+		if (previous == null)
+			download(key, job.getRdfPath(), future);
+		else
+			future = previous;
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception)
+				throw (Exception) ex.getCause();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Set the action run for each test of the queue once its model is downloaded, before the 
+	 * folder of the model is returned. It runs in the thread that downloaded the model
+	 * @param listener
+	 * 	action that receives the test and the folder that contains its model
+	 */
+	public void setListener(BiConsumer<TestJob, Path> listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Notify that a test has finished. Once all the tests of a model have finished, its download 
+	 * is forgotten and the model can be evicted from the cache
+	 * @param job
+	 * 	the test
+	 */
+	public void finished(TestJob job) {
+		String key = key(job);
+		if (pending.merge(key, -1, Integer::sum) > 0)
+			return;
+		pending.remove(key);
+		downloads.remove(key);
+		cache.release(key);
+	}
+	
+	/**
+	 * Stop the background downloads
+	 */
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+	
+	private void download(String key, Path rdfPath, CompletableFuture<Path> future) {
+		try {
+			Path folder = cache.fetch(key);
+			if (folder == null) {
+				Path tmp = cache.createTempDir();
+				try {
+					folder = cache.store(key, source.download(rdfPath, tmp));
+				} finally {
+					ModelCache.deleteRecursively(tmp);
+				}
+			}
+			if (listener != null) {
+				for (TestJob job : queue) {
+					if (key(job).equals(key))
+						listener.accept(job, folder);
+				}
+			}
+			future.complete(folder);
+		} catch (Throwable ex) {
+			future.completeExceptionally(ex);
+		}
+	}
+	
+	/**
+	 * The key of a model is the hash of its rdf.yaml file, which references all its files
+	 * @param job
+	 * 	a test of the model
+	 * @return the key of the model
+	 */
+	private static String key(TestJob job) {
+		return job.getModel().getDownloadKey();
+	}
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.bioimage.modelrunner.bioimageio.BioimageioRepo;
+import io.bioimage.modelrunner.bioimageio.description.ModelDescriptor;
+import io.bioimage.modelrunner.utils.Constants;
+import io.bioimage.modelrunner.utils.YAMLUtils;
+
+/**
+ * Place from where the files of the models are downloaded
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public interface ModelSource {
+	
+	/**
+	 * Download the files of the model described by a rdf.yaml file
+	 * @param rdfPath
+	 * 	path to the rdf.yaml file
+	 * @param targetDir
+	 * 	folder where the model should be downloaded
+	 * @return the folder that contains the files of the model
+	 * @throws Exception if the model cannot be downloaded
+	 */
+	Path download(Path rdfPath, Path targetDir) throws Exception;
+	
+	/**
+	 * The connection to the repository is made with the first download and reused by the next ones
+	 * @return a source that downloads the models from the Bioimage.io repository using JDLL
+	 */
+	public static ModelSource bioimageio() {
+		AtomicReference<BioimageioRepo> repo = new AtomicReference<BioimageioRepo>();
+		return (rdfPath, targetDir) -> {
+			ModelDescriptor rd = ModelDescriptor.readFromLocalFile(rdfPath.toAbsolutePath().toString(), false);
+			BioimageioRepo br;
+			synchronized (repo) {
+				if (repo.get() == null)
+					repo.set(BioimageioRepo.connect());
+				br = repo.get();
+			}
+			return Paths.get(br.downloadByName(rd.getName(), targetDir.toAbsolutePath().toString()));
+		};
+	}
+	
+	/**
+	 * Create a source that downloads the files of the models from a mirror, for example a local 
+	 * folder or a server in localhost. Every file referenced by the rdf.yaml (weights and test
+	 * tensors) is downloaded from 'mirror/MODEL_ID/FILE_NAME'
+	 * @param mirror
+	 * 	path to a local folder or URL of the mirror
+	 * @return the source
+	 */
+	public static ModelSource mirror(String mirror) {
+		String base = mirror.contains("://") ? mirror : Paths.get(mirror).toAbsolutePath().toUri().toString();
+		final String baseUrl = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+		return (rdfPath, targetDir) -> {
+			Map<String, Object> rdf = YAMLUtils.load(rdfPath.toAbsolutePath().toString());
+			Object id = rdf.get("id");
+			if (id == null)
+				throw new IOException("Missing 'id' in rdf: " + rdfPath);
+			Files.createDirectories(targetDir);
+			Files.copy(rdfPath, targetDir.resolve(Constants.RDF_FNAME), StandardCopyOption.REPLACE_EXISTING);
+			for (String url : referencedFiles(rdf)) {
+				String fileName = fileName(url);
+				URL source = new URL(baseUrl + "/" + id + "/" + fileName);
+				try (InputStream is = source.openStream()) {
+					Files.copy(is, targetDir.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			return targetDir;
+		};
+	}
+	
+	/**
+	 * Get the URLs of the files needed to test a model: the weights and the test tensors
+	 * @param rdf
+	 * 	contents of the rdf.yaml
+	 * @return the URLs
+	 */
+	@SuppressWarnings("unchecked")
+	static List<String> referencedFiles(Map<String, Object> rdf) {
+		List<String> urls = new ArrayList<String>();
+		Object weights = rdf.get("weights");
+		if (weights instanceof Map) {
+			for (Object ww : ((Map<String, Object>) weights).values()) {
+				if (ww instanceof Map && ((Map<String, Object>) ww).get("source") instanceof String)
+					urls.add((String) ((Map<String, Object>) ww).get("source"));
+			}
+		}
+		for (String field : new String[] {"test_inputs", "test_outputs"}) {
+			if (!(rdf.get(field) instanceof List))
+				continue;
+			for (Object tt : (List<Object>) rdf.get(field)) {
+				if (tt instanceof String)
+					urls.add((String) tt);
+			}
+		}
+		return urls;
+	}
+	
+	/**
+	 * Get the name of the file referenced by a URL, without query parameters. Zenodo URLs ending
+	 * in '/content' are named after the previous segment
+	 * @param url
+	 * 	the URL
+	 * @return the name of the file
+	 */
+	static String fileName(String url) {
+		String path = url.contains("?") ? url.substring(0, url.indexOf("?")) : url;
+		if (path.endsWith("/content"))
+			path = path.substring(0, path.length() - "/content".length());
+		while (path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		return path.substring(path.lastIndexOf("/") + 1);
+	}
+}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.bioimage.modelrunner.bioimageio.description.ModelDescriptor;
+import io.bioimage.modelrunner.bioimageio.description.exceptions.ModelSpecsException;
+
+/**
+ * Results of the tests of every weight format of one model. The summary of the model
+ * can only be written once all the weight formats have been tested. The results keep
+ * the order of the weight formats in the rdf.yaml regardless of the order in which the 
+ * tests finish.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ModelTestResults {
+	
+	/**
+	 * Position of the rdf.yaml among all the files tested
+	 */
+	private final int index;
+	/**
+	 * The rdf.yaml file, shared by every weight format
+	 */
+	private final RdfDescriptor rdf;
+	/**
+	 * Id of the model
+	 */
+	private final String id;
+	/**
+	 * Cache of the results of the model
+	 */
+	private final SummaryCache cache;
+	/**
+	 * Results of each weight format, in the order of the rdf.yaml
+	 */
+	private final Map<String, Object> summariesPerWeightFormat = new LinkedHashMap<String, Object>();
+	/**
+	 * Number of weight formats whose results are missing
+	 */
+	private int remaining;
+	/**
+	 * Time and memory used by the stages shared by all the weight formats
+	 */
+	private final StageMetrics metrics;
+	/**
+	 * Engine used by each weight format, null for the ones whose previous results were reused
+	 */
+	private final Map<String, String> engines = new LinkedHashMap<String, String>();
+	
+	/**
+	 * Create the object that collects the results of the tests of a model
+	 * @param index
+	 * 	position of the rdf.yaml among all the files tested
+	 * @param rdf
+	 * 	the rdf.yaml file
+	 * @param id
+	 * 	id of the model
+	 * @param weightFormats
+	 * 	frameworks of the weight formats tested, in the order of the rdf.yaml
+	 * @param cache
+	 * 	cache of the results of the model
+	 * @param metrics
+	 * 	time and memory used by the stages shared by all the weight formats, such as
+	 * 	loading the rdf.yaml
+	 */
+	public ModelTestResults(int index, RdfDescriptor rdf, String id, List<String> weightFormats, SummaryCache cache, 
+			StageMetrics metrics) {
+		this.index = index;
+		this.metrics = metrics;
+		this.rdf = rdf;
+		this.id = id;
+		this.cache = cache;
+		for (String wf : weightFormats)
+			summariesPerWeightFormat.put(wf, null);
+		this.remaining = weightFormats.size();
+	}
+	
+	/**
+	 * Add the results of the tests of one weight format
+	 * @param weightFormat
+	 * 	the framework of the weight format
+	 * @param summaries
+	 * 	the results of the tests
+	 * @return true if these were the last results missing, and the summary can be written
+	 */
+	public synchronized boolean complete(String weightFormat, List<Object> summaries) {
+		summariesPerWeightFormat.put(weightFormat, summaries);
+		if (-- remaining > 0)
+			return false;
+		rdf.releaseDescriptor();
+		return true;
+	}
+	
+	/**
+	 * Set the engine used to test a weight format
+	 * @param weightFormat
+	 * 	the weight format
+	 * @param engineKey
+	 * 	key of the engine, null if the previous results were reused
+	 */
+	public synchronized void setEngine(String weightFormat, String engineKey) {
+		engines.put(weightFormat, engineKey);
+	}
+	
+	/**
+	 * 
+	 * @return engine used by each weight format, null for the ones whose previous results were reused
+	 */
+	public synchronized Map<String, String> getEngines() {
+		return new LinkedHashMap<String, String>(engines);
+	}
+	
+	/**
+	 * 
+	 * @return the results of each weight format, in the order of the rdf.yaml
+	 */
+	public synchronized Map<String, Object> getSummariesPerWeightFormat() {
+		return summariesPerWeightFormat;
+	}
+	
+	/**
+	 * 
+	 * @return position of the rdf.yaml among all the files tested
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * 
+	 * @return path to the rdf.yaml file
+	 */
+	public Path getRdfPath() {
+		return rdf.getPath();
+	}
+	
+	/**
+	 * Get the descriptor of the model, which is only created once for all the weight formats
+	 * @param metrics
+	 * 	metrics where the time of creating the descriptor is recorded, if it is created
+	 * @return the descriptor of the model
+	 * @throws ModelSpecsException if the rdf.yaml is not a valid model description
+	 */
+	public ModelDescriptor getDescriptor(StageMetrics metrics) throws ModelSpecsException {
+		return rdf.getDescriptor(metrics);
+	}
+	
+	/**
+	 * 
+	 * @return id of the model
+	 */
+	public String getId() {
+		return id;
+	}
+	
+	/**
+	 * 
+	 * @return the key of the model in the {@link ModelCache}, the hash of the rdf.yaml file,
+	 * 	which references every file of the model
+	 */
+	public String getDownloadKey() {
+		return rdf.getSha256();
+	}
+	
+	/**
+	 * 
+	 * @return cache of the results of the model
+	 */
+	public SummaryCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * 
+	 * @return time and memory used by the stages shared by all the weight formats
+	 */
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+}
@@ -0,0 +1,267 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import io.bioimage.modelrunner.bioimageio.description.weights.ModelWeight;
+import io.bioimage.modelrunner.bioimageio.description.weights.WeightFormat;
+import io.bioimage.modelrunner.engine.EngineInfo;
+import io.bioimage.modelrunner.model.Model;
+import io.bioimage.modelrunner.tensor.Tensor;
+import io.bioimage.modelrunner.utils.YAMLUtils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Process started by {@link WorkerPool} that loads and runs models in its own JVM, so a crash 
+ * of the native libraries of an engine does not stop the whole run. The worker connects to the 
+ * port given as argument and serves requests until the connection is closed. Each worker only
+ * runs models of one engine, and the first model loaded is kept open so the engine stays warm,
+ * the same as {@link EngineGroups} does in the main JVM. The last model loaded is also kept
+ * open, so consecutive requests for the same model, such as the tiles of a 
+ * {@link TiledInference}, only load it once.
+ * 
+ * The tensors are exchanged as .npy files mapped into memory by both processes: the parent 
+ * writes the inputs, the worker writes the outputs and only the paths go through the socket.
+ * 
+ * A request contains: the path to the rdf.yaml, the framework of the weights, the model folder,
+ * the weights file, the warmup and measured iterations of the {@link InferenceBenchmark} (0 to 
+ * not benchmark), the number of inputs followed by the name, axes and .npy file of each input, 
+ * and the number of outputs followed by the name, axes and .npy file of each output.
+ * The response contains the status, the traceback of the error (empty if there was none),
+ * the time and memory of each stage, the error of the benchmark (empty if there was none) and
+ * the number of latencies measured followed by each latency in nanoseconds.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ModelWorker {
+	
+	/**
+	 * Status of a request where the outputs were written
+	 */
+	static final String OK = "ok";
+	/**
+	 * Status of a request where the model could not be loaded
+	 */
+	static final String LOAD_FAILED = "load_failed";
+	/**
+	 * Status of a request where the model could not be run or the outputs could not be written
+	 */
+	static final String RUN_FAILED = "run_failed";
+	
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	/**
+	 * Model kept open to keep the engine warm
+	 */
+	private Model anchor;
+	/**
+	 * Last model loaded
+	 */
+	private Model current;
+	/**
+	 * Framework and weights of the last model loaded
+	 */
+	private String currentKey;
+	
+	private ModelWorker(DataInputStream in, DataOutputStream out) {
+		this.in = in;
+		this.out = out;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		int port = Integer.parseInt(args[0]);
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			ModelWorker worker = new ModelWorker(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+					new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+			worker.serve();
+		}
+		// The engines can leave non-daemon threads running
+		System.exit(0);
+	}
+	
+	private void serve() throws IOException {
+		try {
+			while (true) {
+				String rdf;
+				try {
+					rdf = readString(in);
+				} catch (EOFException ex) {
+					return;
+				}
+				handle(rdf);
+				out.flush();
+			}
+		} finally {
+			if (current != null && current != anchor)
+				current.closeModel();
+			if (anchor != null)
+				anchor.closeModel();
+		}
+	}
+	
+	private < T extends RealType< T > & NativeType< T > > void handle(String rdf) throws IOException {
+		String framework = readString(in);
+		String modelFolder = readString(in);
+		String modelSource = readString(in);
+		int warmup = in.readInt();
+		int iterations = in.readInt();
+		List<Tensor<?>> inputs = new ArrayList<Tensor<?>>();
+		List<Path> inputFiles = new ArrayList<Path>();
+		int nInputs = in.readInt();
+		for (int i = 0; i < nInputs; i ++) {
+			String name = readString(in);
+			String axes = readString(in);
+			Path file = Paths.get(readString(in));
+			inputFiles.add(file);
+			inputs.add(Tensor.build(name, axes, MappedNpy.open(file).<T>getImg()));
+		}
+		List<Tensor<?>> outputs = new ArrayList<Tensor<?>>();
+		List<Path> outputFiles = new ArrayList<Path>();
+		int nOutputs = in.readInt();
+		for (int i = 0; i < nOutputs; i ++) {
+			String name = readString(in);
+			String axes = readString(in);
+			outputFiles.add(Paths.get(readString(in)));
+			outputs.add(Tensor.<T>buildEmptyTensor(name, axes));
+		}
+		
+		StageMetrics metrics = new StageMetrics();
+		Model model;
+		try (StageMetrics.Stage stage = metrics.start(StageMetrics.LOAD_MODEL)) {
+			model = load(rdf, framework, modelFolder, modelSource);
+		} catch (Exception | Error ex) {
+			respond(LOAD_FAILED, ex, metrics, null);
+			return;
+		}
+		try {
+			try (StageMetrics.Stage stage = metrics.start(StageMetrics.RUN_MODEL)) {
+				model.runModel(inputs, outputs);
+			}
+			for (int i = 0; i < outputs.size(); i ++)
+				MappedNpy.write(outputFiles.get(i), outputs.get(i).getData());
+		} catch (Exception | Error ex) {
+			respond(RUN_FAILED, ex, metrics, null);
+			return;
+		}
+		InferenceBenchmark benchmark = null;
+		if (iterations > 0) {
+			benchmark = new InferenceBenchmark(warmup, iterations);
+			List<Tensor<?>> benchmarkOutputs = InferenceBenchmark.emptyOutputs(outputs);
+			benchmark.run(() -> model.runModel(inputs, benchmarkOutputs), metrics);
+		}
+		respond(OK, null, metrics, benchmark);
+	}
+	
+	/**
+	 * Load a model with the same engine that the main JVM resolved for its weights, or reuse
+	 * the last model loaded if it is the same
+	 */
+	@SuppressWarnings("unchecked")
+	private Model load(String rdf, String framework, String modelFolder, String modelSource) throws Exception {
+		String key = framework + File.pathSeparator + modelSource;
+		if (key.equals(currentKey))
+			return current;
+		if (current != null && current != anchor)
+			current.closeModel();
+		current = null;
+		currentKey = null;
+		Map<String, Object> yaml = YAMLUtils.load(rdf);
+		ModelWeight weights = ModelWeight.build((Map<String, Object>) yaml.get("weights"));
+		WeightFormat weightFormat = null;
+		for (WeightFormat ww : weights.gettAllSupportedWeightObjects()) {
+			if (ww.getFramework().equals(framework))
+				weightFormat = ww;
+		}
+		if (weightFormat == null)
+			throw new IllegalArgumentException("The rdf.yaml " + rdf + " does not have " + framework + " weights.");
+		EngineInfo engineInfo = EngineInfo.defineCompatibleDLEngineWithRdfYamlWeights(weightFormat);
+		Model model = Model.createDeepLearningModel(modelFolder, modelSource, engineInfo);
+		model.loadModel();
+		if (anchor == null)
+			anchor = model;
+		current = model;
+		currentKey = key;
+		return model;
+	}
+	
+	private void respond(String status, Throwable error, StageMetrics metrics, InferenceBenchmark benchmark) throws IOException {
+		if (error != null)
+			error.printStackTrace();
+		writeString(out, status);
+		writeString(out, error == null ? "" : ContinuousIntegration.stackTrace(error));
+		Map<String, long[]> stages = metrics.getStages();
+		out.writeInt(stages.size());
+		for (Entry<String, long[]> ee : stages.entrySet()) {
+			writeString(out, ee.getKey());
+			for (long value : ee.getValue())
+				out.writeLong(value);
+		}
+		long[] latencies = benchmark == null ? null : benchmark.getLatencies();
+		writeString(out, benchmark == null || latencies != null ? "" : benchmark.getError());
+		out.writeInt(latencies == null ? 0 : latencies.length);
+		for (int i = 0; latencies != null && i < latencies.length; i ++)
+			out.writeLong(latencies[i]);
+	}
+	
+	/**
+	 * Write a string of any length, {@link DataOutputStream#writeUTF(String)} is limited to 64KB
+	 * @param out
+	 * 	the stream
+	 * @param str
+	 * 	the string
+	 * @throws IOException if the string cannot be written
+	 */
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	/**
+	 * Read a string written by {@link #writeString(DataOutputStream, String)}
+	 * @param in
+	 * 	the stream
+	 * @return the string
+	 * @throws IOException if the string cannot be read
+	 */
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
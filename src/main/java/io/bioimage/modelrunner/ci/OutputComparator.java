@@ -0,0 +1,324 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Class that compares the output of a model with the expected output in a single pass.
+ * Neither of the images is modified and no object is allocated per pixel. When both 
+ * images are backed by primitive arrays (float, double, int, short or byte) the 
+ * arrays are read directly, otherwise the images are iterated in flat order.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class OutputComparator {
+	
+	/**
+	 * Version of the rule that decides whether an output passes, part of the key of the cached
+	 * results so results obtained with a previous rule are not reused (see {@link SummaryCache}).
+	 * Version 1 compared the absolute value of the minimum of (expected - output) with the tolerance,
+	 * so outputs bigger than expected always passed. Version 2 compares the maximum absolute 
+	 * difference, so outputs that differ in either direction fail. Version 3 matches equal infinities,
+	 * which version 2 took as an infinite difference
+	 */
+	public static final int RULES_VERSION = 3;
+	/**
+	 * Maximum absolute difference allowed
+	 */
+	private final double tolerance;
+	/**
+	 * Whether to stop comparing once the tolerance is exceeded
+	 */
+	private final boolean stopEarly;
+	
+	/**
+	 * Create a comparator that stops as soon as the tolerance is exceeded
+	 * @param tolerance
+	 * 	maximum absolute difference allowed between the output and the expected output
+	 */
+	public OutputComparator(double tolerance) {
+		this(tolerance, true);
+	}
+	
+	/**
+	 * Create a comparator
+	 * @param tolerance
+	 * 	maximum absolute difference allowed between the output and the expected output
+	 * @param stopEarly
+	 * 	whether to stop comparing once the tolerance is exceeded. If false, the statistics
+	 * 	are always computed over the whole image
+	 */
+	public OutputComparator(double tolerance, boolean stopEarly) {
+		this.tolerance = tolerance;
+		this.stopEarly = stopEarly;
+	}
+	
+	/**
+	 * 
+	 * @return the maximum absolute difference allowed
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+	
+	/**
+	 * Whether the result of a comparison is inside the tolerance. Since {@link #RULES_VERSION} 2 
+	 * the differences in both directions are checked
+	 * @param result
+	 * 	the result of a comparison
+	 * @return true if the maximum absolute difference is not bigger than the tolerance
+	 */
+	public boolean isWithinTolerance(ComparisonResult result) {
+		return result.getMaxAbsoluteError() <= tolerance;
+	}
+	
+	/**
+	 * Compare the output of a model with the expected output
+	 * @param <T>
+	 * 	ImgLib2 data type of the output
+	 * @param <R>
+	 * 	ImgLib2 data type of the expected output
+	 * @param output
+	 * 	the output produced by the model
+	 * @param expected
+	 * 	the expected output
+	 * @return the statistics of the differences
+	 * @throws IllegalArgumentException if the images do not have the same dimensions
+	 */
+	public < T extends RealType< T > & NativeType< T >, R extends RealType< R > & NativeType< R > > 
+	ComparisonResult compare(RandomAccessibleInterval<T> output, RandomAccessibleInterval<R> expected) 
+			throws IllegalArgumentException {
+		long[] outDims = output.dimensionsAsLongArray();
+		long[] expDims = expected.dimensionsAsLongArray();
+		if (!Arrays.equals(outDims, expDims))
+			throw new IllegalArgumentException("The output has shape " + Arrays.toString(outDims)
+					+ " but the expected output has shape " + Arrays.toString(expDims));
+		ComparisonResult result = new ComparisonResult();
+		int size = (int) Math.min(Integer.MAX_VALUE, Intervals.numElements(expected));
+		Object outArr = primitiveStorage(output);
+		Object expArr = primitiveStorage(expected);
+		if (outArr instanceof float[] && expArr instanceof float[])
+			compareFloats((float[]) outArr, (float[]) expArr, size, result);
+		else if (outArr instanceof double[] && expArr instanceof double[])
+			compareDoubles((double[]) outArr, (double[]) expArr, size, result);
+		else if (outArr != null && expArr != null)
+			compareArrays(reader(outArr, Util.getTypeFromInterval(output)), 
+					reader(expArr, Util.getTypeFromInterval(expected)), 
+					ulpKind(Util.getTypeFromInterval(expected)), size, result);
+		else
+			compareIterables(output, expected, result);
+		return result;
+	}
+	
+	/**
+	 * Compare the output of a model with the expected output stored in a mapped .npy file.
+	 * The file is read chunk by chunk in the order in which it is stored, so the expected 
+	 * output is never copied into memory
+	 * @param <T>
+	 * 	ImgLib2 data type of the output
+	 * @param output
+	 * 	the output produced by the model
+	 * @param expected
+	 * 	the mapped .npy file with the expected output
+	 * @return the statistics of the differences
+	 * @throws IllegalArgumentException if the output does not have the shape of the expected output
+	 */
+	public < T extends RealType< T > & NativeType< T > > 
+	ComparisonResult compare(RandomAccessibleInterval<T> output, MappedNpy expected) throws IllegalArgumentException {
+		long[] outDims = output.dimensionsAsLongArray();
+		long[] shape = expected.getShape();
+		if (!Arrays.equals(outDims, shape) && !(shape.length == 0 && Intervals.numElements(output) == 1))
+			throw new IllegalArgumentException("The output has shape " + Arrays.toString(outDims)
+					+ " but the expected output has shape " + Arrays.toString(shape));
+		ComparisonResult result = new ComparisonResult();
+		boolean sameOrder = expected.isFortranOrder() || output.numDimensions() < 2;
+		Object outArr = sameOrder ? primitiveStorage(output) : null;
+		FlatReader outReader = outArr == null ? null : reader(outArr, Util.getTypeFromInterval(output));
+		Cursor<T> cursor = outArr != null ? null 
+				: Views.flatIterable(sameOrder ? output : MappedNpy.reverseAxes(output)).cursor();
+		int ulpKind = expected.ulpKind();
+		int offset = 0;
+		for (int c = 0; c < expected.numChunks(); c ++) {
+			FlatReader exp = expected.chunkReader(c);
+			int len = expected.chunkLength(c);
+			boolean last = c == expected.numChunks() - 1;
+			if (outReader != null) {
+				for (int j = 0; j < len; j ++) {
+					double e = exp.get(j);
+					if (result.accumulate(outReader.get(offset + j), e, ulp(e, ulpKind)) > tolerance && stopEarly) {
+						result.complete = last && j == len - 1;
+						return result;
+					}
+				}
+			} else {
+				for (int j = 0; j < len; j ++) {
+					double e = exp.get(j);
+					if (result.accumulate(cursor.next().getRealDouble(), e, ulp(e, ulpKind)) > tolerance && stopEarly) {
+						result.complete = last && j == len - 1;
+						return result;
+					}
+				}
+			}
+			offset += len;
+		}
+		return result;
+	}
+	
+	private void compareFloats(float[] out, float[] exp, int size, ComparisonResult result) {
+		for (int i = 0; i < size; i ++) {
+			if (result.accumulate(out[i], exp[i], Math.ulp(exp[i])) > tolerance && stopEarly) {
+				result.complete = i == size - 1;
+				return;
+			}
+		}
+	}
+	
+	private void compareDoubles(double[] out, double[] exp, int size, ComparisonResult result) {
+		for (int i = 0; i < size; i ++) {
+			if (result.accumulate(out[i], exp[i], Math.ulp(exp[i])) > tolerance && stopEarly) {
+				result.complete = i == size - 1;
+				return;
+			}
+		}
+	}
+	
+	private void compareArrays(FlatReader out, FlatReader exp, int ulpKind, int size, ComparisonResult result) {
+		for (int i = 0; i < size; i ++) {
+			double e = exp.get(i);
+			if (result.accumulate(out.get(i), e, ulp(e, ulpKind)) > tolerance && stopEarly) {
+				result.complete = i == size - 1;
+				return;
+			}
+		}
+	}
+	
+	private < T extends RealType< T > & NativeType< T >, R extends RealType< R > & NativeType< R > > 
+	void compareIterables(RandomAccessibleInterval<T> output, RandomAccessibleInterval<R> expected, ComparisonResult result) {
+		Cursor<T> outCursor = Views.flatIterable(output).cursor();
+		Cursor<R> expCursor = Views.flatIterable(expected).cursor();
+		int ulpKind = ulpKind(Util.getTypeFromInterval(expected));
+		while (expCursor.hasNext()) {
+			double e = expCursor.next().getRealDouble();
+			if (result.accumulate(outCursor.next().getRealDouble(), e, ulp(e, ulpKind)) > tolerance && stopEarly) {
+				result.complete = !expCursor.hasNext();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Size of the unit in the last place of a value
+	 * @param value
+	 * 	the value
+	 * @param ulpKind
+	 * 	{@link #FLOAT_ULP}, {@link #DOUBLE_ULP} or {@link #INTEGER_ULP}
+	 * @return the size of the unit in the last place
+	 */
+	static double ulp(double value, int ulpKind) {
+		if (ulpKind == INTEGER_ULP)
+			return 1;
+		else if (ulpKind == DOUBLE_ULP)
+			return Math.ulp(value);
+		return Math.ulp((float) value);
+	}
+	
+	static final int FLOAT_ULP = 0;
+	static final int DOUBLE_ULP = 1;
+	static final int INTEGER_ULP = 2;
+	
+	static int ulpKind(Object type) {
+		if (type instanceof IntegerType)
+			return INTEGER_ULP;
+		else if (type instanceof DoubleType)
+			return DOUBLE_ULP;
+		return FLOAT_ULP;
+	}
+	
+	/**
+	 * Get the primitive array that backs an image, if the image is an {@link ArrayImg}
+	 * backed by a primitive array
+	 * @param rai
+	 * 	the image
+	 * @return the primitive array or null if the image is not backed by one
+	 */
+	static Object primitiveStorage(RandomAccessibleInterval<?> rai) {
+		if (!(rai instanceof ArrayImg))
+			return null;
+		Object access = ((ArrayImg<?, ?>) rai).update(null);
+		if (!(access instanceof ArrayDataAccess))
+			return null;
+		Object arr = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+		if (arr instanceof float[] || arr instanceof double[] || arr instanceof int[] 
+				|| arr instanceof short[] || arr instanceof byte[])
+			return arr;
+		return null;
+	}
+	
+	/**
+	 * Read the elements of a primitive array as doubles, taking into account 
+	 * whether the ImgLib2 type is unsigned
+	 */
+	interface FlatReader {
+		double get(int i);
+	}
+	
+	static FlatReader reader(Object arr, Object type) {
+		if (arr instanceof float[]) {
+			float[] a = (float[]) arr;
+			return i -> a[i];
+		} else if (arr instanceof double[]) {
+			double[] a = (double[]) arr;
+			return i -> a[i];
+		} else if (arr instanceof int[] && type instanceof UnsignedIntType) {
+			int[] a = (int[]) arr;
+			return i -> a[i] & 0xffffffffL;
+		} else if (arr instanceof int[]) {
+			int[] a = (int[]) arr;
+			return i -> a[i];
+		} else if (arr instanceof short[] && type instanceof UnsignedShortType) {
+			short[] a = (short[]) arr;
+			return i -> a[i] & 0xffff;
+		} else if (arr instanceof short[]) {
+			short[] a = (short[]) arr;
+			return i -> a[i];
+		} else if (type instanceof UnsignedByteType) {
+			byte[] a = (byte[]) arr;
+			return i -> a[i] & 0xff;
+		}
+		byte[] a = (byte[]) arr;
+		return i -> a[i];
+	}
+}
@@ -0,0 +1,651 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Computes percentiles of the flat storage of an image without sorting it, either over 
+ * the whole image or per group of elements that share the coordinates of the axes that 
+ * are not reduced, for example per channel.
+ * Percentiles are interpolated linearly between the closest ranks, as numpy does, and NaNs
+ * are sorted after every number, infinities included, as {@link Arrays#sort(float[])} does.
+ * 
+ * uint8 and uint16 images are counted in a histogram with a bin per value, which gives the
+ * exact percentiles in a single pass and without copying the image.
+ * Float images take a first pass that finds the range of the finite values and counts the
+ * infinities and NaNs, which give the ranks at both ends directly, and a second pass that
+ * counts the finite values in bins. The approximate mode stops there and interpolates inside
+ * the bin that contains each rank, so its error is at most {@link #getMaxError(double, double)}.
+ * The exact mode counts the values of that bin again, in bins inside its range, until they are
+ * at most {@link #MAX_CANDIDATES} or all the same. Only then they are copied and the rank is 
+ * found with a quickselect, so a few outliers that squeeze the rest of the values into one bin
+ * cost another pass instead of a copy of the image.
+ * The passes over the whole image run in parallel in the common fork-join pool, and so do the
+ * groups when the percentiles are computed per group.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class Percentiles {
+	
+	/**
+	 * Number of bins used by the exact mode to narrow the elements where the ranks are searched
+	 */
+	static final int EXACT_BINS = 4096;
+	/**
+	 * Maximum number of values of a bin that the exact mode copies to search a rank among them,
+	 * larger bins are counted again in {@link #EXACT_BINS} bins
+	 */
+	static final int MAX_CANDIDATES = 1 << 16;
+	/**
+	 * Maximum number of times that the exact mode counts the values of a bin again. Each time
+	 * separates the smallest and the largest values of the bin, so only values spread over 
+	 * many orders of magnitude could need more, and their bin is then copied whatever its size
+	 */
+	private static final int MAX_LEVELS = 8;
+	/**
+	 * Number of bins of the approximate mode, 0 for the exact mode
+	 */
+	private final int bins;
+	
+	private Percentiles(int bins) {
+		this.bins = bins;
+	}
+	
+	/**
+	 * 
+	 * @return engine that computes the exact percentiles
+	 */
+	public static Percentiles exact() {
+		return new Percentiles(0);
+	}
+	
+	/**
+	 * Create an engine that approximates the percentiles of float images
+	 * @param bins
+	 * 	number of bins in which the range of the values is divided. The more bins, the smaller the error
+	 * @return the engine
+	 * @throws IllegalArgumentException if the number of bins is not positive
+	 */
+	public static Percentiles approximate(int bins) throws IllegalArgumentException {
+		if (bins <= 0)
+			throw new IllegalArgumentException("The number of bins has to be positive: " + bins);
+		return new Percentiles(bins);
+	}
+	
+	/**
+	 * 
+	 * @return whether the percentiles are exact
+	 */
+	public boolean isExact() {
+		return bins == 0;
+	}
+	
+	/**
+	 * Maximum difference between an approximate percentile of a float image and the exact one
+	 * @param min
+	 * 	minimum finite value of the image
+	 * @param max
+	 * 	maximum finite value of the image
+	 * @return the width of a bin, 0 in the exact mode
+	 */
+	public double getMaxError(double min, double max) {
+		return isExact() ? 0 : (max - min) / bins;
+	}
+	
+	/**
+	 * Compute percentiles over the whole flat storage of an image
+	 * @param storage
+	 * 	the storage, as returned by {@link TransformKernels#flatStorage(net.imglib2.RandomAccessibleInterval)}
+	 * @param n
+	 * 	number of elements
+	 * @param percentiles
+	 * 	the percentiles, between 0 and 100
+	 * @return the value of each percentile
+	 */
+	double[] compute(Object storage, int n, double... percentiles) {
+		return compute(new Values(storage, new int[] {n}, new int[] {1}, 0), true, percentiles);
+	}
+	
+	/**
+	 * Compute percentiles for each group of elements that share the coordinates of the axes 
+	 * that are not reduced
+	 * @param storage
+	 * 	the flat storage of the image, as returned by 
+	 * 	{@link TransformKernels#flatStorage(net.imglib2.RandomAccessibleInterval)}
+	 * @param dims
+	 * 	dimensions of the image
+	 * @param reduced
+	 * 	whether each axis is reduced
+	 * @param percentiles
+	 * 	the percentiles, between 0 and 100
+	 * @return the value of each percentile for each group, indexed as {@link Groups#of(int)}
+	 */
+	double[][] compute(Object storage, long[] dims, boolean[] reduced, double... percentiles) {
+		Groups groups = new Groups(dims, reduced);
+		if (groups.count == 1)
+			return new double[][] {compute(storage, (int) groups.size, percentiles)};
+		return ForkJoinPool.commonPool().submit(() -> IntStream.range(0, groups.count).parallel()
+				.mapToObj(g -> compute(groups.values(storage, g), false, percentiles))
+				.toArray(double[][]::new)).join();
+	}
+	
+	/**
+	 * Compute percentiles of some values
+	 * @param values
+	 * 	the values
+	 * @param parallel
+	 * 	whether to split the passes over the values in parallel chunks
+	 * @param percentiles
+	 * 	the percentiles, between 0 and 100
+	 * @return the value of each percentile
+	 */
+	private double[] compute(Values values, boolean parallel, double... percentiles) {
+		int n = values.size;
+		int[] ranks = new int[percentiles.length * 2];
+		for (int i = 0; i < percentiles.length; i ++) {
+			double pos = percentiles[i] / 100 * (n - 1);
+			ranks[2 * i] = (int) Math.floor(pos);
+			ranks[2 * i + 1] = Math.min(n - 1, ranks[2 * i] + 1);
+		}
+		double[] stats = orderStatistics(values, parallel, ranks);
+		double[] result = new double[percentiles.length];
+		for (int i = 0; i < percentiles.length; i ++) {
+			double fraction = percentiles[i] / 100 * (n - 1) - ranks[2 * i];
+			// Without interpolation an infinite value is kept instead of becoming NaN
+			result[i] = fraction == 0 ? stats[2 * i] : stats[2 * i] + (stats[2 * i + 1] - stats[2 * i]) * fraction;
+		}
+		return result;
+	}
+	
+	/**
+	 * Find the values at some ranks of the values sorted in ascending order
+	 */
+	private double[] orderStatistics(Values values, boolean parallel, int[] ranks) {
+		int chunks = parallel ? Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), 
+				values.size / TransformKernels.BLOCK)) : 1;
+		double[] stats = new double[ranks.length];
+		if (values.storage instanceof byte[] || values.storage instanceof short[]) {
+			int nBins = values.storage instanceof byte[] ? 1 << 8 : 1 << 16;
+			long[] counts = counts(values, chunks, nBins);
+			for (int i = 0; i < ranks.length; i ++)
+				stats[i] = binOf(counts, ranks[i])[0];
+			return stats;
+		}
+		Range range = range(values, chunks);
+		long finite = values.size - range.negative - range.positive - range.nan;
+		Histogram histogram = null;
+		if (finite > 0 && range.min < range.max) {
+			int nBins = isExact() ? EXACT_BINS : bins;
+			histogram = histogram(values, chunks, nBins, range.min, range.max, nBins / (range.max - range.min));
+		}
+		Candidates cache = new Candidates();
+		for (int i = 0; i < ranks.length; i ++) {
+			// The infinities and NaNs are placed by their counts, the histograms only see the finite values
+			long k = ranks[i] - range.negative;
+			if (k < 0)
+				stats[i] = Double.NEGATIVE_INFINITY;
+			else if (k >= finite + range.positive)
+				stats[i] = Double.NaN;
+			else if (k >= finite)
+				stats[i] = Double.POSITIVE_INFINITY;
+			else if (histogram == null)
+				stats[i] = range.min;
+			else if (isExact())
+				stats[i] = exact(values, chunks, histogram, k, cache);
+			else
+				stats[i] = approximate(histogram, range.min, range.max, k);
+		}
+		return stats;
+	}
+	
+	/**
+	 * Find the exact value at a rank of the finite values. The values of the bin that contains
+	 * the rank are counted again in bins inside the range of the bin, until they are few enough 
+	 * to be copied and searched with a quickselect, or they are all the same
+	 * @param histogram
+	 * 	histogram of the finite values
+	 * @param k
+	 * 	the rank among the finite values
+	 * @param cache
+	 * 	the last values copied, reused by the next rank if it falls in the same bin
+	 */
+	private static double exact(Values values, int chunks, Histogram histogram, long k, Candidates cache) {
+		for (int level = 0; ; level ++) {
+			long[] bin = binOf(histogram.counts, k);
+			int b = (int) bin[0];
+			k -= bin[1];
+			double lo = histogram.min[b], hi = histogram.max[b];
+			long count = histogram.counts[b];
+			if (lo == hi)
+				return lo;
+			if (count <= MAX_CANDIDATES || level == MAX_LEVELS) {
+				if (cache.values == null || cache.lo != lo || cache.hi != hi) {
+					cache.values = candidates(values, lo, hi, (int) count);
+					cache.lo = lo;
+					cache.hi = hi;
+				}
+				return select(cache.values, (int) k);
+			}
+			histogram = histogram(values, chunks, EXACT_BINS, lo, hi, EXACT_BINS / (hi - lo));
+		}
+	}
+	
+	/**
+	 * Approximate the value at a rank of the finite values, interpolating inside its bin
+	 * @param histogram
+	 * 	histogram of the finite values
+	 * @param min
+	 * 	minimum finite value
+	 * @param max
+	 * 	maximum finite value
+	 * @param k
+	 * 	the rank among the finite values
+	 */
+	private static double approximate(Histogram histogram, double min, double max, long k) {
+		long[] bin = binOf(histogram.counts, k);
+		int b = (int) bin[0];
+		double width = (max - min) / histogram.counts.length;
+		return Math.min(max, min + b * width + width * (k - bin[1] + 0.5) / histogram.counts[b]);
+	}
+	
+	/**
+	 * Find the bin of a histogram that contains a rank
+	 * @return the index of the bin and the number of values in the previous bins
+	 */
+	private static long[] binOf(long[] counts, long rank) {
+		long before = 0;
+		for (int b = 0; b < counts.length; b ++) {
+			if (before + counts[b] > rank)
+				return new long[] {b, before};
+			before += counts[b];
+		}
+		throw new IllegalArgumentException("Rank " + rank + " is out of the " + before + " values.");
+	}
+	
+	/**
+	 * Minimum and maximum of the finite values, and number of infinite values and NaNs
+	 */
+	private static Range range(Values values, int chunks) {
+		return chunked(values.size, chunks, (from, to) -> {
+			Range range = new Range();
+			for (int i = from; i < to; i ++) {
+				double v = values.get(i);
+				if (v != v)
+					range.nan ++;
+				else if (v == Double.NEGATIVE_INFINITY)
+					range.negative ++;
+				else if (v == Double.POSITIVE_INFINITY)
+					range.positive ++;
+				else {
+					if (v < range.min)
+						range.min = v;
+					if (v > range.max)
+						range.max = v;
+				}
+			}
+			return range;
+		}, (a, b) -> {
+			a.min = Math.min(a.min, b.min);
+			a.max = Math.max(a.max, b.max);
+			a.negative += b.negative;
+			a.positive += b.positive;
+			a.nan += b.nan;
+			return a;
+		});
+	}
+	
+	/**
+	 * Count the values of an integer image, with a bin per value
+	 */
+	private static long[] counts(Values values, int chunks, int nBins) {
+		return chunked(values.size, chunks, (from, to) -> {
+			long[] counts = new long[nBins];
+			for (int i = from; i < to; i ++)
+				counts[(int) values.get(i)] ++;
+			return counts;
+		}, (a, b) -> {
+			for (int i = 0; i < a.length; i ++)
+				a[i] += b[i];
+			return a;
+		});
+	}
+	
+	/**
+	 * Count the values between lo and hi, both included, in bins of the same width. Values
+	 * out of the range, infinities and NaNs are not counted
+	 */
+	private static Histogram histogram(Values values, int chunks, int nBins, double lo, double hi, double scale) {
+		return chunked(values.size, chunks, (from, to) -> {
+			Histogram histogram = new Histogram(nBins);
+			for (int i = from; i < to; i ++) {
+				double v = values.get(i);
+				if (v >= lo && v <= hi)
+					histogram.add(bin(v, nBins, lo, scale), v);
+			}
+			return histogram;
+		}, Histogram::merge);
+	}
+	
+	/**
+	 * Bin of a value between lo and the top of the range. The bins grow with the values, so 
+	 * the values of a bin are the ones between its minimum and its maximum
+	 */
+	private static int bin(double v, int nBins, double lo, double scale) {
+		int b = (int) ((v - lo) * scale);
+		return b < nBins ? b : nBins - 1;
+	}
+	
+	/**
+	 * Copy the values between lo and hi, both included
+	 */
+	private static float[] candidates(Values values, double lo, double hi, int count) {
+		float[] selected = new float[count];
+		int j = 0;
+		for (int i = 0; i < values.size && j < count; i ++) {
+			double v = values.get(i);
+			if (v >= lo && v <= hi)
+				selected[j ++] = (float) v;
+		}
+		return selected;
+	}
+	
+	/**
+	 * Find the k-th smallest value of an array, reordering it
+	 */
+	static float select(float[] a, int k) {
+		int lo = 0, hi = a.length - 1;
+		while (hi > lo) {
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] < a[lo])
+				swap(a, lo, mid);
+			if (a[hi] < a[lo])
+				swap(a, lo, hi);
+			if (a[hi] < a[mid])
+				swap(a, mid, hi);
+			float pivot = a[mid];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (a[i] < pivot)
+					i ++;
+				while (a[j] > pivot)
+					j --;
+				if (i <= j)
+					swap(a, i ++, j --);
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return a[k];
+		}
+		return a[k];
+	}
+	
+	private static void swap(float[] a, int i, int j) {
+		float tmp = a[i];
+		a[i] = a[j];
+		a[j] = tmp;
+	}
+	
+	/**
+	 * Run a function over chunks of the range [0, n) in the common fork-join pool and merge the results
+	 */
+	private static <R> R chunked(int n, int chunks, Chunk<R> chunk, BinaryOperator<R> merge) {
+		if (chunks == 1)
+			return chunk.run(0, n);
+		return ForkJoinPool.commonPool().submit(() -> IntStream.range(0, chunks).parallel()
+				.mapToObj(c -> chunk.run((int) ((long) n * c / chunks), (int) ((long) n * (c + 1) / chunks)))
+				.reduce(merge).get()).join();
+	}
+	
+	/**
+	 * Work done on a chunk of the values
+	 */
+	private interface Chunk<R> {
+		R run(int from, int to);
+	}
+	
+	/**
+	 * Minimum and maximum of the finite values, and number of infinite values and NaNs
+	 */
+	private static class Range {
+		
+		private double min = Double.POSITIVE_INFINITY;
+		
+		private double max = Double.NEGATIVE_INFINITY;
+		
+		private long negative;
+		
+		private long positive;
+		
+		private long nan;
+	}
+	
+	/**
+	 * Number of values, minimum and maximum of each bin
+	 */
+	private static class Histogram {
+		
+		private final long[] counts;
+		
+		private final double[] min;
+		
+		private final double[] max;
+		
+		private Histogram(int nBins) {
+			counts = new long[nBins];
+			min = new double[nBins];
+			max = new double[nBins];
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		}
+		
+		private void add(int b, double v) {
+			counts[b] ++;
+			if (v < min[b])
+				min[b] = v;
+			if (v > max[b])
+				max[b] = v;
+		}
+		
+		private Histogram merge(Histogram other) {
+			for (int b = 0; b < counts.length; b ++) {
+				counts[b] += other.counts[b];
+				min[b] = Math.min(min[b], other.min[b]);
+				max[b] = Math.max(max[b], other.max[b]);
+			}
+			return this;
+		}
+	}
+	
+	/**
+	 * Values copied from a bin for the quickselect
+	 */
+	private static class Candidates {
+		
+		private float[] values;
+		
+		private double lo;
+		
+		private double hi;
+	}
+	
+	/**
+	 * Elements of the flat storage of an image along some axes, starting at an offset. 
+	 * The first axis changes fastest
+	 */
+	static class Values {
+		
+		private final Object storage;
+		
+		private final int[] dims;
+		
+		private final int[] strides;
+		
+		private final int base;
+		
+		/**
+		 * Number of elements
+		 */
+		final int size;
+		
+		private final boolean contiguous;
+		
+		private Values(Object storage, int[] dims, int[] strides, int base) {
+			this.storage = storage;
+			this.dims = dims;
+			this.strides = strides;
+			this.base = base;
+			int n = 1;
+			for (int d : dims)
+				n *= d;
+			this.size = n;
+			this.contiguous = dims.length == 1 && strides[0] == 1;
+		}
+		
+		/**
+		 * 
+		 * @param i
+		 * 	position of the element, between 0 and {@link #size}
+		 * @return the value of the element
+		 */
+		double get(int i) {
+			int index = base;
+			if (contiguous) {
+				index += i;
+			} else {
+				for (int d = 0; d < dims.length; d ++) {
+					index += (i % dims[d]) * strides[d];
+					i /= dims[d];
+				}
+			}
+			return read(index);
+		}
+		
+		/**
+		 * 
+		 * @param index
+		 * 	index in the flat storage
+		 * @return the value at the index
+		 */
+		double read(int index) {
+			if (storage instanceof float[])
+				return ((float[]) storage)[index];
+			else if (storage instanceof byte[])
+				return ((byte[]) storage)[index] & 0xff;
+			else if (storage instanceof short[])
+				return ((short[]) storage)[index] & 0xffff;
+			return ((FloatBuffer) storage).get(index);
+		}
+	}
+	
+	/**
+	 * Groups of elements of an image that share the coordinates of the axes that are not reduced.
+	 * Groups are numbered in flat order of the axes that are not reduced
+	 */
+	static class Groups {
+		
+		private final int[] keptDims;
+		
+		private final int[] keptStrides;
+		
+		private final int[] reducedDims;
+		
+		private final int[] reducedStrides;
+		
+		/**
+		 * Number of groups
+		 */
+		final int count;
+		/**
+		 * Number of elements of each group
+		 */
+		final long size;
+		
+		/**
+		 * Create the groups of an image
+		 * @param dims
+		 * 	dimensions of the image
+		 * @param reduced
+		 * 	whether each axis is reduced
+		 */
+		Groups(long[] dims, boolean[] reduced) {
+			int nKept = 0;
+			for (boolean r : reduced)
+				nKept += r ? 0 : 1;
+			keptDims = new int[nKept];
+			keptStrides = new int[nKept];
+			reducedDims = new int[dims.length - nKept];
+			reducedStrides = new int[dims.length - nKept];
+			int stride = 1, k = 0, r = 0, groups = 1;
+			for (int d = 0; d < dims.length; d ++) {
+				if (reduced[d]) {
+					reducedDims[r] = (int) dims[d];
+					reducedStrides[r ++] = stride;
+				} else {
+					keptDims[k] = (int) dims[d];
+					keptStrides[k ++] = stride;
+					groups *= (int) dims[d];
+				}
+				stride *= (int) dims[d];
+			}
+			this.count = groups;
+			this.size = stride / groups;
+		}
+		
+		/**
+		 * 
+		 * @param index
+		 * 	index of an element in the flat storage
+		 * @return the group of the element
+		 */
+		int of(int index) {
+			int group = 0, groupStride = 1;
+			for (int k = 0; k < keptDims.length; k ++) {
+				group += ((index / keptStrides[k]) % keptDims[k]) * groupStride;
+				groupStride *= keptDims[k];
+			}
+			return group;
+		}
+		
+		/**
+		 * Get the elements of a group
+		 * @param storage
+		 * 	flat storage of the image
+		 * @param group
+		 * 	the group
+		 * @return the elements
+		 */
+		Values values(Object storage, int group) {
+			int base = 0;
+			for (int k = 0; k < keptDims.length; k ++) {
+				base += (group % keptDims[k]) * keptStrides[k];
+				group /= keptDims[k];
+			}
+			return new Values(storage, reducedDims, reducedStrides, base);
+		}
+	}
+}
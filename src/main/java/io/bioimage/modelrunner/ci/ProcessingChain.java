@@ -0,0 +1,260 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import io.bioimage.modelrunner.bioimageio.description.TransformSpec;
+import io.bioimage.modelrunner.tensor.Tensor;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Chain of pre- or post-processing transformations of a tensor, executed in the
+ * order declared in the rdf.yaml.
+ * Consecutive pointwise transformations (scale_linear, clip, sigmoid, binarize
+ * and zero_mean_unit_variance with fixed parameters) are fused into a single pass
+ * over the tensor. The rest of transformations need global statistics of the tensor,
+ * so they are run on the tensor produced by the previous steps, by the 
+ * {@link TransformKernels} if they support the tensor and with {@link JavaProcessing} otherwise.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ProcessingChain {
+	
+	/**
+	 * Steps of the chain, each of them is either an array of {@link TransformKernels.Pointwise}
+	 * with the fused pointwise transformations, a {@link Statistics} or a {@link JavaProcessing}
+	 */
+	private final List<Object> steps = new ArrayList<Object>();
+	/**
+	 * Names of the transformations of the chain
+	 */
+	private final List<String> names = new ArrayList<String>();
+	
+	/**
+	 * Default epsilon of the zero_mean_unit_variance transformation
+	 */
+	private static final double DEFAULT_EPS = 1e-6;
+	
+	/**
+	 * Add the transformations of the rdf.yaml to the chain
+	 * @param transforms
+	 * 	the pre- or post-processing of a tensor as specified in the rdf.yaml
+	 * @return the chain
+	 * @throws ClassNotFoundException if any of the transformations is not found in the classpath
+	 */
+	public static ProcessingChain build(List<TransformSpec> transforms) throws ClassNotFoundException {
+		ProcessingChain chain = new ProcessingChain();
+		for (TransformSpec transform : transforms)
+			chain.add(transform.getName(), transform.getKwargs());
+		return chain;
+	}
+	
+	/**
+	 * Add a transformation at the end of the chain
+	 * @param name
+	 * 	name of the transformation in the rdf.yaml
+	 * @param kwargs
+	 * 	arguments of the transformation in the rdf.yaml
+	 * @return the chain
+	 * @throws ClassNotFoundException if the transformation cannot be fused and is not found in the classpath
+	 * @throws IllegalArgumentException if the transformation class misses any of the needed methods
+	 */
+	public ProcessingChain add(String name, Map<String, Object> kwargs) throws ClassNotFoundException {
+		TransformKernels.Pointwise op = pointwise(name, kwargs);
+		names.add(name);
+		if (op == null) {
+			JavaProcessing fallback = JavaProcessing.definePreprocessing(name, kwargs);
+			steps.add(TransformKernels.hasKernel(name, kwargs) ? new Statistics(name, kwargs, fallback) : fallback);
+			return this;
+		}
+		int last = steps.size() - 1;
+		if (last >= 0 && steps.get(last) instanceof TransformKernels.Pointwise[]) {
+			TransformKernels.Pointwise[] fused = (TransformKernels.Pointwise[]) steps.get(last);
+			fused = Arrays.copyOf(fused, fused.length + 1);
+			fused[fused.length - 1] = op;
+			steps.set(last, fused);
+		} else {
+			steps.add(new TransformKernels.Pointwise[] {op});
+		}
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return whether the chain has no transformations
+	 */
+	public boolean isEmpty() {
+		return names.size() == 0;
+	}
+	
+	/**
+	 * 
+	 * @return the number of passes over the tensor needed to execute the chain
+	 */
+	public int getPasses() {
+		return steps.size();
+	}
+	
+	/**
+	 * 
+	 * @return names of the transformations of the chain, in execution order
+	 */
+	public List<String> getNames() {
+		return names;
+	}
+	
+	/**
+	 * Run all the transformations of the chain on a tensor
+	 * @param <T>
+	 * 	ImgLib2 data type of the input tensor
+	 * @param <R>
+	 * 	ImgLib2 data type of the result
+	 * @param input
+	 * 	the tensor to be transformed
+	 * @return the transformed tensor, with the same name and axes order as the input
+	 * @throws IllegalArgumentException if any of the transformations fails
+	 */
+	@SuppressWarnings("unchecked")
+	public < T extends RealType< T > & NativeType< T >, R extends RealType< R > & NativeType< R > >
+	Tensor<R> execute(Tensor<T> input) throws IllegalArgumentException {
+		String name = input.getName();
+		String axes = input.getAxesOrderString();
+		Tensor<?> tensor = input;
+		for (Object step : steps) {
+			if (step instanceof JavaProcessing) {
+				tensor = ((JavaProcessing) step).execute(name, tensor);
+				continue;
+			}
+			if (step instanceof Statistics) {
+				Statistics stats = (Statistics) step;
+				RandomAccessibleInterval<FloatType> data = TransformKernels.applyStatistics(stats.name, stats.kwargs,
+						(RandomAccessibleInterval<T>) tensor.getData(), axes);
+				tensor = data == null ? stats.fallback.execute(name, tensor) : Tensor.build(name, axes, data);
+				continue;
+			}
+			RandomAccessibleInterval<FloatType> data = TransformKernels.applyPointwise((RandomAccessibleInterval<T>) tensor.getData(), 
+					(TransformKernels.Pointwise[]) step);
+			tensor = Tensor.build(name, axes, data);
+		}
+		return (Tensor<R>) tensor;
+	}
+	
+	/**
+	 * Get the pointwise step that corresponds to a transformation
+	 * @param name
+	 * 	name of the transformation in the rdf.yaml
+	 * @param kwargs
+	 * 	arguments of the transformation
+	 * @return the step or null if the transformation is not pointwise or its
+	 * 	parameters change along an axis
+	 */
+	static TransformKernels.Pointwise pointwise(String name, Map<String, Object> kwargs) {
+		switch (name) {
+		case "sigmoid":
+			return new TransformKernels.Pointwise(TransformKernels.Pointwise.SIGMOID, 0, 0);
+		case "binarize":
+			Double threshold = scalar(kwargs, "threshold", null);
+			if (threshold == null)
+				return null;
+			return new TransformKernels.Pointwise(TransformKernels.Pointwise.BINARIZE, threshold, 0);
+		case "clip":
+			Double min = scalar(kwargs, "min", Double.NEGATIVE_INFINITY);
+			Double max = scalar(kwargs, "max", Double.POSITIVE_INFINITY);
+			if (min == null || max == null)
+				return null;
+			return new TransformKernels.Pointwise(TransformKernels.Pointwise.CLIP, min, max);
+		case "scale_linear":
+			Double gain = scalar(kwargs, "gain", 1d);
+			Double offset = scalar(kwargs, "offset", 0d);
+			if (gain == null || offset == null)
+				return null;
+			return new TransformKernels.Pointwise(TransformKernels.Pointwise.LINEAR, gain, offset);
+		case "zero_mean_unit_variance":
+			if (kwargs == null || !"fixed".equals(kwargs.get("mode")))
+				return null;
+			Double mean = scalar(kwargs, "mean", null);
+			Double std = scalar(kwargs, "std", null);
+			Double eps = scalar(kwargs, "eps", DEFAULT_EPS);
+			if (mean == null || std == null || eps == null)
+				return null;
+			return new TransformKernels.Pointwise(TransformKernels.Pointwise.STANDARDIZE, mean, std + eps);
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Read an argument that has to be the same for the whole tensor
+	 * @param kwargs
+	 * 	arguments of the transformation
+	 * @param key
+	 * 	name of the argument
+	 * @param defaultValue
+	 * 	value used if the argument is missing
+	 * @return the value of the argument or null if it is not a number or a list
+	 * 	with a single repeated number
+	 */
+	private static Double scalar(Map<String, Object> kwargs, String key, Double defaultValue) {
+		Object value = kwargs == null ? null : kwargs.get(key);
+		if (value == null)
+			return defaultValue;
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		if (!(value instanceof List) || ((List<?>) value).size() == 0)
+			return null;
+		Double first = null;
+		for (Object item : (List<?>) value) {
+			if (!(item instanceof Number))
+				return null;
+			double dd = ((Number) item).doubleValue();
+			if (first == null)
+				first = dd;
+			else if (first != dd)
+				return null;
+		}
+		return first;
+	}
+	
+	/**
+	 * Transformation that needs statistics of the tensor and may be run by the {@link TransformKernels}
+	 */
+	private static class Statistics {
+		
+		private final String name;
+		
+		private final Map<String, Object> kwargs;
+		
+		private final JavaProcessing fallback;
+		
+		private Statistics(String name, Map<String, Object> kwargs, JavaProcessing fallback) {
+			this.name = name;
+			this.kwargs = kwargs;
+			this.fallback = fallback;
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.CollectionEndEvent;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.DocumentEndEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.ScalarEvent;
+
+import io.bioimage.modelrunner.bioimageio.description.ModelDescriptor;
+import io.bioimage.modelrunner.bioimageio.description.exceptions.ModelSpecsException;
+
+/**
+ * One rdf.yaml file read once per run. The file is read from disk a single time; its header
+ * fields, 'id' and 'type', are found by streaming the YAML events, so the resources that are
+ * not models are rejected without building the whole document. Only model rdf.yaml files are
+ * fully loaded, and their {@link ModelDescriptor} is created the first time a weight format
+ * needs it and shared by the rest.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class RdfDescriptor {
+	
+	/**
+	 * Fields of the header of the rdf.yaml
+	 */
+	private static final List<String> HEADER = Arrays.asList("id", "type");
+	
+	private static final ThreadLocal<Yaml> YAML = ThreadLocal.withInitial(Yaml::new);
+	
+	/**
+	 * Path to the rdf.yaml file
+	 */
+	private final Path rdfPath;
+	/**
+	 * Header fields of the rdf.yaml
+	 */
+	private final Map<String, Object> header;
+	/**
+	 * Contents of the rdf.yaml, only loaded for models. Released once the tests are prepared
+	 */
+	private Map<String, Object> contents;
+	/**
+	 * Bytes of the rdf.yaml, only kept for models. Released with the contents
+	 */
+	private byte[] bytes;
+	/**
+	 * Sha256 of the file
+	 */
+	private final String sha256;
+	/**
+	 * Error reading the file, null if it was read
+	 */
+	private final Exception error;
+	/**
+	 * Time and memory used reading the file
+	 */
+	private final StageMetrics metrics;
+	/**
+	 * Descriptor of the model, created when it is first needed
+	 */
+	private ModelDescriptor descriptor;
+	/**
+	 * Error creating the descriptor, so it is not tried again
+	 */
+	private ModelSpecsException descriptorError;
+	
+	private RdfDescriptor(Path rdfPath, Map<String, Object> header, Map<String, Object> contents, byte[] bytes, 
+			String sha256, Exception error, StageMetrics metrics) {
+		this.rdfPath = rdfPath;
+		this.header = header;
+		this.contents = contents;
+		this.bytes = bytes;
+		this.sha256 = sha256;
+		this.error = error;
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Read a rdf.yaml file. Errors are kept in the result instead of thrown
+	 * @param rdfPath
+	 * 	path to the rdf.yaml file
+	 * @return the contents of the file
+	 */
+	@SuppressWarnings("unchecked")
+	public static RdfDescriptor read(Path rdfPath) {
+		StageMetrics metrics = new StageMetrics();
+		Map<String, Object> header = new LinkedHashMap<String, Object>();
+		Map<String, Object> contents = null;
+		byte[] bytes = null;
+		String sha256 = null;
+		Exception error = null;
+		try (StageMetrics.Stage stage = metrics.start(StageMetrics.YAML_LOAD)) {
+			bytes = Files.readAllBytes(rdfPath);
+			sha256 = SummaryCache.sha256(bytes);
+			header = readHeader(bytes);
+			if ("model".equals(header.get("type"))) {
+				try (Reader reader = reader(bytes)) {
+					contents = (Map<String, Object>) YAML.get().load(reader);
+				}
+			} else {
+				bytes = null;
+			}
+		} catch (Exception ex) {
+			error = ex;
+			header = new LinkedHashMap<String, Object>();
+			contents = null;
+			bytes = null;
+		}
+		return new RdfDescriptor(rdfPath, header, contents, bytes, sha256, error, metrics);
+	}
+	
+	/**
+	 * Find the header fields of a rdf.yaml, the values of the keys of the top level mapping,
+	 * without creating the objects of the rest of the document. The events stop being
+	 * read as soon as every field has been found
+	 * @param bytes
+	 * 	contents of the rdf.yaml file
+	 * @return the header fields that are present and have a scalar value
+	 * @throws Exception if the file is not valid YAML
+	 */
+	private static Map<String, Object> readHeader(byte[] bytes) throws Exception {
+		Map<String, Object> header = new LinkedHashMap<String, Object>();
+		try (Reader reader = reader(bytes)) {
+			int depth = 0;
+			boolean isKey = true;
+			String key = null;
+			for (Event event : YAML.get().parse(reader)) {
+				if (event instanceof CollectionStartEvent) {
+					// A collection value of the top level mapping, the next event at that level is a key
+					if (depth <= 1)
+						isKey = true;
+					depth ++;
+				} else if (event instanceof CollectionEndEvent) {
+					depth --;
+				} else if (event instanceof DocumentEndEvent) {
+					break;
+				} else if (depth == 1 && event instanceof AliasEvent) {
+					isKey = true;
+				} else if (depth == 1 && event instanceof ScalarEvent) {
+					ScalarEvent scalar = (ScalarEvent) event;
+					if (isKey) {
+						key = scalar.getValue();
+					} else if (HEADER.contains(key)) {
+						header.put(key, scalarValue(scalar));
+						if (header.size() == HEADER.size())
+							break;
+					}
+					isKey = !isKey;
+				}
+			}
+		}
+		return header;
+	}
+	
+	/**
+	 * Resolve a scalar the same way loading the whole document would, so that for example
+	 * an unquoted number is not taken for a string
+	 */
+	private static Object scalarValue(ScalarEvent scalar) {
+		if (scalar.getScalarStyle() != DumperOptions.ScalarStyle.PLAIN)
+			return scalar.getValue();
+		return YAML.get().load(scalar.getValue());
+	}
+	
+	private static Reader reader(byte[] bytes) {
+		return new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * 
+	 * @return path to the rdf.yaml file
+	 */
+	public Path getPath() {
+		return rdfPath;
+	}
+	
+	/**
+	 * 
+	 * @return the 'id' field, null if it is missing
+	 */
+	public Object getId() {
+		return header.get("id");
+	}
+	
+	/**
+	 * 
+	 * @return the 'type' field, null if it is missing
+	 */
+	public Object getType() {
+		return header.get("type");
+	}
+	
+	/**
+	 * 
+	 * @return the contents of the rdf.yaml, null if it is not a model, it could not be read or
+	 * 	the contents were already released
+	 */
+	public synchronized Map<String, Object> getContents() {
+		return contents;
+	}
+	
+	/**
+	 * 
+	 * @return the bytes of the rdf.yaml, null if it is not a model, it could not be read or
+	 * 	the contents were already released
+	 */
+	public synchronized byte[] getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Release the contents of the rdf.yaml, once the tests that need them are prepared
+	 */
+	public synchronized void releaseContents() {
+		contents = null;
+		bytes = null;
+	}
+	
+	/**
+	 * 
+	 * @return sha256 of the file, null if it could not be read
+	 */
+	public String getSha256() {
+		return sha256;
+	}
+	
+	/**
+	 * 
+	 * @return error reading the file, null if it was read
+	 */
+	public Exception getError() {
+		return error;
+	}
+	
+	/**
+	 * 
+	 * @return time and memory used reading the file
+	 */
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Get the descriptor of the model, creating it the first time. Concurrent calls wait 
+	 * for the first one, so the file is only parsed once
+	 * @param metrics
+	 * 	metrics where the time of creating the descriptor is recorded, if it is created
+	 * @return the descriptor of the model
+	 * @throws ModelSpecsException if the rdf.yaml is not a valid model description
+	 */
+	public synchronized ModelDescriptor getDescriptor(StageMetrics metrics) throws ModelSpecsException {
+		if (descriptor == null && descriptorError == null) {
+			try (StageMetrics.Stage stage = metrics.start(StageMetrics.READ_DESCRIPTOR)) {
+				descriptor = ModelDescriptor.readFromLocalFile(rdfPath.toAbsolutePath().toString(), false);
+			} catch (ModelSpecsException ex) {
+				descriptorError = ex;
+			}
+		}
+		if (descriptorError != null)
+			throw descriptorError;
+		return descriptor;
+	}
+	
+	/**
+	 * Release the descriptor of the model, once every weight format has been tested
+	 */
+	public synchronized void releaseDescriptor() {
+		descriptor = null;
+	}
+	
+	@Override
+	public String toString() {
+		return rdfPath.toString();
+	}
+}
@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+
+import io.bioimage.modelrunner.utils.Constants;
+
+/**
+ * Finds and reads the rdf.yaml files of the collection. The directory tree is listed with
+ * one task per directory, so the thousands of folders of the collection are listed 
+ * concurrently instead of one after the other, and the files found are read concurrently
+ * too (see {@link RdfDescriptor#read(Path)}).
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class RdfScanner {
+	
+	/**
+	 * Directory that contains the rdf.yaml files
+	 */
+	private final Path rdfDir;
+	/**
+	 * Matcher of the path of the rdf.yaml files relative to the directory
+	 */
+	private final PathMatcher matcher;
+	/**
+	 * Number of threads used to list the directories and to read the files
+	 */
+	private final int threads;
+	
+	/**
+	 * Create a scanner for the rdf.yaml files of the resources and versions given. Listing
+	 * the directories and reading the files is mostly waiting for the disk, so more
+	 * threads than processors are used
+	 * @param rdfDir
+	 * 	directory that contains the rdf.yaml files, with the structure 'RESOURCE_ID/VERSION_ID/rdf.yaml'
+	 * @param resourceID
+	 * 	glob of the resource ids, '**' for every resource
+	 * @param versionID
+	 * 	glob of the version ids, '**' for every version
+	 */
+	public RdfScanner(Path rdfDir, String resourceID, String versionID) {
+		this(rdfDir, resourceID, versionID, Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+	}
+	
+	/**
+	 * Create a scanner for the rdf.yaml files of the resources and versions given
+	 * @param rdfDir
+	 * 	directory that contains the rdf.yaml files, with the structure 'RESOURCE_ID/VERSION_ID/rdf.yaml'
+	 * @param resourceID
+	 * 	glob of the resource ids, '**' for every resource
+	 * @param versionID
+	 * 	glob of the version ids, '**' for every version
+	 * @param threads
+	 * 	number of threads used to list the directories and to read the files
+	 */
+	public RdfScanner(Path rdfDir, String resourceID, String versionID, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of threads should be at least 1, but it was " + threads);
+		this.rdfDir = rdfDir;
+		this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + resourceID + File.separator + versionID + File.separator + Constants.RDF_FNAME);
+		this.threads = threads;
+	}
+	
+	/**
+	 * Find the rdf.yaml files
+	 * @return the files found, sorted by path
+	 * @throws IOException if any directory cannot be listed
+	 */
+	public List<Path> scan() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Path> files = pool.invoke(new ListTask(rdfDir));
+			Collections.sort(files);
+			return files;
+		} catch (UncheckedIOException ex) {
+			// The pool may rethrow a copy of the exception of the task, whose cause is the original
+			Throwable cause = ex;
+			while (cause != null && !(cause instanceof IOException))
+				cause = cause.getCause();
+			if (cause == null)
+				throw ex;
+			throw (IOException) cause;
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Read the rdf.yaml files. Files that cannot be read are not an error, the error
+	 * is kept in their {@link RdfDescriptor}
+	 * @param files
+	 * 	the rdf.yaml files
+	 * @return the contents of each file, in the same order
+	 * @throws IOException if the thread is interrupted while waiting for the files to be read
+	 */
+	public List<RdfDescriptor> read(List<Path> files) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.submit(() -> files.parallelStream().map(RdfDescriptor::read).collect(Collectors.toList())).get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading the rdf.yaml files", ex);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException(ex.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Lists a directory, matching its files and forking one task per subdirectory.
+	 * Symbolic links are not followed, as in {@link Files#walk(Path, java.nio.file.FileVisitOption...)}
+	 */
+	private class ListTask extends RecursiveTask<List<Path>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Path dir;
+		
+		private ListTask(Path dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		protected List<Path> compute() {
+			List<Path> found = new ArrayList<Path>();
+			List<ListTask> subdirs = new ArrayList<ListTask>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+				for (Path entry : entries) {
+					if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+						ListTask task = new ListTask(entry);
+						task.fork();
+						subdirs.add(task);
+					} else if (entry.getFileName().toString().equals(Constants.RDF_FNAME) 
+							&& matcher.matches(rdfDir.relativize(entry))) {
+						found.add(entry);
+					}
+				}
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			for (ListTask task : subdirs)
+				found.addAll(task.join());
+			return found;
+		}
+	}
+}
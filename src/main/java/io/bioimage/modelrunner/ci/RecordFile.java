@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * File of records that are only appended. The file starts with a magic string that identifies 
+ * its format and each record is the length of its content, the CRC32 of the content and the content.
+ * When the file is opened its records are read until the end of the file or the first record that
+ * is incomplete or corrupt, the one that was being written when the process died, and the file is
+ * truncated there, so the next records are appended after the last valid one.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+class RecordFile implements AutoCloseable {
+	
+	/**
+	 * Bytes of the length and the checksum of a record
+	 */
+	private static final int HEADER_BYTES = 4 + 8;
+	
+	/**
+	 * The file
+	 */
+	private final Path file;
+	/**
+	 * Channel that reads and appends the records
+	 */
+	private final FileChannel channel;
+	/**
+	 * Whether every record is forced to the disk once it is appended
+	 */
+	private final boolean sync;
+	/**
+	 * Bytes dropped from the end of the file when it was opened
+	 */
+	private long truncated;
+	
+	/**
+	 * Receives the records read when the file is opened
+	 */
+	interface Visitor {
+		/**
+		 * 
+		 * @param position
+		 * 	position of the record in the file, to read it again with {@link RecordFile#read(long)}
+		 * @param content
+		 * 	content of the record
+		 * @throws IOException if the content is not valid
+		 */
+		void visit(long position, byte[] content) throws IOException;
+	}
+	
+	private RecordFile(Path file, FileChannel channel, boolean sync) {
+		this.file = file;
+		this.channel = channel;
+		this.sync = sync;
+	}
+	
+	/**
+	 * Open a record file, creating it if it does not exist, and read its records
+	 * @param file
+	 * 	the file
+	 * @param magic
+	 * 	first bytes of the file, that identify its format. A file that does not start with them
+	 * 	is discarded
+	 * @param sync
+	 * 	whether to force every record to the disk once it is appended
+	 * @param visitor
+	 * 	receives every valid record of the file, in order
+	 * @return the file, ready to append records
+	 * @throws IOException if the file cannot be read or created
+	 */
+	static RecordFile open(Path file, byte[] magic, boolean sync, Visitor visitor) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, 
+				StandardOpenOption.WRITE);
+		RecordFile records = new RecordFile(file, channel, sync);
+		try {
+			records.replay(magic, visitor);
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+		return records;
+	}
+	
+	private void replay(byte[] magic, Visitor visitor) throws IOException {
+		long size = channel.size();
+		if (size < magic.length || !Arrays.equals(read(0, magic.length).array(), magic)) {
+			if (size > 0)
+				System.out.println("Discarding " + file + ", it is not a valid file of its type");
+			channel.truncate(0);
+			write(ByteBuffer.wrap(magic));
+			return;
+		}
+		long position = magic.length;
+		while (position + HEADER_BYTES <= size) {
+			ByteBuffer header = read(position, HEADER_BYTES);
+			int length = header.getInt();
+			long checksum = header.getLong();
+			if (length < 0 || position + HEADER_BYTES + length > size)
+				break;
+			byte[] content = read(position + HEADER_BYTES, length).array();
+			if (crc(content) != checksum)
+				break;
+			visitor.visit(position, content);
+			position += HEADER_BYTES + length;
+		}
+		truncated = size - position;
+		if (truncated > 0) {
+			System.out.println("Dropping the last " + truncated + " bytes of " + file + ", the record was not complete");
+			channel.truncate(position);
+			channel.force(true);
+		}
+		channel.position(position);
+	}
+	
+	/**
+	 * Append a record
+	 * @param content
+	 * 	content of the record
+	 * @return position of the record in the file
+	 * @throws IOException if the record cannot be written
+	 */
+	synchronized long append(byte[] content) throws IOException {
+		long position = channel.position();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + content.length);
+		buffer.putInt(content.length).putLong(crc(content)).put(content);
+		buffer.flip();
+		write(buffer);
+		return position;
+	}
+	
+	/**
+	 * Read a record again
+	 * @param position
+	 * 	position of the record, as given to the {@link Visitor} or returned by {@link #append(byte[])}
+	 * @return content of the record
+	 * @throws IOException if the record cannot be read or is corrupt
+	 */
+	synchronized byte[] read(long position) throws IOException {
+		ByteBuffer header = read(position, HEADER_BYTES);
+		int length = header.getInt();
+		long checksum = header.getLong();
+		byte[] content = read(position + HEADER_BYTES, length).array();
+		if (crc(content) != checksum)
+			throw new IOException("Corrupt record at position " + position + " of " + file);
+		return content;
+	}
+	
+	/**
+	 * 
+	 * @return the file
+	 */
+	Path getFile() {
+		return file;
+	}
+	
+	/**
+	 * 
+	 * @return size of the file in bytes
+	 * @throws IOException if the size cannot be read
+	 */
+	long size() throws IOException {
+		return channel.size();
+	}
+	
+	/**
+	 * 
+	 * @return bytes dropped from the end of the file when it was opened, because the last record
+	 * 	was incomplete or corrupt
+	 */
+	long getTruncated() {
+		return truncated;
+	}
+	
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		if (sync)
+			channel.force(false);
+	}
+	
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of " + file);
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	private static long crc(byte[] content) {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return crc.getValue();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel.isOpen())
+			channel.force(true);
+		channel.close();
+	}
+}
@@ -0,0 +1,544 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.yaml.snakeyaml.Yaml;
+
+import io.bioimage.modelrunner.utils.YAMLUtils;
+
+/**
+ * Compares the time and memory of the tests of two JDLL versions and fails if the candidate 
+ * version is significantly slower or uses significantly more memory than the baseline.
+ * The measurements are read from the summaries of each version ({@code test_summary_<version>.yaml}),
+ * the {@code <stage>_ms}, {@code <stage>_heap_delta_mb} and {@code <stage>_direct_delta_mb} 
+ * fields written by {@link StageMetrics} and the {@code latency_ms_*} fields written by 
+ * {@link InferenceBenchmark}. Only the weight formats that passed their tests in both versions 
+ * are compared, failures are already reported by the summaries. The tests that passed in the 
+ * baseline and not in the candidate are found by {@link #newFailures(List, List, Function, Function)}.
+ * 
+ * Every measurement of a weight format is compared with the same measurement in the baseline.
+ * A change is significant when it is bigger than all of: the relative threshold, the absolute
+ * minimum (so stages of a few milliseconds or megabytes are not reported) and the noise of the 
+ * measurement times the number of sigmas. The noise of each measurement is estimated from the 
+ * spread of its changes across every weight format compared, with the median absolute deviation,
+ * so a noisy runner tolerates bigger changes. A measurement whose median change across all the
+ * weight formats is bigger than the relative threshold is also reported as a regression of all 
+ * the models. The regressions are ranked by their relative change and written as a YAML report.
+ * 
+ * Usage: RegressionGate BASELINE_DIR BASELINE_VERSION CANDIDATE_DIR CANDIDATE_VERSION 
+ * [--threshold 0.2] [--min-ms 50] [--min-mb 16] [--sigmas 3] [--ignore download] [--report FILE]
+ * 
+ * The summaries of both versions can be in the same directory. The exit code is 1 if there 
+ * is any significant regression.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class RegressionGate {
+	
+	/**
+	 * Model of the regressions found in every model at once
+	 */
+	public static final String ALL_MODELS = "*";
+	/**
+	 * Prefix of the summary files, followed by the JDLL version
+	 */
+	private static final String SUMMARY_PREFIX = "test_summary_";
+	/**
+	 * Suffix of the fields with a duration in milliseconds
+	 */
+	private static final String MS_SUFFIX = "_ms";
+	/**
+	 * Suffix of the fields with memory in MB
+	 */
+	private static final String MB_SUFFIX = "_mb";
+	/**
+	 * Prefix of the latencies measured by the {@link InferenceBenchmark}
+	 */
+	private static final String LATENCY_PREFIX = "latency_ms_";
+	/**
+	 * Minimum number of weight formats compared to estimate the noise of a measurement
+	 */
+	private static final int MIN_NOISE_SAMPLES = 5;
+	/**
+	 * Factor that makes the median absolute deviation an estimate of the standard deviation
+	 */
+	private static final double MAD_TO_SIGMA = 1.4826;
+	
+	/**
+	 * Relative change over the baseline that is considered a regression
+	 */
+	private double threshold = 0.2;
+	/**
+	 * Minimum increase of a duration in milliseconds to be considered a regression
+	 */
+	private double minMillis = 50;
+	/**
+	 * Minimum increase of memory in MB to be considered a regression
+	 */
+	private double minMB = 16;
+	/**
+	 * Number of standard deviations of the noise that a change should exceed
+	 */
+	private double sigmas = 3;
+	/**
+	 * Stages that are not compared, by default the download, which measures the network
+	 */
+	private List<String> ignored = new ArrayList<String>(Arrays.asList(StageMetrics.DOWNLOAD));
+	
+	/**
+	 * Change of one measurement between the two versions
+	 */
+	public static class Regression {
+		
+		private final String model;
+		private final String weightFormat;
+		private final String measurement;
+		private final double baseline;
+		private final double candidate;
+		private final double allowed;
+		private final double severity;
+		
+		private Regression(String model, String weightFormat, String measurement, double baseline, double candidate, 
+				double allowed, double floor) {
+			this.model = model;
+			this.weightFormat = weightFormat;
+			this.measurement = measurement;
+			this.baseline = baseline;
+			this.candidate = candidate;
+			this.allowed = allowed;
+			this.severity = (candidate - baseline) / Math.max(Math.abs(baseline), floor);
+		}
+		
+		/**
+		 * 
+		 * @return id of the model, {@link RegressionGate#ALL_MODELS} if the median of every model regressed
+		 */
+		public String getModel() {
+			return model;
+		}
+		
+		/**
+		 * 
+		 * @return weight format whose tests regressed, null for {@link RegressionGate#ALL_MODELS}
+		 */
+		public String getWeightFormat() {
+			return weightFormat;
+		}
+		
+		/**
+		 * 
+		 * @return the field of the summary that regressed
+		 */
+		public String getMeasurement() {
+			return measurement;
+		}
+		
+		/**
+		 * 
+		 * @return the change relative to the baseline, the rank of the regression
+		 */
+		public double getSeverity() {
+			return severity;
+		}
+		
+		private Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("model", model);
+			map.put("weight_format", weightFormat);
+			map.put("measurement", measurement);
+			map.put("baseline", number(baseline));
+			map.put("candidate", number(candidate));
+			map.put("max_allowed", number(allowed));
+			map.put("change_percent", number(severity * 100));
+			return map;
+		}
+		
+		@Override
+		public String toString() {
+			return model + (weightFormat == null ? "" : " (" + weightFormat + ")") + " " + measurement + ": " 
+					+ number(baseline) + " -> " + number(candidate) + " (+" + number(severity * 100) + "%, max allowed " 
+					+ number(allowed) + ")";
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		List<String> positional = new ArrayList<String>();
+		RegressionGate gate = new RegressionGate();
+		Path report = null;
+		try {
+			for (int i = 0; i < args.length; i ++) {
+				if (!args[i].startsWith("--")) {
+					positional.add(args[i]);
+					continue;
+				} else if (i + 1 == args.length) {
+					throw new IllegalArgumentException("Missing value for option '" + args[i] + "'.");
+				}
+				String value = args[++ i];
+				if (args[i - 1].equals("--threshold"))
+					gate.setThreshold(Double.parseDouble(value));
+				else if (args[i - 1].equals("--min-ms"))
+					gate.setMinMillis(Double.parseDouble(value));
+				else if (args[i - 1].equals("--min-mb"))
+					gate.setMinMB(Double.parseDouble(value));
+				else if (args[i - 1].equals("--sigmas"))
+					gate.setSigmas(Double.parseDouble(value));
+				else if (args[i - 1].equals("--ignore"))
+					gate.setIgnored(value.isEmpty() ? new ArrayList<String>() : Arrays.asList(value.split(",")));
+				else if (args[i - 1].equals("--report"))
+					report = Paths.get(value);
+				else
+					throw new IllegalArgumentException("Unknown option '" + args[i - 1] + "'.");
+			}
+			if (positional.size() != 4)
+				throw new IllegalArgumentException("Expected 4 arguments but got " + positional.size() + ".");
+		} catch (IllegalArgumentException ex) {
+			System.out.println(ex.getMessage());
+			System.out.println("Usage: RegressionGate BASELINE_DIR BASELINE_VERSION CANDIDATE_DIR CANDIDATE_VERSION "
+					+ "[--threshold 0.2] [--min-ms 50] [--min-mb 16] [--sigmas 3] [--ignore download] [--report FILE]");
+			System.exit(2);
+			return;
+		}
+		Map<String, Map<String, Double>> baseline = load(Paths.get(positional.get(0)), positional.get(1));
+		Map<String, Map<String, Double>> candidate = load(Paths.get(positional.get(2)), positional.get(3));
+		Map<String, Object> noise = new TreeMap<String, Object>();
+		List<Regression> regressions = gate.compare(baseline, candidate, noise);
+		
+		if (report == null)
+			report = Paths.get(positional.get(2), "regressions_" + positional.get(1) + "_to_" + positional.get(3) + ".yaml");
+		Map<String, Object> content = new LinkedHashMap<String, Object>();
+		content.put("baseline_version", positional.get(1));
+		content.put("candidate_version", positional.get(3));
+		content.put("weight_formats_baseline", baseline.size());
+		content.put("weight_formats_candidate", candidate.size());
+		content.put("weight_formats_compared", baseline.keySet().stream().filter(candidate::containsKey).count());
+		content.put("threshold", gate.threshold);
+		content.put("min_ms", gate.minMillis);
+		content.put("min_mb", gate.minMB);
+		content.put("sigmas", gate.sigmas);
+		content.put("regressions", regressions.stream().map(Regression::toMap).collect(Collectors.toList()));
+		content.put("noise", noise);
+		if (report.toAbsolutePath().getParent() != null)
+			Files.createDirectories(report.toAbsolutePath().getParent());
+		YAMLUtils.writeYamlFile(report.toAbsolutePath().toString(), content);
+		
+		System.out.println("Compared " + content.get("weight_formats_compared") + " weight formats of JDLL " 
+				+ positional.get(1) + " and " + positional.get(3) + ", report written to " + report);
+		for (Regression regression : regressions)
+			System.out.println("REGRESSION: " + regression);
+		if (regressions.size() > 0)
+			System.exit(1);
+	}
+	
+	/**
+	 * Read the measurements of the tests that passed from the summaries of a JDLL version
+	 * @param summariesDir
+	 * 	directory with a folder per model containing its summaries
+	 * @param jdllVersion
+	 * 	the JDLL version
+	 * @return for each model and weight format, as {@code <model id> (<weight format>)}, the 
+	 * 	value of each measurement
+	 * @throws IOException if the directory cannot be walked
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Map<String, Double>> load(Path summariesDir, String jdllVersion) throws IOException {
+		Map<String, Map<String, Double>> measurements = new TreeMap<String, Map<String, Double>>();
+		String name = SUMMARY_PREFIX + jdllVersion + ".yaml";
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(summariesDir)) {
+			files = stream.filter(ff -> ff.getFileName().toString().equals(name) && Files.isRegularFile(ff))
+					.collect(Collectors.toList());
+		}
+		Yaml yaml = new Yaml();
+		for (Path file : files) {
+			String model = summariesDir.relativize(file.getParent()).toString().replace(file.getFileSystem().getSeparator(), "/");
+			Object summaries;
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				summaries = yaml.load(reader);
+			} catch (Exception ex) {
+				System.out.println("Unable to read the summaries " + file + ": " + ex.toString());
+				continue;
+			}
+			if (!(summaries instanceof List))
+				continue;
+			for (Object summary : (List<Object>) summaries) {
+				if (!(summary instanceof Map))
+					continue;
+				Map<String, Object> test = (Map<String, Object>) summary;
+				String weightFormat = weightFormat(test.get("name"));
+				if (weightFormat == null || !passed(test.get("status")))
+					continue;
+				Map<String, Double> values = new TreeMap<String, Double>();
+				for (Entry<String, Object> field : test.entrySet()) {
+					if (!isMeasurement(field.getKey()) || field.getValue() == null)
+						continue;
+					try {
+						values.put(field.getKey(), Double.parseDouble(field.getValue().toString()));
+					} catch (NumberFormatException ex) {
+					}
+				}
+				if (values.size() > 0)
+					measurements.computeIfAbsent(model + " (" + weightFormat + ")", k -> new TreeMap<String, Double>()).putAll(values);
+			}
+		}
+		return measurements;
+	}
+	
+	/**
+	 * Compare the measurements of the candidate version with the ones of the baseline
+	 * @param baseline
+	 * 	measurements of the baseline, as returned by {@link #load(Path, String)}
+	 * @param candidate
+	 * 	measurements of the candidate, as returned by {@link #load(Path, String)}
+	 * @param noise
+	 * 	map where the median change and the noise estimated for each measurement are put, can be null
+	 * @return the significant regressions, from the biggest relative change
+	 */
+	public List<Regression> compare(Map<String, Map<String, Double>> baseline, Map<String, Map<String, Double>> candidate, 
+			Map<String, Object> noise) {
+		// For each measurement, the baseline and candidate values of every weight format in both versions
+		Map<String, Map<String, double[]>> pairs = new TreeMap<String, Map<String, double[]>>();
+		for (Entry<String, Map<String, Double>> model : baseline.entrySet()) {
+			Map<String, Double> other = candidate.get(model.getKey());
+			if (other == null)
+				continue;
+			for (Entry<String, Double> value : model.getValue().entrySet()) {
+				if (other.get(value.getKey()) == null || isIgnored(value.getKey()))
+					continue;
+				pairs.computeIfAbsent(value.getKey(), k -> new LinkedHashMap<String, double[]>())
+					.put(model.getKey(), new double[] {value.getValue(), other.get(value.getKey())});
+			}
+		}
+		
+		List<Regression> regressions = new ArrayList<Regression>();
+		for (Entry<String, Map<String, double[]>> measurement : pairs.entrySet()) {
+			boolean memory = measurement.getKey().endsWith(MB_SUFFIX);
+			double floor = memory ? minMB : minMillis;
+			// Durations change proportionally, so their changes are compared as log ratios. 
+			// Memory deltas can be 0 or negative, so their changes are differences
+			double[] changes = new double[measurement.getValue().size()];
+			int n = 0;
+			for (double[] pair : measurement.getValue().values())
+				changes[n ++] = memory ? pair[1] - pair[0] : logRatio(pair[0], pair[1], floor);
+			Arrays.sort(changes);
+			double median = median(changes);
+			double sigma = n < MIN_NOISE_SAMPLES ? 0 : MAD_TO_SIGMA * mad(changes, median);
+			if (noise != null) {
+				Map<String, Object> stats = new LinkedHashMap<String, Object>();
+				stats.put("weight_formats", n);
+				stats.put(memory ? "median_change_mb" : "median_change_percent", 
+						number(memory ? median : (Math.exp(median) - 1) * 100));
+				stats.put(memory ? "sigma_mb" : "sigma_log_ratio", number(sigma));
+				noise.put(measurement.getKey(), stats);
+			}
+			
+			for (Entry<String, double[]> model : measurement.getValue().entrySet()) {
+				double base = model.getValue()[0];
+				double cand = model.getValue()[1];
+				double allowed;
+				if (memory)
+					allowed = base + Math.max(Math.max(floor, threshold * Math.abs(base)), sigmas * sigma);
+				else
+					allowed = Math.max(Math.max(base + floor, base * (1 + threshold)), base * Math.exp(sigmas * sigma));
+				if (cand <= allowed)
+					continue;
+				String id = model.getKey().substring(0, model.getKey().lastIndexOf(" ("));
+				String weightFormat = model.getKey().substring(model.getKey().lastIndexOf(" (") + 2, model.getKey().length() - 1);
+				regressions.add(new Regression(id, weightFormat, measurement.getKey(), base, cand, allowed, floor));
+			}
+			
+			if (n < MIN_NOISE_SAMPLES)
+				continue;
+			double[] bases = measurement.getValue().values().stream().mapToDouble(pair -> pair[0]).sorted().toArray();
+			double base = median(bases);
+			if (!memory && Math.exp(median) - 1 > threshold)
+				regressions.add(new Regression(ALL_MODELS, null, measurement.getKey(), base, base * Math.exp(median), 
+						base * (1 + threshold), floor));
+			else if (memory && median > Math.max(floor, threshold * Math.abs(base)))
+				regressions.add(new Regression(ALL_MODELS, null, measurement.getKey(), base, base + median, 
+						base + Math.max(floor, threshold * Math.abs(base)), floor));
+		}
+		Collections.sort(regressions, (r1, r2) -> Double.compare(r2.severity, r1.severity));
+		return regressions;
+	}
+	
+	/**
+	 * Find the tests that passed in the baseline version and did not pass in the candidate version
+	 * @param <T>
+	 * 	type of the tests
+	 * @param baseline
+	 * 	tests of the baseline version
+	 * @param candidate
+	 * 	tests of the candidate version
+	 * @param key
+	 * 	identifies the same test in both versions
+	 * @param status
+	 * 	gives the status of a test
+	 * @return the tests of the candidate version that regressed, in their order
+	 */
+	public static <T> List<T> newFailures(List<T> baseline, List<T> candidate, Function<T, String> key, 
+			Function<T, Object> status) {
+		Set<String> passed = new HashSet<String>();
+		for (T test : baseline) {
+			if (passed(status.apply(test)))
+				passed.add(key.apply(test));
+		}
+		List<T> regressed = new ArrayList<T>();
+		for (T test : candidate) {
+			if (!passed(status.apply(test)) && passed.contains(key.apply(test)))
+				regressed.add(test);
+		}
+		return regressed;
+	}
+	
+	/**
+	 * Set the relative change over the baseline that is considered a regression
+	 * @param threshold
+	 * 	the relative change, 0.2 is 20% slower or 20% more memory
+	 * @return this object
+	 */
+	public RegressionGate setThreshold(double threshold) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("The threshold cannot be negative: " + threshold);
+		this.threshold = threshold;
+		return this;
+	}
+	
+	/**
+	 * Set the minimum increase of a duration to be considered a regression
+	 * @param minMillis
+	 * 	the minimum increase in milliseconds
+	 * @return this object
+	 */
+	public RegressionGate setMinMillis(double minMillis) {
+		if (minMillis < 0)
+			throw new IllegalArgumentException("The minimum increase of the durations cannot be negative: " + minMillis);
+		this.minMillis = minMillis;
+		return this;
+	}
+	
+	/**
+	 * Set the minimum increase of memory to be considered a regression
+	 * @param minMB
+	 * 	the minimum increase in MB
+	 * @return this object
+	 */
+	public RegressionGate setMinMB(double minMB) {
+		if (minMB < 0)
+			throw new IllegalArgumentException("The minimum increase of the memory cannot be negative: " + minMB);
+		this.minMB = minMB;
+		return this;
+	}
+	
+	/**
+	 * Set the number of standard deviations of the noise that a change should exceed
+	 * @param sigmas
+	 * 	the number of standard deviations
+	 * @return this object
+	 */
+	public RegressionGate setSigmas(double sigmas) {
+		if (sigmas < 0)
+			throw new IllegalArgumentException("The number of sigmas cannot be negative: " + sigmas);
+		this.sigmas = sigmas;
+		return this;
+	}
+	
+	/**
+	 * Set the stages that are not compared
+	 * @param ignored
+	 * 	names of the stages, such as {@link StageMetrics#DOWNLOAD}
+	 * @return this object
+	 */
+	public RegressionGate setIgnored(List<String> ignored) {
+		this.ignored = new ArrayList<String>(ignored);
+		return this;
+	}
+	
+	private boolean isIgnored(String measurement) {
+		for (String stage : ignored) {
+			if (measurement.startsWith(stage + "_"))
+				return true;
+		}
+		return false;
+	}
+	
+	private static boolean passed(Object status) {
+		return "passed".equals(status);
+	}
+	
+	private static boolean isMeasurement(String field) {
+		return field.endsWith(MS_SUFFIX) || field.endsWith(MB_SUFFIX) || field.startsWith(LATENCY_PREFIX);
+	}
+	
+	/**
+	 * Weight format of a test of a model summary, whose name ends with the weight format in parenthesis
+	 */
+	static String weightFormat(Object name) {
+		if (name == null || !name.toString().endsWith(")") || !name.toString().contains(" ("))
+			return null;
+		String str = name.toString();
+		return str.substring(str.lastIndexOf(" (") + 2, str.length() - 1);
+	}
+	
+	/**
+	 * Log ratio of two durations. Durations shorter than the floor are raised to it, so tiny 
+	 * stages do not produce huge ratios that inflate the noise
+	 */
+	private static double logRatio(double baseline, double candidate, double floor) {
+		return Math.log(Math.max(candidate, floor) / Math.max(baseline, floor));
+	}
+	
+	private static double median(double[] sorted) {
+		int n = sorted.length;
+		return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+	
+	private static double mad(double[] values, double median) {
+		double[] deviations = new double[values.length];
+		for (int i = 0; i < values.length; i ++)
+			deviations[i] = Math.abs(values[i] - median);
+		Arrays.sort(deviations);
+		return median(deviations);
+	}
+	
+	private static String number(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+}
@@ -0,0 +1,1040 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Store of the results of the tests of every run and JDLL version in a few files, so they
+ * can be queried without reading the summary of every model.
+ * 
+ * The store is a directory of segments, {@link RecordFile}s where every record has the 
+ * summaries of a model for a JDLL version, as written in the summaries file of the model, 
+ * and the engine used by each weight format. Records are only appended, the last record of 
+ * a model and a version replaces the previous ones. When a segment reaches {@link #SEGMENT_BYTES}
+ * a new one is started, and {@link #compact()} rewrites the store without the replaced records.
+ * 
+ * When the store is opened every segment is read once to build an index in memory with a column
+ * per field of the tests: the {@link #COLUMNS} with text, encoded with a dictionary, and a column 
+ * per metric, the durations, memory, latencies and errors of the outputs. Queries filter these 
+ * columns without reading the segments again, which are only read to export the summaries
+ * back to the layout of the summaries directory with {@link #exportYaml(Path, String)}.
+ * Only one process can open the store at a time.
+ * 
+ * Usage: 
+ * ResultsStore STORE_DIR import SUMMARIES_DIR [VERSION]
+ * ResultsStore STORE_DIR export SUMMARIES_DIR VERSION
+ * ResultsStore STORE_DIR query [--version V] [--model ID] [--weight-format WF] [--test NAME] [--status S] 
+ * 	[--engine E] [--error TEXT] [--metric NAME] [--count-by COLUMN]
+ * ResultsStore STORE_DIR regressions BASELINE_VERSION CANDIDATE_VERSION
+ * ResultsStore STORE_DIR compact
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ResultsStore implements AutoCloseable {
+	
+	/**
+	 * Text columns of the tests
+	 */
+	public static final String VERSION = "version";
+	public static final String MODEL = "model";
+	public static final String WEIGHT_FORMAT = "weight_format";
+	public static final String TEST = "test";
+	public static final String STATUS = "status";
+	public static final String ENGINE = "engine";
+	public static final String ERROR = "error";
+	public static final List<String> COLUMNS = Collections.unmodifiableList(
+			Arrays.asList(VERSION, MODEL, WEIGHT_FORMAT, TEST, STATUS, ENGINE, ERROR));
+	/**
+	 * Size of a segment after which a new one is started
+	 */
+	public static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+	/**
+	 * Name of the segments, followed by their number
+	 */
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".rec";
+	/**
+	 * First bytes of every segment, with the version of the format
+	 */
+	private static final byte[] MAGIC = "JDLLRES1".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Prefix of the summaries files, followed by the JDLL version
+	 */
+	private static final String SUMMARY_PREFIX = "test_summary_";
+	/**
+	 * Maximum number of characters of the error column, the first line of the error
+	 */
+	private static final int ERROR_CHARS = 200;
+	
+	/**
+	 * Types of the values of the summaries
+	 */
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INT = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte BOOLEAN = 5;
+	
+	/**
+	 * Directory of the store
+	 */
+	private final Path dir;
+	/**
+	 * Keeps other processes out of the store
+	 */
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	/**
+	 * The segments, the last one is the one where records are appended
+	 */
+	private final List<RecordFile> segments = new ArrayList<RecordFile>();
+	/**
+	 * Number of the last segment
+	 */
+	private int lastSegment;
+	/**
+	 * Segment, position and time of each record
+	 */
+	private final IntColumn recordSegment = new IntColumn();
+	private final List<Long> recordPosition = new ArrayList<Long>();
+	private final List<Long> recordTime = new ArrayList<Long>();
+	/**
+	 * Records that were not replaced by a later one of the same model and version
+	 */
+	private final BitSet live = new BitSet();
+	/**
+	 * Last record of each model and version
+	 */
+	private final Map<String, Integer> latest = new HashMap<String, Integer>();
+	/**
+	 * Values of the text columns
+	 */
+	private final Dictionary dictionary = new Dictionary();
+	/**
+	 * Text columns of the tests, in the order of {@link #COLUMNS}
+	 */
+	private final IntColumn[] text = new IntColumn[COLUMNS.size()];
+	/**
+	 * Record of each test
+	 */
+	private final IntColumn testRecord = new IntColumn();
+	/**
+	 * Metric columns of the tests, NaN for the tests without the metric
+	 */
+	private final Map<String, DoubleColumn> metrics = new TreeMap<String, DoubleColumn>();
+	/**
+	 * Number of tests
+	 */
+	private int tests;
+	
+	private ResultsStore(Path dir, FileChannel lockChannel, FileLock lock) {
+		this.dir = dir;
+		this.lockChannel = lockChannel;
+		this.lock = lock;
+	}
+	
+	/**
+	 * Open a store, creating it if it does not exist, and build its index
+	 * @param dir
+	 * 	directory of the store
+	 * @return the store
+	 * @throws IOException if the store cannot be read or is used by another process
+	 */
+	public static ResultsStore open(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		FileChannel channel = FileChannel.open(dir.resolve("store.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException ex) {
+			// Opened by this process
+			lock = null;
+		}
+		if (lock == null) {
+			channel.close();
+			throw new IOException("The results store " + dir + " is being used by another process.");
+		}
+		ResultsStore store = new ResultsStore(dir, channel, lock);
+		try {
+			store.load();
+		} catch (IOException | RuntimeException ex) {
+			store.close();
+			throw ex;
+		}
+		return store;
+	}
+	
+	/**
+	 * Read every segment of the store and build the index
+	 * @throws IOException if any segment cannot be read
+	 */
+	private void load() throws IOException {
+		for (int c = 0; c < text.length; c ++)
+			text[c] = new IntColumn();
+		List<Integer> numbers = new ArrayList<Integer>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+			}
+		}
+		Collections.sort(numbers);
+		if (numbers.size() == 0)
+			numbers.add(1);
+		for (int number : numbers) {
+			int segment = segments.size();
+			segments.add(RecordFile.open(segmentFile(number), MAGIC, false, 
+					(position, content) -> index(segment, position, decode(content))));
+			lastSegment = number;
+		}
+	}
+	
+	private Path segmentFile(int number) {
+		return dir.resolve(String.format(Locale.ROOT, "%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+	
+	/**
+	 * Append the summaries of a model for a JDLL version, replacing the previous ones
+	 * @param version
+	 * 	version of JDLL tested
+	 * @param modelId
+	 * 	id of the model
+	 * @param summaries
+	 * 	the summaries, as written in the summaries file of the model
+	 * @param engines
+	 * 	engine used by each weight format, null for the ones that were not run
+	 * @throws IOException if the record cannot be written
+	 */
+	public synchronized void append(String version, String modelId, List<Object> summaries, 
+			Map<String, String> engines) throws IOException {
+		Record record = new Record(System.currentTimeMillis(), version, modelId, 
+				engines == null ? new LinkedHashMap<String, String>() : engines, summaries);
+		RecordFile segment = segments.get(segments.size() - 1);
+		if (segment.size() >= SEGMENT_BYTES) {
+			segment = RecordFile.open(segmentFile(++ lastSegment), MAGIC, false, (position, content) -> {});
+			segments.add(segment);
+		}
+		long position = segment.append(encode(record));
+		index(segments.size() - 1, position, record);
+	}
+	
+	/**
+	 * Add a record to the index
+	 */
+	@SuppressWarnings("unchecked")
+	private void index(int segment, long position, Record record) {
+		int r = recordSegment.size();
+		recordSegment.add(segment);
+		recordPosition.add(position);
+		recordTime.add(record.time);
+		Integer previous = latest.put(record.version + "\n" + record.modelId, r);
+		if (previous != null)
+			live.clear(previous);
+		live.set(r);
+		for (Object summary : record.summaries) {
+			if (!(summary instanceof Map))
+				continue;
+			Map<String, Object> test = (Map<String, Object>) summary;
+			Object name = test.get("name");
+			String weightFormat = RegressionGate.weightFormat(name);
+			String testName = name == null ? null : name.toString();
+			if (weightFormat != null)
+				testName = testName.substring(0, testName.lastIndexOf(" ("));
+			text[0].add(dictionary.id(record.version));
+			text[1].add(dictionary.id(record.modelId));
+			text[2].add(dictionary.id(weightFormat));
+			text[3].add(dictionary.id(testName));
+			text[4].add(dictionary.id(test.get("status") == null ? null : test.get("status").toString()));
+			text[5].add(dictionary.id(weightFormat == null ? null : record.engines.get(weightFormat)));
+			text[6].add(dictionary.id(firstLine(test.get("error"))));
+			testRecord.add(r);
+			for (Entry<String, Object> field : test.entrySet()) {
+				if (!isMetric(field.getKey()) || field.getValue() == null)
+					continue;
+				try {
+					double value = Double.parseDouble(field.getValue().toString());
+					metrics.computeIfAbsent(field.getKey(), k -> new DoubleColumn()).set(tests, value);
+				} catch (NumberFormatException ex) {
+				}
+			}
+			tests ++;
+		}
+	}
+	
+	/**
+	 * Whether a field of the tests is a metric: a duration, memory, latency, throughput or 
+	 * error of the outputs
+	 */
+	private static boolean isMetric(String field) {
+		return field.endsWith("_ms") || field.endsWith("_mb") || field.endsWith("_error") || field.endsWith("_elements")
+				|| field.endsWith("_per_s") || field.startsWith("latency_ms_");
+	}
+	
+	private static String firstLine(Object error) {
+		if (error == null)
+			return null;
+		String line = error.toString().trim();
+		if (line.indexOf('\n') != -1)
+			line = line.substring(0, line.indexOf('\n')).trim();
+		return line.length() > ERROR_CHARS ? line.substring(0, ERROR_CHARS) : line;
+	}
+	
+	/**
+	 * 
+	 * @return a query over the last results of every model and version
+	 */
+	public Query query() {
+		return new Query();
+	}
+	
+	/**
+	 * 
+	 * @return the JDLL versions in the store, sorted
+	 */
+	public synchronized List<String> getVersions() {
+		return latest.keySet().stream().map(k -> k.substring(0, k.indexOf('\n'))).distinct().sorted()
+				.collect(Collectors.toList());
+	}
+	
+	/**
+	 * 
+	 * @return names of the metric columns, sorted
+	 */
+	public synchronized List<String> getMetrics() {
+		return new ArrayList<String>(metrics.keySet());
+	}
+	
+	/**
+	 * Find the tests that passed with a JDLL version and did not pass with another, as 
+	 * {@link RegressionGate#newFailures(List, List, java.util.function.Function, java.util.function.Function)} does
+	 * @param baseline
+	 * 	the version where the tests passed
+	 * @param candidate
+	 * 	the version where the tests did not pass
+	 * @return the tests of the candidate version that regressed
+	 */
+	public synchronized List<Row> regressions(String baseline, String candidate) {
+		return RegressionGate.newFailures(query().where(VERSION, baseline).rows(), query().where(VERSION, candidate).rows(), 
+				row -> row.getModel() + "\n" + row.getWeightFormat() + "\n" + row.getTest(), Row::getStatus);
+	}
+	
+	/**
+	 * Get the last summaries of a model for a JDLL version
+	 * @param version
+	 * 	the version
+	 * @param modelId
+	 * 	id of the model
+	 * @return the summaries, as they were appended, or null if the model was not tested with the version
+	 * @throws IOException if the record cannot be read
+	 */
+	public synchronized List<Object> getSummaries(String version, String modelId) throws IOException {
+		Integer r = latest.get(version + "\n" + modelId);
+		return r == null ? null : read(r).summaries;
+	}
+	
+	private Record read(int r) throws IOException {
+		return decode(segments.get(recordSegment.get(r)).read(recordPosition.get(r)));
+	}
+	
+	/**
+	 * Write the last summaries of every model for a JDLL version in the layout of the summaries 
+	 * directory, with the same {@link SummaryWriter} used by the runs, index included
+	 * @param summariesDir
+	 * 	the summaries directory
+	 * @param version
+	 * 	the version
+	 * @return number of models written
+	 * @throws IOException if any file cannot be written
+	 */
+	public synchronized int exportYaml(Path summariesDir, String version) throws IOException {
+		List<String> models = new ArrayList<String>();
+		for (String key : latest.keySet()) {
+			if (key.startsWith(version + "\n"))
+				models.add(key.substring(version.length() + 1));
+		}
+		Collections.sort(models);
+		try (SummaryWriter writer = new SummaryWriter(summariesDir, SummaryWriter.INDEX_PREFIX + version + ".yaml")) {
+			for (int i = 0; i < models.size(); i ++) {
+				Record record = read(latest.get(version + "\n" + models.get(i)));
+				Path file = summariesDir.toAbsolutePath().resolve(models.get(i)).resolve(SUMMARY_PREFIX + version + ".yaml");
+				writer.writeSummaries(i, models.get(i), file, record.summaries, record.engines);
+			}
+		}
+		return models.size();
+	}
+	
+	/**
+	 * Append the summaries files of a summaries directory, with the engines of its indexes
+	 * @param summariesDir
+	 * 	the summaries directory
+	 * @param version
+	 * 	version of JDLL whose summaries are imported, null to import every version
+	 * @return number of summaries files imported
+	 * @throws IOException if the directory cannot be listed or a record cannot be written
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized int importYaml(Path summariesDir, String version) throws IOException {
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(summariesDir)) {
+			files = stream.filter(ff -> {
+				String name = ff.getFileName().toString();
+				return name.startsWith(SUMMARY_PREFIX) && name.endsWith(".yaml") && Files.isRegularFile(ff)
+						&& (version == null || name.equals(SUMMARY_PREFIX + version + ".yaml"));
+			}).sorted().collect(Collectors.toList());
+		}
+		Yaml yaml = new Yaml();
+		Map<String, Map<String, Object>> indexes = new HashMap<String, Map<String, Object>>();
+		int imported = 0;
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			String fileVersion = name.substring(SUMMARY_PREFIX.length(), name.length() - ".yaml".length());
+			String model = summariesDir.relativize(file.getParent()).toString().replace(file.getFileSystem().getSeparator(), "/");
+			Object summaries;
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				summaries = yaml.load(reader);
+			} catch (Exception ex) {
+				System.out.println("Unable to read the summaries " + file + ": " + ex.toString());
+				continue;
+			}
+			if (!(summaries instanceof List))
+				continue;
+			Map<String, Object> index = indexes.computeIfAbsent(fileVersion, v -> readIndex(yaml, summariesDir, v));
+			Object entry = index.get(model);
+			Object engines = entry instanceof Map ? ((Map<String, Object>) entry).get(SummaryWriter.ENGINES) : null;
+			append(fileVersion, model, (List<Object>) summaries, engines instanceof Map ? (Map<String, String>) engines : null);
+			imported ++;
+		}
+		return imported;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> readIndex(Yaml yaml, Path summariesDir, String version) {
+		Path file = summariesDir.resolve(SummaryWriter.INDEX_PREFIX + version + ".yaml");
+		if (!Files.isRegularFile(file))
+			return new HashMap<String, Object>();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			Object index = yaml.load(reader);
+			return index instanceof Map ? (Map<String, Object>) index : new HashMap<String, Object>();
+		} catch (Exception ex) {
+			System.out.println("Unable to read the index " + file + ": " + ex.toString());
+			return new HashMap<String, Object>();
+		}
+	}
+	
+	/**
+	 * Rewrite the store without the records replaced by later ones. The new segments are written
+	 * before the old ones are deleted, so an interrupted compaction only leaves duplicated records
+	 * @throws IOException if the store cannot be rewritten
+	 */
+	public synchronized void compact() throws IOException {
+		List<RecordFile> old = new ArrayList<RecordFile>(segments);
+		List<RecordFile> compacted = new ArrayList<RecordFile>();
+		RecordFile segment = null;
+		for (int r = live.nextSetBit(0); r >= 0; r = live.nextSetBit(r + 1)) {
+			if (segment == null || segment.size() >= SEGMENT_BYTES) {
+				segment = RecordFile.open(segmentFile(++ lastSegment), MAGIC, false, (position, content) -> {});
+				compacted.add(segment);
+			}
+			segment.append(segments.get(recordSegment.get(r)).read(recordPosition.get(r)));
+		}
+		for (RecordFile ff : compacted)
+			ff.close();
+		for (RecordFile ff : old) {
+			ff.close();
+			Files.delete(ff.getFile());
+		}
+		segments.clear();
+		recordSegment.clear();
+		recordPosition.clear();
+		recordTime.clear();
+		live.clear();
+		latest.clear();
+		testRecord.clear();
+		metrics.clear();
+		tests = 0;
+		load();
+	}
+	
+	/**
+	 * 
+	 * @return number of records, live records, tests, segments and bytes of the store
+	 * @throws IOException if the size of the segments cannot be read
+	 */
+	public synchronized Map<String, Object> report() throws IOException {
+		long bytes = 0;
+		for (RecordFile segment : segments)
+			bytes += segment.size();
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("records", recordSegment.size());
+		report.put("live_records", live.cardinality());
+		report.put("tests", tests);
+		report.put("segments", segments.size());
+		report.put("size_mb", String.format(Locale.ROOT, "%.3f", bytes / 1024.0 / 1024.0));
+		return report;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		IOException error = null;
+		for (RecordFile segment : segments) {
+			try {
+				segment.close();
+			} catch (IOException ex) {
+				error = error == null ? ex : error;
+			}
+		}
+		segments.clear();
+		if (lock.isValid())
+			lock.release();
+		lockChannel.close();
+		if (error != null)
+			throw error;
+	}
+	
+	/**
+	 * Filter over the last results of every model and version. Every condition has to be met
+	 */
+	public class Query {
+		
+		/**
+		 * Value required for each text column, null for the columns that are not filtered
+		 */
+		private final String[] values = new String[COLUMNS.size()];
+		
+		private String errorText;
+		
+		private Query() {
+		}
+		
+		/**
+		 * Keep only the tests with a value in a column
+		 * @param column
+		 * 	one of the {@link ResultsStore#COLUMNS}
+		 * @param value
+		 * 	the value
+		 * @return the query
+		 * @throws IllegalArgumentException if the column does not exist
+		 */
+		public Query where(String column, String value) throws IllegalArgumentException {
+			values[column(column)] = value;
+			return this;
+		}
+		
+		/**
+		 * Keep only the tests whose error contains a text
+		 * @param text
+		 * 	the text
+		 * @return the query
+		 */
+		public Query errorContains(String text) {
+			this.errorText = text;
+			return this;
+		}
+		
+		/**
+		 * 
+		 * @return the tests that meet the conditions, in the order they were appended
+		 */
+		public List<Row> rows() {
+			synchronized (ResultsStore.this) {
+				List<Row> rows = new ArrayList<Row>();
+				int[] ids = ids();
+				if (ids == null)
+					return rows;
+				for (int t = 0; t < tests; t ++) {
+					if (matches(t, ids))
+						rows.add(new Row(t));
+				}
+				return rows;
+			}
+		}
+		
+		/**
+		 * Count the tests that meet the conditions for each value of a column
+		 * @param column
+		 * 	one of the {@link ResultsStore#COLUMNS}
+		 * @return the number of tests of each value, from the most common one
+		 * @throws IllegalArgumentException if the column does not exist
+		 */
+		public Map<String, Integer> countBy(String column) throws IllegalArgumentException {
+			int c = column(column);
+			synchronized (ResultsStore.this) {
+				Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+				int[] ids = ids();
+				for (int t = 0; ids != null && t < tests; t ++) {
+					if (matches(t, ids))
+						counts.merge(text[c].get(t), 1, Integer::sum);
+				}
+				Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+				counts.entrySet().stream()
+					.sorted((a, b) -> b.getValue() != a.getValue().intValue() ? b.getValue() - a.getValue()
+							: String.valueOf(dictionary.value(a.getKey())).compareTo(String.valueOf(dictionary.value(b.getKey()))))
+					.forEach(e -> result.put(String.valueOf(dictionary.value(e.getKey())), e.getValue()));
+				return result;
+			}
+		}
+		
+		/**
+		 * 
+		 * @return dictionary id required for each column, -2 if not filtered, or null if a 
+		 * 	value does not exist in the store so no test can match
+		 */
+		private int[] ids() {
+			int[] ids = new int[values.length];
+			for (int c = 0; c < values.length; c ++) {
+				ids[c] = values[c] == null ? -2 : dictionary.find(values[c]);
+				if (values[c] != null && ids[c] == -1)
+					return null;
+			}
+			return ids;
+		}
+		
+		private boolean matches(int t, int[] ids) {
+			if (!live.get(testRecord.get(t)))
+				return false;
+			for (int c = 0; c < ids.length; c ++) {
+				if (ids[c] != -2 && text[c].get(t) != ids[c])
+					return false;
+			}
+			if (errorText == null)
+				return true;
+			String error = dictionary.value(text[6].get(t));
+			return error != null && error.contains(errorText);
+		}
+	}
+	
+	/**
+	 * A test of the store
+	 */
+	public class Row {
+		
+		private final int test;
+		
+		private Row(int test) {
+			this.test = test;
+		}
+		
+		/**
+		 * 
+		 * @param column
+		 * 	one of the {@link ResultsStore#COLUMNS}
+		 * @return the value of the column for the test
+		 * @throws IllegalArgumentException if the column does not exist
+		 */
+		public String get(String column) throws IllegalArgumentException {
+			synchronized (ResultsStore.this) {
+				return dictionary.value(text[column(column)].get(test));
+			}
+		}
+		
+		public String getVersion() {
+			return get(VERSION);
+		}
+		
+		public String getModel() {
+			return get(MODEL);
+		}
+		
+		public String getWeightFormat() {
+			return get(WEIGHT_FORMAT);
+		}
+		
+		public String getTest() {
+			return get(TEST);
+		}
+		
+		public String getStatus() {
+			return get(STATUS);
+		}
+		
+		public String getEngine() {
+			return get(ENGINE);
+		}
+		
+		/**
+		 * 
+		 * @return first line of the error of the test
+		 */
+		public String getError() {
+			return get(ERROR);
+		}
+		
+		/**
+		 * 
+		 * @param metric
+		 * 	name of the metric, the field of the summary
+		 * @return the value of the metric or null if the test does not have it
+		 */
+		public Double getMetric(String metric) {
+			synchronized (ResultsStore.this) {
+				DoubleColumn column = metrics.get(metric);
+				double value = column == null ? Double.NaN : column.get(test);
+				return Double.isNaN(value) ? null : value;
+			}
+		}
+		
+		/**
+		 * 
+		 * @return time when the results of the model were appended, in milliseconds since the epoch
+		 */
+		public long getTimestamp() {
+			synchronized (ResultsStore.this) {
+				return recordTime.get(testRecord.get(test));
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return getVersion() + "\t" + getModel() + "\t" + getWeightFormat() + "\t" + getTest() + "\t" 
+					+ getStatus() + "\t" + getEngine() + "\t" + (getError() == null ? "" : getError());
+		}
+	}
+	
+	private static int column(String column) throws IllegalArgumentException {
+		int c = COLUMNS.indexOf(column);
+		if (c == -1)
+			throw new IllegalArgumentException("Unknown column '" + column + "', the columns are " + COLUMNS + ".");
+		return c;
+	}
+	
+	/**
+	 * The summaries of a model for a JDLL version
+	 */
+	private static class Record {
+		
+		private final long time;
+		
+		private final String version;
+		
+		private final String modelId;
+		
+		private final Map<String, String> engines;
+		
+		private final List<Object> summaries;
+		
+		private Record(long time, String version, String modelId, Map<String, String> engines, List<Object> summaries) {
+			this.time = time;
+			this.version = version;
+			this.modelId = modelId;
+			this.engines = engines;
+			this.summaries = summaries;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static byte[] encode(Record record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(record.time);
+		writeString(out, record.version);
+		writeString(out, record.modelId);
+		out.writeInt(record.engines.size());
+		for (Entry<String, String> entry : record.engines.entrySet()) {
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+		out.writeInt(record.summaries.size());
+		for (Object summary : record.summaries) {
+			if (!(summary instanceof Map)) {
+				out.writeInt(-1);
+				writeValue(out, summary);
+				continue;
+			}
+			Map<Object, Object> fields = (Map<Object, Object>) summary;
+			out.writeInt(fields.size());
+			for (Entry<Object, Object> field : fields.entrySet()) {
+				writeString(out, String.valueOf(field.getKey()));
+				writeValue(out, field.getValue());
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static Record decode(byte[] content) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+		long time = in.readLong();
+		String version = readString(in);
+		String modelId = readString(in);
+		Map<String, String> engines = new LinkedHashMap<String, String>();
+		for (int i = in.readInt(); i > 0; i --)
+			engines.put(readString(in), readString(in));
+		List<Object> summaries = new ArrayList<Object>();
+		for (int i = in.readInt(); i > 0; i --) {
+			int size = in.readInt();
+			if (size < 0) {
+				summaries.add(readValue(in));
+				continue;
+			}
+			Map<String, Object> fields = new LinkedHashMap<String, Object>();
+			for (int f = 0; f < size; f ++)
+				fields.put(readString(in), readValue(in));
+			summaries.add(fields);
+		}
+		return new Record(time, version, modelId, engines, summaries);
+	}
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double || value instanceof Float) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else {
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+	
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case DOUBLE:
+			return in.readDouble();
+		case BOOLEAN:
+			return in.readBoolean();
+		case STRING:
+			return readString(in);
+		default:
+			throw new IOException("Unknown type of value: " + type);
+		}
+	}
+	
+	/**
+	 * Encodes the values of the text columns as ints
+	 */
+	private static class Dictionary {
+		
+		private final Map<String, Integer> ids = new HashMap<String, Integer>();
+		
+		private final List<String> values = new ArrayList<String>();
+		
+		/**
+		 * 
+		 * @return id of a value, added to the dictionary if it is new. -1 for null
+		 */
+		private int id(String value) {
+			if (value == null)
+				return -1;
+			Integer id = ids.get(value);
+			if (id == null) {
+				id = values.size();
+				ids.put(value, id);
+				values.add(value);
+			}
+			return id;
+		}
+		
+		/**
+		 * 
+		 * @return id of a value, -1 if it is not in the dictionary
+		 */
+		private int find(String value) {
+			Integer id = ids.get(value);
+			return id == null ? -1 : id;
+		}
+		
+		private String value(int id) {
+			return id < 0 ? null : values.get(id);
+		}
+	}
+	
+	/**
+	 * Column of ints that grows as values are added
+	 */
+	private static class IntColumn {
+		
+		private int[] values = new int[1024];
+		
+		private int size;
+		
+		private void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size ++] = value;
+		}
+		
+		private int get(int i) {
+			return values[i];
+		}
+		
+		private int size() {
+			return size;
+		}
+		
+		private void clear() {
+			size = 0;
+		}
+	}
+	
+	/**
+	 * Column of doubles that grows as values are set, NaN for the values that were not set
+	 */
+	private static class DoubleColumn {
+		
+		private double[] values = new double[0];
+		
+		private void set(int i, double value) {
+			if (i >= values.length) {
+				int length = values.length;
+				values = Arrays.copyOf(values, Math.max(1024, Math.max(i + 1, length * 2)));
+				Arrays.fill(values, length, values.length, Double.NaN);
+			}
+			values[i] = value;
+		}
+		
+		private double get(int i) {
+			return i < values.length ? values[i] : Double.NaN;
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: ResultsStore STORE_DIR import SUMMARIES_DIR [VERSION]");
+			System.out.println("       ResultsStore STORE_DIR export SUMMARIES_DIR VERSION");
+			System.out.println("       ResultsStore STORE_DIR query [--version V] [--model ID] [--weight-format WF] [--test NAME] "
+					+ "[--status S] [--engine E] [--error TEXT] [--metric NAME] [--count-by COLUMN]");
+			System.out.println("       ResultsStore STORE_DIR regressions BASELINE_VERSION CANDIDATE_VERSION");
+			System.out.println("       ResultsStore STORE_DIR compact");
+			System.exit(2);
+			return;
+		}
+		try (ResultsStore store = ResultsStore.open(Paths.get(args[0]))) {
+			String command = args[1];
+			if (command.equals("import") && args.length >= 3) {
+				int imported = store.importYaml(Paths.get(args[2]), args.length > 3 ? args[3] : null);
+				System.out.println("Imported " + imported + " summaries files: " + store.report());
+			} else if (command.equals("export") && args.length == 4) {
+				int exported = store.exportYaml(Paths.get(args[2]), args[3]);
+				System.out.println("Exported the summaries of " + exported + " models of JDLL " + args[3] + " to " + args[2]);
+			} else if (command.equals("query")) {
+				query(store, Arrays.asList(args).subList(2, args.length));
+			} else if (command.equals("regressions") && args.length == 4) {
+				List<Row> regressed = store.regressions(args[2], args[3]);
+				for (Row row : regressed)
+					System.out.println(row);
+				System.out.println(regressed.size() + " tests passed with JDLL " + args[2] + " and did not pass with " + args[3]);
+			} else if (command.equals("compact")) {
+				store.compact();
+				System.out.println("Compacted the store: " + store.report());
+			} else {
+				throw new IllegalArgumentException("Unknown command or wrong number of arguments: " + String.join(" ", args));
+			}
+		}
+	}
+	
+	private static void query(ResultsStore store, List<String> args) {
+		Query query = store.query();
+		String countBy = null;
+		List<String> metricNames = new ArrayList<String>();
+		for (int i = 0; i < args.size(); i ++) {
+			String option = args.get(i);
+			if (!option.startsWith("--") || i + 1 == args.size())
+				throw new IllegalArgumentException("Expected an option with a value but got '" + option + "'.");
+			String value = args.get(++ i);
+			if (option.equals("--error"))
+				query.errorContains(value);
+			else if (option.equals("--metric"))
+				metricNames.add(value);
+			else if (option.equals("--count-by"))
+				countBy = value.replace('-', '_');
+			else
+				query.where(option.substring(2).replace('-', '_'), value);
+		}
+		if (countBy != null) {
+			for (Entry<String, Integer> entry : query.countBy(countBy).entrySet())
+				System.out.println(entry.getValue() + "\t" + entry.getKey());
+			return;
+		}
+		List<Row> rows = query.rows();
+		for (Row row : rows) {
+			StringBuilder line = new StringBuilder(row.toString());
+			for (String metric : metricNames)
+				line.append("\t").append(row.getMetric(metric) == null ? "" : row.getMetric(metric));
+			System.out.println(line);
+		}
+		System.out.println(rows.size() + " tests");
+	}
+}
@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+/**
+ * Objects shared by all the tests of a run
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class RunContext {
+	
+	/**
+	 * Options of the run
+	 */
+	private final RunOptions options;
+	/**
+	 * Groups of tests by engine
+	 */
+	private final EngineGroups engines;
+	/**
+	 * Provider of the downloaded models
+	 */
+	private final ModelDownloader downloader;
+	/**
+	 * Time and memory used by the stages of all the tests
+	 */
+	private final RunMetrics metrics;
+	/**
+	 * Worker JVMs that run the models, null if they run in this JVM
+	 */
+	private final WorkerPool workers;
+	/**
+	 * Writer of the summaries
+	 */
+	private final SummaryWriter summaries;
+	/**
+	 * Enforces the deadlines of the tests
+	 */
+	private final Watchdog watchdog;
+	/**
+	 * Pool of the buffers of the images created by the tests, null to allocate them in the heap
+	 */
+	private final BufferPool buffers;
+	/**
+	 * Journal of the tests of the run
+	 */
+	private final RunJournal journal;
+	
+	/**
+	 * Create the context of a run
+	 * @param options
+	 * 	options of the run
+	 * @param engines
+	 * 	groups of tests by engine
+	 * @param downloader
+	 * 	provider of the downloaded models
+	 * @param metrics
+	 * 	time and memory used by the stages of all the tests
+	 * @param workers
+	 * 	worker JVMs that run the models, null to run them in this JVM
+	 * @param summaries
+	 * 	writer of the summaries
+	 * @param watchdog
+	 * 	enforces the deadlines of the tests
+	 * @param buffers
+	 * 	pool of the buffers of the images created by the tests, null to allocate them in the heap
+	 * @param journal
+	 * 	journal of the tests of the run
+	 */
+	public RunContext(RunOptions options, EngineGroups engines, ModelDownloader downloader, RunMetrics metrics, 
+			WorkerPool workers, SummaryWriter summaries, Watchdog watchdog, BufferPool buffers, RunJournal journal) {
+		this.options = options;
+		this.engines = engines;
+		this.downloader = downloader;
+		this.metrics = metrics;
+		this.workers = workers;
+		this.summaries = summaries;
+		this.watchdog = watchdog;
+		this.buffers = buffers;
+		this.journal = journal;
+	}
+	
+	/**
+	 * 
+	 * @return options of the run
+	 */
+	public RunOptions getOptions() {
+		return options;
+	}
+	
+	/**
+	 * 
+	 * @return groups of tests by engine
+	 */
+	public EngineGroups getEngines() {
+		return engines;
+	}
+	
+	/**
+	 * 
+	 * @return provider of the downloaded models
+	 */
+	public ModelDownloader getDownloader() {
+		return downloader;
+	}
+	
+	/**
+	 * 
+	 * @return time and memory used by the stages of all the tests
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * 
+	 * @return worker JVMs that run the models, null if they run in this JVM
+	 */
+	public WorkerPool getWorkers() {
+		return workers;
+	}
+	
+	/**
+	 * 
+	 * @return writer of the summaries
+	 */
+	public SummaryWriter getSummaries() {
+		return summaries;
+	}
+	
+	/**
+	 * 
+	 * @return the watchdog that enforces the deadlines of the tests
+	 */
+	public Watchdog getWatchdog() {
+		return watchdog;
+	}
+	
+	/**
+	 * 
+	 * @return pool of the buffers of the images created by the tests, null if they are allocated in the heap
+	 */
+	public BufferPool getBuffers() {
+		return buffers;
+	}
+	
+	/**
+	 * 
+	 * @return journal of the tests of the run
+	 */
+	public RunJournal getJournal() {
+		return journal;
+	}
+}
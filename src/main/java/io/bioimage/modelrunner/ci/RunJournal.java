@@ -0,0 +1,289 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Append-only journal of the tests of a run, so a run that is killed, times out or crashes
+ * can be resumed without testing again the models that were already tested.
+ * Before a weight format of a model is tested a start record is appended, and once it is 
+ * tested a record with its summaries and engine. Every record is forced to the disk before the
+ * test continues.
+ * 
+ * The journal is a {@link RecordFile} whose records are YAML maps. When the journal is opened, 
+ * the records are replayed until the end of the file or the first record that is incomplete or 
+ * corrupt, the last one written when the process died. The results are matched with the key of the test, which changes
+ * with the rdf.yaml and the JDLL version, so a journal never resumes the tests of a different model.
+ * A test that was started {@link #MAX_ATTEMPTS} times without finishing is taken as the cause 
+ * of the crashes and is not run again.
+ * 
+ * The journal is written next to the summaries and deleted when the run finishes. Where the 
+ * machine does not outlive the run, as the runners of the GitHub workflow, the journal has to
+ * be kept by whatever runs the tests: the workflow saves it to the actions cache after every 
+ * attempt, even a failed one, and restores it before the tests of a re-run of the same run.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class RunJournal implements AutoCloseable {
+	
+	/**
+	 * Prefix of the journal files, followed by the JDLL version
+	 */
+	public static final String PREFIX = "run_journal_";
+	/**
+	 * Number of times a test can be started without finishing before it is marked as failed
+	 */
+	public static final int MAX_ATTEMPTS = 2;
+	/**
+	 * First bytes of every journal, with the version of the format
+	 */
+	private static final byte[] MAGIC = "JDLLJRN1".getBytes(StandardCharsets.US_ASCII);
+	
+	private static final String TYPE = "type";
+	private static final String STARTED = "started";
+	private static final String FINISHED = "finished";
+	private static final String ID = "id";
+	private static final String WEIGHT_FORMAT = "weight_format";
+	private static final String KEY = "key";
+	private static final String ENGINE = "engine";
+	private static final String SUMMARIES = "summaries";
+	
+	/**
+	 * Records of the journal
+	 */
+	private RecordFile records;
+	/**
+	 * Emits and parses the content of the records
+	 */
+	private final Yaml yaml;
+	/**
+	 * Last finished record of each test
+	 */
+	private final Map<String, Map<String, Object>> finished = new HashMap<String, Map<String, Object>>();
+	/**
+	 * Number of times each test was started without finishing
+	 */
+	private final Map<String, Integer> attempts = new HashMap<String, Integer>();
+	/**
+	 * Number of records replayed when the journal was opened
+	 */
+	private int replayed;
+	/**
+	 * Number of tests whose results were taken from the journal
+	 */
+	private int resumed;
+	/**
+	 * Number of tests marked as failed because they were started too many times
+	 */
+	private int abandoned;
+	
+	private RunJournal() {
+		DumperOptions options = new DumperOptions();
+		options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+		this.yaml = new Yaml(options);
+	}
+	
+	/**
+	 * Open the journal of a run, replaying the records of the previous attempt if there is one
+	 * @param summariesDir
+	 * 	directory where the summaries of the run are written
+	 * @param name
+	 * 	name of the run, the JDLL version and the shard, if any
+	 * @param restart
+	 * 	whether to discard the records of the previous attempt and test every model again
+	 * @return the journal, ready to append records
+	 * @throws IOException if the journal cannot be read or created
+	 */
+	public static RunJournal open(Path summariesDir, String name, boolean restart) throws IOException {
+		Files.createDirectories(summariesDir);
+		Path file = summariesDir.resolve(PREFIX + name + ".bin");
+		if (restart)
+			Files.deleteIfExists(file);
+		RunJournal journal = new RunJournal();
+		journal.records = RecordFile.open(file, MAGIC, true, (position, content) -> journal.apply(content));
+		if (journal.replayed > 0)
+			System.out.println("Resuming the run from the journal " + file + ": " + journal.finished.size() 
+					+ " tests finished, " + journal.attempts.size() + " interrupted");
+		return journal;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void apply(byte[] content) {
+		Map<String, Object> record = (Map<String, Object>) yaml.load(new String(content, StandardCharsets.UTF_8));
+		String key = key((String) record.get(ID), (String) record.get(WEIGHT_FORMAT), (String) record.get(KEY));
+		if (STARTED.equals(record.get(TYPE))) {
+			attempts.merge(key, 1, Integer::sum);
+		} else {
+			finished.put(key, record);
+			attempts.remove(key);
+		}
+		replayed ++;
+	}
+	
+	/**
+	 * Get the results of a test finished in a previous attempt of the run
+	 * @param modelId
+	 * 	id of the model
+	 * @param weightFormat
+	 * 	framework of the weight format
+	 * @param key
+	 * 	key of the test, see {@link SummaryCache#computeKey(byte[], Map, String, String)}
+	 * @return the summaries of the test or null if it did not finish
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<Object> getSummaries(String modelId, String weightFormat, String key) {
+		Map<String, Object> record = finished.get(key(modelId, weightFormat, key));
+		if (record == null)
+			return null;
+		resumed ++;
+		return (List<Object>) record.get(SUMMARIES);
+	}
+	
+	/**
+	 * 
+	 * @param modelId
+	 * 	id of the model
+	 * @param weightFormat
+	 * 	framework of the weight format
+	 * @param key
+	 * 	key of the test
+	 * @return engine that ran a test finished in a previous attempt of the run, null if it 
+	 * 	did not finish or reused older results
+	 */
+	public synchronized String getEngine(String modelId, String weightFormat, String key) {
+		Map<String, Object> record = finished.get(key(modelId, weightFormat, key));
+		return record == null ? null : (String) record.get(ENGINE);
+	}
+	
+	/**
+	 * 
+	 * @param modelId
+	 * 	id of the model
+	 * @param weightFormat
+	 * 	framework of the weight format
+	 * @param key
+	 * 	key of the test
+	 * @return number of times the test was started in previous attempts of the run without finishing
+	 */
+	public synchronized int getAttempts(String modelId, String weightFormat, String key) {
+		Integer count = attempts.get(key(modelId, weightFormat, key));
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * Record that a test is not run again because it was started too many times, see {@link #MAX_ATTEMPTS}
+	 */
+	synchronized void abandoned() {
+		abandoned ++;
+	}
+	
+	/**
+	 * Record that a test starts
+	 * @param job
+	 * 	the test
+	 * @throws IOException if the record cannot be written
+	 */
+	public void started(TestJob job) throws IOException {
+		append(record(STARTED, job.getModel().getId(), job.getWeightFormat().getFramework(), job.getCacheKey(), null, null));
+	}
+	
+	/**
+	 * Record the results of a test
+	 * @param modelId
+	 * 	id of the model
+	 * @param weightFormat
+	 * 	framework of the weight format
+	 * @param key
+	 * 	key of the test
+	 * @param engineKey
+	 * 	engine that ran the test, null if older results were reused
+	 * @param summaries
+	 * 	the summaries of the test, before they are merged with the ones of the rest of weight formats
+	 * @throws IOException if the record cannot be written
+	 */
+	public void finished(String modelId, String weightFormat, String key, String engineKey, 
+			List<Object> summaries) throws IOException {
+		append(record(FINISHED, modelId, weightFormat, key, engineKey, summaries));
+	}
+	
+	private static Map<String, Object> record(String type, String modelId, String weightFormat, String key, 
+			String engineKey, List<Object> summaries) {
+		Map<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put(TYPE, type);
+		record.put(ID, modelId);
+		record.put(WEIGHT_FORMAT, weightFormat);
+		record.put(KEY, key);
+		if (type.equals(FINISHED)) {
+			record.put(ENGINE, engineKey);
+			record.put(SUMMARIES, summaries);
+		}
+		return record;
+	}
+	
+	/**
+	 * Append a record and force it to the disk
+	 */
+	private synchronized void append(Map<String, Object> record) throws IOException {
+		records.append(yaml.dump(record).getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static String key(String modelId, String weightFormat, String key) {
+		return modelId + "\n" + weightFormat + "\n" + key;
+	}
+	
+	/**
+	 * 
+	 * @return the records replayed, the bytes truncated and the tests resumed and abandoned
+	 */
+	public synchronized Map<String, Object> report() {
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("replayed", replayed);
+		report.put("truncated_bytes", records.getTruncated());
+		report.put("resumed", resumed);
+		report.put("abandoned", abandoned);
+		return report;
+	}
+	
+	/**
+	 * Close the journal and delete it, once every test of the run finished and its summaries 
+	 * were written
+	 * @throws IOException if the journal cannot be deleted
+	 */
+	public void delete() throws IOException {
+		close();
+		Files.deleteIfExists(records.getFile());
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		records.close();
+	}
+}
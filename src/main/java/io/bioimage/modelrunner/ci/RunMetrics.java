@@ -0,0 +1,226 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Aggregation of the {@link StageMetrics} of all the tests of a run, grouped by the engine
+ * used to run the model. The aggregation is written as JSON and in the Prometheus text format
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class RunMetrics {
+	
+	/**
+	 * Group that contains the measurements of every test, whatever its engine
+	 */
+	public static final String ALL_ENGINES = "all";
+	/**
+	 * Quantiles reported for the duration of each stage
+	 */
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+	/**
+	 * Prefix of the Prometheus metrics
+	 */
+	private static final String PREFIX = "jdll_ci_";
+	
+	/**
+	 * For each engine, and each stage, the measurements of every test
+	 */
+	private final Map<String, Map<String, List<long[]>>> engines = new TreeMap<String, Map<String, List<long[]>>>();
+	/**
+	 * Number of tests measured for each engine
+	 */
+	private final Map<String, Integer> tests = new TreeMap<String, Integer>();
+	
+	/**
+	 * Add the measurements of a test
+	 * @param engine
+	 * 	engine used by the test, the measurements are also added to {@link #ALL_ENGINES}
+	 * @param metrics
+	 * 	the measurements
+	 */
+	public synchronized void record(String engine, StageMetrics metrics) {
+		Map<String, long[]> stages = metrics.getStages();
+		List<String> groups = new ArrayList<String>();
+		groups.add(ALL_ENGINES);
+		if (engine != null && !engine.equals(ALL_ENGINES))
+			groups.add(engine);
+		for (String group : groups) {
+			tests.put(group, tests.getOrDefault(group, 0) + 1);
+			Map<String, List<long[]>> engineStages = engines.computeIfAbsent(group, k -> new LinkedHashMap<String, List<long[]>>());
+			for (Entry<String, long[]> stage : stages.entrySet())
+				engineStages.computeIfAbsent(stage.getKey(), k -> new ArrayList<long[]>()).add(stage.getValue());
+		}
+	}
+	
+	/**
+	 * Statistics of one stage of one engine: number of measurements, mean, quantiles and 
+	 * max of the duration in nanoseconds, max heap delta and max direct memory delta in bytes
+	 */
+	private static double[] statistics(List<long[]> measurements) {
+		int n = measurements.size();
+		double[] durations = new double[n];
+		double sum = 0;
+		long maxHeap = Long.MIN_VALUE;
+		long maxDirect = Long.MIN_VALUE;
+		for (int i = 0; i < n; i ++) {
+			long[] mm = measurements.get(i);
+			durations[i] = mm[0];
+			sum += mm[0];
+			maxHeap = Math.max(maxHeap, mm[1]);
+			maxDirect = Math.max(maxDirect, mm[2]);
+		}
+		Arrays.sort(durations);
+		double[] stats = new double[4 + QUANTILES.length + 2];
+		stats[0] = n;
+		stats[1] = sum;
+		stats[2] = sum / n;
+		for (int i = 0; i < QUANTILES.length; i ++)
+			stats[3 + i] = percentile(durations, QUANTILES[i]);
+		stats[3 + QUANTILES.length] = durations[n - 1];
+		stats[4 + QUANTILES.length] = maxHeap;
+		stats[5 + QUANTILES.length] = maxDirect;
+		return stats;
+	}
+	
+	/**
+	 * Nearest-rank percentile of sorted values
+	 * @param sorted
+	 * 	the values, sorted in ascending order
+	 * @param quantile
+	 * 	the quantile, between 0 and 1
+	 * @return the value at the quantile
+	 */
+	static double percentile(double[] sorted, double quantile) {
+		int rank = (int) Math.ceil(quantile * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+	
+	/**
+	 * Write the aggregated measurements as JSON. Durations are in milliseconds and memory in MB
+	 * @param file
+	 * 	the file to write
+	 * @param jdllVersion
+	 * 	version of JDLL tested
+	 * @throws IOException if there is any error writing the file
+	 */
+	public synchronized void writeJson(Path file, String jdllVersion) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"jdll_version\": ").append(quote(jdllVersion)).append(",\n  \"engines\": {");
+		String engineSep = "\n";
+		for (Entry<String, Map<String, List<long[]>>> engine : engines.entrySet()) {
+			json.append(engineSep).append("    ").append(quote(engine.getKey())).append(": {\n");
+			json.append("      \"tests\": ").append(tests.get(engine.getKey())).append(",\n");
+			json.append("      \"stages\": {");
+			String stageSep = "\n";
+			for (Entry<String, List<long[]>> stage : engine.getValue().entrySet()) {
+				double[] stats = statistics(stage.getValue());
+				json.append(stageSep).append("        ").append(quote(stage.getKey())).append(": {");
+				json.append("\"count\": ").append((long) stats[0]);
+				json.append(", \"mean_ms\": ").append(number(stats[2] / 1e6));
+				for (int i = 0; i < QUANTILES.length; i ++)
+					json.append(", \"p").append(Math.round(QUANTILES[i] * 100)).append("_ms\": ").append(number(stats[3 + i] / 1e6));
+				json.append(", \"max_ms\": ").append(number(stats[3 + QUANTILES.length] / 1e6));
+				json.append(", \"max_heap_delta_mb\": ").append(number(stats[4 + QUANTILES.length] / (1024 * 1024)));
+				json.append(", \"max_direct_delta_mb\": ").append(number(stats[5 + QUANTILES.length] / (1024 * 1024)));
+				json.append("}");
+				stageSep = ",\n";
+			}
+			json.append("\n      }\n    }");
+			engineSep = ",\n";
+		}
+		json.append("\n  }\n}\n");
+		write(file, json.toString());
+	}
+	
+	/**
+	 * Write the aggregated measurements in the Prometheus text exposition format. 
+	 * Durations are in seconds and memory in bytes
+	 * @param file
+	 * 	the file to write
+	 * @param jdllVersion
+	 * 	version of JDLL tested
+	 * @throws IOException if there is any error writing the file
+	 */
+	public synchronized void writePrometheus(Path file, String jdllVersion) throws IOException {
+		StringBuilder duration = new StringBuilder();
+		StringBuilder heap = new StringBuilder();
+		StringBuilder direct = new StringBuilder();
+		StringBuilder count = new StringBuilder();
+		for (Entry<String, Map<String, List<long[]>>> engine : engines.entrySet()) {
+			String engineLabels = "jdll_version=" + quote(String.valueOf(jdllVersion)) + ",engine=" + quote(engine.getKey());
+			count.append(PREFIX).append("tests{").append(engineLabels).append("} ").append(tests.get(engine.getKey())).append('\n');
+			for (Entry<String, List<long[]>> stage : engine.getValue().entrySet()) {
+				double[] stats = statistics(stage.getValue());
+				String labels = engineLabels + ",stage=" + quote(stage.getKey());
+				for (int i = 0; i < QUANTILES.length; i ++)
+					duration.append(PREFIX).append("stage_duration_seconds{").append(labels).append(",quantile=\"")
+						.append(QUANTILES[i]).append("\"} ").append(stats[3 + i] / 1e9).append('\n');
+				duration.append(PREFIX).append("stage_duration_seconds_sum{").append(labels).append("} ")
+					.append(stats[1] / 1e9).append('\n');
+				duration.append(PREFIX).append("stage_duration_seconds_count{").append(labels).append("} ")
+					.append((long) stats[0]).append('\n');
+				heap.append(PREFIX).append("stage_heap_delta_max_bytes{").append(labels).append("} ")
+					.append((long) stats[4 + QUANTILES.length]).append('\n');
+				direct.append(PREFIX).append("stage_direct_delta_max_bytes{").append(labels).append("} ")
+					.append((long) stats[5 + QUANTILES.length]).append('\n');
+			}
+		}
+		StringBuilder prom = new StringBuilder();
+		prom.append("# HELP ").append(PREFIX).append("tests Number of tests measured\n");
+		prom.append("# TYPE ").append(PREFIX).append("tests gauge\n").append(count);
+		prom.append("# HELP ").append(PREFIX).append("stage_duration_seconds Duration of each stage of the tests\n");
+		prom.append("# TYPE ").append(PREFIX).append("stage_duration_seconds summary\n").append(duration);
+		prom.append("# HELP ").append(PREFIX).append("stage_heap_delta_max_bytes Largest change of the used heap during a stage\n");
+		prom.append("# TYPE ").append(PREFIX).append("stage_heap_delta_max_bytes gauge\n").append(heap);
+		prom.append("# HELP ").append(PREFIX).append("stage_direct_delta_max_bytes Largest change of the direct buffer memory during a stage\n");
+		prom.append("# TYPE ").append(PREFIX).append("stage_direct_delta_max_bytes gauge\n").append(direct);
+		write(file, prom.toString());
+	}
+	
+	private static void write(Path file, String content) throws IOException {
+		if (file.getParent() != null)
+			Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static String number(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+	
+	private static String quote(String value) {
+		if (value == null)
+			return "null";
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+	}
+}
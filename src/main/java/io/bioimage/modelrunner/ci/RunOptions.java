@@ -0,0 +1,912 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options that control how {@link ContinuousIntegration#runTests} runs the tests.
+ * They can be provided from the command line with the form '--option value' or
+ * '--option=value'. Arguments that do not start with '--' are kept as positional
+ * arguments.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class RunOptions {
+	
+	/**
+	 * Command line option to set the number of models tested at the same time
+	 */
+	public static final String PARALLELISM_OPTION = "parallelism";
+	/**
+	 * Command line flag to only test the models and weight formats that changed since the last run
+	 */
+	public static final String INCREMENTAL_FLAG = "incremental";
+	/**
+	 * Command line flag to discard the journal of an interrupted run and test every model again
+	 */
+	public static final String RESTART_FLAG = "restart";
+	/**
+	 * Command line option to set the folder of the persistent model cache
+	 */
+	public static final String MODEL_CACHE_OPTION = "model-cache";
+	/**
+	 * Command line option to set the maximum size of the model cache in GB
+	 */
+	public static final String MODEL_CACHE_GB_OPTION = "model-cache-gb";
+	/**
+	 * Command line option to set the number of models downloaded ahead of the ones being tested
+	 */
+	public static final String PREFETCH_OPTION = "prefetch";
+	/**
+	 * Command line option to download the models from a mirror (local folder or URL) 
+	 * instead of from the Bioimage.io repository
+	 */
+	public static final String MODEL_MIRROR_OPTION = "model-mirror";
+	/**
+	 * Command line option to set which of the shards of the rdf.yaml files is tested, from 0 to
+	 * the number of shards - 1
+	 */
+	public static final String SHARD_INDEX_OPTION = "shard-index";
+	/**
+	 * Command line option to split the rdf.yaml files into several shards tested by different machines
+	 */
+	public static final String SHARD_COUNT_OPTION = "shard-count";
+	/**
+	 * Command line option to copy the files written by the shard, and its manifest, to a directory
+	 */
+	public static final String SHARD_OUTPUT_OPTION = "shard-output";
+	/**
+	 * Command line option to run the models in worker JVMs, with the number of workers of each engine
+	 */
+	public static final String WORKERS_OPTION = "workers";
+	/**
+	 * Command line option with the extra arguments of the worker JVMs, separated by spaces
+	 */
+	public static final String WORKER_JVM_ARGS_OPTION = "worker-jvm-args";
+	/**
+	 * Command line option to run the models in tiles on the test inputs bigger than the given size in MB
+	 */
+	public static final String TILE_MB_OPTION = "tile-mb";
+	/**
+	 * Command line option to set the maximum time in seconds of the test of each weight format
+	 */
+	public static final String MODEL_TIMEOUT_OPTION = "model-timeout";
+	/**
+	 * Command line option to set the maximum time in seconds of each stage of a test
+	 */
+	public static final String STAGE_TIMEOUT_OPTION = "stage-timeout";
+	/**
+	 * Command line option to install the engines from a local mirror directory when their files are there
+	 */
+	public static final String ENGINE_MIRROR_OPTION = "engine-mirror";
+	/**
+	 * Command line option to set the number of engine files downloaded at the same time
+	 */
+	public static final String ENGINE_DOWNLOADS_OPTION = "engine-downloads";
+	/**
+	 * Command line option to set the number of measured runs of each model, 0 to not benchmark
+	 */
+	public static final String BENCHMARK_ITERATIONS_OPTION = "benchmark-iterations";
+	/**
+	 * Command line option to set the number of runs of each model before the measured ones
+	 */
+	public static final String BENCHMARK_WARMUP_OPTION = "benchmark-warmup";
+	/**
+	 * Command line option to set the heap in MB that the concurrent tests can use
+	 */
+	public static final String HEAP_BUDGET_OPTION = "heap-budget-mb";
+	/**
+	 * Command line option to set the direct buffer memory in MB that the concurrent tests can use
+	 */
+	public static final String DIRECT_BUDGET_OPTION = "direct-budget-mb";
+	/**
+	 * Command line option to set the native memory in MB that the engines of the concurrent tests can use
+	 */
+	public static final String NATIVE_BUDGET_OPTION = "native-budget-mb";
+	/**
+	 * Command line option to set the maximum size in MB of the pool of image buffers, 0 to not pool them
+	 */
+	public static final String BUFFER_POOL_MB_OPTION = "buffer-pool-mb";
+	/**
+	 * Command line option to set the number of bins used to approximate the percentiles, 0 to compute them exactly
+	 */
+	public static final String PERCENTILE_BINS_OPTION = "percentile-bins";
+	/**
+	 * Command line option to also append the results of the run to a {@link ResultsStore} directory
+	 */
+	public static final String RESULTS_STORE_OPTION = "results-store";
+	/**
+	 * Options that do not need a value
+	 */
+	private static final List<String> FLAGS = new ArrayList<String>();
+	static {
+		FLAGS.add(INCREMENTAL_FLAG);
+		FLAGS.add(RESTART_FLAG);
+	}
+	/**
+	 * Number of models that are tested concurrently
+	 */
+	private int parallelism = 1;
+	/**
+	 * Whether to reuse the results of the previous run for the models that did not change
+	 */
+	private boolean incremental = false;
+	/**
+	 * Whether to discard the journal of an interrupted run instead of resuming it
+	 */
+	private boolean restart = false;
+	/**
+	 * Folder of the persistent model cache
+	 */
+	private String modelCache = "models_cache";
+	/**
+	 * Maximum size of the model cache in GB, 0 to derive it from the free disk space
+	 */
+	private double modelCacheGB = 0;
+	/**
+	 * Number of models downloaded ahead of the ones being tested
+	 */
+	private int prefetch = 2;
+	/**
+	 * Mirror from where the models are downloaded, null to use the Bioimage.io repository
+	 */
+	private String modelMirror;
+	/**
+	 * Index of the shard tested
+	 */
+	private int shardIndex = 0;
+	/**
+	 * Number of shards the rdf.yaml files are split into
+	 */
+	private int shardCount = 1;
+	/**
+	 * Directory where the files written by the shard are copied, null to not copy them
+	 */
+	private String shardOutput;
+	/**
+	 * Number of worker JVMs of each engine, 0 to run the models in this JVM
+	 */
+	private int workers = 0;
+	/**
+	 * Extra arguments of the worker JVMs
+	 */
+	private List<String> workerJvmArgs = new ArrayList<String>();
+	/**
+	 * Maximum size in MB of the input given to the model at once, 0 to never tile
+	 */
+	private double tileMB = 0;
+	/**
+	 * Maximum time in seconds of the test of each weight format, 0 for no limit
+	 */
+	private double modelTimeout = 0;
+	/**
+	 * Maximum time in seconds of each stage of a test, 0 for no limit
+	 */
+	private double stageTimeout = 0;
+	/**
+	 * Directory with copies of the engine files, null to always download them
+	 */
+	private String engineMirror;
+	/**
+	 * Number of engine files downloaded at the same time
+	 */
+	private int engineDownloads = 4;
+	/**
+	 * Number of measured runs of each model after the test run, 0 to not benchmark
+	 */
+	private int benchmarkIterations = 0;
+	/**
+	 * Number of runs of each model, after the test run, that are not measured
+	 */
+	private int benchmarkWarmup = 5;
+	/**
+	 * Heap in MB that the concurrent tests can use, 0 to derive it from the maximum heap
+	 */
+	private double heapBudgetMB = 0;
+	/**
+	 * Direct buffer memory in MB that the concurrent tests can use, 0 to derive it from the JVM limit
+	 */
+	private double directBudgetMB = 0;
+	/**
+	 * Native memory in MB that the engines of the concurrent tests can use, 0 to derive it 
+	 * from the physical memory
+	 */
+	private double nativeBudgetMB = 0;
+	/**
+	 * Maximum size in MB of the pool of image buffers, 0 to allocate the images in the heap
+	 */
+	private double bufferPoolMB = 0;
+	/**
+	 * Number of bins used to approximate the percentiles of scale_range, 0 to compute them exactly
+	 */
+	private int percentileBins = 0;
+	/**
+	 * Directory of the store where the results are appended, null to only write the summaries files
+	 */
+	private String resultsStore;
+	/**
+	 * Arguments that are not options
+	 */
+	private List<String> positional = new ArrayList<String>();
+	
+	private RunOptions() {
+	}
+	
+	/**
+	 * Create the default options, which run the tests sequentially
+	 * @return the default options
+	 */
+	public static RunOptions defaults() {
+		return new RunOptions();
+	}
+	
+	/**
+	 * Parse the options from the command line arguments
+	 * @param args
+	 * 	the command line arguments
+	 * @return the options defined by the arguments
+	 * @throws IllegalArgumentException if any option is unknown or has an invalid value
+	 */
+	public static RunOptions parse(String[] args) throws IllegalArgumentException {
+		RunOptions options = new RunOptions();
+		for (int i = 0; i < args.length; i ++) {
+			if (!args[i].startsWith("--")) {
+				options.positional.add(args[i]);
+				continue;
+			}
+			String name = args[i].substring(2);
+			String value;
+			if (name.contains("=")) {
+				value = name.substring(name.indexOf("=") + 1);
+				name = name.substring(0, name.indexOf("="));
+			} else if (FLAGS.contains(name)) {
+				value = "true";
+			} else if (i + 1 < args.length) {
+				value = args[++ i];
+			} else {
+				throw new IllegalArgumentException("Missing value for option '--" + name + "'.");
+			}
+			options.set(name, value);
+		}
+		return options;
+	}
+	
+	private void set(String name, String value) throws IllegalArgumentException {
+		if (name.equals(PARALLELISM_OPTION)) {
+			setParallelism(parseInt(name, value));
+		} else if (name.equals(INCREMENTAL_FLAG)) {
+			setIncremental(Boolean.parseBoolean(value.trim()));
+		} else if (name.equals(RESTART_FLAG)) {
+			setRestart(Boolean.parseBoolean(value.trim()));
+		} else if (name.equals(MODEL_CACHE_OPTION)) {
+			setModelCache(value);
+		} else if (name.equals(MODEL_CACHE_GB_OPTION)) {
+			setModelCacheGB(parseDouble(name, value));
+		} else if (name.equals(PREFETCH_OPTION)) {
+			setPrefetch(parseInt(name, value));
+		} else if (name.equals(MODEL_MIRROR_OPTION)) {
+			setModelMirror(value);
+		} else if (name.equals(SHARD_INDEX_OPTION)) {
+			setShardIndex(parseInt(name, value));
+		} else if (name.equals(SHARD_COUNT_OPTION)) {
+			setShardCount(parseInt(name, value));
+		} else if (name.equals(SHARD_OUTPUT_OPTION)) {
+			setShardOutput(value);
+		} else if (name.equals(WORKERS_OPTION)) {
+			setWorkers(parseInt(name, value));
+		} else if (name.equals(WORKER_JVM_ARGS_OPTION)) {
+			List<String> args = new ArrayList<String>();
+			for (String arg : value.trim().split("\\s+")) {
+				if (!arg.isEmpty())
+					args.add(arg);
+			}
+			setWorkerJvmArgs(args);
+		} else if (name.equals(TILE_MB_OPTION)) {
+			setTileMB(parseDouble(name, value));
+		} else if (name.equals(MODEL_TIMEOUT_OPTION)) {
+			setModelTimeout(parseDouble(name, value));
+		} else if (name.equals(STAGE_TIMEOUT_OPTION)) {
+			setStageTimeout(parseDouble(name, value));
+		} else if (name.equals(ENGINE_MIRROR_OPTION)) {
+			setEngineMirror(value);
+		} else if (name.equals(ENGINE_DOWNLOADS_OPTION)) {
+			setEngineDownloads(parseInt(name, value));
+		} else if (name.equals(BENCHMARK_ITERATIONS_OPTION)) {
+			setBenchmarkIterations(parseInt(name, value));
+		} else if (name.equals(BENCHMARK_WARMUP_OPTION)) {
+			setBenchmarkWarmup(parseInt(name, value));
+		} else if (name.equals(HEAP_BUDGET_OPTION)) {
+			setHeapBudgetMB(parseDouble(name, value));
+		} else if (name.equals(DIRECT_BUDGET_OPTION)) {
+			setDirectBudgetMB(parseDouble(name, value));
+		} else if (name.equals(NATIVE_BUDGET_OPTION)) {
+			setNativeBudgetMB(parseDouble(name, value));
+		} else if (name.equals(BUFFER_POOL_MB_OPTION)) {
+			setBufferPoolMB(parseDouble(name, value));
+		} else if (name.equals(PERCENTILE_BINS_OPTION)) {
+			setPercentileBins(parseInt(name, value));
+		} else if (name.equals(RESULTS_STORE_OPTION)) {
+			setResultsStore(value);
+		} else {
+			throw new IllegalArgumentException("Unknown option '--" + name + "'.");
+		}
+	}
+	
+	private static int parseInt(String name, String value) throws IllegalArgumentException {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Option '--" + name + "' expects an integer but got '" + value + "'.");
+		}
+	}
+	
+	private static double parseDouble(String name, String value) throws IllegalArgumentException {
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Option '--" + name + "' expects a number but got '" + value + "'.");
+		}
+	}
+	
+	/**
+	 * 
+	 * @return number of models that are tested concurrently
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	/**
+	 * Set the number of models that are tested concurrently
+	 * @param parallelism
+	 * 	number of models tested at the same time, at least 1
+	 * @return this object
+	 */
+	public RunOptions setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("The parallelism should be at least 1, but it was " + parallelism);
+		this.parallelism = parallelism;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return whether the results of the previous run are reused for the models and weight 
+	 * 	formats that did not change
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+	
+	/**
+	 * Set whether the results of the previous run are reused for the models and weight 
+	 * formats that did not change
+	 * @param incremental
+	 * 	whether to run in incremental mode
+	 * @return this object
+	 */
+	public RunOptions setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return whether the journal of an interrupted run is discarded instead of resumed
+	 */
+	public boolean isRestart() {
+		return restart;
+	}
+	
+	/**
+	 * Set whether a run resumes the tests of an interrupted run with the same summaries directory,
+	 * JDLL version and shard, see {@link RunJournal}
+	 * @param restart
+	 * 	true to discard the journal of the interrupted run and test every model again
+	 * @return this object
+	 */
+	public RunOptions setRestart(boolean restart) {
+		this.restart = restart;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return folder of the persistent model cache
+	 */
+	public String getModelCache() {
+		return modelCache;
+	}
+	
+	/**
+	 * Set the folder of the persistent model cache
+	 * @param modelCache
+	 * 	the folder
+	 * @return this object
+	 */
+	public RunOptions setModelCache(String modelCache) {
+		this.modelCache = modelCache;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return maximum size of the model cache in GB, 0 if it is derived from the free disk space
+	 */
+	public double getModelCacheGB() {
+		return modelCacheGB;
+	}
+	
+	/**
+	 * Set the maximum size of the model cache. The least recently used models are removed 
+	 * when the cache is bigger
+	 * @param modelCacheGB
+	 * 	maximum size in GB, 0 to use half of the disk space available to the cache
+	 * @return this object
+	 */
+	public RunOptions setModelCacheGB(double modelCacheGB) {
+		if (modelCacheGB < 0)
+			throw new IllegalArgumentException("The size of the model cache cannot be negative: " + modelCacheGB);
+		this.modelCacheGB = modelCacheGB;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return number of models downloaded ahead of the ones being tested
+	 */
+	public int getPrefetch() {
+		return prefetch;
+	}
+	
+	/**
+	 * Set the number of models downloaded in the background ahead of the ones being tested
+	 * @param prefetch
+	 * 	number of models, 0 to disable prefetching
+	 * @return this object
+	 */
+	public RunOptions setPrefetch(int prefetch) {
+		if (prefetch < 0)
+			throw new IllegalArgumentException("The number of models prefetched cannot be negative: " + prefetch);
+		this.prefetch = prefetch;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return the mirror from where the models are downloaded, null if they are downloaded 
+	 * 	from the Bioimage.io repository
+	 */
+	public String getModelMirror() {
+		return modelMirror;
+	}
+	
+	/**
+	 * Download the models from a mirror instead of from the Bioimage.io repository. The files
+	 * of each model should be in 'mirror/MODEL_ID/'
+	 * @param modelMirror
+	 * 	local folder or URL of the mirror, null to use the Bioimage.io repository
+	 * @return this object
+	 */
+	public RunOptions setModelMirror(String modelMirror) {
+		this.modelMirror = modelMirror;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return index of the shard tested, from 0 to the number of shards - 1
+	 */
+	public int getShardIndex() {
+		return shardIndex;
+	}
+	
+	/**
+	 * Set which of the shards is tested by this run
+	 * @param shardIndex
+	 * 	index of the shard, from 0 to the number of shards - 1
+	 * @return this object
+	 */
+	public RunOptions setShardIndex(int shardIndex) {
+		if (shardIndex < 0)
+			throw new IllegalArgumentException("The shard index cannot be negative: " + shardIndex);
+		this.shardIndex = shardIndex;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return number of shards the rdf.yaml files are split into
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+	
+	/**
+	 * Split the rdf.yaml files into several shards, balanced by the runtime of the previous 
+	 * tests of each model, so they can be tested by different machines
+	 * @param shardCount
+	 * 	number of shards, 1 to test every rdf.yaml file
+	 * @return this object
+	 */
+	public RunOptions setShardCount(int shardCount) {
+		if (shardCount < 1)
+			throw new IllegalArgumentException("The number of shards should be at least 1, but it was " + shardCount);
+		this.shardCount = shardCount;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return directory where the files written by the shard are copied, null if they are not copied
+	 */
+	public String getShardOutput() {
+		return shardOutput;
+	}
+	
+	/**
+	 * Set a directory where the files written by a shard are copied at the end of the run, see
+	 * {@link ShardManifest#export(java.nio.file.Path)}. It has only the results of the shard, not the previous
+	 * results the summaries directory started from
+	 * @param shardOutput
+	 * 	the directory, null to not copy the files
+	 * @return this object
+	 */
+	public RunOptions setShardOutput(String shardOutput) {
+		this.shardOutput = shardOutput;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return number of worker JVMs of each engine, 0 if the models run in this JVM
+	 */
+	public int getWorkers() {
+		return workers;
+	}
+	
+	/**
+	 * Run the models in separate JVMs, so a crash in the native code of an engine only fails
+	 * the model that was running. Each engine gets its own pool of workers, which are reused
+	 * by all the models of the engine
+	 * @param workers
+	 * 	number of worker JVMs of each engine, 0 to run the models in this JVM
+	 * @return this object
+	 */
+	public RunOptions setWorkers(int workers) {
+		if (workers < 0)
+			throw new IllegalArgumentException("The number of workers cannot be negative: " + workers);
+		this.workers = workers;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return extra arguments of the worker JVMs
+	 */
+	public List<String> getWorkerJvmArgs() {
+		return workerJvmArgs;
+	}
+	
+	/**
+	 * Set the extra arguments of the worker JVMs, for example the maximum heap
+	 * @param workerJvmArgs
+	 * 	the arguments
+	 * @return this object
+	 */
+	public RunOptions setWorkerJvmArgs(List<String> workerJvmArgs) {
+		this.workerJvmArgs = new ArrayList<String>(workerJvmArgs);
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return maximum size in MB of the input given to the model at once, 0 if the models are never tiled
+	 */
+	public double getTileMB() {
+		return tileMB;
+	}
+	
+	/**
+	 * Run the models in tiles when their test input is bigger than the given size, so the 
+	 * memory used by the engine is bounded by the size of the tile. The outputs of the tiles
+	 * are stitched and compared with the whole test outputs
+	 * @param tileMB
+	 * 	maximum size in MB of the input given to the model at once, 0 to never tile
+	 * @return this object
+	 */
+	public RunOptions setTileMB(double tileMB) {
+		if (tileMB < 0)
+			throw new IllegalArgumentException("The size of the tiles cannot be negative: " + tileMB);
+		this.tileMB = tileMB;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return maximum time in seconds of the test of each weight format, 0 for no limit
+	 */
+	public double getModelTimeout() {
+		return modelTimeout;
+	}
+	
+	/**
+	 * Set the deadline of the test of each weight format. Tests that exceed it are stopped
+	 * and reported with the 'timeout' status
+	 * @param modelTimeout
+	 * 	maximum time in seconds of the test of each weight format, 0 for no limit
+	 * @return this object
+	 */
+	public RunOptions setModelTimeout(double modelTimeout) {
+		if (modelTimeout < 0)
+			throw new IllegalArgumentException("The timeout of the models cannot be negative: " + modelTimeout);
+		this.modelTimeout = modelTimeout;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return maximum time in seconds of each stage of a test, 0 for no limit
+	 */
+	public double getStageTimeout() {
+		return stageTimeout;
+	}
+	
+	/**
+	 * Set the deadline of each stage of a test, such as the download or the inference.
+	 * Tests with a stage that exceeds it are stopped and reported with the 'timeout' status
+	 * @param stageTimeout
+	 * 	maximum time in seconds of each stage of a test, 0 for no limit
+	 * @return this object
+	 */
+	public RunOptions setStageTimeout(double stageTimeout) {
+		if (stageTimeout < 0)
+			throw new IllegalArgumentException("The timeout of the stages cannot be negative: " + stageTimeout);
+		this.stageTimeout = stageTimeout;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return directory with copies of the engine files, null to always download them
+	 */
+	public String getEngineMirror() {
+		return engineMirror;
+	}
+	
+	/**
+	 * Install the engines from a local directory when their files are there. The directory has
+	 * the same structure as the engines directory, a folder per engine with its files
+	 * @param engineMirror
+	 * 	directory with copies of the engine files, null to always download them
+	 * @return this object
+	 */
+	public RunOptions setEngineMirror(String engineMirror) {
+		this.engineMirror = engineMirror;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return number of engine files downloaded at the same time
+	 */
+	public int getEngineDownloads() {
+		return engineDownloads;
+	}
+	
+	/**
+	 * Set the number of engine files downloaded at the same time
+	 * @param engineDownloads
+	 * 	number of concurrent downloads, at least 1
+	 * @return this object
+	 */
+	public RunOptions setEngineDownloads(int engineDownloads) {
+		if (engineDownloads < 1)
+			throw new IllegalArgumentException("The number of engine downloads should be at least 1, but it was " + engineDownloads);
+		this.engineDownloads = engineDownloads;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return number of measured runs of each model after the test run, 0 to not benchmark
+	 */
+	public int getBenchmarkIterations() {
+		return benchmarkIterations;
+	}
+	
+	/**
+	 * Benchmark the models. Once the test run is done, the model is run again on the test 
+	 * inputs, and the latency of each of these runs is measured
+	 * @param benchmarkIterations
+	 * 	number of measured runs, 0 to not benchmark
+	 * @return this object
+	 */
+	public RunOptions setBenchmarkIterations(int benchmarkIterations) {
+		if (benchmarkIterations < 0)
+			throw new IllegalArgumentException("The number of benchmark iterations cannot be negative: " + benchmarkIterations);
+		this.benchmarkIterations = benchmarkIterations;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return number of runs of each model, after the test run, that are not measured
+	 */
+	public int getBenchmarkWarmup() {
+		return benchmarkWarmup;
+	}
+	
+	/**
+	 * Set the number of runs that are not measured before the benchmark iterations, so the
+	 * latencies measured are the ones of the steady state of the engine
+	 * @param benchmarkWarmup
+	 * 	number of warmup runs
+	 * @return this object
+	 */
+	public RunOptions setBenchmarkWarmup(int benchmarkWarmup) {
+		if (benchmarkWarmup < 0)
+			throw new IllegalArgumentException("The number of benchmark warmup runs cannot be negative: " + benchmarkWarmup);
+		this.benchmarkWarmup = benchmarkWarmup;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return heap in MB that the concurrent tests can use, 0 to derive it from the maximum heap
+	 */
+	public double getHeapBudgetMB() {
+		return heapBudgetMB;
+	}
+	
+	/**
+	 * Set the heap that the tests running at the same time can use. A test only starts when its
+	 * estimated memory fits in the budgets, see {@link AdmissionController}
+	 * @param heapBudgetMB
+	 * 	the heap in MB, 0 to derive it from the maximum heap
+	 * @return this object
+	 */
+	public RunOptions setHeapBudgetMB(double heapBudgetMB) {
+		if (heapBudgetMB < 0)
+			throw new IllegalArgumentException("The heap budget cannot be negative: " + heapBudgetMB);
+		this.heapBudgetMB = heapBudgetMB;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return direct buffer memory in MB that the concurrent tests can use, 0 to derive it from the JVM limit
+	 */
+	public double getDirectBudgetMB() {
+		return directBudgetMB;
+	}
+	
+	/**
+	 * Set the direct buffer memory that the tests running at the same time can use
+	 * @param directBudgetMB
+	 * 	the direct buffer memory in MB, 0 to derive it from the JVM limit
+	 * @return this object
+	 */
+	public RunOptions setDirectBudgetMB(double directBudgetMB) {
+		if (directBudgetMB < 0)
+			throw new IllegalArgumentException("The direct memory budget cannot be negative: " + directBudgetMB);
+		this.directBudgetMB = directBudgetMB;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return native memory in MB that the engines of the concurrent tests can use, 0 to derive 
+	 * 	it from the physical memory
+	 */
+	public double getNativeBudgetMB() {
+		return nativeBudgetMB;
+	}
+	
+	/**
+	 * Set the native memory that the engines of the tests running at the same time can use
+	 * @param nativeBudgetMB
+	 * 	the native memory in MB, 0 to derive it from the physical memory
+	 * @return this object
+	 */
+	public RunOptions setNativeBudgetMB(double nativeBudgetMB) {
+		if (nativeBudgetMB < 0)
+			throw new IllegalArgumentException("The native memory budget cannot be negative: " + nativeBudgetMB);
+		this.nativeBudgetMB = nativeBudgetMB;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return maximum size in MB of the pool of image buffers, 0 to allocate the images in the heap
+	 */
+	public double getBufferPoolMB() {
+		return bufferPoolMB;
+	}
+	
+	/**
+	 * Set the maximum size of the {@link BufferPool} where the images created by the tests are 
+	 * allocated, out of the heap, and reused by the next tests. The pool is disabled by default:
+	 * the images it gives are not cleared and the buffers it keeps are taken from the direct 
+	 * memory budget of the {@link AdmissionController}
+	 * @param bufferPoolMB
+	 * 	the size in MB, 0 to allocate the images in the heap
+	 * @return this object
+	 */
+	public RunOptions setBufferPoolMB(double bufferPoolMB) {
+		if (bufferPoolMB < 0)
+			throw new IllegalArgumentException("The size of the buffer pool cannot be negative: " + bufferPoolMB);
+		this.bufferPoolMB = bufferPoolMB;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return number of bins used to approximate the percentiles of scale_range, 0 to compute them exactly
+	 */
+	public int getPercentileBins() {
+		return percentileBins;
+	}
+	
+	/**
+	 * Set how the percentiles of scale_range are computed, see {@link Percentiles}
+	 * @param percentileBins
+	 * 	number of bins in which the range of the values of float tensors is divided to approximate 
+	 * 	the percentiles, 0 to compute them exactly
+	 * @return this object
+	 */
+	public RunOptions setPercentileBins(int percentileBins) {
+		if (percentileBins < 0)
+			throw new IllegalArgumentException("The number of percentile bins cannot be negative: " + percentileBins);
+		this.percentileBins = percentileBins;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return directory of the store where the results are appended, null if they are only 
+	 * 	written to the summaries files
+	 */
+	public String getResultsStore() {
+		return resultsStore;
+	}
+	
+	/**
+	 * Set the directory of the {@link ResultsStore} where the results of every model are appended,
+	 * besides being written to the summaries files
+	 * @param resultsStore
+	 * 	directory of the store, null to only write the summaries files
+	 * @return this object
+	 */
+	public RunOptions setResultsStore(String resultsStore) {
+		this.resultsStore = resultsStore;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return the arguments that were not options, in the order they were provided
+	 */
+	public List<String> getPositionalArguments() {
+		return positional;
+	}
+}
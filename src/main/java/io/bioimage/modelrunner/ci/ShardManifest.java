@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.bioimage.modelrunner.utils.YAMLUtils;
+
+/**
+ * Record of the work done by one shard of a sharded run: the rdf.yaml files assigned to it
+ * and the summary written for each of them. It is written at the root of the summaries
+ * directory of the shard and read by {@link MergeSummaries} to combine the shards and
+ * detect missing shards, missing models and conflicts
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ShardManifest {
+	
+	/**
+	 * Prefix of the manifest files
+	 */
+	public static final String FILE_PREFIX = "shard_";
+	
+	static final String JDLL_VERSION = "jdll_version";
+	static final String SHARD_INDEX = "shard_index";
+	static final String SHARD_COUNT = "shard_count";
+	static final String TOTAL_MODELS = "total_models";
+	static final String MODELS = "models";
+	static final String RDF = "rdf";
+	static final String SUMMARY = "summary";
+	static final String ESTIMATED_MS = "estimated_ms";
+	
+	/**
+	 * Manifests of this process, {@link ContinuousIntegration#runTests} can be called once
+	 * per resource and all the calls add to the same manifest
+	 */
+	private static final Map<Path, ShardManifest> MANIFESTS = new HashMap<Path, ShardManifest>();
+	
+	private final Path file;
+	
+	private final String jdllVersion;
+	
+	private final int shardIndex;
+	
+	private final int shardCount;
+	/**
+	 * Number of rdf.yaml files among all the shards
+	 */
+	private int totalModels = 0;
+	/**
+	 * rdf.yaml files assigned to this shard
+	 */
+	private final List<Object> models = new ArrayList<Object>();
+	
+	private ShardManifest(Path file, String jdllVersion, int shardIndex, int shardCount) {
+		this.file = file;
+		this.jdllVersion = jdllVersion;
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+	
+	/**
+	 * Name of the manifest file of a shard
+	 * @param jdllVersion
+	 * 	version of JDLL tested
+	 * @param shardIndex
+	 * 	index of the shard, starting at 0
+	 * @param shardCount
+	 * 	number of shards
+	 * @return the file name
+	 */
+	public static String fileName(String jdllVersion, int shardIndex, int shardCount) {
+		return FILE_PREFIX + jdllVersion + "_" + shardIndex + "_of_" + shardCount + ".yaml";
+	}
+	
+	/**
+	 * Get the manifest of a shard for this process
+	 * @param summariesDir
+	 * 	directory where the summaries of the shard are written
+	 * @param jdllVersion
+	 * 	version of JDLL tested
+	 * @param shardIndex
+	 * 	index of the shard, starting at 0
+	 * @param shardCount
+	 * 	number of shards
+	 * @return the manifest
+	 */
+	public static ShardManifest get(Path summariesDir, String jdllVersion, int shardIndex, int shardCount) {
+		Path file = summariesDir.toAbsolutePath().resolve(fileName(jdllVersion, shardIndex, shardCount));
+		synchronized (MANIFESTS) {
+			return MANIFESTS.computeIfAbsent(file, k -> new ShardManifest(k, jdllVersion, shardIndex, shardCount));
+		}
+	}
+	
+	/**
+	 * Add the number of rdf.yaml files that were split among the shards
+	 * @param models
+	 * 	number of rdf.yaml files before sharding
+	 */
+	public synchronized void addTotal(int models) {
+		this.totalModels += models;
+	}
+	
+	/**
+	 * Add a rdf.yaml file tested by this shard
+	 * @param rdf
+	 * 	path of the rdf.yaml relative to the directory of all the rdf.yaml files
+	 * @param summary
+	 * 	path of its summary relative to the summaries directory, null if no summary was written
+	 * @param estimatedMs
+	 * 	runtime estimated for the model when the shards were planned
+	 */
+	public synchronized void addModel(String rdf, String summary, double estimatedMs) {
+		Map<String, Object> model = new LinkedHashMap<String, Object>();
+		model.put(RDF, rdf);
+		model.put(SUMMARY, summary);
+		model.put(ESTIMATED_MS, Math.round(estimatedMs));
+		models.add(model);
+	}
+	
+	/**
+	 * Write the manifest
+	 * @throws IOException if there is any error writing the file
+	 */
+	public synchronized void write() throws IOException {
+		Map<String, Object> manifest = new LinkedHashMap<String, Object>();
+		manifest.put(JDLL_VERSION, jdllVersion);
+		manifest.put(SHARD_INDEX, shardIndex);
+		manifest.put(SHARD_COUNT, shardCount);
+		manifest.put(TOTAL_MODELS, totalModels);
+		manifest.put(MODELS, models);
+		Files.createDirectories(file.getParent());
+		YAMLUtils.writeYamlFile(file.toString(), manifest);
+	}
+	
+	/**
+	 * Copy the manifest and the files written by the shard, the ones read by {@link MergeSummaries},
+	 * to another directory: the summary and the cache of results of every model, the index and the 
+	 * run level reports. The previous results the summaries directory started from are not copied
+	 * @param outputDir
+	 * 	directory where the files are copied, with the same layout as the summaries directory
+	 * @throws IOException if any file cannot be copied
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void export(Path outputDir) throws IOException {
+		Path summariesDir = file.getParent();
+		copy(summariesDir, outputDir, file.getFileName());
+		for (Object entry : models) {
+			Object summary = ((Map<String, Object>) entry).get(SUMMARY);
+			if (summary == null)
+				continue;
+			Path relative = Paths.get(summary.toString());
+			copy(summariesDir, outputDir, relative);
+			Path cache = relative.resolveSibling(SummaryCache.FILE_PREFIX + jdllVersion + ".yaml");
+			if (Files.isRegularFile(summariesDir.resolve(cache)))
+				copy(summariesDir, outputDir, cache);
+		}
+		String suffix = jdllVersion + "_shard" + shardIndex + ".";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(summariesDir)) {
+			for (Path ff : files) {
+				String name = ff.getFileName().toString();
+				if (Files.isRegularFile(ff) && name.contains(suffix) && (name.startsWith(SummaryWriter.INDEX_PREFIX)
+						|| name.startsWith("engine_startup_") || name.startsWith("metrics_")))
+					copy(summariesDir, outputDir, ff.getFileName());
+			}
+		}
+	}
+	
+	private static void copy(Path dir, Path outputDir, Path relative) throws IOException {
+		Path target = outputDir.resolve(relative);
+		if (target.getParent() != null)
+			Files.createDirectories(target.getParent());
+		Files.copy(dir.resolve(relative), target, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
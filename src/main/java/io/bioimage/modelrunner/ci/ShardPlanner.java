@@ -0,0 +1,196 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the rdf.yaml files to be tested among several machines (shards) so that all of 
+ * them take about the same time. The runtime of each model is estimated from the stage times
+ * recorded in its previous results (see {@link StageMetrics}), and the models are assigned
+ * longest first to the shard with the least work.
+ * Every shard computes the same plan as long as they see the same rdf.yaml files and the same
+ * previous results.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class ShardPlanner {
+	
+	/**
+	 * Runtime assumed for every model when there is no previous result at all, in milliseconds
+	 */
+	private static final double DEFAULT_RUNTIME_MS = 60000;
+	
+	/**
+	 * Directory that contains the rdf.yaml files
+	 */
+	private final Path rdfDir;
+	/**
+	 * Directory that contains the summaries of the previous runs
+	 */
+	private final Path summariesDir;
+	/**
+	 * Version of JDLL tested, whose previous results are preferred
+	 */
+	private final String jdllVersion;
+	/**
+	 * Runtime estimated for each rdf.yaml
+	 */
+	private final Map<Path, Double> estimates = new HashMap<Path, Double>();
+	
+	/**
+	 * Create a planner
+	 * @param rdfDir
+	 * 	directory that contains the rdf.yaml files
+	 * @param summariesDir
+	 * 	directory that contains the summaries of the previous runs
+	 * @param jdllVersion
+	 * 	version of JDLL tested
+	 */
+	public ShardPlanner(Path rdfDir, Path summariesDir, String jdllVersion) {
+		this.rdfDir = rdfDir.toAbsolutePath().normalize();
+		this.summariesDir = summariesDir;
+		this.jdllVersion = jdllVersion;
+	}
+	
+	/**
+	 * Split the rdf.yaml files among the shards
+	 * @param rdfFiles
+	 * 	the rdf.yaml files, in the order they would be tested by a single machine
+	 * @param shardCount
+	 * 	number of shards
+	 * @return the files of each shard, in the same relative order as in the input list
+	 */
+	public List<List<Path>> plan(List<Path> rdfFiles, int shardCount) {
+		double[] runtimes = new double[rdfFiles.size()];
+		List<Double> known = new ArrayList<Double>();
+		for (int i = 0; i < rdfFiles.size(); i ++) {
+			runtimes[i] = previousRuntime(rdfFiles.get(i));
+			if (runtimes[i] > 0)
+				known.add(runtimes[i]);
+		}
+		// Models never tested before are assumed to take as long as the median model
+		double unknown = DEFAULT_RUNTIME_MS;
+		if (known.size() > 0) {
+			double[] sorted = known.stream().mapToDouble(Double::doubleValue).toArray();
+			Arrays.sort(sorted);
+			unknown = sorted[sorted.length / 2];
+		}
+		Integer[] order = new Integer[rdfFiles.size()];
+		for (int i = 0; i < order.length; i ++) {
+			if (runtimes[i] <= 0)
+				runtimes[i] = unknown;
+			estimates.put(rdfFiles.get(i), runtimes[i]);
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> runtimes[a] != runtimes[b] ? Double.compare(runtimes[b], runtimes[a]) 
+				: rdfFiles.get(a).toString().compareTo(rdfFiles.get(b).toString()));
+		
+		double[] load = new double[shardCount];
+		boolean[][] assigned = new boolean[shardCount][rdfFiles.size()];
+		for (int i : order) {
+			int lightest = 0;
+			for (int s = 1; s < shardCount; s ++) {
+				if (load[s] < load[lightest])
+					lightest = s;
+			}
+			load[lightest] += runtimes[i];
+			assigned[lightest][i] = true;
+		}
+		List<List<Path>> shards = new ArrayList<List<Path>>();
+		for (int s = 0; s < shardCount; s ++) {
+			List<Path> shard = new ArrayList<Path>();
+			for (int i = 0; i < rdfFiles.size(); i ++) {
+				if (assigned[s][i])
+					shard.add(rdfFiles.get(i));
+			}
+			shards.add(shard);
+		}
+		return shards;
+	}
+	
+	/**
+	 * 
+	 * @param rdfFile
+	 * 	a rdf.yaml file included in the last plan
+	 * @return the runtime estimated for the model in milliseconds, 0 if it was not planned
+	 */
+	public double getEstimate(Path rdfFile) {
+		Double estimate = estimates.get(rdfFile);
+		return estimate == null ? 0 : estimate;
+	}
+	
+	/**
+	 * Runtime of the previous test of a model, the sum of the duration of all the stages 
+	 * of all its weight formats. The summaries of a model are looked for in the directory
+	 * with the same relative path as the folder of the rdf.yaml, or any of its parents,
+	 * because the model id is not known without reading the rdf.yaml
+	 * @param rdfFile
+	 * 	the rdf.yaml file of the model
+	 * @return the runtime in milliseconds or 0 if it is unknown
+	 */
+	private double previousRuntime(Path rdfFile) {
+		Path relative = rdfDir.relativize(rdfFile.toAbsolutePath().normalize().getParent());
+		for (Path dir = relative; dir != null && dir.toString().length() > 0; dir = dir.getParent()) {
+			Path modelDir = summariesDir.resolve(dir.toString());
+			if (!Files.isDirectory(modelDir))
+				continue;
+			String version = cacheVersion(modelDir);
+			if (version == null)
+				continue;
+			return StageMetrics.totalMillis(SummaryCache.load(modelDir, version).getAllPrevious());
+		}
+		return 0;
+	}
+	
+	/**
+	 * Find the version of JDLL of the cache of previous results of a model, the version
+	 * being tested if there is one for it, otherwise the last one in alphabetical order.
+	 * File dates are not used because they depend on when each machine checked out the results
+	 * @param modelDir
+	 * 	directory of the summaries of the model
+	 * @return the version or null if there is no cache
+	 */
+	private String cacheVersion(Path modelDir) {
+		if (Files.isRegularFile(modelDir.resolve(SummaryCache.FILE_PREFIX + jdllVersion + ".yaml")))
+			return jdllVersion;
+		Path newest = null;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(modelDir, SummaryCache.FILE_PREFIX + "*.yaml")) {
+			for (Path file : files) {
+				if (newest == null || file.getFileName().toString().compareTo(newest.getFileName().toString()) > 0)
+					newest = file;
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+		if (newest == null)
+			return null;
+		String name = newest.getFileName().toString();
+		return name.substring(SummaryCache.FILE_PREFIX.length(), name.length() - ".yaml".length());
+	}
+}
@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Time and memory used by each stage of the test of a model.
+ * Memory is measured as the difference in used heap and in direct buffers between the
+ * start and the end of the stage. When several tests run in parallel, the memory deltas
+ * include the allocations of the other tests.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class StageMetrics {
+	
+	/**
+	 * Loading the rdf.yaml as a map
+	 */
+	public static final String YAML_LOAD = "yaml_load";
+	/**
+	 * Reading the rdf.yaml with {@code ModelDescriptor.readFromLocalFile}
+	 */
+	public static final String READ_DESCRIPTOR = "read_descriptor";
+	/**
+	 * Downloading the model or getting it from the cache
+	 */
+	public static final String DOWNLOAD = "download";
+	/**
+	 * Opening the npy files of the test inputs and outputs
+	 */
+	public static final String DECODE = "decode";
+	/**
+	 * Pre-processing the test inputs
+	 */
+	public static final String PREPROCESS = "preprocess";
+	/**
+	 * Loading the model in the engine
+	 */
+	public static final String LOAD_MODEL = "load_model";
+	/**
+	 * Running the model
+	 */
+	public static final String RUN_MODEL = "run_model";
+	/**
+	 * Post-processing the outputs of the model
+	 */
+	public static final String POSTPROCESS = "postprocess";
+	/**
+	 * Comparing the outputs with the test outputs
+	 */
+	public static final String COMPARE = "compare";
+	/**
+	 * Repeated runs of the model measured by the {@link InferenceBenchmark}
+	 */
+	public static final String BENCHMARK = "benchmark";
+	
+	/**
+	 * Bytes in a MB
+	 */
+	private static final double MB = 1024 * 1024;
+	/**
+	 * Pool of the direct byte buffers of the JVM, null if it cannot be monitored
+	 */
+	private static final BufferPoolMXBean DIRECT_POOL = directPool();
+	
+	/**
+	 * Duration in nanoseconds, heap delta and direct memory delta in bytes of each stage
+	 */
+	private final Map<String, long[]> stages = new LinkedHashMap<String, long[]>();
+	/**
+	 * Innermost stage running, null if none. Read by the {@link Watchdog} to enforce the 
+	 * deadline of each stage
+	 */
+	private volatile Stage current;
+	
+	/**
+	 * Measurement of a stage that is running, the measurement ends when it is closed
+	 */
+	public class Stage implements AutoCloseable {
+		
+		private final String name;
+		
+		private final boolean recorded;
+		
+		private final long start = System.nanoTime();
+		
+		private final long heap;
+		
+		private final long direct;
+		
+		/**
+		 * Stage that was running when this one started
+		 */
+		private final Stage outer;
+		
+		private Stage(String name, boolean recorded) {
+			this.name = name;
+			this.recorded = recorded;
+			this.heap = recorded ? usedHeap() : 0;
+			this.direct = recorded ? usedDirect() : 0;
+			this.outer = current;
+			current = this;
+		}
+		
+		/**
+		 * 
+		 * @return name of the stage
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * 
+		 * @return time since the stage started in nanoseconds
+		 */
+		public long getElapsedNanos() {
+			return System.nanoTime() - start;
+		}
+
+		@Override
+		public void close() {
+			if (current == this)
+				current = outer;
+			if (recorded)
+				add(name, System.nanoTime() - start, usedHeap() - heap, usedDirect() - direct);
+		}
+	}
+	
+	/**
+	 * Start measuring a stage. If the stage is measured several times, for example once per
+	 * input tensor, the durations and memory deltas are added
+	 * @param name
+	 * 	name of the stage
+	 * @return the measurement, that has to be closed when the stage ends
+	 */
+	public Stage start(String name) {
+		return new Stage(name, true);
+	}
+	
+	/**
+	 * Start a stage that is only watched by the {@link Watchdog}, and not recorded. Used for
+	 * the stages whose time is measured somewhere else, such as the ones run in a worker JVM
+	 * @param name
+	 * 	name of the stage
+	 * @return the stage, that has to be closed when the stage ends
+	 */
+	public Stage watch(String name) {
+		return new Stage(name, false);
+	}
+	
+	/**
+	 * 
+	 * @return the innermost stage running, null if none
+	 */
+	public Stage getCurrent() {
+		return current;
+	}
+	
+	/**
+	 * Add a measurement to a stage
+	 * @param name
+	 * 	name of the stage
+	 * @param nanos
+	 * 	duration in nanoseconds
+	 * @param heapDelta
+	 * 	change of the used heap in bytes
+	 * @param directDelta
+	 * 	change of the memory used by direct buffers in bytes
+	 */
+	public synchronized void add(String name, long nanos, long heapDelta, long directDelta) {
+		long[] stage = stages.get(name);
+		if (stage == null) {
+			stages.put(name, new long[] {nanos, heapDelta, directDelta});
+			return;
+		}
+		stage[0] += nanos;
+		stage[1] += heapDelta;
+		stage[2] += directDelta;
+	}
+	
+	/**
+	 * 
+	 * @return for each stage measured, in the order they started, the duration in nanoseconds, 
+	 * 	the heap delta and the direct memory delta in bytes
+	 */
+	public synchronized Map<String, long[]> getStages() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String, long[]>(stages));
+	}
+	
+	/**
+	 * Add the measurements to the summary of a test, as {@code <stage>_ms}, 
+	 * {@code <stage>_heap_delta_mb} and {@code <stage>_direct_delta_mb}
+	 * @param summary
+	 * 	the summary
+	 */
+	public synchronized void addToSummary(Map<String, String> summary) {
+		for (Map.Entry<String, long[]> stage : stages.entrySet()) {
+			long[] vv = stage.getValue();
+			summary.put(stage.getKey() + "_ms", String.format(Locale.ROOT, "%.3f", vv[0] / 1e6));
+			summary.put(stage.getKey() + "_heap_delta_mb", String.format(Locale.ROOT, "%.3f", vv[1] / MB));
+			summary.put(stage.getKey() + "_direct_delta_mb", String.format(Locale.ROOT, "%.3f", vv[2] / MB));
+		}
+	}
+	
+	/**
+	 * Total duration of the stages recorded in some summaries, the sum of their 
+	 * {@code <stage>_ms} fields
+	 * @param summaries
+	 * 	the summaries
+	 * @return the duration in milliseconds, 0 if there are no stages
+	 */
+	@SuppressWarnings("unchecked")
+	static double totalMillis(List<Object> summaries) {
+		double total = 0;
+		for (Object summary : summaries) {
+			if (!(summary instanceof Map))
+				continue;
+			for (Map.Entry<String, Object> field : ((Map<String, Object>) summary).entrySet()) {
+				if (!field.getKey().endsWith("_ms") || field.getValue() == null)
+					continue;
+				try {
+					total += Double.parseDouble(field.getValue().toString());
+				} catch (NumberFormatException ex) {
+				}
+			}
+		}
+		return total;
+	}
+	
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	private static long usedDirect() {
+		return DIRECT_POOL == null ? 0 : DIRECT_POOL.getMemoryUsed();
+	}
+	
+	private static BufferPoolMXBean directPool() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct"))
+				return pool;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import io.bioimage.modelrunner.utils.YAMLUtils;
+
+/**
+ * Cache of the results of the tests of each weight format of a model. Every result is stored 
+ * together with a key that is the hash of everything that can change the result: the rdf.yaml
+ * file, the weights and test tensors it references and the JDLL version. In incremental mode
+ * the results whose key has not changed are reused instead of running the tests again.
+ * The cache is stored next to the summary of the model, in the file 'test_cache_JDLL_VERSION.yaml'
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class SummaryCache {
+	
+	/**
+	 * Prefix of the files that contain the cache
+	 */
+	public static final String FILE_PREFIX = "test_cache_";
+	/**
+	 * Errors caused by the environment instead of the model, these results are never reused
+	 */
+	private static final List<String> TRANSIENT_ERRORS = new ArrayList<String>();
+	static {
+		TRANSIENT_ERRORS.add("unable to download model");
+		TRANSIENT_ERRORS.add("unable to perform tests");
+	}
+	
+	private static final String KEY = "key";
+	private static final String SUMMARIES = "summaries";
+	
+	private final Path file;
+	/**
+	 * Results of the previous run
+	 */
+	private final Map<String, Object> previous;
+	/**
+	 * Results of this run
+	 */
+	private final Map<String, Object> current = new LinkedHashMap<String, Object>();
+	
+	private SummaryCache(Path file, Map<String, Object> previous) {
+		this.file = file;
+		this.previous = previous;
+	}
+	
+	/**
+	 * Load the cache of a model
+	 * @param modelSummariesDir
+	 * 	directory where the summaries of the model are written
+	 * @param jdllVersion
+	 * 	version of JDLL being tested
+	 * @return the cache, empty if it did not exist or could not be read
+	 */
+	public static SummaryCache load(Path modelSummariesDir, String jdllVersion) {
+		Path file = modelSummariesDir.resolve(FILE_PREFIX + jdllVersion + ".yaml");
+		Map<String, Object> previous = null;
+		if (Files.isRegularFile(file)) {
+			try {
+				previous = YAMLUtils.load(file.toAbsolutePath().toString());
+			} catch (Exception ex) {
+				System.out.println("Unable to read the test cache " + file + ": " + ex.toString());
+			}
+		}
+		return new SummaryCache(file, previous == null ? new LinkedHashMap<String, Object>() : previous);
+	}
+	
+	/**
+	 * Get the results of the previous run for a weight format if its key has not changed
+	 * @param weightFormat
+	 * 	the weight format
+	 * @param key
+	 * 	the current key of the weight format
+	 * @return a copy of the previous results or null if there are none or the key has changed
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<Object> get(String weightFormat, String key) {
+		Object entry = previous.get(weightFormat);
+		if (!(entry instanceof Map) || !key.equals(((Map<String, Object>) entry).get(KEY)))
+			return null;
+		Object summaries = ((Map<String, Object>) entry).get(SUMMARIES);
+		if (!(summaries instanceof List))
+			return null;
+		return copy((List<Object>) summaries);
+	}
+	
+	/**
+	 * Get the results of the previous run of a weight format, whatever their key
+	 * @param weightFormat
+	 * 	the weight format
+	 * @return a copy of the previous results, empty if there are none
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<Object> getPrevious(String weightFormat) {
+		Object entry = previous.get(weightFormat);
+		if (!(entry instanceof Map) || !(((Map<String, Object>) entry).get(SUMMARIES) instanceof List))
+			return new ArrayList<Object>();
+		return copy((List<Object>) ((Map<String, Object>) entry).get(SUMMARIES));
+	}
+	
+	/**
+	 * Get the results of the previous run of every weight format, whatever their key
+	 * @return a copy of all the previous results
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<Object> getAllPrevious() {
+		List<Object> all = new ArrayList<Object>();
+		for (Object entry : previous.values()) {
+			if (!(entry instanceof Map))
+				continue;
+			Object summaries = ((Map<String, Object>) entry).get(SUMMARIES);
+			if (summaries instanceof List)
+				all.addAll(copy((List<Object>) summaries));
+		}
+		return all;
+	}
+	
+	/**
+	 * Store the results of a weight format. Results that failed because of the environment,
+	 * as a failed download, or that were stopped by a deadline are not stored so they are 
+	 * tested again in the next run
+	 * @param weightFormat
+	 * 	the weight format
+	 * @param key
+	 * 	the key of the weight format
+	 * @param summaries
+	 * 	the results of the tests
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void put(String weightFormat, String key, List<Object> summaries) {
+		for (Object ss : summaries) {
+			if (ss instanceof Map && TRANSIENT_ERRORS.contains(((Map<String, Object>) ss).get("error")))
+				return;
+			if (ss instanceof Map && Watchdog.TIMEOUT.equals(((Map<String, Object>) ss).get("status")))
+				return;
+		}
+		Map<String, Object> entry = new LinkedHashMap<String, Object>();
+		entry.put(KEY, key);
+		entry.put(SUMMARIES, copy(summaries));
+		current.put(weightFormat, entry);
+	}
+	
+	/**
+	 * Queue the results of this run in the writer of the summaries
+	 * @param writer
+	 * 	the writer
+	 */
+	public synchronized void save(SummaryWriter writer) {
+		Map<String, Object> content = new LinkedHashMap<String, Object>(current);
+		writer.write(file, content.size() == 0 ? null : content);
+	}
+	
+	/**
+	 * Compute the key of a weight format of a model. The key is the hash of the rdf.yaml file,
+	 * which references the weights and test tensors, of the sha256 declared for the weights, 
+	 * of the JDLL version and of the rule used to compare the outputs ({@link OutputComparator#RULES_VERSION}).
+	 * @param rdfBytes
+	 * 	bytes of the rdf.yaml file
+	 * @param rdf
+	 * 	contents of the rdf.yaml file
+	 * @param weightFormat
+	 * 	the weight format
+	 * @param jdllVersion
+	 * 	the version of JDLL tested
+	 * @return the key
+	 */
+	@SuppressWarnings("unchecked")
+	public static String computeKey(byte[] rdfBytes, Map<String, Object> rdf, String weightFormat, String jdllVersion) {
+		MessageDigest digest = sha256();
+		digest.update(rdfBytes);
+		Object weights = rdf.get("weights");
+		if (weights instanceof Map) {
+			for (Entry<String, Object> ee : ((Map<String, Object>) weights).entrySet()) {
+				if (!(ee.getValue() instanceof Map) || !ee.getKey().equals(weightFormat))
+					continue;
+				update(digest, ((Map<String, Object>) ee.getValue()).get("sha256"));
+				update(digest, ((Map<String, Object>) ee.getValue()).get("source"));
+			}
+		}
+		update(digest, rdf.get("test_inputs"));
+		update(digest, rdf.get("test_outputs"));
+		update(digest, weightFormat);
+		update(digest, jdllVersion);
+		update(digest, "comparison_rules_" + OutputComparator.RULES_VERSION);
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Compute the sha256 of a file
+	 * @param file
+	 * 	the file
+	 * @return the sha256 in hexadecimal
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String sha256(Path file) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[1 << 16];
+		try (java.io.InputStream is = Files.newInputStream(file)) {
+			int n;
+			while ((n = is.read(buffer)) > 0)
+				digest.update(buffer, 0, n);
+		}
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Compute the sha256 of the contents of a file already in memory
+	 * @param bytes
+	 * 	the contents
+	 * @return the sha256 in hexadecimal
+	 */
+	public static String sha256(byte[] bytes) {
+		return toHex(sha256().digest(bytes));
+	}
+	
+	private static void update(MessageDigest digest, Object value) {
+		digest.update((byte) 0);
+		if (value != null)
+			digest.update(value.toString().getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static List<Object> copy(List<Object> summaries) {
+		List<Object> copy = new ArrayList<Object>();
+		for (Object ss : summaries) {
+			if (ss instanceof Map)
+				copy.add(new LinkedHashMap<String, Object>((Map<String, Object>) ss));
+			else
+				copy.add(ss);
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,445 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Writer of the summaries of a run. The tests only put the summaries in a queue and a single
+ * thread writes them, so the tests never wait for the file system. The thread takes every 
+ * summary waiting in the queue at once, keeps only the last version of each file and writes 
+ * them with buffered YAML emission. 
+ * 
+ * The same thread keeps the index of the run, a YAML file in the summaries directory with 
+ * the status, duration, engines and summary file of every model tested, so the results of the
+ * whole run can be read without walking the summary of every model. The index is rewritten
+ * after every batch of summaries, replacing the previous one atomically. It starts from the
+ * index already in the summaries directory, so a run that only tests some of the models, such 
+ * as an incremental run or the run of one of the resources of the pending matrix, updates their
+ * entries and keeps the entries of the rest.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class SummaryWriter implements AutoCloseable {
+	
+	/**
+	 * Prefix of the index files, followed by the JDLL version
+	 */
+	public static final String INDEX_PREFIX = "test_index_";
+	/**
+	 * Keys of each model in the index
+	 */
+	static final String STATUS = "status";
+	static final String DURATION_MS = "duration_ms";
+	static final String ENGINES = "engines";
+	static final String SUMMARY = "summary";
+	
+	/**
+	 * Status of the tests, from the one that decides the status of a model the most
+	 */
+	private static final List<String> STATUS_PRECEDENCE = Arrays.asList("failed", Watchdog.TIMEOUT, "passed");
+	/**
+	 * Marks the end of the queue
+	 */
+	private static final Write END = new Write(null, null, null, null);
+	
+	private static final ThreadLocal<Yaml> YAML = ThreadLocal.withInitial(() -> {
+		DumperOptions options = new DumperOptions();
+		options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+		return new Yaml(options);
+	});
+	
+	/**
+	 * Directory where the summaries are written
+	 */
+	private final Path summariesDir;
+	/**
+	 * Path to the index
+	 */
+	private final Path indexFile;
+	/**
+	 * Files waiting to be written
+	 */
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+	/**
+	 * For each summary file, position of the last rdf.yaml that wrote it. Used so the
+	 * result is the same that the one of a sequential run when several rdf.yaml share the same id
+	 */
+	private final Map<String, Integer> writers = new HashMap<String, Integer>();
+	/**
+	 * Entry of the index of each model, sorted by model id. Only used by the writer thread
+	 */
+	private final Map<String, Object> index = new TreeMap<String, Object>();
+	/**
+	 * Directories that already exist. Only used by the writer thread
+	 */
+	private final Set<Path> directories = new HashSet<Path>();
+	/**
+	 * The thread that writes the files
+	 */
+	private final Thread thread;
+	/**
+	 * First error found writing the files
+	 */
+	private volatile IOException error;
+	/**
+	 * Store where the summaries of the models are also appended, null to only write the files
+	 */
+	private volatile ResultsStore store;
+	/**
+	 * Version of JDLL of the summaries appended to the store
+	 */
+	private volatile String storeVersion;
+	
+	/**
+	 * A file to write
+	 */
+	private static class Write {
+		/**
+		 * The file
+		 */
+		private final Path file;
+		/**
+		 * Content of the file, null to delete it
+		 */
+		private final Object content;
+		/**
+		 * Id of the model whose summaries are written, null if the file is not a summary
+		 */
+		private final String modelId;
+		/**
+		 * Engine used by each weight format of the model
+		 */
+		private final Map<String, String> engines;
+		
+		private Write(Path file, Object content, String modelId, Map<String, String> engines) {
+			this.file = file;
+			this.content = content;
+			this.modelId = modelId;
+			this.engines = engines;
+		}
+	}
+	
+	/**
+	 * Create the writer and start its thread
+	 * @param summariesDir
+	 * 	directory where the summaries are written
+	 * @param indexName
+	 * 	name of the index file inside the summaries directory
+	 * @throws IOException if the index already in the summaries directory cannot be read
+	 */
+	public SummaryWriter(Path summariesDir, String indexName) throws IOException {
+		this.summariesDir = summariesDir.toAbsolutePath().normalize();
+		this.indexFile = this.summariesDir.resolve(indexName);
+		this.index.putAll(readIndex(indexFile));
+		this.thread = new Thread(this::run, "summary-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	/**
+	 * Queue the summaries of a model. If several rdf.yaml files write the same summaries file, 
+	 * the one tested last in a sequential run is the one that is kept
+	 * @param index
+	 * 	position of the rdf.yaml that produced the summaries
+	 * @param modelId
+	 * 	id of the model
+	 * @param file
+	 * 	path to the summaries file
+	 * @param summaries
+	 * 	the summaries
+	 * @param engines
+	 * 	engine used by each weight format of the model, null for the weight formats that were not run
+	 */
+	public void writeSummaries(int index, String modelId, Path file, List<Object> summaries, Map<String, String> engines) {
+		String key = file.toAbsolutePath().normalize().toString();
+		synchronized (writers) {
+			Integer previous = writers.get(key);
+			if (previous != null && previous > index)
+				return;
+			writers.put(key, index);
+			queue.add(new Write(Paths.get(key), copy(summaries), modelId, new LinkedHashMap<String, String>(engines)));
+		}
+	}
+	
+	/**
+	 * Queue a YAML file that is not a summary, such as the cache of results of a model
+	 * @param file
+	 * 	path to the file
+	 * @param content
+	 * 	content of the file, null to delete the file. It should not be modified afterwards
+	 */
+	public void write(Path file, Object content) {
+		queue.add(new Write(file.toAbsolutePath().normalize(), content, null, null));
+	}
+	
+	/**
+	 * Also append the summaries of every model written from now on to a store. The store
+	 * is not closed by the writer
+	 * @param store
+	 * 	the store, null to only write the summaries files
+	 * @param version
+	 * 	version of JDLL of the summaries
+	 */
+	public void setResultsStore(ResultsStore store, String version) {
+		this.storeVersion = version;
+		this.store = store;
+	}
+	
+	/**
+	 * 
+	 * @return for each summary file written, the position of the rdf.yaml that wrote it
+	 */
+	public Map<String, Integer> getWriters() {
+		synchronized (writers) {
+			return new HashMap<String, Integer>(writers);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return path to the index of the run
+	 */
+	public Path getIndexFile() {
+		return indexFile;
+	}
+	
+	/**
+	 * Wait until every file queued has been written and stop the thread
+	 * @throws IOException the first error found writing the files, if any
+	 */
+	@Override
+	public void close() throws IOException {
+		queue.add(END);
+		try {
+			thread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the summaries to be written", ex);
+		}
+		if (error != null)
+			throw error;
+	}
+	
+	private void run() {
+		List<Write> batch = new ArrayList<Write>();
+		boolean end = false;
+		while (!end) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException ex) {
+				continue;
+			}
+			queue.drainTo(batch);
+			// Only the last version of each file is written
+			Map<Path, Write> files = new LinkedHashMap<Path, Write>();
+			for (Write ww : batch) {
+				if (ww == END) {
+					end = true;
+					continue;
+				}
+				files.remove(ww.file);
+				files.put(ww.file, ww);
+			}
+			batch.clear();
+			boolean indexChanged = false;
+			for (Write ww : files.values()) {
+				try {
+					if (ww.content == null) {
+						Files.deleteIfExists(ww.file);
+						continue;
+					}
+					writeYaml(ww.file, ww.content);
+				} catch (IOException ex) {
+					failed(ex);
+				}
+				if (ww.modelId != null) {
+					index.put(ww.modelId, indexEntry(ww));
+					indexChanged = true;
+					append(ww);
+				}
+			}
+			if (indexChanged)
+				writeIndex();
+		}
+	}
+	
+	/**
+	 * Append the summaries of a model to the store, if any
+	 */
+	@SuppressWarnings("unchecked")
+	private void append(Write ww) {
+		ResultsStore store = this.store;
+		if (store == null)
+			return;
+		try {
+			store.append(storeVersion, ww.modelId, (List<Object>) ww.content, ww.engines);
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+	
+	/**
+	 * Replace the index with a new version, so readers never find it half written
+	 */
+	private void writeIndex() {
+		Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		try {
+			writeYaml(tmp, index);
+			try {
+				Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+	
+	/**
+	 * Create the entry of the index of a model from its summaries. The model failed if any of its
+	 * tests failed, otherwise it timed out if any of its tests was stopped by a deadline. Its 
+	 * duration is the sum of the duration of the stages of its tests
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> indexEntry(Write ww) {
+		String status = null;
+		for (Object ss : (List<Object>) ww.content) {
+			Object testStatus = ss instanceof Map ? ((Map<String, Object>) ss).get(STATUS) : null;
+			if (testStatus == null)
+				continue;
+			if (status == null || rank(testStatus.toString()) < rank(status))
+				status = testStatus.toString();
+		}
+		Map<String, Object> entry = new LinkedHashMap<String, Object>();
+		entry.put(STATUS, status);
+		entry.put(DURATION_MS, Math.round(StageMetrics.totalMillis((List<Object>) ww.content)));
+		entry.put(ENGINES, ww.engines);
+		entry.put(SUMMARY, summariesDir.relativize(ww.file).toString().replace('\\', '/'));
+		return entry;
+	}
+	
+	/**
+	 * 
+	 * @param status
+	 * 	status of a test
+	 * @return precedence of the status in the index, lower wins
+	 */
+	private static int rank(String status) {
+		int rank = STATUS_PRECEDENCE.indexOf(status);
+		return rank < 0 ? STATUS_PRECEDENCE.size() : rank;
+	}
+	
+	private void failed(IOException ex) {
+		ex.printStackTrace();
+		if (error == null)
+			error = ex;
+	}
+	
+	/**
+	 * Write a YAML file through a buffer, creating its directory if needed
+	 * @param file
+	 * 	path to the file
+	 * @param content
+	 * 	the content
+	 * @throws IOException if the file cannot be written
+	 */
+	void writeYaml(Path file, Object content) throws IOException {
+		Path dir = file.getParent();
+		if (dir != null && directories.add(dir))
+			Files.createDirectories(dir);
+		emit(file, content);
+	}
+	
+	/**
+	 * Read an index written by a writer
+	 * @param file
+	 * 	the index file
+	 * @return the entry of each model, sorted by model id. Empty if the file does not exist
+	 * @throws IOException if the file cannot be read or is not an index
+	 */
+	static Map<String, Object> readIndex(Path file) throws IOException {
+		Map<String, Object> index = new TreeMap<String, Object>();
+		if (!Files.isRegularFile(file))
+			return index;
+		Object content;
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			content = YAML.get().load(reader);
+		} catch (RuntimeException ex) {
+			throw new IOException("Unable to read the index " + file, ex);
+		}
+		if (content != null && !(content instanceof Map))
+			throw new IOException("The file " + file + " is not an index of models");
+		if (content != null) {
+			for (Entry<?, ?> entry : ((Map<?, ?>) content).entrySet())
+				index.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		return index;
+	}
+	
+	/**
+	 * Write a YAML file through a buffer. The directory of the file has to exist
+	 * @param file
+	 * 	path to the file
+	 * @param content
+	 * 	the content
+	 * @throws IOException if the file cannot be written
+	 */
+	static void emit(Path file, Object content) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			YAML.get().dump(content, writer);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static List<Object> copy(List<Object> summaries) {
+		List<Object> copy = new ArrayList<Object>();
+		for (Object ss : summaries) {
+			if (ss instanceof Map)
+				copy.add(new LinkedHashMap<String, Object>((Map<String, Object>) ss));
+			else
+				copy.add(ss);
+		}
+		return copy;
+	}
+}
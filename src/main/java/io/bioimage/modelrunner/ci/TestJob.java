@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.nio.file.Path;
+
+import io.bioimage.modelrunner.bioimageio.description.weights.WeightFormat;
+import io.bioimage.modelrunner.engine.EngineInfo;
+
+/**
+ * Test of one weight format of one model
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class TestJob {
+	
+	/**
+	 * Results of all the weight formats of the model
+	 */
+	private final ModelTestResults model;
+	/**
+	 * Weight format tested
+	 */
+	private final WeightFormat weightFormat;
+	/**
+	 * Key that identifies the inputs of the test, used by the {@link SummaryCache}
+	 */
+	private final String cacheKey;
+	/**
+	 * Engine compatible with the weights, null if it could not be resolved
+	 */
+	private EngineInfo engineInfo;
+	/**
+	 * Error found resolving the engine
+	 */
+	private Exception engineError;
+	/**
+	 * Identifier of the engine group, the framework and version of the engine
+	 */
+	private String engineKey;
+	/**
+	 * Time and memory used by each stage of the test
+	 */
+	private final StageMetrics metrics = new StageMetrics();
+	/**
+	 * Runtime expected from the previous runs in milliseconds, 0 if unknown
+	 */
+	private final double expectedMillis;
+	/**
+	 * Reason why the test was stopped by the {@link Watchdog}, null if it was not
+	 */
+	private volatile String timeout;
+	/**
+	 * Peak heap, direct buffer and native memory estimated for the test in bytes, null if it 
+	 * was not estimated
+	 */
+	private volatile long[] memoryEstimate;
+	
+	/**
+	 * Create the test of one weight format of a model
+	 * @param model
+	 * 	results of all the weight formats of the model
+	 * @param weightFormat
+	 * 	the weight format tested
+	 * @param cacheKey
+	 * 	key that identifies the inputs of the test
+	 * @param expectedMillis
+	 * 	runtime expected from the previous runs in milliseconds, 0 if unknown
+	 */
+	public TestJob(ModelTestResults model, WeightFormat weightFormat, String cacheKey, double expectedMillis) {
+		this.model = model;
+		this.weightFormat = weightFormat;
+		this.cacheKey = cacheKey;
+		this.expectedMillis = expectedMillis;
+	}
+	
+	/**
+	 * 
+	 * @return results of all the weight formats of the model
+	 */
+	public ModelTestResults getModel() {
+		return model;
+	}
+	
+	/**
+	 * 
+	 * @return path to the rdf.yaml of the model
+	 */
+	public Path getRdfPath() {
+		return model.getRdfPath();
+	}
+	
+	/**
+	 * 
+	 * @return the weight format tested
+	 */
+	public WeightFormat getWeightFormat() {
+		return weightFormat;
+	}
+	
+	/**
+	 * 
+	 * @return key that identifies the inputs of the test
+	 */
+	public String getCacheKey() {
+		return cacheKey;
+	}
+	
+	/**
+	 * 
+	 * @return the engine compatible with the weights
+	 * @throws Exception the error found when the engine was resolved, if any
+	 */
+	public EngineInfo getEngineInfo() throws Exception {
+		if (engineError != null)
+			throw engineError;
+		return engineInfo;
+	}
+	
+	/**
+	 * Set the engine resolved for the weights
+	 * @param engineInfo
+	 * 	the engine, null if it could not be resolved
+	 * @param engineError
+	 * 	the error found resolving the engine, null if there was none
+	 * @param engineKey
+	 * 	identifier of the engine group
+	 */
+	void setEngine(EngineInfo engineInfo, Exception engineError, String engineKey) {
+		this.engineInfo = engineInfo;
+		this.engineError = engineError;
+		this.engineKey = engineKey;
+	}
+	
+	/**
+	 * 
+	 * @return identifier of the engine group, the framework and version of the engine
+	 */
+	public String getEngineKey() {
+		return engineKey;
+	}
+	
+	/**
+	 * 
+	 * @return time and memory used by each stage of the test
+	 */
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * 
+	 * @return runtime expected from the previous runs in milliseconds, 0 if unknown
+	 */
+	public double getExpectedMillis() {
+		return expectedMillis;
+	}
+	
+	/**
+	 * Mark the test as stopped because it exceeded a deadline
+	 * @param reason
+	 * 	the deadline exceeded
+	 */
+	void setTimeout(String reason) {
+		this.timeout = reason;
+	}
+	
+	/**
+	 * 
+	 * @return the deadline exceeded by the test, null if it finished in time
+	 */
+	public String getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Set the memory estimated for the test
+	 * @param memoryEstimate
+	 * 	the peak heap, direct buffer and native memory in bytes
+	 */
+	void setMemoryEstimate(long[] memoryEstimate) {
+		this.memoryEstimate = memoryEstimate;
+	}
+	
+	/**
+	 * 
+	 * @return the peak heap, direct buffer and native memory estimated for the test in bytes, 
+	 * 	null if it was not estimated, see {@link AdmissionController}
+	 */
+	public long[] getMemoryEstimate() {
+		return memoryEstimate;
+	}
+	
+	@Override
+	public String toString() {
+		return model.getId() + " (" + weightFormat.getFramework() + ")";
+	}
+}
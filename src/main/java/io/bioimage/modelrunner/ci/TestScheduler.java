@@ -0,0 +1,296 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Class that runs the tests of several models using a bounded pool of workers.
+ * Every job is independent, thus one job failing does not affect the others.
+ * With a parallelism of 1 the jobs are run sequentially in the calling thread.
+ * 
+ * Concurrent jobs can be subject to an {@link Admission}, which decides whether a job can start
+ * given the ones running. The jobs start in order, but when the first one waiting cannot be
+ * admitted, the next ones that can are started around it (back-filling). The first job is 
+ * overtaken a limited number of times, after which no job starts until it is admitted, so 
+ * big jobs are not starved by a stream of small ones. A job is always admitted when nothing
+ * else is running.
+ * 
+ * @param <J>
+ * 	the type of the items that define each job
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class TestScheduler<J> {
+	
+	/**
+	 * Number of jobs that are run at the same time
+	 */
+	private final int parallelism;
+	/**
+	 * Decides which jobs can run at the same time, null to run any {@link #parallelism} jobs
+	 */
+	private Admission<J> admission;
+	/**
+	 * Number of times the first job waiting can be overtaken by back-filled jobs
+	 */
+	private int maxOvertakes;
+	/**
+	 * Number of jobs that were started before a job that came earlier in the list
+	 */
+	private int backfilled;
+	
+	/**
+	 * Decides whether a job can start given the jobs that are running
+	 *
+	 * @param <J>
+	 * 	the type of the items that define each job
+	 */
+	public interface Admission<J> {
+		/**
+		 * Admit a job if the resources it needs are available, and reserve them
+		 * @param item
+		 * 	the job
+		 * @param alone
+		 * 	whether no other job is running, in which case the job should be admitted
+		 * @return true if the job was admitted and can start
+		 */
+		boolean tryAdmit(J item, boolean alone);
+		
+		/**
+		 * Release the resources reserved for a job that finished
+		 * @param item
+		 * 	the job
+		 */
+		void release(J item);
+	}
+	
+	/**
+	 * Task run for every job
+	 *
+	 * @param <J>
+	 * 	the type of the items that define each job
+	 */
+	public interface Job<J> {
+		/**
+		 * Run the test for one item
+		 * @param index
+		 * 	position of the item in the list of jobs
+		 * @param item
+		 * 	the item to be tested
+		 * @throws Exception if the test fails unexpectedly
+		 */
+		void run(int index, J item) throws Exception;
+	}
+	
+	/**
+	 * Create a scheduler that runs at most the given number of jobs at the same time
+	 * @param parallelism
+	 * 	number of jobs that are run concurrently, at least 1
+	 */
+	public TestScheduler(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("The parallelism should be at least 1, but it was " + parallelism);
+		this.parallelism = parallelism;
+		this.maxOvertakes = 4 * parallelism;
+	}
+	
+	/**
+	 * Only start concurrent jobs when they are admitted. Jobs run sequentially are not subject
+	 * to the admission
+	 * @param admission
+	 * 	decides whether a job can start given the jobs that are running, null to start any job
+	 * @return this object
+	 */
+	public TestScheduler<J> setAdmission(Admission<J> admission) {
+		this.admission = admission;
+		return this;
+	}
+	
+	/**
+	 * 
+	 * @return number of jobs that were started before a job that came earlier in the list
+	 */
+	public int getBackfilled() {
+		return backfilled;
+	}
+	
+	/**
+	 * Run the job for every item and wait until all of them are finished. 
+	 * Exceptions thrown by a job are reported and do not stop the rest of jobs.
+	 * @param items
+	 * 	the items to be tested
+	 * @param job
+	 * 	the task run for each item
+	 * @return number of jobs that threw an exception
+	 * @throws InterruptedException if the thread is interrupted while waiting for the jobs
+	 */
+	public int run(List<J> items, Job<J> job) throws InterruptedException {
+		if (parallelism == 1 || items.size() < 2) {
+			int failed = 0;
+			for (int i = 0; i < items.size(); i ++)
+				failed += runSafely(job, i, items.get(i)) ? 0 : 1;
+			return failed;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, items.size()), new WorkerFactory());
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		try {
+			if (admission != null) {
+				Admitted admitted = new Admitted(items);
+				for (int t = 0; t < Math.min(parallelism, items.size()); t ++)
+					futures.add(pool.submit(() -> admitted.runAll(job)));
+			} else {
+				for (int i = 0; i < items.size(); i ++) {
+					final int index = i;
+					final J item = items.get(i);
+					futures.add(pool.submit(() -> runSafely(job, index, item)));
+				}
+			}
+			int failed = 0;
+			for (Future<Boolean> ff : futures) {
+				try {
+					failed += ff.get() ? 0 : 1;
+				} catch (ExecutionException ex) {
+					failed ++;
+				}
+			}
+			return failed;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Jobs of a run subject to the {@link Admission}, started in order with back-filling
+	 */
+	private class Admitted {
+		
+		private final List<J> items;
+		/**
+		 * Whether each job has started
+		 */
+		private final boolean[] started;
+		/**
+		 * Position of the first job that has not started
+		 */
+		private int head = 0;
+		/**
+		 * Number of times the current head has been overtaken
+		 */
+		private int overtakes = 0;
+		/**
+		 * Number of jobs running
+		 */
+		private int running = 0;
+		
+		private Admitted(List<J> items) {
+			this.items = items;
+			this.started = new boolean[items.size()];
+		}
+		
+		/**
+		 * Run admitted jobs until every job has started
+		 * @return true if none of the jobs run by this thread threw an exception
+		 * @throws InterruptedException if the thread is interrupted while waiting for a job to be admitted
+		 */
+		private boolean runAll(Job<J> job) throws InterruptedException {
+			boolean ok = true;
+			int index;
+			while ((index = next()) != -1) {
+				try {
+					ok &= runSafely(job, index, items.get(index));
+				} finally {
+					synchronized (this) {
+						admission.release(items.get(index));
+						running --;
+						notifyAll();
+					}
+				}
+			}
+			return ok;
+		}
+		
+		/**
+		 * Wait until a job is admitted
+		 * @return position of the job admitted, -1 if every job has started
+		 */
+		private synchronized int next() throws InterruptedException {
+			while (true) {
+				while (head < items.size() && started[head])
+					head ++;
+				if (head == items.size())
+					return -1;
+				if (admission.tryAdmit(items.get(head), running == 0))
+					return start(head);
+				// Only the jobs close to the head are considered, so the order is roughly kept
+				int window = Math.min(items.size(), head + 1 + maxOvertakes);
+				for (int i = head + 1; i < window && overtakes < maxOvertakes; i ++) {
+					if (started[i] || !admission.tryAdmit(items.get(i), false))
+						continue;
+					overtakes ++;
+					backfilled ++;
+					return start(i);
+				}
+				wait();
+			}
+		}
+		
+		private int start(int index) {
+			if (index == head)
+				overtakes = 0;
+			started[index] = true;
+			running ++;
+			return index;
+		}
+	}
+	
+	private static <J> boolean runSafely(Job<J> job, int index, J item) {
+		try {
+			job.run(index, item);
+			return true;
+		} catch (Throwable ex) {
+			System.out.println("Unexpected error testing " + item);
+			ex.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Factory that names the worker threads so the logs can be followed
+	 */
+	private static class WorkerFactory implements ThreadFactory {
+		
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ci-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
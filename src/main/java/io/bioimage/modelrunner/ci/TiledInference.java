@@ -0,0 +1,409 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.bioimage.modelrunner.bioimageio.description.ModelDescriptor;
+import io.bioimage.modelrunner.bioimageio.description.ShapeSpec;
+import io.bioimage.modelrunner.bioimageio.description.TensorSpec;
+import io.bioimage.modelrunner.tensor.Tensor;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Runs a model tile by tile on a test input that is too big to be processed at once, so the 
+ * memory used by the engine is bounded by the size of the tile instead of the size of the image.
+ * The size of the tile is derived from the shape constraints of the input of the model 
+ * (minimum size and step of each axis) and the halo of its outputs. Each tile is extended by the
+ * halo on the spatial axes, reading the borders of the image in mirror, and only the centre of 
+ * every output tile is written into an output image allocated once for the whole output. The
+ * stitched outputs can then be compared with the complete test outputs.
+ * 
+ * Only models with one input, whose outputs are defined relative to that input with no offset on
+ * the spatial axes, can be tiled.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class TiledInference {
+	
+	/**
+	 * Axes that can be split into tiles
+	 */
+	private static final String SPATIAL_AXES = "xyz";
+	
+	/**
+	 * Axes of the input
+	 */
+	private final String axes;
+	/**
+	 * Dimensions of the input
+	 */
+	private final long[] dims;
+	/**
+	 * Size of the tiles given to the model, including the halo
+	 */
+	private final long[] tileSize;
+	/**
+	 * Halo of the tiles on each axis of the input
+	 */
+	private final long[] halo;
+	/**
+	 * Distance between the origins of consecutive tiles on each axis of the input
+	 */
+	private final long[] stride;
+	/**
+	 * Axes of each output
+	 */
+	private final List<String> outputAxes;
+	/**
+	 * Scale of each axis of each output with respect to the input
+	 */
+	private final List<float[]> outputScales;
+	
+	/**
+	 * Functional interface that runs the model on one tile
+	 */
+	public interface TileRunner {
+		/**
+		 * Run the model on one tile
+		 * @param inputs
+		 * 	the input tensors of the tile
+		 * @param outputs
+		 * 	the empty output tensors
+		 * @return the output tensors filled by the model
+		 * @throws Exception if the model cannot be run
+		 */
+		List<Tensor<?>> run(List<Tensor<?>> inputs, List<Tensor<?>> outputs) throws Exception;
+	}
+	
+	private TiledInference(String axes, long[] dims, long[] tileSize, long[] halo, List<String> outputAxes, List<float[]> outputScales) {
+		this.axes = axes;
+		this.dims = dims;
+		this.tileSize = tileSize;
+		this.halo = halo;
+		this.outputAxes = outputAxes;
+		this.outputScales = outputScales;
+		this.stride = new long[dims.length];
+		for (int i = 0; i < dims.length; i ++)
+			stride[i] = tileSize[i] - 2 * halo[i];
+	}
+	
+	/**
+	 * Plan the tiles of a test input
+	 * @param rd
+	 * 	the model description
+	 * @param inputs
+	 * 	the input tensors, already pre-processed
+	 * @param maxTileBytes
+	 * 	maximum size of a tile of the input
+	 * @return the tiling, or null if the input fits in one tile or the model cannot be tiled
+	 */
+	public static TiledInference plan(ModelDescriptor rd, List<Tensor<?>> inputs, long maxTileBytes) {
+		if (inputs.size() != 1 || rd.getInputTensors().size() != 1)
+			return notTiled(rd.getName(), "it has more than one input");
+		TensorSpec input = rd.getInputTensors().get(0);
+		String axes = input.getAxesOrder().toLowerCase();
+		RandomAccessibleInterval<?> data = inputs.get(0).getData();
+		if (data.numDimensions() != axes.length())
+			return notTiled(rd.getName(), "the test input does not have the axes " + axes);
+		long[] dims = new long[axes.length()];
+		data.dimensions(dims);
+		long elementBytes = Math.max(1, ((RealType<?>) Util.getTypeFromInterval(data)).getBitsPerPixel() / 8);
+		if (size(dims) * elementBytes <= maxTileBytes)
+			return null;
+		ShapeSpec shape = input.getShape();
+		if (shape == null || shape.isFixedSize())
+			return notTiled(rd.getName(), "its input has a fixed size");
+		
+		long[] halo = new long[dims.length];
+		List<String> outputAxes = new ArrayList<String>();
+		List<float[]> outputScales = new ArrayList<float[]>();
+		for (TensorSpec output : rd.getOutputTensors()) {
+			ShapeSpec outShape = output.getShape();
+			if (outShape == null || outShape.isFixedSize() || !input.getName().equals(outShape.getReferenceInput()))
+				return notTiled(rd.getName(), "the shape of output " + output.getName() + " is not relative to the input");
+			String outAxes = output.getAxesOrder().toLowerCase();
+			float[] scale = new float[dims.length];
+			for (int i = 0; i < dims.length; i ++) {
+				char axis = axes.charAt(i);
+				int j = outAxes.indexOf(axis);
+				if (SPATIAL_AXES.indexOf(axis) < 0 || j < 0)
+					continue;
+				scale[i] = outShape.getScale()[j];
+				if (scale[i] <= 0 || outShape.getOffset()[j] != 0)
+					return notTiled(rd.getName(), "output " + output.getName() + " is not a scaled version of the input along " + axis);
+				float outHalo = output.getHalo() == null ? 0 : output.getHalo()[j];
+				halo[i] = Math.max(halo[i], (long) Math.ceil(outHalo / scale[i]));
+			}
+			outputAxes.add(outAxes);
+			outputScales.add(scale);
+		}
+		
+		return plan(rd.getName(), axes, dims, elementBytes, shape.getTileMinimumSize(), shape.getTileStep(), 
+				halo, outputAxes, outputScales, maxTileBytes);
+	}
+	
+	/**
+	 * Plan the tiles of an input once the constraints of the model are known
+	 * @param name
+	 * 	name of the model
+	 * @param axes
+	 * 	axes of the input, in lower case
+	 * @param dims
+	 * 	dimensions of the input
+	 * @param elementBytes
+	 * 	bytes of each element of the input
+	 * @param min
+	 * 	minimum size of each axis of the input
+	 * @param step
+	 * 	step of each axis of the input, 0 for the axes of fixed size
+	 * @param halo
+	 * 	halo of the tiles on each axis of the input
+	 * @param outputAxes
+	 * 	axes of each output
+	 * @param outputScales
+	 * 	scale of each axis of the input in each output, 0 for the axes that are not tiled
+	 * @param maxTileBytes
+	 * 	maximum size of a tile of the input
+	 * @return the tiling, or null if the tiles cannot be mapped to the outputs
+	 */
+	static TiledInference plan(String name, String axes, long[] dims, long elementBytes, int[] min, int[] step, 
+			long[] halo, List<String> outputAxes, List<float[]> outputScales, long maxTileBytes) {
+		long[] tileSize = new long[dims.length];
+		for (int i = 0; i < dims.length; i ++) {
+			if (SPATIAL_AXES.indexOf(axes.charAt(i)) < 0) {
+				tileSize[i] = dims[i];
+				continue;
+			}
+			tileSize[i] = validSize(dims[i] + 2 * halo[i], min[i], step[i]);
+			if (tileSize[i] < 0)
+				return notTiled(name, "axis " + axes.charAt(i) + " of the input has a fixed size");
+		}
+		// Reduce the biggest spatial axis by one step until the tile fits
+		while (size(tileSize) * elementBytes > maxTileBytes) {
+			int biggest = -1;
+			for (int i = 0; i < dims.length; i ++) {
+				if (SPATIAL_AXES.indexOf(axes.charAt(i)) < 0 || step[i] == 0)
+					continue;
+				long smaller = tileSize[i] - step[i];
+				if (smaller < min[i] || smaller - 2 * halo[i] < 1)
+					continue;
+				if (biggest < 0 || tileSize[i] > tileSize[biggest])
+					biggest = i;
+			}
+			if (biggest < 0)
+				break;
+			tileSize[biggest] -= step[biggest];
+		}
+		for (int i = 0; i < dims.length; i ++) {
+			if (tileSize[i] - 2 * halo[i] < 1)
+				return notTiled(name, "the halo is too big for the tiles along axis " + axes.charAt(i));
+			for (float[] scale : outputScales) {
+				if (!isInteger(scale[i] * (tileSize[i] - 2 * halo[i])) || !isInteger(scale[i] * halo[i]))
+					return notTiled(name, "the scale of the outputs does not map the tiles to whole pixels");
+			}
+		}
+		TiledInference tiling = new TiledInference(axes, dims, tileSize, halo, outputAxes, outputScales);
+		if (size(tileSize) * elementBytes > maxTileBytes)
+			System.out.println("The smallest valid tile of " + name + " is bigger than the tile budget: " 
+					+ Arrays.toString(tileSize));
+		System.out.println("Running " + name + " in " + tiling.getNumTiles() + " tiles of " 
+					+ Arrays.toString(tileSize) + " (" + axes + ") with halo " + Arrays.toString(halo));
+		return tiling;
+	}
+	
+	private static TiledInference notTiled(String name, String reason) {
+		System.out.println("Unable to run " + name + " in tiles, " + reason);
+		return null;
+	}
+	
+	/**
+	 * 
+	 * @param size
+	 * 	requested size
+	 * @param min
+	 * 	minimum size of the axis
+	 * @param step
+	 * 	step of the axis, 0 if the size is fixed
+	 * @return smallest size valid for the axis that is at least the requested size, -1 if the
+	 * 	axis has a fixed size smaller than the requested size
+	 */
+	private static long validSize(long size, int min, int step) {
+		if (size <= min)
+			return min;
+		if (step == 0)
+			return -1;
+		return min + (size - min + step - 1) / step * step;
+	}
+	
+	private static long size(long[] dims) {
+		long size = 1;
+		for (long dd : dims)
+			size *= dd;
+		return size;
+	}
+	
+	private static boolean isInteger(float value) {
+		return Math.abs(value - Math.round(value)) < 1e-6;
+	}
+	
+	/**
+	 * 
+	 * @return the number of tiles
+	 */
+	public int getNumTiles() {
+		long n = 1;
+		for (int i = 0; i < dims.length; i ++)
+			n *= (dims[i] + stride[i] - 1) / stride[i];
+		return (int) n;
+	}
+	
+	/**
+	 * 
+	 * @return size of the tiles given to the model, including the halo
+	 */
+	public long[] getTileSize() {
+		return tileSize.clone();
+	}
+	
+	/**
+	 * Run the model on every tile and stitch the outputs
+	 * @param <T>
+	 * 	ImgLib2 data type of the input
+	 * @param <R>
+	 * 	ImgLib2 data type of the outputs
+	 * @param inputs
+	 * 	the input tensors, already pre-processed
+	 * @param outputs
+	 * 	the empty output tensors
+	 * @param runner
+	 * 	runs the model on one tile
+	 * @return the output tensors with the whole outputs
+	 * @throws Exception if the model cannot be run on any of the tiles
+	 */
+	@SuppressWarnings("unchecked")
+	public < T extends RealType< T > & NativeType< T >, R extends RealType< R > & NativeType< R > > 
+	List<Tensor<?>> run(List<Tensor<?>> inputs, List<Tensor<?>> outputs, TileRunner runner) throws Exception {
+		Tensor<T> input = (Tensor<T>) inputs.get(0);
+		RandomAccessible<T> extended = Views.extendMirrorSingle(input.getData());
+		// A single plane cannot be mirrored
+		for (int i = 0; i < dims.length; i ++) {
+			if (SPATIAL_AXES.indexOf(axes.charAt(i)) >= 0 && dims[i] < 2)
+				extended = Views.extendBorder(input.getData());
+		}
+		T type = Util.getTypeFromInterval(input.getData());
+		List<Img<R>> stitched = new ArrayList<Img<R>>();
+		for (int k = 0; k < outputs.size(); k ++)
+			stitched.add(null);
+		
+		long[] origin = new long[dims.length];
+		long[] min = new long[dims.length];
+		long[] max = new long[dims.length];
+		for (int t = 0; t < getNumTiles(); t ++) {
+			for (int i = 0; i < dims.length; i ++) {
+				min[i] = origin[i] - halo[i];
+				max[i] = min[i] + tileSize[i] - 1;
+			}
+			Img<T> tile = BufferPool.allocate(type, tileSize);
+			LoopBuilder.setImages(Views.zeroMin(Views.interval(extended, min, max)), tile).forEachPixel((s, d) -> d.set(s));
+			List<Tensor<?>> tileInputs = new ArrayList<Tensor<?>>();
+			tileInputs.add(Tensor.build(input.getName(), input.getAxesOrderString(), tile));
+			List<Tensor<?>> tileOutputs = new ArrayList<Tensor<?>>();
+			for (Tensor<?> output : outputs)
+				tileOutputs.add(Tensor.buildEmptyTensor(output.getName(), output.getAxesOrderString()));
+			tileOutputs = runner.run(tileInputs, tileOutputs);
+			for (int k = 0; k < outputs.size(); k ++) {
+				RandomAccessibleInterval<R> out = (RandomAccessibleInterval<R>) tileOutputs.get(k).getData();
+				if (stitched.get(k) == null)
+					stitched.set(k, allocate(k, out));
+				paste(k, origin, out, stitched.get(k));
+			}
+			for (Tensor<?> tt : tileInputs)
+				tt.close();
+			BufferPool.release(tile);
+			// Move to the next tile, the first axis changes fastest
+			for (int i = 0; i < dims.length; i ++) {
+				origin[i] += stride[i];
+				if (origin[i] < dims[i])
+					break;
+				origin[i] = 0;
+			}
+		}
+		List<Tensor<?>> result = new ArrayList<Tensor<?>>();
+		for (int k = 0; k < outputs.size(); k ++)
+			result.add(Tensor.build(outputs.get(k).getName(), outputs.get(k).getAxesOrderString(), stitched.get(k)));
+		return result;
+	}
+	
+	/**
+	 * Allocate the whole output. The spatial axes are the scaled axes of the input, the rest
+	 * of axes have the size of the output of a tile
+	 */
+	private < R extends RealType< R > & NativeType< R > > Img<R> allocate(int k, RandomAccessibleInterval<R> tileOut) {
+		long[] outDims = new long[tileOut.numDimensions()];
+		tileOut.dimensions(outDims);
+		String outAxes = outputAxes.get(k);
+		for (int i = 0; i < dims.length; i ++) {
+			int j = outAxes.indexOf(axes.charAt(i));
+			if (j >= 0 && outputScales.get(k)[i] > 0)
+				outDims[j] = Math.round(dims[i] * (double) outputScales.get(k)[i]);
+		}
+		return BufferPool.allocate(Util.getTypeFromInterval(tileOut).createVariable(), outDims);
+	}
+	
+	/**
+	 * Copy the centre of the output of a tile, without the halo, into the whole output
+	 */
+	private < R extends RealType< R > & NativeType< R > > void paste(int k, long[] origin, RandomAccessibleInterval<R> tileOut, Img<R> whole) {
+		int n = tileOut.numDimensions();
+		long[] srcMin = new long[n];
+		long[] dstMin = new long[n];
+		long[] size = new long[n];
+		tileOut.dimensions(size);
+		String outAxes = outputAxes.get(k);
+		for (int i = 0; i < dims.length; i ++) {
+			int j = outAxes.indexOf(axes.charAt(i));
+			float scale = outputScales.get(k)[i];
+			if (j < 0 || scale == 0)
+				continue;
+			srcMin[j] = Math.round(halo[i] * (double) scale);
+			dstMin[j] = Math.round(origin[i] * (double) scale);
+			size[j] = Math.min(Math.round(stride[i] * (double) scale), whole.dimension(j) - dstMin[j]);
+		}
+		long[] srcMax = new long[n];
+		long[] dstMax = new long[n];
+		for (int j = 0; j < n; j ++) {
+			srcMax[j] = tileOut.min(j) + srcMin[j] + size[j] - 1;
+			srcMin[j] += tileOut.min(j);
+			dstMax[j] = dstMin[j] + size[j] - 1;
+		}
+		LoopBuilder.setImages(Views.zeroMin(Views.interval(tileOut, srcMin, srcMax)), Views.zeroMin(Views.interval(whole, dstMin, dstMax)))
+			.forEachPixel((s, d) -> d.set(s));
+	}
+}
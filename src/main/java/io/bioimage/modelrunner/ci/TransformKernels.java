@@ -0,0 +1,548 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Kernels that run the built-in transformations directly on the flat storage of float32, 
+ * uint8 and uint16 images, either Java arrays or float buffers of the {@link BufferPool}.
+ * The tensor is split in blocks of {@link #BLOCK} elements that are processed in parallel 
+ * in the common fork-join pool. The pointwise transformations are {@link Pointwise} steps, 
+ * each run by its own loop over a tile of {@link #TILE} values converted to double, so a chain 
+ * of them still reads and writes the tensor once. The loops of scale_linear, clip, binarize
+ * and zero_mean_unit_variance are counted loops over a double array without calls, which the 
+ * JIT compiler can unroll and vectorise where it supports the operations. sigmoid calls 
+ * {@link Math#exp(double)} and is not vectorised.
+ * 
+ * Pointwise transformations apply exactly the same double precision operations as the
+ * sequential path, so the results are identical. zero_mean_unit_variance and scale_range 
+ * computed per sample, over the whole tensor or along some axes, sum the blocks in a different 
+ * order and take the percentiles from {@link Percentiles}, so the normalised values may differ 
+ * from the ones of the transformations of JDLL by at most {@link #TOLERANCE}, unless the 
+ * percentiles are approximated.
+ * Any other data type, image layout or variant of the transformations (per dataset or with a 
+ * reference tensor) is left to {@link JavaProcessing}.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class TransformKernels {
+	
+	/**
+	 * Maximum absolute difference between the normalised values produced by the kernels that
+	 * compute statistics of the tensor and the ones produced by {@link JavaProcessing}
+	 */
+	public static final double TOLERANCE = 1e-4;
+	/**
+	 * Number of elements processed by each fork-join task
+	 */
+	static final int BLOCK = 1 << 16;
+	/**
+	 * Number of elements of the tiles in which the pointwise steps process a block, small 
+	 * enough to stay in the L1 cache between the steps
+	 */
+	static final int TILE = 1024;
+	/**
+	 * Default epsilon of zero_mean_unit_variance and scale_range
+	 */
+	private static final double DEFAULT_EPS = 1e-6;
+	/**
+	 * Engine that computes the percentiles of scale_range
+	 */
+	private static volatile Percentiles percentiles = Percentiles.exact();
+	
+	/**
+	 * Set the engine that computes the percentiles of scale_range, exact by default
+	 * @param engine
+	 * 	the engine
+	 */
+	public static void setPercentiles(Percentiles engine) {
+		percentiles = engine;
+	}
+	
+	/**
+	 * Whether a transformation that needs statistics of the tensor may be run by the kernels.
+	 * Whether it is finally run by them depends on the tensor, see 
+	 * {@link #applyStatistics(String, Map, RandomAccessibleInterval, String)}
+	 * @param name
+	 * 	name of the transformation in the rdf.yaml
+	 * @param kwargs
+	 * 	arguments of the transformation
+	 * @return true for zero_mean_unit_variance and scale_range computed per sample
+	 */
+	static boolean hasKernel(String name, Map<String, Object> kwargs) {
+		Object mode = kwargs == null ? null : kwargs.get("mode");
+		if (mode != null && !"per_sample".equals(mode))
+			return false;
+		if (name.equals("zero_mean_unit_variance"))
+			return true;
+		return name.equals("scale_range") && (kwargs == null || kwargs.get("reference_tensor") == null);
+	}
+	
+	/**
+	 * Run zero_mean_unit_variance or scale_range per sample, with the statistics of the whole
+	 * tensor or of each group of elements along the axes of the transformation
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param name
+	 * 	name of the transformation in the rdf.yaml
+	 * @param kwargs
+	 * 	arguments of the transformation
+	 * @param data
+	 * 	the image
+	 * @param axes
+	 * 	axes order of the image
+	 * @return the transformed float image or null if the data type or the layout of the image
+	 * 	are not supported
+	 * @throws IllegalArgumentException if the percentiles are not between 0 and 100
+	 */
+	static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval<FloatType> applyStatistics(String name, Map<String, Object> kwargs, 
+			RandomAccessibleInterval<T> data, String axes) throws IllegalArgumentException {
+		Object storage = flatStorage(data);
+		if (storage == null)
+			return null;
+		long[] dims = Intervals.dimensionsAsLongArray(data);
+		boolean[] reduced = reducedAxes(kwargs, axes);
+		Percentiles.Groups groups = new Percentiles.Groups(dims, reduced);
+		int n = (int) Intervals.numElements(data);
+		double eps = number(kwargs, "eps", DEFAULT_EPS);
+		double[] sub = new double[groups.count];
+		double[] div = new double[groups.count];
+		if (name.equals("zero_mean_unit_variance") && groups.count == 1) {
+			double mean = sum(storage, n, 0, false) / n;
+			double std = Math.sqrt(sum(storage, n, mean, true) / n);
+			sub[0] = mean;
+			div[0] = std + eps;
+		} else if (name.equals("zero_mean_unit_variance")) {
+			IntStream.range(0, groups.count).parallel().forEach(g -> {
+				Percentiles.Values values = groups.values(storage, g);
+				double mean = 0, var = 0;
+				for (int i = 0; i < values.size; i ++)
+					mean += values.get(i);
+				mean /= values.size;
+				for (int i = 0; i < values.size; i ++)
+					var += (values.get(i) - mean) * (values.get(i) - mean);
+				sub[g] = mean;
+				div[g] = Math.sqrt(var / values.size) + eps;
+			});
+		} else {
+			double lowQ = number(kwargs, "min_percentile", 0);
+			double highQ = number(kwargs, "max_percentile", 100);
+			if (lowQ < 0 || highQ > 100 || lowQ > highQ)
+				throw new IllegalArgumentException(String.format(Locale.ROOT, 
+						"Invalid percentiles for scale_range: min_percentile=%s, max_percentile=%s", lowQ, highQ));
+			double[][] ranges = percentiles.compute(storage, dims, reduced, lowQ, highQ);
+			for (int g = 0; g < groups.count; g ++) {
+				sub[g] = ranges[g][0];
+				div[g] = ranges[g][1] - ranges[g][0] + eps;
+			}
+		}
+		if (groups.count == 1)
+			return map(data, storage, new Pointwise[] {new Pointwise(Pointwise.STANDARDIZE, sub[0], div[0])});
+		return map(data, storage, groups, sub, div);
+	}
+	
+	/**
+	 * Apply pointwise transformations, in order, to every element of an image.
+	 * Float images backed by a Java array are modified in place, any other image is
+	 * written into a new float image, taken from the {@link BufferPool}, because the source 
+	 * might be read-only
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param data
+	 * 	the image
+	 * @param steps
+	 * 	the transformations
+	 * @return a float image with the transformations applied
+	 */
+	static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval<FloatType> applyPointwise(RandomAccessibleInterval<T> data, Pointwise[] steps) {
+		Object storage = flatStorage(data);
+		if (storage != null)
+			return map(data, storage, steps);
+		Img<FloatType> out = BufferPool.allocate(new FloatType(), Intervals.dimensionsAsLongArray(data));
+		LoopBuilder.setImages(Views.zeroMin(data), out).multiThreaded().forEachPixel((i, o) -> {
+			double v = i.getRealDouble();
+			for (Pointwise step : steps)
+				v = step.applyAsDouble(v);
+			o.setReal(v);
+		});
+		return out;
+	}
+	
+	/**
+	 * Apply pointwise transformations to the flat storage of an image
+	 * @param data
+	 * 	the image
+	 * @param storage
+	 * 	its flat storage, as returned by {@link #flatStorage(RandomAccessibleInterval)}
+	 * @param steps
+	 * 	the transformations
+	 * @return the image if it is a float image backed by a Java array, which is modified in place,
+	 * 	or a new float image
+	 */
+	@SuppressWarnings("unchecked")
+	private static RandomAccessibleInterval<FloatType> map(RandomAccessibleInterval<?> data, 
+			Object storage, Pointwise[] steps) {
+		int n = (int) Intervals.numElements(data);
+		if (storage instanceof float[]) {
+			map(storage, storage, n, steps);
+			return (RandomAccessibleInterval<FloatType>) data;
+		}
+		Img<FloatType> out = BufferPool.allocate(new FloatType(), Intervals.dimensionsAsLongArray(data));
+		Object outStorage = flatStorage(out);
+		map(storage, outStorage, n, steps);
+		return out;
+	}
+	
+	/**
+	 * Get the flat storage of an image if the kernels support it
+	 * @param data
+	 * 	the image
+	 * @return the float, byte (uint8) or short (uint16) array that backs the image, the 
+	 * 	buffer of a float image of the {@link BufferPool} or null if the kernels cannot read 
+	 * 	the image
+	 */
+	static Object flatStorage(RandomAccessibleInterval<?> data) {
+		Object type = Util.getTypeFromInterval(data);
+		Object storage = OutputComparator.primitiveStorage(data);
+		if ((storage instanceof float[] && type instanceof FloatType)
+				|| (storage instanceof byte[] && type instanceof UnsignedByteType)
+				|| (storage instanceof short[] && type instanceof UnsignedShortType))
+			return storage;
+		return storage == null ? BufferPool.floatBuffer(data) : null;
+	}
+	
+	/**
+	 * Find the axes along which the statistics of a per sample transformation are computed
+	 * @param kwargs
+	 * 	arguments of the transformation
+	 * @param axes
+	 * 	axes order of the image
+	 * @return whether each axis of the image is reduced, all of them if the transformation does 
+	 * 	not specify the axes
+	 */
+	private static boolean[] reducedAxes(Map<String, Object> kwargs, String axes) {
+		Object names = kwargs == null ? null : kwargs.get("axes");
+		String reduced = "";
+		if (names != null) {
+			for (Object axis : names instanceof List ? (List<?>) names : Arrays.asList(names))
+				reduced += axis.toString().toLowerCase();
+		}
+		boolean[] mask = new boolean[axes.length()];
+		for (int d = 0; d < mask.length; d ++)
+			mask[d] = names == null || reduced.indexOf(Character.toLowerCase(axes.charAt(d))) != -1;
+		return mask;
+	}
+	
+	/**
+	 * Sum of the elements of a flat storage, or of their squared differences with a value,
+	 * adding the blocks in parallel
+	 */
+	private static double sum(Object storage, int n, double shift, boolean square) {
+		return run(n, (from, to) -> new double[] {sum(storage, from, to, shift, square)})[0];
+	}
+	
+	/**
+	 * Apply pointwise transformations to the first n elements of a flat storage, in parallel blocks
+	 */
+	private static void map(Object in, Object out, int n, Pointwise[] steps) {
+		run(n, (from, to) -> {
+			map(in, out, from, to, steps);
+			return null;
+		});
+	}
+	
+	/**
+	 * Compute (v - sub[g]) / div[g] for every element of a flat storage, where g is the group of the element
+	 * @return a new float image with the results
+	 */
+	private static RandomAccessibleInterval<FloatType> map(RandomAccessibleInterval<?> data, Object storage, 
+			Percentiles.Groups groups, double[] sub, double[] div) {
+		Img<FloatType> out = BufferPool.allocate(new FloatType(), Intervals.dimensionsAsLongArray(data));
+		Object outStorage = flatStorage(out);
+		Percentiles.Values values = groups.values(storage, 0);
+		run((int) Intervals.numElements(data), (from, to) -> {
+			for (int i = from; i < to; i ++) {
+				int g = groups.of(i);
+				float v = (float) ((values.read(i) - sub[g]) / div[g]);
+				if (outStorage instanceof float[])
+					((float[]) outStorage)[i] = v;
+				else
+					((FloatBuffer) outStorage).put(i, v);
+			}
+			return null;
+		});
+		return out;
+	}
+	
+	/**
+	 * Apply pointwise transformations to a range of a flat storage, writing the results into a 
+	 * float array or buffer. The range is processed in tiles that are converted to double, 
+	 * transformed by each step in turn and written back
+	 */
+	private static void map(Object in, Object out, int from, int to, Pointwise[] steps) {
+		double[] tile = new double[Math.min(TILE, to - from)];
+		for (int start = from; start < to; start += TILE) {
+			int len = Math.min(TILE, to - start);
+			read(in, start, tile, len);
+			for (Pointwise step : steps)
+				step.apply(tile, len);
+			write(tile, len, out, start);
+		}
+	}
+	
+	/**
+	 * Copy len elements of a flat storage, from the position start, into a tile
+	 */
+	private static void read(Object in, int start, double[] tile, int len) {
+		if (in instanceof float[]) {
+			float[] a = (float[]) in;
+			for (int i = 0; i < len; i ++)
+				tile[i] = a[start + i];
+		} else if (in instanceof byte[]) {
+			byte[] a = (byte[]) in;
+			for (int i = 0; i < len; i ++)
+				tile[i] = a[start + i] & 0xff;
+		} else if (in instanceof short[]) {
+			short[] a = (short[]) in;
+			for (int i = 0; i < len; i ++)
+				tile[i] = a[start + i] & 0xffff;
+		} else {
+			FloatBuffer a = (FloatBuffer) in;
+			for (int i = 0; i < len; i ++)
+				tile[i] = a.get(start + i);
+		}
+	}
+	
+	/**
+	 * Copy the first len elements of a tile into a float array or buffer, from the position start
+	 */
+	private static void write(double[] tile, int len, Object out, int start) {
+		if (out instanceof float[]) {
+			float[] o = (float[]) out;
+			for (int i = 0; i < len; i ++)
+				o[start + i] = (float) tile[i];
+		} else {
+			FloatBuffer o = (FloatBuffer) out;
+			for (int i = 0; i < len; i ++)
+				o.put(start + i, (float) tile[i]);
+		}
+	}
+	
+	/**
+	 * Sum of a range of a flat storage, or of the squared differences with a value
+	 */
+	private static double sum(Object in, int from, int to, double shift, boolean square) {
+		double s = 0;
+		if (in instanceof float[]) {
+			float[] a = (float[]) in;
+			for (int i = from; i < to; i ++) {
+				double d = a[i] - shift;
+				s += square ? d * d : d;
+			}
+		} else if (in instanceof byte[]) {
+			byte[] a = (byte[]) in;
+			for (int i = from; i < to; i ++) {
+				double d = (a[i] & 0xff) - shift;
+				s += square ? d * d : d;
+			}
+		} else if (in instanceof short[]) {
+			short[] a = (short[]) in;
+			for (int i = from; i < to; i ++) {
+				double d = (a[i] & 0xffff) - shift;
+				s += square ? d * d : d;
+			}
+		} else {
+			FloatBuffer a = (FloatBuffer) in;
+			for (int i = from; i < to; i ++) {
+				double d = a.get(i) - shift;
+				s += square ? d * d : d;
+			}
+		}
+		return s;
+	}
+	
+	/**
+	 * Read a numeric argument of a transformation
+	 */
+	private static double number(Map<String, Object> kwargs, String key, double defaultValue) {
+		Object value = kwargs == null ? null : kwargs.get(key);
+		return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+	}
+	
+	/**
+	 * Run a block function over the range [0, n), in the calling thread if the range fits in
+	 * a single block and in the common fork-join pool otherwise
+	 * @return the elementwise sum of the arrays returned by the blocks, null if they return null
+	 */
+	private static double[] run(int n, Block block) {
+		if (n <= BLOCK)
+			return block.run(0, n);
+		return ForkJoinPool.commonPool().invoke(new BlockTask(block, 0, n));
+	}
+	
+	/**
+	 * Pointwise transformation with fixed parameters a and b. It can be applied to single values,
+	 * but the kernels apply it to whole tiles with the loop of its kind
+	 */
+	static final class Pointwise implements DoubleUnaryOperator {
+		
+		/**
+		 * v * a + b, scale_linear
+		 */
+		static final int LINEAR = 0;
+		/**
+		 * (v - a) / b, zero_mean_unit_variance with fixed mean and std
+		 */
+		static final int STANDARDIZE = 1;
+		/**
+		 * max(a, min(b, v)), clip
+		 */
+		static final int CLIP = 2;
+		/**
+		 * 1 if v is greater than a, 0 otherwise, binarize
+		 */
+		static final int BINARIZE = 3;
+		/**
+		 * 1 / (1 + exp(-v)), sigmoid
+		 */
+		static final int SIGMOID = 4;
+		
+		private final int kind;
+		
+		private final double a;
+		
+		private final double b;
+		
+		Pointwise(int kind, double a, double b) {
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+		}
+		
+		@Override
+		public double applyAsDouble(double v) {
+			switch (kind) {
+			case LINEAR:
+				return v * a + b;
+			case STANDARDIZE:
+				return (v - a) / b;
+			case CLIP:
+				return Math.max(a, Math.min(b, v));
+			case BINARIZE:
+				return v > a ? 1 : 0;
+			default:
+				return 1.0 / (1.0 + Math.exp(-v));
+			}
+		}
+		
+		/**
+		 * Apply the transformation to the first n values of a tile, in place
+		 */
+		private void apply(double[] t, int n) {
+			switch (kind) {
+			case LINEAR:
+				for (int i = 0; i < n; i ++)
+					t[i] = t[i] * a + b;
+				break;
+			case STANDARDIZE:
+				for (int i = 0; i < n; i ++)
+					t[i] = (t[i] - a) / b;
+				break;
+			case CLIP:
+				for (int i = 0; i < n; i ++)
+					t[i] = Math.max(a, Math.min(b, t[i]));
+				break;
+			case BINARIZE:
+				for (int i = 0; i < n; i ++)
+					t[i] = t[i] > a ? 1 : 0;
+				break;
+			default:
+				for (int i = 0; i < n; i ++)
+					t[i] = 1.0 / (1.0 + Math.exp(-t[i]));
+			}
+		}
+	}
+	
+	/**
+	 * Work done on a range of the flat storage
+	 */
+	private interface Block {
+		double[] run(int from, int to);
+	}
+	
+	/**
+	 * Splits a range in halves until it fits in a block and adds the results of both halves
+	 */
+	private static class BlockTask extends RecursiveTask<double[]> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Block block;
+		
+		private final int from;
+		
+		private final int to;
+		
+		private BlockTask(Block block, int from, int to) {
+			this.block = block;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected double[] compute() {
+			if (to - from <= BLOCK)
+				return block.run(from, to);
+			int mid = (from + to) >>> 1;
+			BlockTask left = new BlockTask(block, from, mid);
+			left.fork();
+			double[] right = new BlockTask(block, mid, to).compute();
+			double[] result = left.join();
+			if (result == null)
+				return right;
+			for (int i = 0; i < result.length; i ++)
+				result[i] += right[i];
+			return result;
+		}
+	}
+}
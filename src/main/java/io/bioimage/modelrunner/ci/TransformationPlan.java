@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reflection lookups needed to run a Java processing transformation, resolved once.
+ * The plan contains the transformation class, its constructor, the setter of every
+ * argument and the method that applies the transformation, all as {@link MethodHandle}s.
+ * Plans are shared by the whole process and identified by the transformation name
+ * in the rdf.yaml and the names of its arguments
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class TransformationPlan {
+	
+	/**
+	 * Plans already compiled in this process
+	 */
+	private static final Map<String, TransformationPlan> PLANS = new ConcurrentHashMap<String, TransformationPlan>();
+	/**
+	 * Class that contains the transformation
+	 */
+	private final Class<?> transformationClass;
+	/**
+	 * Name of the method that runs the transformation
+	 */
+	private final String methodName;
+	/**
+	 * No-args constructor of the transformation class, with type ()Object
+	 */
+	private final MethodHandle constructor;
+	/**
+	 * Setter of each of the arguments, with type (Object,Object)void
+	 */
+	private final Map<String, MethodHandle> setters;
+	/**
+	 * Method that runs the transformation, with type (Object,Object)Object
+	 */
+	private final MethodHandle apply;
+	/**
+	 * Whether the method that runs the transformation modifies the tensor in place
+	 * instead of returning the result
+	 */
+	private final boolean returnsVoid;
+	
+	private TransformationPlan(Class<?> transformationClass, String methodName, MethodHandle constructor,
+			Map<String, MethodHandle> setters, MethodHandle apply, boolean returnsVoid) {
+		this.transformationClass = transformationClass;
+		this.methodName = methodName;
+		this.constructor = constructor;
+		this.setters = setters;
+		this.apply = apply;
+		this.returnsVoid = returnsVoid;
+	}
+	
+	/**
+	 * Key that identifies a plan
+	 * @param rdfSpec
+	 * 	transformation as specified in the rdf.yaml
+	 * @param argNames
+	 * 	names of the arguments of the transformation
+	 * @return the key of the plan
+	 */
+	private static String key(String rdfSpec, Collection<String> argNames) {
+		List<String> names = new ArrayList<String>(argNames);
+		Collections.sort(names);
+		return rdfSpec + names;
+	}
+	
+	/**
+	 * Get the plan already compiled for a transformation
+	 * @param rdfSpec
+	 * 	transformation as specified in the rdf.yaml
+	 * @param argNames
+	 * 	names of the arguments of the transformation
+	 * @return the plan or null if it has not been compiled yet
+	 */
+	public static TransformationPlan lookup(String rdfSpec, Collection<String> argNames) {
+		return PLANS.get(key(rdfSpec, argNames));
+	}
+	
+	/**
+	 * Resolve all the methods needed to run a transformation and keep the plan for
+	 * the next transformations with the same name and arguments
+	 * @param rdfSpec
+	 * 	transformation as specified in the rdf.yaml
+	 * @param transformationClass
+	 * 	class that contains the transformation
+	 * @param methodName
+	 * 	name of the method that runs the transformation
+	 * @param argNames
+	 * 	names of the arguments of the transformation
+	 * @return the plan
+	 * @throws IllegalArgumentException if the class does not have a public no-args constructor,
+	 * 	the method that runs the transformation or a setter for any of the arguments
+	 */
+	public static TransformationPlan compile(String rdfSpec, Class<?> transformationClass, String methodName,
+			Collection<String> argNames) throws IllegalArgumentException {
+		String key = key(rdfSpec, argNames);
+		TransformationPlan plan = PLANS.get(key);
+		if (plan != null)
+			return plan;
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		MethodHandle constructor;
+		try {
+			constructor = lookup.unreflectConstructor(transformationClass.getConstructor())
+					.asType(MethodType.methodType(Object.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new IllegalArgumentException("Processing method '" + rdfSpec + "' failed"
+					+ " due to an error instantiating the class that defines the transformation ("
+					+ transformationClass.getName() + "), it should have a public constructor without arguments."
+					+ System.lineSeparator() + e);
+		}
+		Map<String, Method> publicSetters = new HashMap<String, Method>();
+		Method applyMethod = null;
+		for (Method mm : transformationClass.getMethods()) {
+			if (mm.getParameterCount() != 1)
+				continue;
+			if (applyMethod == null && mm.getName().equals(methodName))
+				applyMethod = mm;
+			if (mm.getName().startsWith("set") && mm.getParameterTypes()[0] == Object.class)
+				publicSetters.put(mm.getName(), mm);
+		}
+		if (applyMethod == null)
+			throw new IllegalArgumentException("The processing transformation class '" + transformationClass.getName()
+					+ "' does not contain the method '" + methodName + "' needed to call the transformation.");
+		
+		Map<String, MethodHandle> setters = new HashMap<String, MethodHandle>();
+		MethodType setterType = MethodType.methodType(void.class, Object.class, Object.class);
+		for (String arg : argNames) {
+			String mName = "set" + JavaProcessing.snakeCaseToCamelCaseFirstCap(arg);
+			Method mm = publicSetters.get(mName);
+			if (mm == null)
+				throw new IllegalArgumentException("Setter for argument '" + arg + "' of the processing "
+						+ "transformation '" + rdfSpec + "' not found in the Java transformation class '"
+						+ transformationClass.getName() + "'. A method called '" + mName
+						+ "' with only one input parameter with type Object.class should be present.");
+			try {
+				setters.put(arg, lookup.unreflect(mm).asType(setterType));
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Setter '" + mName + "' of the processing transformation '"
+						+ rdfSpec + "' cannot be accessed. " + System.lineSeparator() + e);
+			}
+		}
+		MethodHandle apply;
+		try {
+			apply = lookup.unreflect(applyMethod).asType(MethodType.methodType(Object.class, Object.class, Object.class));
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Processing method '" + rdfSpec + "' failed"
+					+ " throwing an IllegalAccessException." + System.lineSeparator() + e);
+		}
+		plan = new TransformationPlan(transformationClass, applyMethod.getName(), constructor,
+				Collections.unmodifiableMap(setters), apply, applyMethod.getReturnType().equals(Void.TYPE));
+		TransformationPlan previous = PLANS.putIfAbsent(key, plan);
+		return previous == null ? plan : previous;
+	}
+	
+	/**
+	 * Create a new instance of the transformation and set its arguments
+	 * @param args
+	 * 	the value of each of the arguments of the plan
+	 * @return the instance of the transformation
+	 * @throws Throwable any exception thrown by the constructor or the setters
+	 */
+	public Object instantiate(Map<String, Object> args) throws Throwable {
+		Object instance = (Object) constructor.invokeExact();
+		for (Map.Entry<String, MethodHandle> setter : setters.entrySet())
+			setter.getValue().invokeExact(instance, args.get(setter.getKey()));
+		return instance;
+	}
+	
+	/**
+	 * Set one argument of an instance of the transformation
+	 * @param instance
+	 * 	instance of the transformation
+	 * @param argName
+	 * 	name of the argument
+	 * @param value
+	 * 	value of the argument
+	 * @throws Throwable any exception thrown by the setter
+	 */
+	public void set(Object instance, String argName, Object value) throws Throwable {
+		MethodHandle setter = setters.get(argName);
+		if (setter == null)
+			throw new IllegalArgumentException("The processing transformation class '"
+					+ transformationClass.getName() + "' has no setter for argument '" + argName + "'.");
+		setter.invokeExact(instance, value);
+	}
+	
+	/**
+	 * Run the transformation
+	 * @param instance
+	 * 	instance of the transformation, with its arguments set
+	 * @param input
+	 * 	the object the transformation is applied to
+	 * @return the result of the transformation, null if it modifies the input in place
+	 * @throws Throwable any exception thrown by the transformation
+	 */
+	public Object apply(Object instance, Object input) throws Throwable {
+		return (Object) apply.invokeExact(instance, input);
+	}
+	
+	/**
+	 * 
+	 * @return the class that contains the transformation
+	 */
+	public Class<?> getTransformationClass() {
+		return transformationClass;
+	}
+	
+	/**
+	 * 
+	 * @return the name of the method that runs the transformation
+	 */
+	public String getMethodName() {
+		return methodName;
+	}
+	
+	/**
+	 * 
+	 * @return whether the transformation modifies its input in place instead of returning the result
+	 */
+	public boolean returnsVoid() {
+		return returnsVoid;
+	}
+	
+	/**
+	 * 
+	 * @param argName
+	 * 	name of an argument
+	 * @return whether the plan has a setter for the argument
+	 */
+	public boolean hasSetter(String argName) {
+		return setters.containsKey(argName);
+	}
+}
@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Enforces the deadlines of the tests, one for the whole test of a weight format and one 
+ * for each of its stages (see {@link StageMetrics}). Every test is run in its own thread 
+ * while the thread of the scheduler watches it. When a deadline is exceeded the test is 
+ * marked with the {@link #TIMEOUT} status and stopped: its worker JVM is killed if it is 
+ * running in one, and its thread is interrupted. A test that does not stop within a grace 
+ * period, for example because it is blocked in native code, is abandoned, its thread is left 
+ * running as a daemon and the scheduler moves on to the next test.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class Watchdog {
+	
+	/**
+	 * Status of the tests stopped because they exceeded a deadline
+	 */
+	public static final String TIMEOUT = "timeout";
+	/**
+	 * Time between two checks of the deadlines
+	 */
+	private static final long POLL_MS = 500;
+	/**
+	 * Time given to a test to stop once it has been interrupted, before it is abandoned
+	 */
+	private static final long GRACE_MS = 30000;
+	
+	/**
+	 * Maximum duration of the test of a weight format in milliseconds, 0 for no limit
+	 */
+	private final long modelTimeoutMs;
+	/**
+	 * Maximum duration of each stage of a test in milliseconds, 0 for no limit
+	 */
+	private final long stageTimeoutMs;
+	/**
+	 * Workers that run the models, null if they are run in this JVM
+	 */
+	private final WorkerPool workers;
+	
+	/**
+	 * Create the watchdog
+	 * @param modelTimeoutMs
+	 * 	maximum duration of the test of a weight format in milliseconds, 0 for no limit
+	 * @param stageTimeoutMs
+	 * 	maximum duration of each stage of a test in milliseconds, 0 for no limit
+	 * @param workers
+	 * 	workers that run the models, null if they are run in this JVM
+	 */
+	public Watchdog(long modelTimeoutMs, long stageTimeoutMs, WorkerPool workers) {
+		this.modelTimeoutMs = modelTimeoutMs;
+		this.stageTimeoutMs = stageTimeoutMs;
+		this.workers = workers;
+	}
+	
+	/**
+	 * 
+	 * @return whether there is any deadline to enforce
+	 */
+	public boolean isEnabled() {
+		return modelTimeoutMs > 0 || stageTimeoutMs > 0;
+	}
+	
+	/**
+	 * Run a test enforcing its deadlines
+	 * @param <T>
+	 * 	type of the result of the test
+	 * @param job
+	 * 	the test, whose stages are watched and that is marked if a deadline is exceeded
+	 * @param test
+	 * 	the code of the test
+	 * @return the result of the test, also when it was stopped by a deadline but it finished
+	 * 	within the grace period
+	 * @throws TimeoutException if the test exceeded a deadline and was abandoned
+	 * @throws Exception the exception thrown by the test
+	 */
+	public <T> T run(TestJob job, Callable<T> test) throws Exception {
+		if (!isEnabled())
+			return test.call();
+		FutureTask<T> task = new FutureTask<T>(test);
+		Thread thread = new Thread(task, "ci-test-" + job);
+		thread.setDaemon(true);
+		long start = System.nanoTime();
+		long stopped = -1;
+		thread.start();
+		try {
+			while (true) {
+				try {
+					return task.get(POLL_MS, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException ex) {
+				}
+				if (stopped < 0) {
+					String reason = exceeded(job, System.nanoTime() - start);
+					if (reason == null)
+						continue;
+					System.out.println("Stopping " + job + ": " + reason);
+					job.setTimeout(reason);
+					if (workers != null)
+						workers.kill(job);
+					thread.interrupt();
+					stopped = System.nanoTime();
+				} else if (System.nanoTime() - stopped > TimeUnit.MILLISECONDS.toNanos(GRACE_MS)) {
+					System.out.println("Abandoning " + job + ", it did not stop " + (GRACE_MS / 1000) + "s after being interrupted");
+					throw new TimeoutException(job.getTimeout());
+				}
+			}
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Error)
+				throw (Error) ex.getCause();
+			throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+		} catch (InterruptedException ex) {
+			thread.interrupt();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Check the deadlines of a test
+	 * @param job
+	 * 	the test
+	 * @param elapsedNanos
+	 * 	time since the test started
+	 * @return the deadline exceeded, null if none
+	 */
+	private String exceeded(TestJob job, long elapsedNanos) {
+		if (modelTimeoutMs > 0 && elapsedNanos > TimeUnit.MILLISECONDS.toNanos(modelTimeoutMs))
+			return "the test exceeded its deadline of " + (modelTimeoutMs / 1000) + "s";
+		StageMetrics.Stage stage = job.getMetrics().getCurrent();
+		if (stageTimeoutMs > 0 && stage != null && stage.getElapsedNanos() > TimeUnit.MILLISECONDS.toNanos(stageTimeoutMs))
+			return "the stage '" + stage.getName() + "' exceeded its deadline of " + (stageTimeoutMs / 1000) + "s";
+		return null;
+	}
+}
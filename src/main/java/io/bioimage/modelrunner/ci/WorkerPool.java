@@ -0,0 +1,494 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.bioimage.modelrunner.tensor.Tensor;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Pools of worker JVMs ({@link ModelWorker}) that load and run the models, one pool per engine 
+ * group. Running the engines out of the main JVM means that a segfault in the native code of 
+ * an engine only kills its worker, and that engines that cannot share a process, such as 
+ * Tensorflow 1 and 2, are never loaded in the same JVM. The workers are reused by all the 
+ * models of the group, so the engine startup is paid once per worker. A worker that crashes 
+ * is replaced by a new one the next time the pool needs it, and the crash is reported as the 
+ * failure of the model that was running.
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class WorkerPool {
+	
+	/**
+	 * Maximum time waiting for a new worker to connect
+	 */
+	private static final int CONNECT_TIMEOUT_MS = 120000;
+	/**
+	 * Number of bytes of the log of a crashed worker added to the traceback
+	 */
+	private static final int LOG_TAIL_BYTES = 8 * 1024;
+	
+	/**
+	 * Maximum number of workers of each engine group
+	 */
+	private final int size;
+	/**
+	 * Extra arguments of the worker JVMs, for example the maximum heap
+	 */
+	private final List<String> jvmArgs;
+	/**
+	 * Folder where the tensors are exchanged and the logs of the workers are written
+	 */
+	private final Path exchangeDir;
+	/**
+	 * Pools by engine key
+	 */
+	private final Map<String, Pool> pools = new LinkedHashMap<String, Pool>();
+	/**
+	 * Counter used to give a unique name to every request
+	 */
+	private final AtomicLong requests = new AtomicLong();
+	/**
+	 * Counter used to give a unique name to the log of every worker
+	 */
+	private final AtomicLong workers = new AtomicLong();
+	/**
+	 * Worker running the model of each test
+	 */
+	private final Map<TestJob, Worker> busy = new ConcurrentHashMap<TestJob, Worker>();
+	
+	/**
+	 * Workers of one engine group
+	 */
+	private static class Pool {
+		/**
+		 * Workers that are not running any model
+		 */
+		private final Deque<Worker> idle = new ArrayDeque<Worker>();
+		/**
+		 * Workers alive or being started
+		 */
+		private int alive;
+		/**
+		 * Workers started
+		 */
+		private int started;
+		/**
+		 * Workers that crashed
+		 */
+		private int crashes;
+		/**
+		 * Workers killed because their test exceeded a deadline
+		 */
+		private int killed;
+		/**
+		 * Whether the group has finished and no more workers should be started
+		 */
+		private boolean closed;
+	}
+	
+	/**
+	 * Worker JVM and the connection to it
+	 */
+	private static class Worker {
+		private final Process process;
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private final Path log;
+		/**
+		 * Whether the worker was killed on purpose
+		 */
+		private volatile boolean killed;
+		
+		private Worker(Process process, Socket socket, Path log) throws IOException {
+			this.process = process;
+			this.socket = socket;
+			this.log = log;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+			try {
+				if (!process.waitFor(10, TimeUnit.SECONDS))
+					process.destroyForcibly();
+			} catch (InterruptedException ex) {
+				process.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Error of a model run in a worker
+	 */
+	public static class WorkerException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Traceback of the error in the worker or log of the worker if it crashed
+		 */
+		private final String traceback;
+		
+		private WorkerException(String message, String traceback) {
+			super(message);
+			this.traceback = traceback;
+		}
+		
+		/**
+		 * 
+		 * @return traceback of the error in the worker, or last lines of its log if it crashed
+		 */
+		public String getTraceback() {
+			return traceback;
+		}
+	}
+	
+	/**
+	 * Create the pools of workers
+	 * @param size
+	 * 	maximum number of workers of each engine group
+	 * @param jvmArgs
+	 * 	extra arguments of the worker JVMs, for example the maximum heap
+	 * @throws IOException if the folder to exchange the tensors cannot be created
+	 */
+	public WorkerPool(int size, List<String> jvmArgs) throws IOException {
+		if (size < 1)
+			throw new IllegalArgumentException("The number of workers should be at least 1, but it was " + size);
+		this.size = size;
+		this.jvmArgs = new ArrayList<String>(jvmArgs);
+		this.exchangeDir = Files.createTempDirectory("jdll-ci-workers");
+	}
+	
+	/**
+	 * Load and run a model in a worker of its engine group. The inputs are written to mapped
+	 * .npy files, and the outputs returned are backed by the mapped files written by the worker
+	 * @param job
+	 * 	the test, which defines the engine group
+	 * @param modelFolder
+	 * 	folder where the model is
+	 * @param modelSource
+	 * 	path to the weights
+	 * @param inputs
+	 * 	the input tensors, already pre-processed
+	 * @param outputs
+	 * 	the empty output tensors
+	 * @param benchmark
+	 * 	receives the latencies of the model measured by the worker after the test run, null to
+	 * 	not benchmark
+	 * @return the output tensors filled by the model
+	 * @throws WorkerException if the model could not be loaded or run, or the worker crashed
+	 * @throws IOException if the tensors cannot be exchanged with the worker
+	 * @throws InterruptedException if the thread is interrupted while waiting for a worker
+	 */
+	public < T extends RealType< T > & NativeType< T > > List<Tensor<?>> run(TestJob job, String modelFolder, String modelSource, 
+			List<Tensor<?>> inputs, List<Tensor<?>> outputs, InferenceBenchmark benchmark) throws WorkerException, IOException, InterruptedException {
+		Path requestDir = exchangeDir.resolve("request-" + requests.incrementAndGet());
+		Files.createDirectories(requestDir);
+		try {
+			List<Path> inputFiles = new ArrayList<Path>();
+			for (int i = 0; i < inputs.size(); i ++) {
+				inputFiles.add(requestDir.resolve("input-" + i + ".npy"));
+				MappedNpy.write(inputFiles.get(i), inputs.get(i).getData());
+			}
+			List<Path> outputFiles = new ArrayList<Path>();
+			for (int i = 0; i < outputs.size(); i ++)
+				outputFiles.add(requestDir.resolve("output-" + i + ".npy"));
+			
+			Pool pool = pool(job.getEngineKey());
+			Worker worker = acquire(pool);
+			busy.put(job, worker);
+			// The deadline may have been exceeded before the worker was assigned
+			if (job.getTimeout() != null)
+				kill(job);
+			String status;
+			String traceback;
+			try {
+				ModelWorker.writeString(worker.out, job.getRdfPath().toAbsolutePath().toString());
+				ModelWorker.writeString(worker.out, job.getWeightFormat().getFramework());
+				ModelWorker.writeString(worker.out, modelFolder);
+				ModelWorker.writeString(worker.out, modelSource);
+				worker.out.writeInt(benchmark == null ? 0 : benchmark.getWarmup());
+				worker.out.writeInt(benchmark == null ? 0 : benchmark.getIterations());
+				worker.out.writeInt(inputs.size());
+				for (int i = 0; i < inputs.size(); i ++) {
+					ModelWorker.writeString(worker.out, inputs.get(i).getName());
+					ModelWorker.writeString(worker.out, inputs.get(i).getAxesOrderString());
+					ModelWorker.writeString(worker.out, inputFiles.get(i).toAbsolutePath().toString());
+				}
+				worker.out.writeInt(outputs.size());
+				for (int i = 0; i < outputs.size(); i ++) {
+					ModelWorker.writeString(worker.out, outputs.get(i).getName());
+					ModelWorker.writeString(worker.out, outputs.get(i).getAxesOrderString());
+					ModelWorker.writeString(worker.out, outputFiles.get(i).toAbsolutePath().toString());
+				}
+				worker.out.flush();
+				
+				status = ModelWorker.readString(worker.in);
+				traceback = ModelWorker.readString(worker.in);
+				int nStages = worker.in.readInt();
+				for (int i = 0; i < nStages; i ++)
+					job.getMetrics().add(ModelWorker.readString(worker.in), worker.in.readLong(), 
+							worker.in.readLong(), worker.in.readLong());
+				String benchmarkError = ModelWorker.readString(worker.in);
+				long[] latencies = new long[worker.in.readInt()];
+				for (int i = 0; i < latencies.length; i ++)
+					latencies[i] = worker.in.readLong();
+				if (benchmark != null && !benchmarkError.isEmpty())
+					benchmark.fail(benchmarkError);
+				else if (benchmark != null && latencies.length > 0)
+					benchmark.add(latencies);
+			} catch (IOException ex) {
+				busy.remove(job);
+				throw crashed(pool, worker);
+			}
+			busy.remove(job);
+			release(pool, worker);
+			
+			if (status.equals(ModelWorker.LOAD_FAILED))
+				throw new WorkerException("unable to instantiate/load model", traceback);
+			else if (!status.equals(ModelWorker.OK))
+				throw new WorkerException("unable to run model", traceback);
+			List<Tensor<?>> filled = new ArrayList<Tensor<?>>();
+			for (int i = 0; i < outputs.size(); i ++) {
+				MappedNpy npy = MappedNpy.open(outputFiles.get(i), true, MappedNpy.DEFAULT_CHUNK_BYTES);
+				filled.add(Tensor.build(outputs.get(i).getName(), outputs.get(i).getAxesOrderString(), npy.<T>getImg()));
+			}
+			return filled;
+		} finally {
+			// The mappings stay valid after the files are deleted, where the OS allows deleting them
+			try {
+				ModelCache.deleteRecursively(requestDir);
+			} catch (IOException ex) {
+			}
+		}
+	}
+	
+	private synchronized Pool pool(String engineKey) {
+		return pools.computeIfAbsent(engineKey, k -> new Pool());
+	}
+	
+	/**
+	 * Get an idle worker of the pool, starting a new one if the pool is not full, or wait 
+	 * until a worker is released
+	 */
+	private Worker acquire(Pool pool) throws IOException, InterruptedException {
+		synchronized (pool) {
+			while (pool.idle.size() == 0 && pool.alive >= size)
+				pool.wait();
+			if (pool.idle.size() > 0)
+				return pool.idle.pop();
+			pool.alive ++;
+			pool.started ++;
+		}
+		try {
+			return start();
+		} catch (IOException | RuntimeException ex) {
+			synchronized (pool) {
+				pool.alive --;
+				pool.notifyAll();
+			}
+			throw ex;
+		}
+	}
+	
+	private void release(Pool pool, Worker worker) {
+		synchronized (pool) {
+			if (pool.closed) {
+				pool.alive --;
+				worker.close();
+			} else {
+				pool.idle.push(worker);
+			}
+			pool.notifyAll();
+		}
+	}
+	
+	/**
+	 * Remove a worker that crashed from the pool and create the error of the model it was running
+	 */
+	private WorkerException crashed(Pool pool, Worker worker) {
+		worker.close();
+		synchronized (pool) {
+			pool.alive --;
+			if (worker.killed)
+				pool.killed ++;
+			else
+				pool.crashes ++;
+			pool.notifyAll();
+		}
+		if (worker.killed)
+			return new WorkerException("worker JVM killed because the test exceeded its deadline", 
+					"Last lines of the log of the worker " + worker.log + ":" + System.lineSeparator() + tail(worker.log));
+		String exitCode = worker.process.isAlive() ? "unknown" : "" + worker.process.exitValue();
+		return new WorkerException("worker JVM crashed while testing the model (exit code " + exitCode + ")", 
+				"Last lines of the log of the worker " + worker.log + ":" + System.lineSeparator() + tail(worker.log));
+	}
+	
+	/**
+	 * Start a worker JVM with the same classpath as this one and wait until it connects
+	 */
+	private Worker start() throws IOException {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			server.setSoTimeout(CONNECT_TIMEOUT_MS);
+			List<String> command = new ArrayList<String>();
+			command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+			command.addAll(jvmArgs);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(ModelWorker.class.getName());
+			command.add("" + server.getLocalPort());
+			Path log = exchangeDir.resolve("worker-" + workers.incrementAndGet() + ".log");
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+			try {
+				return new Worker(process, server.accept(), log);
+			} catch (IOException ex) {
+				process.destroyForcibly();
+				throw new IOException("The worker JVM did not start, see its log: " + System.lineSeparator() + tail(log), ex);
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @param log
+	 * 	log file of a worker
+	 * @return the end of the log
+	 */
+	private static String tail(Path log) {
+		try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "r")) {
+			long start = Math.max(0, file.length() - LOG_TAIL_BYTES);
+			byte[] bytes = new byte[(int) (file.length() - start)];
+			file.seek(start);
+			file.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		} catch (IOException ex) {
+			return "unable to read the log: " + ex.getMessage();
+		}
+	}
+	
+	/**
+	 * Kill the worker that is running the model of a test, so the test stops waiting for it.
+	 * The pool replaces the worker the next time it needs one
+	 * @param job
+	 * 	the test
+	 * @return true if a worker was running the model of the test
+	 */
+	public boolean kill(TestJob job) {
+		Worker worker = busy.get(job);
+		if (worker == null)
+			return false;
+		worker.killed = true;
+		worker.process.destroyForcibly();
+		try {
+			worker.socket.close();
+		} catch (IOException ex) {
+		}
+		return true;
+	}
+	
+	/**
+	 * Stop the workers of an engine group once all its tests have finished
+	 * @param engineKey
+	 * 	key of the engine group
+	 */
+	public void close(String engineKey) {
+		Pool pool;
+		synchronized (this) {
+			pool = pools.get(engineKey);
+		}
+		if (pool == null)
+			return;
+		List<Worker> workers;
+		synchronized (pool) {
+			pool.closed = true;
+			workers = new ArrayList<Worker>(pool.idle);
+			pool.alive -= pool.idle.size();
+			pool.idle.clear();
+		}
+		for (Worker worker : workers)
+			worker.close();
+	}
+	
+	/**
+	 * Stop every worker and remove the exchanged tensors
+	 */
+	public void shutdown() {
+		List<String> keys;
+		synchronized (this) {
+			keys = new ArrayList<String>(pools.keySet());
+		}
+		for (String key : keys)
+			close(key);
+		try {
+			ModelCache.deleteRecursively(exchangeDir);
+		} catch (IOException ex) {
+			System.out.println("Unable to remove the worker folder " + exchangeDir + ": " + ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Create a report of the workers started, crashed and killed in each engine group
+	 * @return map from engine key to the statistics of its workers
+	 */
+	public synchronized Map<String, Object> report() {
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		for (Entry<String, Pool> ee : pools.entrySet()) {
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			synchronized (ee.getValue()) {
+				stats.put("workers_started", ee.getValue().started);
+				stats.put("crashes", ee.getValue().crashes);
+				stats.put("killed", ee.getValue().killed);
+			}
+			report.put(ee.getKey(), stats);
+		}
+		return report;
+	}
+}
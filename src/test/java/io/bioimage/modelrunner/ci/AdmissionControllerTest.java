@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Tests that {@link AdmissionController} reads the size of the tensors from the contents of the
+ * rdf.yaml 0.4 and 0.5
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class AdmissionControllerTest {
+	
+	@Test
+	public void fixedAndRelativeShapes() {
+		Map<String, Object> rdf = load(
+				"inputs:\n"
+				+ "- {name: raw, data_type: float32, shape: {min: [1, 1, 64, 64], step: [0, 0, 16, 16]}}\n"
+				+ "- {name: mask, data_type: uint8, shape: [1, 1, 32, 32]}\n"
+				+ "outputs:\n"
+				+ "- {name: probs, shape: {reference_tensor: raw, scale: [1, 2, 0.5, 0.5], offset: [0, 0, 0, 0]}}\n"
+				+ "- {name: score, shape: [1, 10]}\n");
+		assertEquals(64 * 64 + 32 * 32 + 2 * 32 * 32 + 10, AdmissionController.tensorElements(rdf));
+	}
+	
+	@Test
+	public void axes() {
+		Map<String, Object> rdf = load(
+				"inputs:\n"
+				+ "- id: raw\n"
+				+ "  axes:\n"
+				+ "  - {type: batch}\n"
+				+ "  - {type: channel, channel_names: [r, g, b]}\n"
+				+ "  - {type: space, id: y, size: {min: 64, step: 16}}\n"
+				+ "  - {type: space, id: x, size: 128, scale: 2}\n"
+				+ "outputs:\n"
+				+ "- id: labels\n"
+				+ "  axes:\n"
+				+ "  - {type: batch}\n"
+				+ "  - {type: channel, channel_names: [a, b]}\n"
+				+ "  - {type: space, id: y, size: {tensor_id: raw, axis_id: y}}\n"
+				+ "  - {type: space, id: x, size: {tensor_id: raw, axis_id: x}, scale: 0.5}\n");
+		assertEquals(3 * 64 * 128 + 2 * 64 * 512, AdmissionController.tensorElements(rdf));
+	}
+	
+	@Test
+	public void missingTensors() {
+		assertEquals(0, AdmissionController.tensorElements(load("name: no tensors\n")));
+		assertEquals(0, AdmissionController.tensorElements(load("inputs: not a list\noutputs: [3]\n")));
+	}
+	
+	private static Map<String, Object> load(String yaml) {
+		return new Yaml().load(yaml);
+	}
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests of the copy-on-write mapping of the test tensors
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class MappedNpyTest {
+	
+	private static final long[] DIMS = new long[] {4, 3, 5};
+	
+	/**
+	 * Bytes of a plane of the image, so every plane is a different chunk
+	 */
+	private static final long PLANE_BYTES = 4 * 3 * 4;
+	
+	@Test
+	public void writableFileIsTransformedWithoutModifyingIt() throws IOException {
+		Path dir = Files.createTempDirectory("mapped-npy");
+		try {
+			Path file = write(dir);
+			transformAndCheck(file);
+		} finally {
+			ModelCache.deleteRecursively(dir);
+		}
+	}
+	
+	@Test
+	public void readOnlyFileIsTransformedWithoutModifyingIt() throws IOException {
+		Path dir = Files.createTempDirectory("mapped-npy");
+		Path file = dir.resolve("input.npy");
+		try {
+			write(dir);
+			assertTrue(file.toFile().setWritable(false, false));
+			Assume.assumeTrue("The file is still writable, the tests are run by a superuser", !Files.isWritable(file));
+			transformAndCheck(file);
+		} finally {
+			file.toFile().setWritable(true, false);
+			ModelCache.deleteRecursively(dir);
+		}
+	}
+	
+	private static Path write(Path dir) throws IOException {
+		Path file = dir.resolve("input.npy");
+		MappedNpy.write(file, image());
+		return file;
+	}
+	
+	private static Img<FloatType> image() {
+		float[] values = new float[(int) (DIMS[0] * DIMS[1] * DIMS[2])];
+		for (int i = 0; i < values.length; i ++)
+			values[i] = i - 7.5f;
+		return ArrayImgs.floats(values, DIMS);
+	}
+	
+	/**
+	 * Modify the mapped image in place, as the JDLL transformations do, and check that the 
+	 * image changes and the file does not
+	 */
+	private static void transformAndCheck(Path file) throws IOException {
+		byte[] original = Files.readAllBytes(file);
+		RandomAccessibleInterval<FloatType> mapped = MappedNpy.open(file, true, PLANE_BYTES).getImg();
+		LoopBuilder.setImages(mapped).forEachPixel(px -> px.mul(2));
+		Cursor<FloatType> expected = image().cursor();
+		Cursor<FloatType> actual = Views.flatIterable(mapped).cursor();
+		while (expected.hasNext())
+			assertEquals(2 * expected.next().get(), actual.next().get(), 0);
+		assertArrayEquals(original, Files.readAllBytes(file));
+	}
+}
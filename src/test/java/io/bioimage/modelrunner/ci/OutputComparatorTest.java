@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.view.Views;
+
+/**
+ * Tests that the {@link OutputComparator} matches the non-finite values of an output with
+ * the same values of the expected output, and only with them
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class OutputComparatorTest {
+	
+	private static final OutputComparator COMPARATOR = new OutputComparator(1e-4, false);
+	
+	@Test
+	public void matchingNaNs() {
+		float nan = Float.NaN;
+		assertSame(new float[] {1, nan, 3}, new float[] {1, nan, 3});
+	}
+	
+	@Test
+	public void matchingInfinities() {
+		float inf = Float.POSITIVE_INFINITY;
+		assertSame(new float[] {1, inf, -inf}, new float[] {1, inf, -inf});
+	}
+	
+	@Test
+	public void nanAgainstANumber() {
+		assertDifferent(new float[] {1, Float.NaN}, new float[] {1, 2});
+		assertDifferent(new float[] {1, 2}, new float[] {1, Float.NaN});
+	}
+	
+	@Test
+	public void differentInfinities() {
+		float inf = Float.POSITIVE_INFINITY;
+		assertDifferent(new float[] {1, inf}, new float[] {1, -inf});
+		assertDifferent(new float[] {1, inf}, new float[] {1, 2});
+		assertDifferent(new float[] {1, Float.NaN}, new float[] {1, inf});
+	}
+	
+	/**
+	 * Compare the outputs both with their arrays and through cursors
+	 */
+	private static void assertSame(float[] output, float[] expected) {
+		for (ComparisonResult result : compare(output, expected)) {
+			assertEquals(0, result.getMaxAbsoluteError(), 0);
+			assertTrue(COMPARATOR.isWithinTolerance(result));
+		}
+	}
+	
+	private static void assertDifferent(float[] output, float[] expected) {
+		for (ComparisonResult result : compare(output, expected)) {
+			assertEquals(Double.POSITIVE_INFINITY, result.getMaxAbsoluteError(), 0);
+			assertFalse(COMPARATOR.isWithinTolerance(result));
+		}
+	}
+	
+	private static ComparisonResult[] compare(float[] output, float[] expected) {
+		double[] expectedDoubles = new double[expected.length];
+		for (int i = 0; i < expected.length; i ++)
+			expectedDoubles[i] = expected[i];
+		return new ComparisonResult[] {
+			COMPARATOR.compare(ArrayImgs.floats(output, output.length), ArrayImgs.floats(expected, expected.length)),
+			COMPARATOR.compare(ArrayImgs.floats(output, output.length), ArrayImgs.doubles(expectedDoubles, expected.length)),
+			COMPARATOR.compare(Views.zeroMin(ArrayImgs.floats(output, output.length)), 
+					Views.zeroMin(ArrayImgs.floats(expected, expected.length)))
+		};
+	}
+}
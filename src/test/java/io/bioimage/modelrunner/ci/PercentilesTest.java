@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that both modes of {@link Percentiles} match the percentiles of the sorted values, 
+ * exactly in the exact mode and within {@link Percentiles#getMaxError(double, double)} in the
+ * approximate mode
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class PercentilesTest {
+	
+	/**
+	 * More values than {@link Percentiles#MAX_CANDIDATES}, so the bins are counted again
+	 */
+	private static final int N = 300_000;
+	
+	private static final double[] PERCENTILES = {0, 0.1, 1, 25, 50, 75, 99, 99.8, 100};
+	
+	@Test
+	public void uniform() {
+		Random random = new Random(1);
+		float[] values = new float[N];
+		for (int i = 0; i < N; i ++)
+			values[i] = random.nextFloat() * 100 - 50;
+		assertMatchesSort("uniform", values);
+	}
+	
+	@Test
+	public void outliersSqueezeTheValuesIntoOneBin() {
+		Random random = new Random(2);
+		float[] values = new float[N];
+		for (int i = 0; i < N; i ++)
+			values[i] = random.nextFloat();
+		values[17] = 1e30f;
+		values[N - 5] = -1e6f;
+		assertMatchesSort("outliers", values);
+	}
+	
+	@Test
+	public void hotPixel() {
+		float[] values = new float[N];
+		values[N / 2] = 65535;
+		assertMatchesSort("hot pixel", values);
+	}
+	
+	@Test
+	public void valuesOverManyOrdersOfMagnitude() {
+		Random random = new Random(3);
+		float[] values = new float[N];
+		for (int i = 0; i < N; i ++)
+			values[i] = (float) Math.exp(random.nextGaussian() * 20);
+		assertMatchesSort("orders of magnitude", values);
+	}
+	
+	@Test
+	public void nansAreTheLargestValues() {
+		Random random = new Random(4);
+		float[] values = new float[N];
+		for (int i = 0; i < N; i ++)
+			values[i] = random.nextInt(10) == 0 ? Float.NaN : random.nextFloat();
+		assertMatchesSort("NaN", values);
+		float[] nans = new float[1000];
+		Arrays.fill(nans, Float.NaN);
+		assertMatchesSort("only NaN", nans);
+	}
+	
+	@Test
+	public void infinities() {
+		Random random = new Random(5);
+		float[] values = new float[N];
+		for (int i = 0; i < N; i ++)
+			values[i] = (float) random.nextGaussian();
+		for (int i = 0; i < 1000; i ++) {
+			values[random.nextInt(N)] = Float.POSITIVE_INFINITY;
+			values[random.nextInt(N)] = Float.NEGATIVE_INFINITY;
+		}
+		values[random.nextInt(N)] = Float.NaN;
+		assertMatchesSort("infinities", values);
+		float[] constant = new float[1000];
+		Arrays.fill(constant, 3);
+		constant[0] = Float.NEGATIVE_INFINITY;
+		constant[1] = Float.POSITIVE_INFINITY;
+		assertMatchesSort("constant with infinities", constant);
+	}
+	
+	@Test
+	public void floatBuffer() {
+		Random random = new Random(6);
+		FloatBuffer buffer = ByteBuffer.allocateDirect(N * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		float[] values = new float[N];
+		for (int i = 0; i < N; i ++) {
+			values[i] = random.nextFloat() < 0.9 ? 7 : random.nextFloat() * 1000;
+			buffer.put(i, values[i]);
+		}
+		for (Percentiles percentiles : new Percentiles[] {Percentiles.exact(), Percentiles.approximate(1000)})
+			assertMatches("buffer", percentiles, values, percentiles.compute(buffer, N, PERCENTILES));
+	}
+	
+	@Test
+	public void uint8() {
+		Random random = new Random(7);
+		byte[] values = new byte[N];
+		float[] reference = new float[N];
+		for (int i = 0; i < N; i ++) {
+			values[i] = (byte) (random.nextInt(20) == 0 ? 255 : random.nextInt(40));
+			reference[i] = values[i] & 0xff;
+		}
+		for (Percentiles percentiles : new Percentiles[] {Percentiles.exact(), Percentiles.approximate(1000)})
+			assertEquals(Arrays.toString(reference(reference)), Arrays.toString(percentiles.compute(values, N, PERCENTILES)));
+	}
+	
+	@Test
+	public void uint16() {
+		Random random = new Random(8);
+		short[] values = new short[N];
+		float[] reference = new float[N];
+		for (int i = 0; i < N; i ++) {
+			values[i] = (short) (random.nextInt(100) == 0 ? 65535 : random.nextInt(3000));
+			reference[i] = values[i] & 0xffff;
+		}
+		for (Percentiles percentiles : new Percentiles[] {Percentiles.exact(), Percentiles.approximate(1000)})
+			assertEquals(Arrays.toString(reference(reference)), Arrays.toString(percentiles.compute(values, N, PERCENTILES)));
+	}
+	
+	@Test
+	public void perGroup() {
+		// Percentiles per channel of an image with axes xyc
+		long[] dims = {70, 50, 3};
+		int plane = (int) (dims[0] * dims[1]);
+		Random random = new Random(9);
+		float[] values = new float[plane * (int) dims[2]];
+		for (int i = 0; i < values.length; i ++)
+			values[i] = random.nextFloat() * (1 + i / plane) * 10;
+		for (Percentiles percentiles : new Percentiles[] {Percentiles.exact(), Percentiles.approximate(1000)}) {
+			double[][] result = percentiles.compute(values, dims, new boolean[] {true, true, false}, PERCENTILES);
+			assertEquals(dims[2], result.length);
+			for (int c = 0; c < dims[2]; c ++)
+				assertMatches("channel " + c, percentiles, Arrays.copyOfRange(values, c * plane, (c + 1) * plane), result[c]);
+		}
+	}
+	
+	private static void assertMatchesSort(String name, float[] values) {
+		for (Percentiles percentiles : new Percentiles[] {Percentiles.exact(), Percentiles.approximate(1000)})
+			assertMatches(name, percentiles, values, percentiles.compute(values.clone(), values.length, PERCENTILES));
+	}
+	
+	/**
+	 * Check the percentiles of some values against the ones of the sorted values. Finite 
+	 * percentiles can differ by the error of the mode, the rest have to be the same
+	 */
+	private static void assertMatches(String name, Percentiles percentiles, float[] values, double[] result) {
+		double[] expected = reference(values);
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (float v : values) {
+			if (!Float.isNaN(v) && !Float.isInfinite(v)) {
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+		}
+		double error = min > max ? 0 : percentiles.getMaxError(min, max);
+		for (int i = 0; i < PERCENTILES.length; i ++) {
+			String message = name + (percentiles.isExact() ? ", exact" : ", approximate") + ", percentile " + PERCENTILES[i];
+			if (Double.isNaN(expected[i]) || Double.isInfinite(expected[i]))
+				assertEquals(message, expected[i], result[i], 0);
+			else
+				assertEquals(message, expected[i], result[i], error);
+		}
+	}
+	
+	/**
+	 * Percentiles of the sorted values, interpolated linearly between the closest ranks
+	 */
+	private static double[] reference(float[] values) {
+		float[] sorted = values.clone();
+		Arrays.sort(sorted);
+		double[] result = new double[PERCENTILES.length];
+		for (int i = 0; i < PERCENTILES.length; i ++) {
+			double pos = PERCENTILES[i] / 100 * (sorted.length - 1);
+			int lo = (int) Math.floor(pos);
+			int hi = Math.min(sorted.length - 1, lo + 1);
+			double fraction = pos - lo;
+			result[i] = fraction == 0 ? sorted[lo] : sorted[lo] + ((double) sorted[hi] - sorted[lo]) * fraction;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.bioimage.modelrunner.tensor.Tensor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests that running a model in tiles reproduces running it on the whole input
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class TiledInferenceTest {
+	
+	private static final String AXES = "bcyx";
+	/**
+	 * Radius of the filter applied by the model, the halo of the output
+	 */
+	private static final int RADIUS = 2;
+	
+	@Test
+	public void tilesReproduceTheWholeInput() throws Exception {
+		// Neither dimension is a multiple of the step or of the distance between tiles
+		long[] dims = new long[] {1, 1, 37, 53};
+		int[] min = new int[] {1, 1, 8, 8};
+		int[] step = new int[] {0, 0, 4, 4};
+		TiledInference tiling = plan(dims, min, step, 16 * 16 * 4);
+		assertNotNull(tiling);
+		assertTrue(tiling.getNumTiles() > 1);
+		long[] tileSize = tiling.getTileSize();
+		for (int i = 2; i < dims.length; i ++) {
+			assertEquals(0, (tileSize[i] - min[i]) % step[i]);
+			assertTrue((dims[i] % (tileSize[i] - 2 * RADIUS)) != 0);
+		}
+		
+		Img<FloatType> image = image(dims);
+		List<Tensor<?>> inputs = new ArrayList<Tensor<?>>();
+		inputs.add(Tensor.build("input", AXES, image));
+		List<Tensor<?>> outputs = new ArrayList<Tensor<?>>();
+		outputs.add(Tensor.buildEmptyTensor("output", AXES));
+		List<Tensor<?>> result = tiling.run(inputs, outputs, (tileInputs, tileOutputs) -> {
+			@SuppressWarnings("unchecked")
+			RandomAccessibleInterval<FloatType> tile = (RandomAccessibleInterval<FloatType>) tileInputs.get(0).getData();
+			assertEquals(Arrays.toString(tileSize), Arrays.toString(tile.dimensionsAsLongArray()));
+			List<Tensor<?>> filled = new ArrayList<Tensor<?>>();
+			filled.add(Tensor.build("output", AXES, filter(Views.extendBorder(tile), tile.dimensionsAsLongArray())));
+			return filled;
+		});
+		
+		Img<FloatType> expected = filter(Views.extendMirrorSingle(image), dims);
+		@SuppressWarnings("unchecked")
+		RandomAccessibleInterval<FloatType> stitched = (RandomAccessibleInterval<FloatType>) result.get(0).getData();
+		assertEquals(Arrays.toString(dims), Arrays.toString(stitched.dimensionsAsLongArray()));
+		Cursor<FloatType> exp = Views.flatIterable(expected).cursor();
+		Cursor<FloatType> act = Views.flatIterable(stitched).cursor();
+		while (exp.hasNext()) {
+			exp.fwd();
+			act.fwd();
+			assertEquals("pixel " + Arrays.toString(exp.positionAsLongArray()), exp.get().get(), act.get().get(), 0);
+		}
+	}
+	
+	@Test
+	public void fixedSizeAxisIsNotTiled() {
+		assertNull(plan(new long[] {1, 1, 37, 53}, new int[] {1, 1, 16, 8}, new int[] {0, 0, 0, 4}, 16 * 16 * 4));
+	}
+	
+	/**
+	 * Plan the tiles for a float input and an output of the same shape with a halo of 
+	 * {@link #RADIUS} on the spatial axes
+	 */
+	private static TiledInference plan(long[] dims, int[] min, int[] step, long maxTileBytes) {
+		List<String> outputAxes = new ArrayList<String>();
+		outputAxes.add(AXES);
+		List<float[]> outputScales = new ArrayList<float[]>();
+		outputScales.add(new float[] {0, 0, 1, 1});
+		return TiledInference.plan("filter", AXES, dims, 4, min, step, new long[] {0, 0, RADIUS, RADIUS}, 
+				outputAxes, outputScales, maxTileBytes);
+	}
+	
+	private static Img<FloatType> image(long[] dims) {
+		Img<FloatType> image = ArrayImgs.floats(dims);
+		Cursor<FloatType> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			long y = cursor.getLongPosition(2);
+			long x = cursor.getLongPosition(3);
+			cursor.get().set((float) Math.sin(0.37 * x + 0.11 * y * y) + 0.01f * x);
+		}
+		return image;
+	}
+	
+	/**
+	 * The model: an asymmetric weighted sum over a square of radius {@link #RADIUS}, so a tile that is 
+	 * misplaced, flipped or without enough context changes the result
+	 */
+	private static Img<FloatType> filter(RandomAccessible<FloatType> source, long[] dims) {
+		Img<FloatType> out = ArrayImgs.floats(dims);
+		RandomAccess<FloatType> ra = source.randomAccess();
+		Cursor<FloatType> cursor = out.localizingCursor();
+		long[] pos = new long[dims.length];
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(pos);
+			long y = pos[2];
+			long x = pos[3];
+			float sum = 0;
+			for (int dy = -RADIUS; dy <= RADIUS; dy ++) {
+				for (int dx = -RADIUS; dx <= RADIUS; dx ++) {
+					pos[2] = y + dy;
+					pos[3] = x + dx;
+					ra.setPosition(pos);
+					sum += (dx + 3) * (2 * dy + 7) * ra.get().get();
+				}
+			}
+			cursor.get().set(sum);
+		}
+		return out;
+	}
+}
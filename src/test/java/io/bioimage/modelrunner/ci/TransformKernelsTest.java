@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * This project performs Continuous Integration tasks on the JDLL library
+ * %%
+ * Copyright (C) 2023 Institut Pasteur.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.bioimage.modelrunner.ci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import io.bioimage.modelrunner.tensor.Tensor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests that the {@link TransformKernels} produce the same values as the transformations of 
+ * JDLL run by {@link JavaProcessing}, within {@link TransformKernels#TOLERANCE}
+ * 
+ * @author Carlos Javier Garcia Lopez de Haro
+ */
+public class TransformKernelsTest {
+	
+	private static final String AXES = "bcyx";
+	/**
+	 * Larger than a block of the kernels, and not a multiple of a block or of a tile
+	 */
+	private static final long[] DIMS = new long[] {1, 1, 301, 337};
+	
+	@Test
+	public void float32MatchesJavaProcessing() throws Exception {
+		for (Map.Entry<String, Map<String, Object>> transform : transformations().entrySet())
+			assertParity("float32", transform.getKey(), transform.getValue());
+	}
+	
+	@Test
+	public void uint8MatchesJavaProcessing() throws Exception {
+		for (Map.Entry<String, Map<String, Object>> transform : transformations().entrySet())
+			assertParity("uint8", transform.getKey(), transform.getValue());
+	}
+	
+	@Test
+	public void uint16MatchesJavaProcessing() throws Exception {
+		for (Map.Entry<String, Map<String, Object>> transform : transformations().entrySet())
+			assertParity("uint16", transform.getKey(), transform.getValue());
+	}
+	
+	/**
+	 * Transformations run by the kernels, by name and arguments. The names of the per sample
+	 * transformations are followed by a space and the mode
+	 */
+	private static Map<String, Map<String, Object>> transformations() {
+		Map<String, Map<String, Object>> transforms = new LinkedHashMap<String, Map<String, Object>>();
+		transforms.put("scale_linear", kwargs("gain", 0.02, "offset", -1.5));
+		transforms.put("clip", kwargs("min", 10.0, "max", 200.0));
+		// The threshold is not a value of the integer images
+		transforms.put("binarize", kwargs("threshold", 100.5));
+		transforms.put("zero_mean_unit_variance fixed", kwargs("mode", "fixed", "mean", 100.0, "std", 50.0));
+		transforms.put("zero_mean_unit_variance per_sample", kwargs("mode", "per_sample"));
+		transforms.put("scale_range per_sample", kwargs("mode", "per_sample", "min_percentile", 1.0, "max_percentile", 99.8));
+		return transforms;
+	}
+	
+	private static void assertParity(String dataType, String transform, Map<String, Object> kwargs) throws Exception {
+		String name = transform.split(" ")[0];
+		// Both are given their own copy of the input, float images are modified in place
+		Tensor<?> expected = JavaProcessing.definePreprocessing(name, new HashMap<String, Object>(kwargs))
+				.execute("input0", Tensor.build("input0", AXES, image(dataType)));
+		Tensor<?> output = new ProcessingChain().add(name, new HashMap<String, Object>(kwargs))
+				.execute(Tensor.build("input0", AXES, image(dataType)));
+		assertTrue(Arrays.equals(DIMS, output.getData().dimensionsAsLongArray()));
+		Cursor<? extends RealType<?>> ce = Views.flatIterable(real(expected.getData())).cursor();
+		Cursor<? extends RealType<?>> co = Views.flatIterable(real(output.getData())).cursor();
+		while (ce.hasNext()) {
+			double e = ce.next().getRealDouble();
+			double o = co.next().getRealDouble();
+			// Relative to the value for the results that are not normalised, such as scale_linear
+			assertEquals(transform + " of " + dataType + " at " + ce.getLongPosition(3) + ", " + ce.getLongPosition(2), 
+					e, o, TransformKernels.TOLERANCE * Math.max(1, Math.abs(e)));
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static RandomAccessibleInterval<? extends RealType<?>> real(RandomAccessibleInterval<?> data) {
+		return (RandomAccessibleInterval<? extends RealType<?>>) data;
+	}
+	
+	/**
+	 * Image with the same random values for every call with the same data type, up to 4095 for 
+	 * uint16 and up to 255 otherwise
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static RandomAccessibleInterval image(String dataType) {
+		Random random = new Random(42);
+		int n = (int) (DIMS[0] * DIMS[1] * DIMS[2] * DIMS[3]);
+		if (dataType.equals("uint8")) {
+			byte[] values = new byte[n];
+			for (int i = 0; i < n; i ++)
+				values[i] = (byte) random.nextInt(256);
+			return ArrayImgs.unsignedBytes(values, DIMS);
+		} else if (dataType.equals("uint16")) {
+			short[] values = new short[n];
+			for (int i = 0; i < n; i ++)
+				values[i] = (short) random.nextInt(4096);
+			return ArrayImgs.unsignedShorts(values, DIMS);
+		}
+		float[] values = new float[n];
+		for (int i = 0; i < n; i ++)
+			values[i] = (float) (random.nextDouble() * 255);
+		return ArrayImgs.floats(values, DIMS);
+	}
+	
+	private static Map<String, Object> kwargs(Object... keysAndValues) {
+		Map<String, Object> kwargs = new HashMap<String, Object>();
+		for (int i = 0; i < keysAndValues.length; i += 2)
+			kwargs.put((String) keysAndValues[i], keysAndValues[i + 1]);
+		return kwargs;
+	}
+}